@@ -1,32 +1,88 @@
 package org.jlab.ersap.actor.pcap2streams;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class IPBasedStreamClient {
     private final String ip;
     private final int port;
+    private final ReplayRequest.Compression compression;
+    private final Path sharedMemory;
     private Socket socket;
     private InputStream inputStream;
+    private Lz4BlockInputStream blocks;
+    private SharedMemoryRing sharedRing;
     private final AtomicBoolean isRunning;
     
     public IPBasedStreamClient(String ip, int port) {
+        this(ip, port, ReplayRequest.Compression.NONE);
+    }
+    
+    /**
+     * Creates a client that asks the server for a compressed stream, sending
+     * a replay request for the server's default replay when it connects.
+     */
+    public IPBasedStreamClient(String ip, int port, ReplayRequest.Compression compression) {
+        this(ip, port, compression, null);
+    }
+    
+    /**
+     * Creates a client that reads the stream from the server's shared-memory
+     * ring on the same host, connecting over TCP instead if the ring cannot
+     * be opened.
+     */
+    public IPBasedStreamClient(String ip, int port, ReplayRequest.Compression compression, Path sharedMemory) {
         this.ip = ip;
         this.port = port;
+        this.compression = compression;
+        this.sharedMemory = sharedMemory;
         this.isRunning = new AtomicBoolean(false);
     }
     
     public void connect() throws IOException {
+        if (sharedMemory != null) {
+            try {
+                sharedRing = SharedMemoryRing.open(sharedMemory);
+                isRunning.set(true);
+                return;
+            } catch (IOException e) {
+                System.err.println("Cannot read shared-memory ring " + sharedMemory + ", connecting over TCP: "
+                        + e.getMessage());
+            }
+        }
         socket = new Socket(ip, port);
         inputStream = socket.getInputStream();
+        if (compression != ReplayRequest.Compression.NONE) {
+            ByteBuffer request = ByteBuffer.allocate(ReplayRequest.SIZE);
+            new ReplayRequest(0, Long.MIN_VALUE, 0, 0, null, false, ReplayRequest.FlowControl.NONE, compression)
+                    .write(request);
+            OutputStream out = socket.getOutputStream();
+            out.write(request.array());
+            out.flush();
+            
+            byte[] ack = new byte[ReplayRequest.ACK_SIZE];
+            new DataInputStream(inputStream).readFully(ack);
+            ReplayRequest.readAck(ByteBuffer.wrap(ack));
+            
+            // Everything after the acknowledgement comes in blocks
+            blocks = new Lz4BlockInputStream(inputStream);
+            inputStream = blocks;
+        }
         isRunning.set(true);
     }
     
     public void disconnect() {
         isRunning.set(false);
         try {
+            if (sharedRing != null) {
+                sharedRing.close();
+            }
             if (inputStream != null) {
                 inputStream.close();
             }
@@ -42,11 +98,14 @@ public class IPBasedStreamClient {
         if (!isRunning.get()) {
             return null;
         }
+        if (sharedRing != null) {
+            // Waits for the next frame; null once the server has stopped
+            return sharedRing.take();
+        }
         
         // Read packet size (4 bytes)
         byte[] sizeBytes = new byte[4];
-        int bytesRead = inputStream.read(sizeBytes);
-        if (bytesRead != 4) {
+        if (!readFully(sizeBytes)) {
             return null;
         }
         
@@ -58,15 +117,47 @@ public class IPBasedStreamClient {
         
         // Read packet data
         byte[] packet = new byte[packetSize];
-        bytesRead = inputStream.read(packet);
-        if (bytesRead != packetSize) {
+        if (!readFully(packet)) {
             return null;
         }
         
         return packet;
     }
     
+    /**
+     * Reads until the buffer is full, as a packet may arrive in several
+     * reads, or spread over two compressed blocks.
+     */
+    private boolean readFully(byte[] buffer) throws IOException {
+        int bytesRead = 0;
+        while (bytesRead < buffer.length) {
+            int count = inputStream.read(buffer, bytesRead, buffer.length - bytesRead);
+            if (count == -1) {
+                return false;
+            }
+            bytesRead += count;
+        }
+        return true;
+    }
+    
     public boolean isConnected() {
-        return socket != null && socket.isConnected();
+        return sharedRing != null ? isRunning.get() : socket != null && socket.isConnected();
+    }
+    
+    /**
+     * Gets whether the stream is read from shared memory rather than TCP.
+     */
+    public boolean isSharedMemory() {
+        return sharedRing != null;
+    }
+    
+    /**
+     * Describes the compression of the stream.
+     * 
+     * @return the compression ratio and decompression time, or null if the
+     *         stream is not compressed
+     */
+    public String getCompressionReport() {
+        return blocks != null ? blocks.report() : null;
     }
-} 
\ No newline at end of file
+}
@@ -5,6 +5,8 @@ import org.jlab.epsci.ersap.engine.EngineData;
 import org.jlab.epsci.ersap.engine.EngineDataType;
 import org.jlab.epsci.ersap.std.services.AbstractService;
 import org.jlab.ersap.actor.datatypes.JavaObjectType;
+import org.jlab.ersap.actor.pcap2streams.ColumnarWriter;
+import org.jlab.ersap.actor.pcap2streams.IPPacketIndex;
 import org.json.JSONObject;
 
 import java.io.File;
@@ -26,13 +28,28 @@ public class PacketSink extends AbstractService {
     
     private static final Logger LOGGER = Logger.getLogger(PacketSink.class.getName());
     
+    private static final String FORMAT_CSV = "csv";
+    private static final String FORMAT_COLUMNAR = "columnar";
+    
+    // Columns of the columnar format, in the order of the CSV header
+    private static final String[] COLUMN_NAMES = { "Timestamp", "PacketSize", "Protocol", "SourceIP",
+            "DestinationIP", "SourcePort", "DestinationPort", "HeaderSize", "PayloadLength" };
+    private static final ColumnarWriter.Type[] COLUMN_TYPES = { ColumnarWriter.Type.INT64,
+            ColumnarWriter.Type.INT32, ColumnarWriter.Type.INT32, ColumnarWriter.Type.IPV4,
+            ColumnarWriter.Type.IPV4, ColumnarWriter.Type.INT32, ColumnarWriter.Type.INT32,
+            ColumnarWriter.Type.INT32, ColumnarWriter.Type.INT32 };
+    
     private Path outputDir;
     private Map<String, FileWriter> writers;
+    private Map<String, ColumnarWriter> columnarWriters;
     private ScheduledExecutorService scheduler;
     private int flushInterval;
+    private String outputFormat = FORMAT_CSV;
+    private boolean dictionaryEncoding = true;
     
     public PacketSink() {
         this.writers = new ConcurrentHashMap<>();
+        this.columnarWriters = new ConcurrentHashMap<>();
     }
     
     @Override
@@ -67,6 +84,12 @@ public class PacketSink extends AbstractService {
                 
                 // Get configuration values with defaults
                 flushInterval = data.optInt("FLUSH_INTERVAL", 1000);
+                outputFormat = data.optString("OUTPUT_FORMAT", FORMAT_CSV).toLowerCase();
+                if (!outputFormat.equals(FORMAT_CSV) && !outputFormat.equals(FORMAT_COLUMNAR)) {
+                    throw new IOException("Unknown output format: " + outputFormat);
+                }
+                dictionaryEncoding = data.optBoolean("DICTIONARY_ENCODING", true);
+                LOGGER.info("Writing packet metadata as " + outputFormat);
                 
                 // Start the scheduler for periodic flushing
                 scheduler = Executors.newSingleThreadScheduledExecutor();
@@ -136,8 +159,12 @@ public class PacketSink extends AbstractService {
                 return createErrorResponse("Unknown protocol packet");
             }
             
-            // Write packet data to CSV
-            writePacketData(srcIp, timestamp, packetSize, protocol, srcIp, dstIp, srcPort, dstPort, totalHeaderLength, payloadLength);
+            // Write packet data to CSV or columnar files
+            if (FORMAT_COLUMNAR.equals(outputFormat)) {
+                writeColumnarPacketData(srcIp, timestamp, packetSize, protocol, srcIp, dstIp, srcPort, dstPort, totalHeaderLength, payloadLength);
+            } else {
+                writePacketData(srcIp, timestamp, packetSize, protocol, srcIp, dstIp, srcPort, dstPort, totalHeaderLength, payloadLength);
+            }
             
             return createSuccessResponse(timestamp, srcIp, dstIp, packetSize, protocol);
             
@@ -227,6 +254,69 @@ public class PacketSink extends AbstractService {
         }
     }
     
+    /**
+     * Appends one row to the columnar file of an IP. Rows are written in row
+     * groups, so a columnar file is only complete once the sink is destroyed
+     * or reset. Existing columnar files are replaced, not appended to.
+     */
+    private void writeColumnarPacketData(String ip, long timestamp, int packetSize, int protocol,
+                                         String srcIp, String dstIp, int sourcePort, int destPort,
+                                         int totalHeaderSize, int payloadLength) {
+        ColumnarWriter writer = columnarWriters.computeIfAbsent(ip, k -> {
+            try {
+                Path columnarPath = outputDir.resolve(k + "_packets" + ColumnarWriter.SUFFIX);
+                if (Files.exists(columnarPath)) {
+                    LOGGER.warning("Replacing existing columnar file: " + columnarPath.toAbsolutePath());
+                }
+                LOGGER.info("Creating new columnar file at absolute path: " + columnarPath.toAbsolutePath());
+                return new ColumnarWriter(columnarPath, COLUMN_NAMES, COLUMN_TYPES,
+                        ColumnarWriter.DEFAULT_ROW_GROUP_SIZE, dictionaryEncoding);
+            } catch (IOException e) {
+                LOGGER.severe("Failed to create columnar writer for IP " + k + ": " + e.getMessage());
+                e.printStackTrace();
+                return null;
+            }
+        });
+        if (writer == null) {
+            LOGGER.severe("Columnar writer is null for IP: " + ip + ". Cannot write packet metadata.");
+            return;
+        }
+        
+        try {
+            int sourceAddress = IPPacketIndex.parseAddress(srcIp);
+            int destAddress = IPPacketIndex.parseAddress(dstIp);
+            synchronized (writer) {
+                writer.put(0, timestamp);
+                writer.put(1, packetSize);
+                writer.put(2, protocol);
+                writer.put(3, sourceAddress);
+                writer.put(4, destAddress);
+                writer.put(5, sourcePort);
+                writer.put(6, destPort);
+                writer.put(7, totalHeaderSize);
+                writer.put(8, payloadLength);
+                writer.endRow();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.severe("Failed to write packet metadata for IP " + ip + ": " + e.getMessage());
+        }
+    }
+    
+    private void closeColumnarWriters() {
+        for (Map.Entry<String, ColumnarWriter> entry : columnarWriters.entrySet()) {
+            ColumnarWriter writer = entry.getValue();
+            try {
+                synchronized (writer) {
+                    writer.close();
+                }
+                LOGGER.info("Closed columnar writer for IP: " + entry.getKey() + " (" + writer.getRowCount() + " rows)");
+            } catch (IOException e) {
+                LOGGER.severe("Failed to close columnar writer for IP " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+        columnarWriters.clear();
+    }
+    
     private void flushWriters() {
         for (FileWriter writer : writers.values()) {
             try {
@@ -262,7 +352,7 @@ public class PacketSink extends AbstractService {
     
     @Override
     public String getDescription() {
-        return "Writes processed packet metadata to CSV files";
+        return "Writes processed packet metadata to CSV or columnar files";
     }
     
     @Override
@@ -300,6 +390,7 @@ public class PacketSink extends AbstractService {
             }
         }
         writers.clear();
+        closeColumnarWriters();
         LOGGER.info("Destroyed packet sink");
     }
     
@@ -328,6 +419,7 @@ public class PacketSink extends AbstractService {
             }
         }
         writers.clear();
+        closeColumnarWriters();
         
         // Reinitialize
         writers = new ConcurrentHashMap<>();
@@ -6,7 +6,9 @@ import org.jlab.epsci.ersap.std.services.AbstractEventReaderService;
 import org.jlab.epsci.ersap.std.services.EventReaderException;
 import org.jlab.epsci.ersap.std.services.ServiceUtils;
 import org.jlab.ersap.actor.pcap2streams.IPBasedStreamClient;
+import org.jlab.ersap.actor.pcap2streams.ReplayRequest;
 import org.jlab.ersap.actor.datatypes.JavaObjectType;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.nio.file.Path;
@@ -46,11 +48,14 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
         final String ip;
         final String host;
         final int port;
+        ReplayRequest.Compression compression; // From the connection's "compression" in ip-based-config.json
+        Path sharedMemory; // Ring file of a connection with "transport": "shm", null for TCP
         
         SocketConfig(String ip, String host, int port) {
             this.ip = ip;
             this.host = host;
             this.port = port;
+            this.compression = ReplayRequest.Compression.NONE;
         }
     }
     
@@ -171,7 +176,7 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
             if (client == null) {
                 SocketConfig config = socketConfigs.get(currentSocketIndex);
                 System.err.println("DEBUG: Initializing client for host: " + config.host + ", port: " + config.port);
-                client = createClientWithRetry(config.host, config.port);
+                client = createClientWithRetry(config);
                 System.err.println("DEBUG: Client initialized successfully");
             }
             
@@ -278,6 +283,26 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
                 String configContent = new String(java.nio.file.Files.readAllBytes(configPath));
                 JSONObject config = new JSONObject(configContent);
                 
+                // Streams read from shared memory, "transport": "shm", and
+                // streams the server should compress, "compression": "lz4"
+                JSONArray connections = config.optJSONArray("connections");
+                for (int i = 0; connections != null && i < connections.length(); i++) {
+                    JSONObject connection = connections.getJSONObject(i);
+                    for (SocketConfig socket : socketConfigs) {
+                        if (!socket.ip.equals(connection.optString("ip")) || socket.port != connection.optInt("port")) {
+                            continue;
+                        }
+                        if ("shm".equalsIgnoreCase(connection.optString("transport", "tcp")) && connection.has("shm_path")) {
+                            socket.sharedMemory = Paths.get(connection.getString("shm_path"));
+                            System.err.println("DEBUG: Using shared-memory ring " + socket.sharedMemory + " for " + socket.ip + ":" + socket.host + ":" + socket.port);
+                        }
+                        if ("lz4".equalsIgnoreCase(connection.optString("compression", "none"))) {
+                            socket.compression = ReplayRequest.Compression.LZ4;
+                            System.err.println("DEBUG: Using LZ4 compression for " + socket.ip + ":" + socket.host + ":" + socket.port);
+                        }
+                    }
+                }
+                
                 for (SocketConfig socket : socketConfigs) {
                     String socketKey = socket.ip + ":" + socket.host + ":" + socket.port;
                     int expectedCount = config.getInt("packet_count");
@@ -305,16 +330,19 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
         System.err.println("DEBUG: Successfully loaded " + socketConfigs.size() + " socket configurations");
     }
     
-    private IPBasedStreamClient createClientWithRetry(String host, int port) throws IOException {
+    private IPBasedStreamClient createClientWithRetry(SocketConfig config) throws IOException {
+        String host = config.host;
+        int port = config.port;
         System.err.println("DEBUG: Attempting to create client for host: " + host + ", port: " + port);
         IOException lastException = null;
         
         for (int i = 0; i < MAX_RETRIES; i++) {
             try {
-                IPBasedStreamClient newClient = new IPBasedStreamClient(host, port);
+                IPBasedStreamClient newClient = new IPBasedStreamClient(host, port, config.compression, config.sharedMemory);
                 System.err.println("DEBUG: Attempt " + (i + 1) + " of " + MAX_RETRIES + " to connect");
                 newClient.connect();
-                System.err.println("DEBUG: Successfully connected to " + host + ":" + port);
+                System.err.println("DEBUG: Successfully connected to " + host + ":" + port
+                        + (newClient.isSharedMemory() ? " through shared memory" : ""));
                 return newClient;
             } catch (IOException e) {
                 lastException = e;
@@ -363,7 +391,7 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
                     // Create client with current socket configuration
                     SocketConfig config = socketConfigs.get(currentSocketIndex);
                     System.err.println("DEBUG: Creating client for host: " + config.host + ", port: " + config.port);
-                    client = createClientWithRetry(config.host, config.port);
+                    client = createClientWithRetry(config);
                     System.err.println("DEBUG: Client initialized and connected successfully");
                 } catch (Exception e) {
                     String error = "Failed to initialize client: " + e.getMessage();
@@ -378,7 +406,7 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
                 System.err.println("DEBUG: Client exists but not connected, attempting to reconnect");
                 try {
                     SocketConfig config = socketConfigs.get(currentSocketIndex);
-                    client = createClientWithRetry(config.host, config.port);
+                    client = createClientWithRetry(config);
                     System.err.println("DEBUG: Client reconnected successfully");
                 } catch (Exception e) {
                     String error = "Failed to reconnect client: " + e.getMessage();
@@ -431,7 +459,7 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
             System.err.println("DEBUG: Attempting connection to host: " + config.host + ", port: " + config.port);
             
             // Create and connect client with retry logic
-            client = createClientWithRetry(config.host, config.port);
+            client = createClientWithRetry(config);
             
             System.err.println("DEBUG: Successfully connected to stream");
             return client;
@@ -446,6 +474,9 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
     @Override
     protected void closeReader() {
         if (client != null) {
+            if (client.getCompressionReport() != null) {
+                System.err.println("Compression: " + client.getCompressionReport());
+            }
             client.disconnect();
             System.err.println("Disconnected from stream");
         } else {
@@ -474,7 +505,7 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
                     // If we don't have a client or it's not connected, create a new one
                     if (client == null || !client.isConnected()) {
                         System.err.println("DEBUG: Creating new client for host: " + config.host + ", port: " + config.port);
-                        client = createClientWithRetry(config.host, config.port);
+                        client = createClientWithRetry(config);
                         currentSocketIndex = i;
                     }
                     
@@ -626,7 +657,7 @@ public class PcapSource extends AbstractEventReaderService<IPBasedStreamClient>
             System.err.println("DEBUG: No client available, attempting to create one");
             try {
                 SocketConfig config = socketConfigs.get(currentSocketIndex);
-                client = createClientWithRetry(config.host, config.port);
+                client = createClientWithRetry(config);
                 System.err.println("DEBUG: Successfully created client");
             } catch (IOException e) {
                 String error = "Failed to create client: " + e.getMessage();
@@ -10,17 +10,24 @@ PROJECT_DIR="$(cd "$(dirname "${BASH_SOURCE[0]}")/.." && pwd)"
 DEFAULT_PCAP_FILE="/scratch/jeng-yuantsai/CLAS12_ECAL_PCAL_DC_2024-05-15_17-12-30.pcap"
 PCAP_FILE=${1:-$DEFAULT_PCAP_FILE}
 
+# Output format: csv (default) or columnar
+FORMAT=${2:-csv}
+
 # Create output directory if it doesn't exist
 OUTPUT_DIR="$PROJECT_DIR/output"
 mkdir -p "$OUTPUT_DIR"
 
-# Output CSV file
-CSV_FILE="$OUTPUT_DIR/packet_details.csv"
+# Output file
+if [ "$FORMAT" = "columnar" ]; then
+    CSV_FILE="$OUTPUT_DIR/packet_details.p2scol"
+else
+    CSV_FILE="$OUTPUT_DIR/packet_details.csv"
+fi
 
 # Check if the PCAP file exists
 if [ ! -f "$PCAP_FILE" ]; then
     echo "Error: PCAP file not found at $PCAP_FILE"
-    echo "Usage: $0 [pcap_file]"
+    echo "Usage: $0 [pcap_file] [csv|columnar]"
     exit 1
 fi
 
@@ -33,6 +40,6 @@ javac -cp "lib/json-20231013.jar" -d build/classes/java/main src/main/java/org/j
 echo "Analyzing PCAP file: $PCAP_FILE"
 echo "Output will be written to: $CSV_FILE"
 
-java -cp "build/classes/java/main:lib/json-20231013.jar" org.jlab.ersap.actor.pcap2streams.PcapPacketAnalyzer "$PCAP_FILE" "$CSV_FILE"
+java -cp "build/classes/java/main:lib/json-20231013.jar" org.jlab.ersap.actor.pcap2streams.PcapPacketAnalyzer "$PCAP_FILE" "$CSV_FILE" "--format=$FORMAT"
 
 echo "Analysis complete. Results are in $CSV_FILE" 
\ No newline at end of file
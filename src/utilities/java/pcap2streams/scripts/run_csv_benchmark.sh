@@ -0,0 +1,23 @@
+#!/bin/bash
+
+# Exit on error
+set -e
+
+# Set the project directory
+PROJECT_DIR="$(cd "$(dirname "${BASH_SOURCE[0]}")/.." && pwd)"
+
+# Number of CSV rows written per run
+ROWS=${1:-2000000}
+
+# Directory for the temporary CSV files
+OUTPUT_DIR="$PROJECT_DIR/output"
+mkdir -p "$OUTPUT_DIR"
+
+# Compile the Java code
+echo "Compiling Java code..."
+cd "$PROJECT_DIR"
+javac -cp "lib/json-20231013.jar" -d build/classes/java/main src/main/java/org/jlab/ersap/actor/pcap2streams/*.java
+
+# Run the benchmark
+echo "Comparing CSV export paths with $ROWS rows"
+java -cp "build/classes/java/main:lib/json-20231013.jar" org.jlab.ersap.actor.pcap2streams.CsvEncoderBenchmark "$ROWS" "$OUTPUT_DIR"
@@ -19,7 +19,7 @@ PCAP_FILE=${1:-$DEFAULT_PCAP_FILE}
 # Check if the PCAP file exists
 if [ ! -f "$PCAP_FILE" ]; then
     echo "Error: PCAP file not found at $PCAP_FILE"
-    echo "Usage: $0 [pcap_file]"
+    echo "Usage: $0 [pcap_file] [options]"
     exit 1
 fi
 
@@ -58,6 +58,7 @@ fi
 echo "Killing any existing Pcap2Streams processes..."
 pkill -f "java.*Pcap2Streams" 2>/dev/null || true
 
-# Run the Pcap2Streams application
+# Run the Pcap2Streams application; JAVA_OPTS passes JVM options such as
+# -XX:MaxDirectMemorySize for --cache-memory
 echo "Starting Pcap2Streams with PCAP file: $PCAP_FILE"
-java -cp "build/classes/java/main:lib/json-20231013.jar:lib/disruptor-3.4.4.jar:lib/snakeyaml-2.0.jar" org.jlab.ersap.actor.pcap2streams.Pcap2Streams "$PCAP_FILE" "$CONFIG_DIR"
\ No newline at end of file
+java $JAVA_OPTS -cp "build/classes/java/main:lib/json-20231013.jar:lib/disruptor-3.4.4.jar:lib/snakeyaml-2.0.jar" org.jlab.ersap.actor.pcap2streams.Pcap2Streams "$PCAP_FILE" "$CONFIG_DIR" "${@:2}"
\ No newline at end of file
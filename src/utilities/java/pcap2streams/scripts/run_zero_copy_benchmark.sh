@@ -0,0 +1,27 @@
+#!/bin/bash
+
+# Exit on error
+set -e
+
+# Set the project directory
+PROJECT_DIR="$(cd "$(dirname "${BASH_SOURCE[0]}")/.." && pwd)"
+
+# PCAP file to replay and duration of each run in seconds
+PCAP_FILE=$1
+SECONDS_PER_RUN=${2:-20}
+
+# Check if the PCAP file exists
+if [ -z "$PCAP_FILE" ] || [ ! -f "$PCAP_FILE" ]; then
+    echo "Error: PCAP file not found at $PCAP_FILE"
+    echo "Usage: $0 <pcap_file> [seconds]"
+    exit 1
+fi
+
+# Compile the Java code
+echo "Compiling Java code..."
+cd "$PROJECT_DIR"
+javac -cp "lib/json-20231013.jar" -d build/classes/java/main src/main/java/org/jlab/ersap/actor/pcap2streams/*.java
+
+# Run the benchmark
+echo "Comparing heap-copy and zero-copy replay of $PCAP_FILE"
+java $JAVA_OPTS -cp "build/classes/java/main:lib/json-20231013.jar" org.jlab.ersap.actor.pcap2streams.ZeroCopyBenchmark "$PCAP_FILE" "$SECONDS_PER_RUN"
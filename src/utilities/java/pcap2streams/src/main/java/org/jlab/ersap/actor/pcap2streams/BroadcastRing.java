@@ -0,0 +1,342 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ring of length-prefixed frames that one publisher writes once and many
+ * subscribers read with cursors of their own, so a stream broadcast to any
+ * number of clients is read from the PCAP file once.
+ * <p>
+ * The ring is a byte stream in a direct buffer: a subscriber writes the
+ * bytes between its cursor and the head straight to its socket, in at most
+ * two writes however many frames are pending. Frames are committed whole, so
+ * every byte before the head belongs to a complete frame. A subscriber that
+ * falls a ring behind the publisher while its channel is full is handled by
+ * the {@link SlowSubscriberPolicy}; the publisher waits for one that is
+ * only behind because it has not had its turn to send yet.
+ * <p>
+ * A ring and its subscribers are not thread-safe; they are confined to one
+ * event loop, with the publisher and the subscribers' channels.
+ */
+public final class BroadcastRing {
+
+    /** Smallest ring size. */
+    public static final int MIN_CAPACITY = 1 << 16;
+
+    private static final int LENGTH_PREFIX_SIZE = 4;
+
+    /**
+     * What the publisher does when a frame would overwrite bytes that a
+     * subscriber has not sent yet.
+     */
+    public enum SlowSubscriberPolicy {
+        /** Wait until the subscriber makes room, holding back all subscribers. */
+        BLOCK,
+        /** Skip the subscriber past the oldest frames, which it never receives. */
+        DROP,
+        /** Disconnect the subscriber. */
+        DISCONNECT
+    }
+
+    private final int capacity;
+    private final int maxFrameSize;
+    private final SlowSubscriberPolicy policy;
+    private final ByteBuffer buffer; // Ring, followed by room for a frame that wraps
+    private final ByteBuffer claimView;
+    private final List<Subscriber> subscribers;
+    private final List<Subscriber> slow;
+    private long head; // Bytes committed since the ring was created
+    private Runnable spaceWaiter;
+    private long droppedFrames;
+    private long disconnectedCount;
+
+    /**
+     * Creates a ring.
+     *
+     * @param capacity     the ring size in bytes, at least
+     *                     {@link #MIN_CAPACITY} and two frames of the largest
+     *                     size
+     * @param maxFrameSize the largest frame, length prefix included
+     * @param policy       how subscribers that fall a ring behind are handled
+     */
+    public BroadcastRing(int capacity, int maxFrameSize, SlowSubscriberPolicy policy) {
+        if (capacity < MIN_CAPACITY || capacity < 2L * maxFrameSize) {
+            throw new IllegalArgumentException("Broadcast ring must be at least " + Math.max(MIN_CAPACITY,
+                    2L * maxFrameSize) + " bytes: " + capacity);
+        }
+        this.capacity = capacity;
+        this.maxFrameSize = maxFrameSize;
+        this.policy = policy;
+        this.buffer = ByteBuffer.allocateDirect(capacity + maxFrameSize);
+        this.claimView = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.subscribers = new ArrayList<>();
+        this.slow = new ArrayList<>();
+    }
+
+    /**
+     * Adds a subscriber that receives the frames committed from now on.
+     *
+     * @param onData       run when frames are committed while the subscriber
+     *                     has sent everything before them
+     * @param onDisconnect run when the subscriber is removed by the
+     *                     {@link SlowSubscriberPolicy#DISCONNECT} policy
+     * @return the subscriber
+     */
+    public Subscriber subscribe(Runnable onData, Runnable onDisconnect) {
+        Subscriber subscriber = new Subscriber(onData, onDisconnect);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * Gets room for the next frame, applying the slow-subscriber policy to
+     * subscribers whose unsent bytes it would overwrite.
+     *
+     * @param frameLength the frame length, length prefix included
+     * @param onSpace     run once when room may have been made, if there is
+     *                    none now
+     * @return a little-endian buffer of the frame's length to fill before
+     *         {@link #commit}, or null if a blocking subscriber holds the
+     *         room
+     */
+    public ByteBuffer claim(int frameLength, Runnable onSpace) {
+        if (frameLength > maxFrameSize) {
+            throw new IllegalArgumentException("Frame of " + frameLength + " bytes exceeds " + maxFrameSize);
+        }
+        long floor = head + frameLength - capacity;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.cursor >= floor) {
+                continue;
+            }
+            if (policy == SlowSubscriberPolicy.BLOCK || !subscriber.full) {
+                // Wait for a blocking subscriber, or for one that is only
+                // behind because it has not had its turn to send yet
+                slow.clear();
+                spaceWaiter = onSpace;
+                return null;
+            } else if (policy == SlowSubscriberPolicy.DROP) {
+                subscriber.skipTo(floor);
+            } else {
+                slow.add(subscriber);
+            }
+        }
+        if (!slow.isEmpty()) {
+            for (Subscriber subscriber : slow) {
+                subscriber.close();
+                disconnectedCount++;
+                subscriber.onDisconnect.run();
+            }
+            slow.clear();
+        }
+        int index = (int) (head % capacity);
+        claimView.limit(index + frameLength).position(index);
+        return claimView;
+    }
+
+    /**
+     * Publishes the frame filled since the last {@link #claim}.
+     *
+     * @param frameLength the frame length, length prefix included
+     */
+    public void commit(int frameLength) {
+        int index = (int) (head % capacity);
+        if (index + frameLength > capacity) {
+            // Move the part past the end of the ring to its start
+            ByteBuffer wrapped = buffer.duplicate();
+            wrapped.limit(index + frameLength).position(capacity);
+            ByteBuffer start = buffer.duplicate();
+            start.clear();
+            start.put(wrapped);
+        }
+        head += frameLength;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.waiting) {
+                subscriber.waiting = false;
+                subscriber.onData.run();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of subscribers.
+     *
+     * @return the subscriber count
+     */
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Gets the number of frames skipped by slow subscribers.
+     *
+     * @return the dropped frame count
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Gets the number of slow subscribers that were disconnected.
+     *
+     * @return the disconnected subscriber count
+     */
+    public long getDisconnectedCount() {
+        return disconnectedCount;
+    }
+
+    /**
+     * Gets the slow-subscriber policy.
+     *
+     * @return the policy
+     */
+    public SlowSubscriberPolicy getPolicy() {
+        return policy;
+    }
+
+    private void wakePublisher() {
+        Runnable waiter = spaceWaiter;
+        if (waiter != null) {
+            spaceWaiter = null;
+            waiter.run();
+        }
+    }
+
+    /**
+     * Reads the length of the frame at a ring position, which may wrap.
+     */
+    private int frameSizeAt(long position) {
+        int length = 0;
+        for (int i = 0; i < LENGTH_PREFIX_SIZE; i++) {
+            length |= (buffer.get((int) ((position + i) % capacity)) & 0xFF) << (8 * i);
+        }
+        return LENGTH_PREFIX_SIZE + length;
+    }
+
+    /**
+     * A reader of the ring with its own cursor.
+     */
+    public final class Subscriber {
+
+        private final Runnable onData;
+        private final Runnable onDisconnect;
+        private final ByteBuffer view;
+        private long cursor; // Next ring position to send
+        private long boundary; // First frame boundary at or after the cursor
+        private ByteBuffer spill; // Rest of a frame that was being sent when the subscriber was skipped
+        private boolean waiting;
+        private boolean full; // The channel had no room on the last send
+        private boolean closed;
+        private long bytesSent;
+        private long dropped;
+
+        private Subscriber(Runnable onData, Runnable onDisconnect) {
+            this.onData = onData;
+            this.onDisconnect = onDisconnect;
+            this.view = buffer.duplicate();
+            this.cursor = head;
+            this.boundary = head;
+            this.waiting = true;
+        }
+
+        /**
+         * Writes the pending bytes to a channel until it is full or the
+         * subscriber has caught up with the publisher.
+         *
+         * @param channel the non-blocking channel to write to
+         * @return true if every committed byte was sent, false if the
+         *         channel is full
+         * @throws IOException if an I/O error occurs
+         */
+        public boolean send(WritableByteChannel channel) throws IOException {
+            if (closed) {
+                return true;
+            }
+            long start = cursor;
+            if (spill != null && spill.hasRemaining()) {
+                bytesSent += channel.write(spill);
+                if (spill.hasRemaining()) {
+                    full = true;
+                    return false;
+                }
+            }
+            full = false;
+            while (cursor < head) {
+                int index = (int) (cursor % capacity);
+                view.limit(index + (int) Math.min(head - cursor, capacity - index)).position(index);
+                int written = channel.write(view);
+                if (written == 0) {
+                    full = true;
+                    break;
+                }
+                cursor += written;
+                bytesSent += written;
+            }
+            while (boundary < cursor) {
+                boundary += frameSizeAt(boundary);
+            }
+            if (cursor != start) {
+                wakePublisher();
+            }
+            waiting = !full;
+            return !full;
+        }
+
+        /**
+         * Gets the number of bytes sent by this subscriber.
+         *
+         * @return the byte count
+         */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * Gets the number of frames this subscriber skipped.
+         *
+         * @return the dropped frame count
+         */
+        public long getDroppedFrames() {
+            return dropped;
+        }
+
+        /**
+         * Removes the subscriber from the ring.
+         */
+        public void close() {
+            if (!closed) {
+                closed = true;
+                subscribers.remove(this);
+                wakePublisher();
+            }
+        }
+
+        /**
+         * Moves the cursor to the first frame boundary at or after a ring
+         * position, keeping the rest of a frame already partly sent.
+         */
+        private void skipTo(long floor) {
+            if (cursor < boundary) {
+                if (spill == null) {
+                    spill = ByteBuffer.allocateDirect(maxFrameSize);
+                }
+                spill.clear();
+                for (long position = cursor; position < boundary; position++) {
+                    spill.put(buffer.get((int) (position % capacity)));
+                }
+                spill.flip();
+                cursor = boundary;
+            }
+            while (boundary < floor) {
+                boundary += frameSizeAt(boundary);
+                dropped++;
+                droppedFrames++;
+            }
+            cursor = boundary;
+        }
+    }
+}
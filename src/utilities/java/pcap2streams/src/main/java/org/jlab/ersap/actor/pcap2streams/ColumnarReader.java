@@ -0,0 +1,338 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Reads a columnar file written by {@link ColumnarWriter}. Opening a file
+ * reads only its footer; {@link #column(String)} then reads the chunks of one
+ * column with positional reads and never touches the data of other columns.
+ * Several column iterators may be used at the same time.
+ */
+public final class ColumnarReader implements Closeable {
+
+    private static final int TAIL_SIZE = 16; // Footer offset and closing magic
+
+    private final FileChannel channel;
+    private final String[] names;
+    private final ColumnarWriter.Type[] types;
+    private final int[] rowGroupRows;
+    private final long[][] chunkOffsets;
+    private final int[][] chunkLengths;
+    private final byte[][] chunkEncodings;
+    private final long[][] chunkMins;
+    private final long[][] chunkMaxs;
+    private final long rowCount;
+    private long bytesRead;
+
+    /**
+     * Opens a columnar file and reads its footer.
+     *
+     * @param path the file to read
+     * @throws IOException if the file cannot be read or is not a columnar file
+     */
+    public ColumnarReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < 8 + TAIL_SIZE) {
+                throw new IOException("Not a columnar file, too short: " + path);
+            }
+            ByteBuffer tail = read(size - TAIL_SIZE, TAIL_SIZE);
+            long footerOffset = tail.getLong();
+            if (tail.getLong() != ColumnarWriter.MAGIC || read(0, 8).getLong() != ColumnarWriter.MAGIC) {
+                throw new IOException("Not a columnar file: " + path);
+            }
+            if (footerOffset < 8 || footerOffset > size - TAIL_SIZE) {
+                throw new IOException("Corrupt columnar file footer offset " + footerOffset + ": " + path);
+            }
+
+            ByteBuffer footer = read(footerOffset, (int) (size - TAIL_SIZE - footerOffset));
+            int version = footer.getInt();
+            if (version != ColumnarWriter.VERSION) {
+                throw new IOException("Unsupported columnar file version " + version + ": " + path);
+            }
+            int columns = footer.getInt();
+            names = new String[columns];
+            types = new ColumnarWriter.Type[columns];
+            for (int column = 0; column < columns; column++) {
+                types[column] = ColumnarWriter.Type.values()[footer.get()];
+                byte[] name = new byte[footer.getShort()];
+                footer.get(name);
+                names[column] = new String(name, StandardCharsets.UTF_8);
+            }
+
+            int rowGroups = footer.getInt();
+            rowGroupRows = new int[rowGroups];
+            chunkOffsets = new long[columns][rowGroups];
+            chunkLengths = new int[columns][rowGroups];
+            chunkEncodings = new byte[columns][rowGroups];
+            chunkMins = new long[columns][rowGroups];
+            chunkMaxs = new long[columns][rowGroups];
+            long rows = 0;
+            for (int group = 0; group < rowGroups; group++) {
+                rowGroupRows[group] = footer.getInt();
+                rows += rowGroupRows[group];
+                for (int column = 0; column < columns; column++) {
+                    chunkOffsets[column][group] = footer.getLong();
+                    chunkLengths[column][group] = footer.getInt();
+                    chunkEncodings[column][group] = footer.get();
+                    chunkMins[column][group] = footer.getLong();
+                    chunkMaxs[column][group] = footer.getLong();
+                }
+            }
+            rowCount = rows;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            channel.close();
+            throw new IOException("Corrupt columnar file footer: " + path, e);
+        }
+    }
+
+    /**
+     * Gets the number of columns.
+     *
+     * @return the column count
+     */
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    /**
+     * Gets the name of a column.
+     *
+     * @param column the column index
+     * @return the column name
+     */
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    /**
+     * Gets the type of a column.
+     *
+     * @param column the column index
+     * @return the column type
+     */
+    public ColumnarWriter.Type getColumnType(int column) {
+        return types[column];
+    }
+
+    /**
+     * Finds a column by name.
+     *
+     * @param name the column name
+     * @return the column index
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public int columnIndex(String name) {
+        for (int column = 0; column < names.length; column++) {
+            if (names[column].equals(name)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("No column " + name);
+    }
+
+    /**
+     * Gets the number of rows in the file.
+     *
+     * @return the row count
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Gets the number of row groups.
+     *
+     * @return the row group count
+     */
+    public int getRowGroupCount() {
+        return rowGroupRows.length;
+    }
+
+    /**
+     * Gets the number of rows in a row group.
+     *
+     * @param rowGroup the row group index
+     * @return the row count of the group
+     */
+    public int getRowCount(int rowGroup) {
+        return rowGroupRows[rowGroup];
+    }
+
+    /**
+     * Gets the smallest value of a column in a row group. IPv4 addresses
+     * compare as unsigned values.
+     *
+     * @param column   the column index
+     * @param rowGroup the row group index
+     * @return the minimum value
+     */
+    public long getMin(int column, int rowGroup) {
+        return chunkMins[column][rowGroup];
+    }
+
+    /**
+     * Gets the largest value of a column in a row group. IPv4 addresses
+     * compare as unsigned values.
+     *
+     * @param column   the column index
+     * @param rowGroup the row group index
+     * @return the maximum value
+     */
+    public long getMax(int column, int rowGroup) {
+        return chunkMaxs[column][rowGroup];
+    }
+
+    /**
+     * Gets the number of bytes read from the file so far, including the
+     * footer.
+     *
+     * @return the bytes read
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Returns an iterator over all values of a column.
+     *
+     * @param name the column name
+     * @return the values in row order; IPv4 addresses as unsigned values
+     */
+    public PrimitiveIterator.OfLong column(String name) {
+        return column(columnIndex(name));
+    }
+
+    /**
+     * Returns an iterator over all values of a column. The chunks of the
+     * column are read one row group at a time as the iterator advances.
+     *
+     * @param column the column index
+     * @return the values in row order; IPv4 addresses as unsigned values
+     */
+    public PrimitiveIterator.OfLong column(int column) {
+        return new ColumnIterator(column);
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException if an error occurs closing the file
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        read(position, buffer);
+        return buffer;
+    }
+
+    private void read(long position, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Columnar file ends inside a chunk at " + position);
+            }
+        }
+        buffer.flip();
+        synchronized (this) {
+            bytesRead += length;
+        }
+    }
+
+    /**
+     * Decodes the chunks of one column.
+     */
+    private final class ColumnIterator implements PrimitiveIterator.OfLong {
+
+        private final int column;
+        private final ColumnarWriter.Type type;
+        private ByteBuffer chunk;
+        private int[] dictionary;
+        private int indexWidth;
+        private int group;
+        private int remaining;
+
+        ColumnIterator(int column) {
+            this.column = column;
+            this.type = types[column];
+            this.chunk = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+            this.dictionary = new int[0];
+            this.group = -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (remaining == 0) {
+                if (group + 1 >= rowGroupRows.length) {
+                    return false;
+                }
+                loadChunk(++group);
+            }
+            return true;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            if (chunkEncodings[column][group] == ColumnarWriter.ENCODING_DICTIONARY) {
+                int index = indexWidth == 1 ? chunk.get() & 0xFF : chunk.getShort() & 0xFFFF;
+                return dictionary[index] & 0xFFFFFFFFL;
+            }
+            switch (type) {
+                case INT64:
+                    return chunk.getLong();
+                case IPV4:
+                    return chunk.getInt() & 0xFFFFFFFFL;
+                default:
+                    return chunk.getInt();
+            }
+        }
+
+        private void loadChunk(int rowGroup) {
+            int length = chunkLengths[column][rowGroup];
+            if (chunk.capacity() < length) {
+                chunk = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            chunk.clear().limit(length);
+            try {
+                read(chunkOffsets[column][rowGroup], chunk);
+            } catch (IOException e) {
+                throw new IllegalStateException("Error reading column " + names[column] + ": " + e.getMessage(), e);
+            }
+
+            if (chunkEncodings[column][rowGroup] == ColumnarWriter.ENCODING_DICTIONARY) {
+                int size = chunk.getInt();
+                if (dictionary.length < size) {
+                    dictionary = new int[size];
+                }
+                for (int i = 0; i < size; i++) {
+                    dictionary[i] = chunk.getInt();
+                }
+                indexWidth = chunk.get();
+            }
+            remaining = rowGroupRows[rowGroup];
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes packet metadata in a columnar binary file, a compact alternative to
+ * the CSV exports that loads quickly into analysis tools.
+ * <p>
+ * Rows are buffered in row groups of {@link #DEFAULT_ROW_GROUP_SIZE} rows.
+ * Each row group stores one chunk per column, holding fixed-width
+ * little-endian values, so a plain chunk can be read directly as an array
+ * (for example with {@code numpy.frombuffer(chunk, '<i8')}). IPv4 address
+ * columns can be dictionary-encoded per chunk: the distinct addresses are
+ * stored once and each row holds a 1- or 2-byte index. A footer at the end
+ * of the file lists the columns and, for every chunk, its offset, length,
+ * encoding and the minimum and maximum value, so a reader can load a single
+ * column, or skip row groups by value, without reading the other data.
+ * <p>
+ * Layout (little-endian):
+ * <pre>
+ * long  magic "P2SCOLMN"
+ * column chunks of each row group, in column order
+ * footer:
+ *   int   version
+ *   int   column count
+ *   per column: byte type, short name length, UTF-8 name
+ *   int   row group count
+ *   per row group: int row count, then per column:
+ *     long offset, int length, byte encoding, long min, long max
+ * long  footer offset
+ * long  magic "P2SCOLMN"
+ * plain chunk:      row count values of the column type's width
+ * dictionary chunk: int size, size int32 values, byte index width (1 or 2),
+ *                   row count indexes
+ * </pre>
+ * IPv4 addresses and their statistics are stored as unsigned 32-bit values.
+ * A writer is not thread-safe.
+ */
+public final class ColumnarWriter implements Closeable {
+
+    /**
+     * The value type of a column.
+     */
+    public enum Type {
+        /** 32-bit signed integer. */
+        INT32(4),
+        /** 64-bit signed integer. */
+        INT64(8),
+        /** IPv4 address in network byte order, stored as an unsigned 32-bit value. */
+        IPV4(4);
+
+        private final int width;
+
+        Type(int width) {
+            this.width = width;
+        }
+
+        /**
+         * Gets the size of a plain value.
+         *
+         * @return the width in bytes
+         */
+        public int width() {
+            return width;
+        }
+    }
+
+    /** Suffix of columnar files. */
+    public static final String SUFFIX = ".p2scol";
+
+    /** Default number of rows per row group. */
+    public static final int DEFAULT_ROW_GROUP_SIZE = 65536;
+
+    static final long MAGIC = 0x4E4D4C4F43533250L; // "P2SCOLMN" read little-endian
+    static final int VERSION = 1;
+    static final byte ENCODING_PLAIN = 0;
+    static final byte ENCODING_DICTIONARY = 1;
+    static final int MAX_DICTIONARY_SIZE = 65536; // Largest dictionary with 2-byte indexes
+
+    private final FileChannel channel;
+    private final String[] names;
+    private final Type[] types;
+    private final int rowGroupSize;
+    private final boolean dictionaryEnabled;
+    private final long[][] values;
+    private final ByteBuffer chunk;
+    private final List<long[]> chunkStats; // Per row group: row count, then offset, length, encoding, min, max per column
+    private final int[] dictionary;
+    private final int[] dictionaryTable; // Dictionary index + 1 per open-addressing slot, 0 if empty
+    private int rows;
+    private long totalRows;
+    private long offset;
+
+    /**
+     * Creates a writer with the default row group size and dictionary
+     * encoding of IPv4 columns.
+     *
+     * @param path  the file to write
+     * @param names the column names
+     * @param types the column types
+     * @throws IOException if the file cannot be opened
+     */
+    public ColumnarWriter(Path path, String[] names, Type[] types) throws IOException {
+        this(path, names, types, DEFAULT_ROW_GROUP_SIZE, true);
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param path              the file to write
+     * @param names             the column names
+     * @param types             the column types
+     * @param rowGroupSize      the number of rows per row group
+     * @param dictionaryEnabled true to dictionary-encode IPv4 columns when
+     *                          their chunks have at most 65536 distinct values
+     * @throws IOException if the file cannot be opened
+     */
+    public ColumnarWriter(Path path, String[] names, Type[] types, int rowGroupSize, boolean dictionaryEnabled)
+            throws IOException {
+        if (names.length != types.length || names.length == 0) {
+            throw new IllegalArgumentException("Need one type per column name");
+        }
+        if (rowGroupSize < 1) {
+            throw new IllegalArgumentException("Row group size must be at least 1: " + rowGroupSize);
+        }
+        this.names = names.clone();
+        this.types = types.clone();
+        this.rowGroupSize = rowGroupSize;
+        this.dictionaryEnabled = dictionaryEnabled;
+        this.values = new long[names.length][rowGroupSize];
+        this.chunk = ByteBuffer.allocateDirect(Math.max(8 * rowGroupSize,
+                5 + 4 * Math.min(rowGroupSize, MAX_DICTIONARY_SIZE) + 2 * rowGroupSize))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        this.chunkStats = new ArrayList<>();
+        this.dictionary = new int[Math.min(rowGroupSize, MAX_DICTIONARY_SIZE)];
+        this.dictionaryTable = new int[Integer.highestOneBit(Math.max(1, 2 * dictionary.length - 1)) << 1];
+
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(MAGIC);
+        magic.flip();
+        writeFully(magic);
+    }
+
+    /**
+     * Sets a value of the current row. Columns that are not set in a row are
+     * written as 0.
+     *
+     * @param column the column index
+     * @param value  the value; IPv4 addresses are passed as their int value
+     */
+    public void put(int column, long value) {
+        values[column][rows] = types[column] == Type.IPV4 ? value & 0xFFFFFFFFL : value;
+    }
+
+    /**
+     * Completes the current row, writing the row group when it is full.
+     *
+     * @throws IOException if an error occurs writing the file
+     */
+    public void endRow() throws IOException {
+        rows++;
+        totalRows++;
+        if (rows == rowGroupSize) {
+            writeRowGroup();
+        }
+    }
+
+    /**
+     * Gets the number of completed rows.
+     *
+     * @return the row count
+     */
+    public long getRowCount() {
+        return totalRows;
+    }
+
+    /**
+     * Writes the last row group and the footer and closes the file.
+     *
+     * @throws IOException if an error occurs writing the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rows > 0) {
+                writeRowGroup();
+            }
+            writeFooter();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeRowGroup() throws IOException {
+        long[] stats = new long[1 + 5 * names.length];
+        stats[0] = rows;
+        for (int column = 0; column < names.length; column++) {
+            long[] columnValues = values[column];
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int row = 0; row < rows; row++) {
+                min = Math.min(min, columnValues[row]);
+                max = Math.max(max, columnValues[row]);
+            }
+
+            chunk.clear();
+            byte encoding = ENCODING_PLAIN;
+            if (types[column] == Type.IPV4 && dictionaryEnabled && encodeDictionary(columnValues)) {
+                encoding = ENCODING_DICTIONARY;
+            } else {
+                encodePlain(columnValues, types[column]);
+            }
+            chunk.flip();
+
+            int base = 1 + 5 * column;
+            stats[base] = offset;
+            stats[base + 1] = chunk.remaining();
+            stats[base + 2] = encoding;
+            stats[base + 3] = min;
+            stats[base + 4] = max;
+            writeFully(chunk);
+        }
+        chunkStats.add(stats);
+        rows = 0;
+    }
+
+    private void encodePlain(long[] columnValues, Type type) {
+        if (type == Type.INT64) {
+            for (int row = 0; row < rows; row++) {
+                chunk.putLong(columnValues[row]);
+            }
+        } else {
+            for (int row = 0; row < rows; row++) {
+                chunk.putInt((int) columnValues[row]);
+            }
+        }
+    }
+
+    /**
+     * Encodes the chunk with a dictionary if it has few enough distinct
+     * values.
+     *
+     * @return false if the chunk must be stored plain
+     */
+    private boolean encodeDictionary(long[] columnValues) {
+        Arrays.fill(dictionaryTable, 0);
+        int mask = dictionaryTable.length - 1;
+        int size = 0;
+
+        // Stage 2-byte indexes past the largest possible dictionary, then
+        // compact them behind the dictionary once its size is known
+        int indexStart = 4 + 4 * dictionary.length + 1;
+        for (int row = 0; row < rows; row++) {
+            int value = (int) columnValues[row];
+            int slot = IPPacketIndex.mix(value) & mask;
+            while (dictionaryTable[slot] != 0 && dictionary[dictionaryTable[slot] - 1] != value) {
+                slot = (slot + 1) & mask;
+            }
+            if (dictionaryTable[slot] == 0) {
+                if (size == dictionary.length) {
+                    return false;
+                }
+                dictionary[size++] = value;
+                dictionaryTable[slot] = size;
+            }
+            chunk.putShort(indexStart + 2 * row, (short) (dictionaryTable[slot] - 1));
+        }
+
+        int indexWidth = size <= 256 ? 1 : 2;
+        chunk.putInt(size);
+        for (int i = 0; i < size; i++) {
+            chunk.putInt(dictionary[i]);
+        }
+        chunk.put((byte) indexWidth);
+        for (int row = 0; row < rows; row++) {
+            short index = chunk.getShort(indexStart + 2 * row);
+            if (indexWidth == 1) {
+                chunk.put((byte) index);
+            } else {
+                chunk.putShort(index);
+            }
+        }
+        return true;
+    }
+
+    private void writeFooter() throws IOException {
+        byte[][] encodedNames = new byte[names.length][];
+        int size = 8;
+        for (int column = 0; column < names.length; column++) {
+            encodedNames[column] = names[column].getBytes(StandardCharsets.UTF_8);
+            size += 3 + encodedNames[column].length;
+        }
+        size += 4 + chunkStats.size() * (4 + 29 * names.length) + 16;
+
+        ByteBuffer footer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        footer.putInt(VERSION);
+        footer.putInt(names.length);
+        for (int column = 0; column < names.length; column++) {
+            footer.put((byte) types[column].ordinal());
+            footer.putShort((short) encodedNames[column].length);
+            footer.put(encodedNames[column]);
+        }
+        footer.putInt(chunkStats.size());
+        for (long[] stats : chunkStats) {
+            footer.putInt((int) stats[0]);
+            for (int column = 0; column < names.length; column++) {
+                int base = 1 + 5 * column;
+                footer.putLong(stats[base]);
+                footer.putInt((int) stats[base + 1]);
+                footer.put((byte) stats[base + 2]);
+                footer.putLong(stats[base + 3]);
+                footer.putLong(stats[base + 4]);
+            }
+        }
+        footer.putLong(offset);
+        footer.putLong(MAGIC);
+        footer.flip();
+        writeFully(footer);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer);
+        }
+    }
+}
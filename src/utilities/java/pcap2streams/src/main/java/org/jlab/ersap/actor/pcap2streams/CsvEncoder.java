@@ -0,0 +1,208 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes CSV rows as ASCII bytes into a reusable direct buffer that is
+ * drained to a FileChannel in large blocks. Integers and IPv4 addresses are
+ * encoded digit by digit, so writing a row allocates nothing. The output is
+ * the same as {@code String.format("%d")} and
+ * {@link IPPacketIndex#formatAddress(int)} would produce.
+ * <p>
+ * Every append reserves room for one value; callers must not append more
+ * than {@link #MAX_VALUE_SIZE} bytes in one call. An encoder is not
+ * thread-safe.
+ */
+public final class CsvEncoder implements Closeable {
+
+    /** Largest number of bytes a single append may write. */
+    public static final int MAX_VALUE_SIZE = 64;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20; // Bytes buffered before writing to the file
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long bytesWritten;
+
+    /**
+     * Creates an encoder that replaces the contents of a file.
+     *
+     * @param path the CSV file to write
+     * @throws IOException if the file cannot be opened
+     */
+    public CsvEncoder(Path path) throws IOException {
+        this(path, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates an encoder that replaces the contents of a file.
+     *
+     * @param path       the CSV file to write
+     * @param bufferSize the size of the direct buffer in bytes
+     * @throws IOException if the file cannot be opened
+     */
+    public CsvEncoder(Path path, int bufferSize) throws IOException {
+        this(path, bufferSize, false);
+    }
+
+    /**
+     * Creates an encoder that replaces or appends to the contents of a file.
+     *
+     * @param path       the CSV file to write
+     * @param bufferSize the size of the direct buffer in bytes
+     * @param append     true to append to an existing file
+     * @throws IOException if the file cannot be opened
+     */
+    public CsvEncoder(Path path, int bufferSize, boolean append) throws IOException {
+        if (bufferSize < MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + MAX_VALUE_SIZE + ": " + bufferSize);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Appends ASCII text, such as a header line.
+     *
+     * @param text the text, which must only contain ASCII characters
+     * @return this encoder
+     * @throws IOException if an error occurs writing to the file
+     */
+    public CsvEncoder text(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) text.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Appends a single ASCII character, such as a separator.
+     *
+     * @param c the character
+     * @return this encoder
+     * @throws IOException if an error occurs writing to the file
+     */
+    public CsvEncoder character(char c) throws IOException {
+        reserve();
+        buffer.put((byte) c);
+        return this;
+    }
+
+    /**
+     * Appends a decimal integer.
+     *
+     * @param value the value
+     * @return this encoder
+     * @throws IOException if an error occurs writing to the file
+     */
+    public CsvEncoder number(long value) throws IOException {
+        reserve();
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                // Its negation overflows; write the last digit separately
+                putDigits(-(value / 10));
+                buffer.put((byte) ('0' + (int) -(value % 10)));
+                return this;
+            }
+            value = -value;
+        }
+        putDigits(value);
+        return this;
+    }
+
+    /**
+     * Appends an IPv4 address in dotted-decimal notation.
+     *
+     * @param address the address in network byte order
+     * @return this encoder
+     * @throws IOException if an error occurs writing to the file
+     */
+    public CsvEncoder address(int address) throws IOException {
+        reserve();
+        putDigits((address >>> 24) & 0xFF);
+        buffer.put((byte) '.');
+        putDigits((address >>> 16) & 0xFF);
+        buffer.put((byte) '.');
+        putDigits((address >>> 8) & 0xFF);
+        buffer.put((byte) '.');
+        putDigits(address & 0xFF);
+        return this;
+    }
+
+    /**
+     * Writes all buffered bytes to the file.
+     *
+     * @throws IOException if an error occurs writing to the file
+     */
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Gets the number of bytes written to the file so far, not counting
+     * buffered bytes.
+     *
+     * @return the number of bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes the buffered bytes and closes the file.
+     *
+     * @throws IOException if an error occurs writing to the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void reserve() throws IOException {
+        if (buffer.remaining() < MAX_VALUE_SIZE) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putDigits(long value) {
+        // Write the digits backwards into their final place
+        int end = buffer.position() + digitCount(value);
+        int index = end;
+        do {
+            buffer.put(--index, (byte) ('0' + (int) (value % 10)));
+            value /= 10;
+        } while (value != 0);
+        buffer.position(end);
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+}
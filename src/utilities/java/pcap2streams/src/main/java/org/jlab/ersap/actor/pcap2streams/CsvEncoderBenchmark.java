@@ -0,0 +1,182 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the throughput of the packet CSV export through
+ * {@code String.format} and a {@link FileWriter}, as PcapPacketAnalyzer used
+ * to write it, with the {@link CsvEncoder}. Both paths write the same
+ * synthetic rows; the benchmark checks that the files are byte-identical.
+ */
+public class CsvEncoderBenchmark {
+
+    private static final int DEFAULT_ROWS = 2_000_000;
+    private static final int RUNS = 3; // Timed runs per path, after one warm-up run
+    private static final int FLUSH_INTERVAL = 10000; // Rows between flushes of the formatted path
+
+    private final int rows;
+    private final long[] positions;
+    private final long[] timestamps;
+    private final int[] protocols;
+    private final int[] lengths;
+    private final int[] headerSizes;
+    private final int[] addresses;
+    private final int[] ports;
+
+    /**
+     * Creates a benchmark with random rows that resemble a CLAS12 capture.
+     *
+     * @param rows the number of rows to write per run
+     */
+    public CsvEncoderBenchmark(int rows) {
+        this.rows = rows;
+        this.positions = new long[rows];
+        this.timestamps = new long[rows];
+        this.protocols = new int[rows];
+        this.lengths = new int[rows];
+        this.headerSizes = new int[rows];
+        this.addresses = new int[2 * rows];
+        this.ports = new int[2 * rows];
+
+        Random random = new Random(42);
+        long position = 24;
+        long timestamp = 1715793150L;
+        for (int i = 0; i < rows; i++) {
+            protocols[i] = random.nextBoolean() ? PcapRecordCursor.PROTOCOL_TCP : PcapRecordCursor.PROTOCOL_UDP;
+            lengths[i] = 60 + random.nextInt(9000);
+            headerSizes[i] = protocols[i] == PcapRecordCursor.PROTOCOL_TCP ? 54 : 42;
+            positions[i] = position + 30;
+            position += 16 + lengths[i];
+            timestamp += random.nextInt(100) == 0 ? 1 : 0;
+            timestamps[i] = timestamp;
+            addresses[2 * i] = 0x81394500 | (10 + random.nextInt(8)); // 129.57.69.x
+            addresses[2 * i + 1] = 0x81394500 | (10 + random.nextInt(8));
+            ports[2 * i] = 5000 + random.nextInt(2000);
+            ports[2 * i + 1] = 7000 + random.nextInt(10);
+        }
+    }
+
+    /**
+     * Writes all rows with {@code String.format} through a FileWriter.
+     *
+     * @param file the CSV file to write
+     * @throws IOException if an error occurs writing the file
+     */
+    public void writeFormatted(Path file) throws IOException {
+        try (FileWriter writer = new FileWriter(file.toFile())) {
+            writer.write(PcapPacketAnalyzer.CSV_HEADER);
+            for (int i = 0; i < rows; i++) {
+                writer.write(String.format("%d,%d,%d,%d,%d,%d,%d,%s,%s,%d,%d\n",
+                        i, positions[i], timestamps[i], protocols[i], lengths[i], headerSizes[i],
+                        lengths[i] - headerSizes[i], IPPacketIndex.formatAddress(addresses[2 * i]),
+                        IPPacketIndex.formatAddress(addresses[2 * i + 1]), ports[2 * i], ports[2 * i + 1]));
+                if ((i + 1) % FLUSH_INTERVAL == 0) {
+                    writer.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all rows with the {@link CsvEncoder}.
+     *
+     * @param file the CSV file to write
+     * @throws IOException if an error occurs writing the file
+     */
+    public void writeEncoded(Path file) throws IOException {
+        try (CsvEncoder csv = new CsvEncoder(file)) {
+            csv.text(PcapPacketAnalyzer.CSV_HEADER);
+            for (int i = 0; i < rows; i++) {
+                PcapPacketAnalyzer.writePacketToCSV(csv, i, positions[i], timestamps[i], protocols[i], lengths[i],
+                        headerSizes[i], lengths[i] - headerSizes[i], addresses[2 * i], addresses[2 * i + 1],
+                        ports[2 * i], ports[2 * i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args command line arguments: [rows] [output_dir]
+     */
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        Path dir = Paths.get(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        Path formattedFile = dir.resolve("csv-benchmark-formatted.csv");
+        Path encodedFile = dir.resolve("csv-benchmark-encoded.csv");
+
+        try {
+            CsvEncoderBenchmark benchmark = new CsvEncoderBenchmark(rows);
+            System.out.println("Writing " + rows + " rows, " + RUNS + " timed runs per path");
+
+            double formatted = benchmark.time("String.format + FileWriter", () -> benchmark.writeFormatted(formattedFile),
+                    formattedFile);
+            double encoded = benchmark.time("CsvEncoder", () -> benchmark.writeEncoded(encodedFile), encodedFile);
+            System.out.printf("Speedup: %.1fx%n", formatted / encoded);
+
+            if (!sameContent(formattedFile, encodedFile)) {
+                System.err.println("Output differs between " + formattedFile + " and " + encodedFile);
+                System.exit(1);
+            }
+            System.out.println("Outputs are byte-identical (" + Files.size(encodedFile) + " bytes)");
+            Files.delete(formattedFile);
+            Files.delete(encodedFile);
+        } catch (IOException e) {
+            System.err.println("Error running benchmark: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a writer once to warm up and then {@link #RUNS} times, printing the
+     * best throughput.
+     *
+     * @return the best run time in seconds
+     */
+    private double time(String name, Run run, Path file) throws IOException {
+        run.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double seconds = best / 1e9;
+        System.out.printf("%-28s %8.3f s %12.0f rows/s %8.1f MB/s%n", name, seconds, rows / seconds,
+                Files.size(file) / seconds / 1e6);
+        return seconds;
+    }
+
+    private static boolean sameContent(Path a, Path b) throws IOException {
+        if (Files.size(a) != Files.size(b)) {
+            return false;
+        }
+        byte[] bufferA = new byte[1 << 16];
+        byte[] bufferB = new byte[1 << 16];
+        try (InputStream inA = Files.newInputStream(a); InputStream inB = Files.newInputStream(b)) {
+            int read;
+            while ((read = inA.readNBytes(bufferA, 0, bufferA.length)) > 0) {
+                if (inB.readNBytes(bufferB, 0, read) != read
+                        || !Arrays.equals(bufferA, 0, read, bufferB, 0, read)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * One benchmarked write.
+     */
+    private interface Run {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,314 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Maps directional 5-tuple flows (source and destination address and port,
+ * IP protocol) to the positions of their packets. Keys are packed into two
+ * longs in an open-addressing table and positions are kept in
+ * {@link PositionList}s, like {@link IPPacketIndex}.
+ */
+public final class FlowPacketIndex {
+
+    private static final int INITIAL_CAPACITY = 64; // Must be a power of two
+    private static final int OBJECT_OVERHEAD = 64; // Approximate object and array header bytes
+
+    private long[] addressKeys;
+    private long[] portKeys;
+    private PositionList[] lists;
+    private int size;
+
+    /**
+     * Creates an empty index.
+     */
+    public FlowPacketIndex() {
+        this.addressKeys = new long[INITIAL_CAPACITY];
+        this.portKeys = new long[INITIAL_CAPACITY];
+        this.lists = new PositionList[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Records that the packet at the given position belongs to a flow.
+     *
+     * @param sourceAddress      the IPv4 source address in network byte order
+     * @param destinationAddress the IPv4 destination address in network byte order
+     * @param sourcePort         the TCP/UDP source port, or 0
+     * @param destinationPort    the TCP/UDP destination port, or 0
+     * @param protocol           the IP protocol number
+     * @param position           the file offset of the packet record
+     * @param capturedBytes      the captured length of the packet
+     */
+    public void add(int sourceAddress, int destinationAddress, int sourcePort, int destinationPort, int protocol,
+            long position, int capturedBytes) {
+        getOrCreate(addressKey(sourceAddress, destinationAddress), portKey(sourcePort, destinationPort, protocol))
+                .add(position, capturedBytes);
+    }
+
+    /**
+     * Records the packet at the cursor, which must be an IPv4 packet.
+     *
+     * @param cursor   the cursor positioned at the packet record
+     * @param position the file offset of the packet record
+     */
+    public void add(PcapRecordCursor cursor, long position) {
+        add(cursor.sourceAddress(), cursor.destinationAddress(), cursor.sourcePort(), cursor.destinationPort(),
+                cursor.protocol(), position, cursor.capturedLength());
+    }
+
+    /**
+     * Appends all positions of another index. Every position in {@code other}
+     * must come after the positions already recorded for the same flow.
+     *
+     * @param other the index to append
+     */
+    public void addAll(FlowPacketIndex other) {
+        for (int i = 0; i < other.lists.length; i++) {
+            if (other.lists[i] != null) {
+                getOrCreate(other.addressKeys[i], other.portKeys[i]).addAll(other.lists[i]);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of distinct flows in the index.
+     *
+     * @return the number of flows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets all flows, ordered by source address, destination address, source
+     * port, destination port and protocol.
+     *
+     * @return the flows with their packet positions
+     */
+    public List<Flow> flows() {
+        List<Flow> flows = new ArrayList<>(size);
+        for (int i = 0; i < lists.length; i++) {
+            if (lists[i] != null) {
+                flows.add(new Flow(addressKeys[i], portKeys[i], lists[i]));
+            }
+        }
+        flows.sort(Comparator.comparingLong((Flow flow) -> flow.addressKey ^ Long.MIN_VALUE)
+                .thenComparingLong(flow -> flow.portKey));
+        return flows;
+    }
+
+    /**
+     * Gets the total number of positions over all flows.
+     *
+     * @return the number of stored positions
+     */
+    public long positionCount() {
+        long total = 0;
+        for (PositionList list : lists) {
+            if (list != null) {
+                total += list.size();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Releases unused capacity once the index is complete.
+     */
+    public void trim() {
+        for (PositionList list : lists) {
+            if (list != null) {
+                list.trim();
+            }
+        }
+    }
+
+    /**
+     * Estimates the heap memory used by this index.
+     *
+     * @return the approximate size in bytes
+     */
+    public long memoryBytes() {
+        long total = OBJECT_OVERHEAD + 20L * lists.length;
+        for (PositionList list : lists) {
+            if (list != null) {
+                total += list.memoryBytes();
+            }
+        }
+        return total;
+    }
+
+    private static long addressKey(int sourceAddress, int destinationAddress) {
+        return ((long) sourceAddress << 32) | (destinationAddress & 0xFFFFFFFFL);
+    }
+
+    private static long portKey(int sourcePort, int destinationPort, int protocol) {
+        return ((long) sourcePort << 24) | ((long) destinationPort << 8) | protocol;
+    }
+
+    private PositionList getOrCreate(long addressKey, long portKey) {
+        int slot = find(addressKey, portKey);
+        if (slot >= 0) {
+            return lists[slot];
+        }
+        if ((size + 1) * 2 > lists.length) {
+            rehash(lists.length * 2);
+            slot = find(addressKey, portKey);
+        }
+        slot = -slot - 1;
+        addressKeys[slot] = addressKey;
+        portKeys[slot] = portKey;
+        lists[slot] = new PositionList();
+        size++;
+        return lists[slot];
+    }
+
+    /**
+     * Finds the slot of a flow.
+     *
+     * @return the slot, or {@code -(insertion slot) - 1} if absent
+     */
+    private int find(long addressKey, long portKey) {
+        int mask = lists.length - 1;
+        int slot = mix(addressKey, portKey) & mask;
+        while (lists[slot] != null) {
+            if (addressKeys[slot] == addressKey && portKeys[slot] == portKey) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldAddressKeys = addressKeys;
+        long[] oldPortKeys = portKeys;
+        PositionList[] oldLists = lists;
+        addressKeys = new long[capacity];
+        portKeys = new long[capacity];
+        lists = new PositionList[capacity];
+        for (int i = 0; i < oldLists.length; i++) {
+            if (oldLists[i] != null) {
+                int slot = -find(oldAddressKeys[i], oldPortKeys[i]) - 1;
+                addressKeys[slot] = oldAddressKeys[i];
+                portKeys[slot] = oldPortKeys[i];
+                lists[slot] = oldLists[i];
+            }
+        }
+    }
+
+    private static int mix(long addressKey, long portKey) {
+        long h = (addressKey * 0x9E3779B97F4A7C15L) ^ (portKey * 0xC2B2AE3D27D4EB4FL);
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+
+    /**
+     * One flow and the positions of its packets.
+     */
+    public static final class Flow {
+
+        private final long addressKey;
+        private final long portKey;
+        private final PositionList positions;
+
+        Flow(long addressKey, long portKey, PositionList positions) {
+            this.addressKey = addressKey;
+            this.portKey = portKey;
+            this.positions = positions;
+        }
+
+        /**
+         * Gets the source address.
+         *
+         * @return the IPv4 address in network byte order
+         */
+        public int getSourceAddress() {
+            return (int) (addressKey >>> 32);
+        }
+
+        /**
+         * Gets the destination address.
+         *
+         * @return the IPv4 address in network byte order
+         */
+        public int getDestinationAddress() {
+            return (int) addressKey;
+        }
+
+        /**
+         * Gets the source port.
+         *
+         * @return the TCP/UDP port, or 0 for other protocols
+         */
+        public int getSourcePort() {
+            return (int) (portKey >>> 24) & 0xFFFF;
+        }
+
+        /**
+         * Gets the destination port.
+         *
+         * @return the TCP/UDP port, or 0 for other protocols
+         */
+        public int getDestinationPort() {
+            return (int) (portKey >>> 8) & 0xFFFF;
+        }
+
+        /**
+         * Gets the IP protocol number.
+         *
+         * @return the protocol, for example 6 for TCP
+         */
+        public int getProtocol() {
+            return (int) portKey & 0xFF;
+        }
+
+        /**
+         * Gets the positions of the packets of this flow, in file order.
+         *
+         * @return the packet positions
+         */
+        public PositionList getPositions() {
+            return positions;
+        }
+
+        /**
+         * Gets the flow group this flow belongs to when flows are spread over
+         * a fixed number of groups.
+         *
+         * @param groups the number of groups
+         * @return the group, from 0 to {@code groups - 1}
+         */
+        public int getGroup(int groups) {
+            return Math.floorMod(mix(addressKey, portKey), groups);
+        }
+
+        /**
+         * Gets a name for this flow that can be used in file names, for
+         * example {@code tcp-129.57.69.12-5001-129.57.69.15-7001}.
+         *
+         * @return the flow name
+         */
+        public String getName() {
+            String protocol;
+            switch (getProtocol()) {
+                case PcapRecordCursor.PROTOCOL_TCP:
+                    protocol = "tcp";
+                    break;
+                case PcapRecordCursor.PROTOCOL_UDP:
+                    protocol = "udp";
+                    break;
+                default:
+                    protocol = "ip" + getProtocol();
+            }
+            return protocol + "-" + IPPacketIndex.formatAddress(getSourceAddress()) + "-" + getSourcePort()
+                    + "-" + IPPacketIndex.formatAddress(getDestinationAddress()) + "-" + getDestinationPort();
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+}
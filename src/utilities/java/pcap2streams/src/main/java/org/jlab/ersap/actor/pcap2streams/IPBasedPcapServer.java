@@ -1,16 +1,29 @@
 package org.jlab.ersap.actor.pcap2streams;
 
-import java.io.DataOutputStream;
-import java.io.FileWriter;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,8 +31,33 @@ import java.util.logging.Logger;
  * A server that streams PCAP packets for a specific IP address.
  * This server reads packets from a PCAP file and streams only those
  * related to a specific IP address to connected clients.
+ * <p>
+ * The listening socket and the client connections are non-blocking channels
+ * served by a {@link ReplayEventLoopGroup}, usually shared by all servers of a
+ * Pcap2Streams instance, so idle servers and slow clients hold no thread. A
+ * client whose socket buffer is full is resumed when it becomes writable.
+ * <p>
+ * By default each client replays the stream on its own. In broadcast mode,
+ * one publisher per server reads and paces the stream into a
+ * {@link BroadcastRing} while clients are connected, and each client sends
+ * from the ring at its own cursor, so file reads do not grow with the number
+ * of clients. Clients that connect later join the stream where it is.
+ * <p>
+ * A client can send a {@link ReplayRequest} right after connecting to get a
+ * finite stream: a start offset or time, a packet or loop count, its own
+ * pacing and an end-of-stream marker. The server acknowledges the request
+ * and starts at once; a client that sends nothing within the start delay
+ * gets the stream replayed in a loop. A client can also ask for
+ * credit-based flow control, in which case its session sends only the
+ * packets or bytes the client has granted, and otherwise waits for a grant
+ * without holding a thread. Broadcast servers ignore requests.
+ * <p>
+ * For a consumer on the same host, a server can also publish its stream
+ * into a {@link SharedMemoryRing} file from a session of its own, started
+ * with the server, alongside its TCP clients. The session waits for the
+ * reader by polling the ring on its event loop while the ring is full.
  */
-public class IPBasedPcapServer implements Runnable {
+public class IPBasedPcapServer {
 
     private static final Logger LOGGER = Logger.getLogger(IPBasedPcapServer.class.getName());
 
@@ -28,7 +66,12 @@ public class IPBasedPcapServer implements Runnable {
     private static final int MAX_PACKET_SIZE = 9000; // Maximum packet size (Jumbo frame size)
     private static final int MIN_PACKET_SIZE = 64; // Minimum packet size (Ethernet minimum)
     private static final int CHUNK_SIZE = 8192; // Size of chunks when sending data (8KB)
-    private static final int PACKET_DELAY_MS = 1; // Delay between packets in milliseconds
+    private static final int MAX_PACKETS_PER_STEP = 64; // Packets a session sends before yielding its loop
+    private static final int DEFAULT_BATCH_PACKETS = 256; // Most frames in a batch by default
+    private static final long DEFAULT_BATCH_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1); // Longest wait in a batch
+    private static final long START_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1); // Wait for a request before the first packet
+    private static final long SHARED_MEMORY_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(200); // Wait for a full ring
+    private static final int HEADER_PEEK_SIZE = 14 + 60 + 60; // Ethernet and largest IP and TCP headers
 
     // Packet truncation constants
     private static final int ETHERNET_HEADER_SIZE = 14; // Ethernet header size
@@ -40,401 +83,1490 @@ public class IPBasedPcapServer implements Runnable {
     private static final int MAX_PAYLOAD_SIZE = MAX_PACKET_SIZE - HEADERS_MAX_SIZE; // Maximum payload size after headers
     private static final int MIN_PAYLOAD_SIZE = 64; // Minimum payload size to keep
 
-    private static final int IP_HEADER_SRC_ADDR_OFFSET = 12; // IP header source address offset
-    private static final int IP_HEADER_DST_ADDR_OFFSET = 16; // IP header destination address offset
-
     private final String pcapFile;
     private final String ipAddress;
     private final int port;
-    private final Set<Long> packetPositions;
+    private final PositionList packetPositions;
     private final AtomicBoolean running;
-    private ServerSocket serverSocket;
+    private volatile boolean following;
+    private TimeIndex timeIndex;
+    private long startNanos;
+    private long endNanos;
+    private PacketFilter filter;
+    private PcapBlockCache blockCache;
+    private PacketJournal journal;
+    private int journalStream;
+    private boolean zeroCopy;
+    private int batchBytes;
+    private int batchPackets;
+    private long batchLatencyNanos;
+    private ReplayPacing pacing;
+    private int broadcastBytes;
+    private BroadcastRing.SlowSubscriberPolicy broadcastPolicy;
+    private Path sharedMemoryFile;
+    private int sharedMemoryBytes;
+    private SharedMemoryRing sharedRing;
+    private ReplayReadAhead readAhead;
+    private int readAheadBytes;
+    private boolean ownsReadAhead;
+    private ReplayEventLoopGroup eventLoops;
+    private boolean ownsEventLoops;
+    private ServerSocketChannel serverChannel;
+    private final Set<ClientSession> sessions;
+    private final Set<ClientSession> parked; // Sessions waiting for appended packets, guarded by packetPositions
+    private final Set<BroadcastSession> subscribers;
+    private final AtomicLong compressionInputBytes; // Totals of the closed compressed sessions
+    private final AtomicLong compressionOutputBytes;
+    private final AtomicLong compressionNanos;
+
+    // Broadcast mode: the ring, its publisher and its subscribers are
+    // confined to one event loop
+    private ReplayEventLoopGroup.EventLoop broadcastLoop;
+    private BroadcastRing broadcastRing;
+    private ClientSession publisher;
 
     /**
      * Creates a new IP-based PCAP server.
      * 
      * @param pcapFile        the path to the PCAP file
-     * @param ipAddress       the IP address to filter packets for
+     * @param ipAddress       the IP address to filter packets for, or the flow or
+     *                        flow group name when streaming by flow
      * @param port            the port to listen on
-     * @param packetPositions the set of packet positions in the PCAP file for this
-     *                        IP
+     * @param packetPositions the packet positions in the PCAP file for this IP,
+     *                        in file order
      */
-    public IPBasedPcapServer(String pcapFile, String ipAddress, int port, Set<Long> packetPositions) {
+    public IPBasedPcapServer(String pcapFile, String ipAddress, int port, PositionList packetPositions) {
         this.pcapFile = pcapFile;
         this.ipAddress = ipAddress;
         this.port = port;
         this.packetPositions = packetPositions;
         this.running = new AtomicBoolean(false);
+        this.startNanos = Long.MIN_VALUE;
+        this.endNanos = Long.MAX_VALUE;
+        this.zeroCopy = true;
+        this.pacing = ReplayPacing.DEFAULT;
+        this.batchPackets = DEFAULT_BATCH_PACKETS;
+        this.batchLatencyNanos = DEFAULT_BATCH_LATENCY_NANOS;
+        this.sessions = ConcurrentHashMap.newKeySet();
+        this.compressionInputBytes = new AtomicLong();
+        this.compressionOutputBytes = new AtomicLong();
+        this.compressionNanos = new AtomicLong();
+        this.parked = new LinkedHashSet<>();
+        this.subscribers = ConcurrentHashMap.newKeySet();
+        this.broadcastPolicy = BroadcastRing.SlowSubscriberPolicy.BLOCK;
+        this.readAheadBytes = ReplayReadAhead.DEFAULT_WINDOW_SIZE;
     }
 
     /**
-     * Starts the server.
+     * Starts the server. The listening socket is registered with the event
+     * loops set with {@link #setEventLoops}, or with a single event loop of
+     * its own.
      */
     public void start() {
         if (running.compareAndSet(false, true)) {
-            Thread serverThread = new Thread(this);
-            serverThread.setDaemon(true);
-            serverThread.start();
+            try {
+                if (eventLoops == null) {
+                    eventLoops = new ReplayEventLoopGroup(1, "pcap-server-" + port);
+                    ownsEventLoops = true;
+                }
+                if (readAheadBytes > 0 && blockCache == null && readAhead == null) {
+                    readAhead = new ReplayReadAhead(1);
+                    ownsReadAhead = true;
+                }
+                if (broadcastBytes > 0) {
+                    broadcastLoop = eventLoops.next();
+                    broadcastRing = new BroadcastRing(broadcastBytes, 4 + MAX_PACKET_SIZE, broadcastPolicy);
+                }
+                if (sharedMemoryFile != null) {
+                    startSharedMemory();
+                }
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(port));
+                eventLoops.next().register(serverChannel, SelectionKey.OP_ACCEPT, this::accept, key -> {
+                    if (key == null) {
+                        stop();
+                    }
+                });
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error starting server for IP " + ipAddress, e);
+                stop();
+                return;
+            }
             LOGGER.info("Started server for IP " + ipAddress + " on port " + port + " with " +
                     packetPositions.size() + " packets");
         }
     }
 
     /**
-     * Stops the server.
+     * Creates the shared-memory ring and starts the session that publishes
+     * into it. A ring that cannot be created is logged and left out, so
+     * the consumer falls back to TCP.
+     */
+    private void startSharedMemory() {
+        try {
+            sharedRing = SharedMemoryRing.create(sharedMemoryFile, sharedMemoryBytes, 4 + MAX_PACKET_SIZE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot create shared-memory ring " + sharedMemoryFile + " for IP "
+                    + ipAddress + "; serving TCP only", e);
+            sharedMemoryFile = null;
+            return;
+        }
+        ClientSession session = new ClientSession(null, eventLoops.next(), null, sharedRing);
+        sessions.add(session);
+        session.loop.execute(session::open);
+        LOGGER.info("Publishing IP " + ipAddress + " into shared-memory ring " + sharedMemoryFile);
+    }
+
+    /**
+     * Stops the server and closes its client connections.
      */
     public void stop() {
         if (running.compareAndSet(true, false)) {
             try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
+                if (serverChannel != null) {
+                    serverChannel.close();
                 }
             } catch (IOException e) {
                 LOGGER.log(Level.WARNING, "Error closing resources for IP " + ipAddress, e);
             }
+            for (ClientSession session : sessions) {
+                session.loop.execute(session::close);
+            }
+            if (sharedRing != null) {
+                // Mark the ring closed and remove its file now, even if the
+                // loops stop before the publisher closes
+                try {
+                    sharedRing.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error closing shared-memory ring for IP " + ipAddress, e);
+                }
+                sharedRing = null;
+            }
+            for (BroadcastSession subscriber : subscribers) {
+                broadcastLoop.execute(subscriber::close);
+            }
+            if (ownsEventLoops) {
+                eventLoops.close();
+                eventLoops = null;
+                ownsEventLoops = false;
+            }
+            if (ownsReadAhead) {
+                readAhead.close();
+                readAhead = null;
+                ownsReadAhead = false;
+            }
             LOGGER.info("Stopped server for IP " + ipAddress + " on port " + port);
         }
     }
 
-    @Override
-    public void run() {
-        try {
-            serverSocket = new ServerSocket(port);
-            serverSocket.setSoTimeout(1000); // 1 second timeout for accept()
+    /**
+     * Sends packets in batches: length-prefixed frames are read into a
+     * direct buffer of each client and written with one write call, instead
+     * of two or more calls per packet. A batch is written when it is full,
+     * holds {@code maxPackets} frames, its first frame is
+     * {@code maxLatencyNanos} old, or no packet is due before that. Must be
+     * set before the server starts.
+     * 
+     * @param maxBytes        the size of a batch buffer, at least one frame
+     *                        of the largest packet; or 0 to send each packet
+     *                        on its own
+     * @param maxPackets      the most frames in a batch
+     * @param maxLatencyNanos the longest time a frame waits in a batch
+     */
+    public void setBatching(int maxBytes, int maxPackets, long maxLatencyNanos) {
+        if (maxBytes != 0 && maxBytes < 4 + MAX_PACKET_SIZE) {
+            throw new IllegalArgumentException("Batch size must be 0 or at least " + (4 + MAX_PACKET_SIZE)
+                    + " bytes: " + maxBytes);
+        }
+        if (maxPackets < 1) {
+            throw new IllegalArgumentException("Batch packets must be at least 1: " + maxPackets);
+        }
+        if (maxLatencyNanos < 0) {
+            throw new IllegalArgumentException("Batch latency must not be negative: " + maxLatencyNanos);
+        }
+        this.batchBytes = maxBytes;
+        this.batchPackets = maxPackets;
+        this.batchLatencyNanos = maxLatencyNanos;
+    }
 
-            while (running.get()) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    LOGGER.info("Client connected to IP " + ipAddress + " server from " +
-                            clientSocket.getRemoteSocketAddress());
-
-                    // Handle client in a new thread
-                    Thread clientThread = new Thread(() -> handleClient(clientSocket));
-                    clientThread.setDaemon(true);
-                    clientThread.start();
-                } catch (SocketTimeoutException e) {
-                    // This is expected due to the timeout on accept()
-                    continue;
-                } catch (IOException e) {
-                    if (running.get()) {
-                        LOGGER.log(Level.WARNING, "Error accepting client connection for IP " + ipAddress, e);
-                    }
-                }
-            }
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Error starting server for IP " + ipAddress, e);
-        } finally {
-            stop();
+    /**
+     * Reads the packets of each client in runs of nearby packets, one large
+     * read per window, and reads the next window on an I/O thread while the
+     * current one is sent. Not used with a block cache, which reads the file
+     * in large blocks itself. Must be set before the server starts.
+     * 
+     * @param readAhead   the I/O threads, or null for a thread of this
+     *                    server's own
+     * @param windowBytes the size of each of a client's two windows, or 0 to
+     *                    read each packet on its own
+     */
+    public void setReadAhead(ReplayReadAhead readAhead, int windowBytes) {
+        if (windowBytes < 0) {
+            throw new IllegalArgumentException("Read-ahead window must not be negative: " + windowBytes);
+        }
+        this.readAhead = readAhead;
+        this.readAheadBytes = windowBytes;
+    }
+
+    /**
+     * Broadcasts the stream to all clients from one shared ring instead of
+     * replaying it for each client. Must be set before the server starts.
+     * 
+     * @param ringBytes the ring size, at least
+     *                  {@link BroadcastRing#MIN_CAPACITY}; or 0 to replay
+     *                  the stream for each client
+     * @param policy    how clients that fall a ring behind are handled
+     */
+    public void setBroadcast(int ringBytes, BroadcastRing.SlowSubscriberPolicy policy) {
+        if (ringBytes != 0 && ringBytes < BroadcastRing.MIN_CAPACITY) {
+            throw new IllegalArgumentException("Broadcast ring must be 0 or at least " + BroadcastRing.MIN_CAPACITY
+                    + " bytes: " + ringBytes);
+        }
+        this.broadcastBytes = ringBytes;
+        this.broadcastPolicy = policy;
+    }
+
+    /**
+     * Publishes the stream into a shared-memory ring file for a consumer on
+     * the same host, in addition to serving TCP clients. Must be set before
+     * the server starts.
+     * 
+     * @param file      the ring file, usually under {@code /dev/shm}; or
+     *                  null to serve TCP clients only
+     * @param ringBytes the ring size, a power of two of at least
+     *                  {@link SharedMemoryRing#MIN_CAPACITY}
+     */
+    public void setSharedMemory(Path file, int ringBytes) {
+        if (file != null && (ringBytes < SharedMemoryRing.MIN_CAPACITY || Integer.bitCount(ringBytes) != 1)) {
+            throw new IllegalArgumentException("Shared-memory ring must be a power of two of at least "
+                    + SharedMemoryRing.MIN_CAPACITY + " bytes: " + ringBytes);
         }
+        this.sharedMemoryFile = file;
+        this.sharedMemoryBytes = ringBytes;
     }
 
     /**
-     * Truncates a packet while preserving essential header information and initial payload.
+     * Sets how fast packets are sent to each client. Must be set before the
+     * server starts.
+     * 
+     * @param pacing the pacing, {@link ReplayPacing#DEFAULT} by default
+     */
+    public void setPacing(ReplayPacing pacing) {
+        this.pacing = pacing;
+    }
+
+    /**
+     * Serves the listening socket and the clients of this server with a
+     * shared group of event loops instead of a loop of its own. Must be set
+     * before the server starts.
+     * 
+     * @param eventLoops the event loops, or null for a loop of this server's
+     *                   own
+     */
+    public void setEventLoops(ReplayEventLoopGroup eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Gets the size of the transport header of the packet at the cursor, as
+     * used for truncation and the header CSV.
+     * 
+     * @param cursor the cursor positioned at the packet record
+     * @return the TCP header length (including options), the UDP header
+     *         length, or the base TCP header size for other protocols
+     */
+    private static int transportHeaderSize(PcapRecordCursor cursor) {
+        int protocol = cursor.protocol();
+        if (protocol == PcapRecordCursor.PROTOCOL_TCP) {
+            return Math.min(cursor.l4HeaderLength(), TCP_HEADER_SIZE + TCP_OPTIONS_MAX_SIZE);
+        } else if (protocol == PcapRecordCursor.PROTOCOL_UDP) {
+            return UDP_HEADER_SIZE;
+        }
+        return TCP_HEADER_SIZE;
+    }
+
+    /**
+     * Gets the size of the IP header of the packet at the cursor.
+     * 
+     * @param cursor the cursor positioned at the packet record
+     * @return the IP header length from the IHL field, or the minimum IP header
+     *         size if the packet is not IPv4
+     */
+    private static int ipHeaderSize(PcapRecordCursor cursor) {
+        return cursor.isIPv4() ? cursor.ipHeaderLength() : IP_HEADER_SIZE;
+    }
+
+    /**
+     * Computes how many leading bytes of a packet to keep when truncating it,
+     * preserving essential header information and initial payload.
      * Ensures the final packet size is <= MAX_PACKET_SIZE (9000 bytes).
      * 
-     * @param originalPacket the original packet data
-     * @return the truncated packet containing headers and initial payload
+     * @param cursor the cursor positioned at the packet record
+     * @param record the array holding the record header and packet data
+     * @return the truncated packet length containing headers and initial payload
      */
-    private byte[] truncatePacket(byte[] originalPacket) {
-        if (originalPacket.length <= MAX_PACKET_SIZE) {
-            return originalPacket;
+    private int truncatedLength(PcapRecordCursor cursor, byte[] record) {
+        int packetLength = cursor.capturedLength();
+        if (packetLength <= MAX_PACKET_SIZE) {
+            return packetLength;
         }
 
-        // Extract protocol from IP header (offset 9 in IP header)
-        int protocol = originalPacket[ETHERNET_HEADER_SIZE + 9] & 0xFF;
-        
         // Determine header sizes based on protocol
-        int transportHeaderSize;
-        if (protocol == 6) { // TCP
-            // Get TCP header length (including options) from the Data Offset field
-            int tcpDataOffset = ((originalPacket[ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + 12] & 0xF0) >> 4) * 4;
-            transportHeaderSize = Math.min(tcpDataOffset, TCP_HEADER_SIZE + TCP_OPTIONS_MAX_SIZE);
-        } else if (protocol == 17) { // UDP
-            transportHeaderSize = UDP_HEADER_SIZE;
-        } else {
+        int protocol = cursor.protocol();
+        if (protocol != PcapRecordCursor.PROTOCOL_TCP && protocol != PcapRecordCursor.PROTOCOL_UDP) {
             LOGGER.warning("Unknown protocol: " + protocol + ". Using TCP header size as default.");
-            transportHeaderSize = TCP_HEADER_SIZE;
         }
-        
+        int ipHeaderSize = ipHeaderSize(cursor);
+        int transportHeaderSize = transportHeaderSize(cursor);
+
         // Calculate total header size
-        int totalHeaderSize = ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + transportHeaderSize;
-        
+        int totalHeaderSize = ETHERNET_HEADER_SIZE + ipHeaderSize + transportHeaderSize;
+
         // Log packet structure for debugging
         if (LOGGER.isLoggable(Level.FINE)) {
+            int data = cursor.dataOffset();
             StringBuilder packetInfo = new StringBuilder();
             packetInfo.append("Packet structure:\n");
             packetInfo.append("Ethernet header (14 bytes): ");
             for (int i = 0; i < ETHERNET_HEADER_SIZE; i++) {
-                packetInfo.append(String.format("%02X ", originalPacket[i] & 0xFF));
+                packetInfo.append(String.format("%02X ", record[data + i] & 0xFF));
             }
-            packetInfo.append("\nIP header (20 bytes): ");
-            for (int i = ETHERNET_HEADER_SIZE; i < ETHERNET_HEADER_SIZE + IP_HEADER_SIZE; i++) {
-                packetInfo.append(String.format("%02X ", originalPacket[i] & 0xFF));
+            packetInfo.append("\nIP header (").append(ipHeaderSize).append(" bytes): ");
+            for (int i = ETHERNET_HEADER_SIZE; i < ETHERNET_HEADER_SIZE + ipHeaderSize; i++) {
+                packetInfo.append(String.format("%02X ", record[data + i] & 0xFF));
             }
             packetInfo.append("\nTransport header (").append(transportHeaderSize).append(" bytes): ");
-            for (int i = ETHERNET_HEADER_SIZE + IP_HEADER_SIZE; 
-                 i < ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + transportHeaderSize; i++) {
-                packetInfo.append(String.format("%02X ", originalPacket[i] & 0xFF));
+            for (int i = ETHERNET_HEADER_SIZE + ipHeaderSize; i < totalHeaderSize; i++) {
+                packetInfo.append(String.format("%02X ", record[data + i] & 0xFF));
             }
             LOGGER.fine(packetInfo.toString());
         }
-        
+
         // Calculate how much payload we can keep
         int maxPayloadSize = MAX_PACKET_SIZE - totalHeaderSize;
-        int payloadToCopy = Math.min(maxPayloadSize, originalPacket.length - totalHeaderSize);
+        int payloadToCopy = Math.min(maxPayloadSize, packetLength - totalHeaderSize);
         if (payloadToCopy < 0) {
             payloadToCopy = 0;
         }
-        
-        // Create truncated packet with headers + payload
-        byte[] truncatedPacket = new byte[totalHeaderSize + payloadToCopy];
-        
-        // Copy all headers
-        System.arraycopy(originalPacket, 0, truncatedPacket, 0, totalHeaderSize);
-        
-        // Copy payload if available
-        if (payloadToCopy > 0) {
-            System.arraycopy(originalPacket, totalHeaderSize, 
-                           truncatedPacket, totalHeaderSize, payloadToCopy);
-        }
-        
+
         // Verify final size
-        if (truncatedPacket.length > MAX_PACKET_SIZE) {
-            LOGGER.warning("Truncated packet size (" + truncatedPacket.length + 
-                         " bytes) exceeds maximum size (" + MAX_PACKET_SIZE + 
+        int truncatedLength = totalHeaderSize + payloadToCopy;
+        if (truncatedLength > MAX_PACKET_SIZE) {
+            LOGGER.warning("Truncated packet size (" + truncatedLength +
+                         " bytes) exceeds maximum size (" + MAX_PACKET_SIZE +
                          " bytes). This should never happen!");
         }
-        
-        return truncatedPacket;
+
+        return truncatedLength;
     }
 
     /**
-     * Handles a client connection.
+     * Accepts pending connections and hands each client to an event loop.
      * 
-     * @param clientSocket the client socket
-     */
-    private void handleClient(Socket clientSocket) {
-        int packetCount = 0;
-        int successCount = 0;
-        int truncatedCount = 0;
-        FileWriter localCsvWriter = null;
-        try (RandomAccessFile pcapRaf = new RandomAccessFile(pcapFile, "r");
-                DataOutputStream clientOut = new DataOutputStream(clientSocket.getOutputStream())) {
-
-            // CSV file creation moved here
-            String outputDir = "output";
-            java.io.File outputDirectory = new java.io.File(outputDir);
-            if (!outputDirectory.exists()) {
-                outputDirectory.mkdirs();
-            }
-            String csvFile = String.format("%s/header_%s.csv", outputDir, ipAddress.replace('.', '_'));
-            java.io.File csvF = new java.io.File(csvFile);
-            boolean writeHeader = !csvF.exists() || csvF.length() == 0;
-            localCsvWriter = new FileWriter(csvFile, true); // append mode
-            if (writeHeader) {
-                String header = "Packet#,Position,Protocol,TotalLength,HeaderLength,PayloadLength,IsTruncated," +
-                                "EthernetHeader,IPHeader,TransportHeader,HeaderBytes,SourceIP,DestIP,SourcePort,DestPort\n";
-                localCsvWriter.write(header);
-                localCsvWriter.flush();
-            }
-
-            LOGGER.info("Waiting before sending data for IP " + ipAddress + "...");
-            Thread.sleep(1000); // Wait 1 second before sending data
-
-            byte[] packetHeader = new byte[PACKET_HEADER_SIZE];
-            byte[] packetData;
-
-            // Loop indefinitely, sending packets in packetPositions repeatedly
-            while (running.get() && !clientSocket.isClosed()) {
-                for (Long position : packetPositions) {
-                    if (!running.get() || clientSocket.isClosed()) {
-                        break;
-                    }
+     * @param key the selection key of the server channel
+     * @throws IOException if an error occurs accepting a connection
+     */
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel clientChannel;
+        while ((clientChannel = serverChannel.accept()) != null) {
+            LOGGER.info("Client connected to IP " + ipAddress + " server from " +
+                    clientChannel.getRemoteAddress());
+            if (!running.get()) {
+                clientChannel.close();
+                continue;
+            }
+            if (broadcastRing != null) {
+                BroadcastSession subscriber = new BroadcastSession(clientChannel);
+                subscribers.add(subscriber);
+                broadcastLoop.register(clientChannel, SelectionKey.OP_READ, subscriber, subscriber::registered);
+                continue;
+            }
+            ClientSession session = new ClientSession(clientChannel, eventLoops.next(), null, null);
+            sessions.add(session);
+            session.loop.register(clientChannel, SelectionKey.OP_READ, session, session::registered);
+        }
+    }
+
+    /**
+     * Stops the broadcast publisher once its last subscriber has left, so an
+     * unwatched stream is not read.
+     */
+    private void closeIdlePublisher() {
+        if (publisher != null && broadcastRing.subscriberCount() == 0) {
+            publisher.close();
+        }
+    }
 
-                    // Seek to the packet position
-                    pcapRaf.seek(position);
+    /**
+     * The state of one client connection, of the broadcast publisher, or of
+     * the shared-memory publisher. A session runs on a single event loop: it
+     * sends packets until the socket buffer or the ring is full, then waits
+     * for write readiness or ring space, the due time of the next packet, or
+     * appended packets when following, without holding a thread.
+     */
+    private final class ClientSession implements ReplayEventLoopGroup.Handler {
 
-                    // Read packet header
-                    int headerBytesRead = pcapRaf.read(packetHeader);
-                    if (headerBytesRead < PACKET_HEADER_SIZE) {
-                        LOGGER.warning("Incomplete packet header at position " + position);
-                        continue;
-                    }
+        private final SocketChannel channel;
+        private final ReplayEventLoopGroup.EventLoop loop;
+        private final PcapRecordCursor cursor;
+        private final ByteBuffer lengthPrefix;
+        private final BroadcastRing ring; // Ring the publisher writes to, null for a client
+        private final SharedMemoryRing sharedRing; // Ring the shared-memory publisher writes to
+        private final Runnable resume;
+        private ReplayPacing.Pacer pacer;
+        private SelectionKey key;
+        private FileChannel pcapChannel;
+        private ReplayReadAhead.Reader reader;
+        private long fileSize;
+        private boolean closed;
 
-                    // Extract packet length from header (bytes 8-11, little-endian)
-                    long packetLengthLong = ((packetHeader[8] & 0xFFL) |
-                            ((packetHeader[9] & 0xFFL) << 8) |
-                            ((packetHeader[10] & 0xFFL) << 16) |
-                            ((packetHeader[11] & 0xFFL) << 24));
-
-                    // Validate minimum packet size
-                    if (packetLengthLong < MIN_PACKET_SIZE) {
-                        LOGGER.warning("Packet too small: " + packetLengthLong + " bytes at position " + position + 
-                                     ". Minimum size is " + MIN_PACKET_SIZE + " bytes. Skipping packet.");
-                        continue;
-                    }
+        // Record header and packet data are read into one reusable buffer
+        private byte[] record;
+        private ByteBuffer recordView;
 
-                    int actualLength = (int) packetLengthLong;
-                    boolean isTruncated = false;
+        // Current replay pass, taken through the read-ahead reader if any
+        private PrimitiveIterator.OfLong positions;
+        private PrimitiveIterator.OfLong upcoming;
+        private long nextPosition;
+        private boolean passEnded;
+        private int passCount;
+        private int loops;
 
-                    // Read packet data
-                    try {
-                        packetData = new byte[actualLength];
-                    } catch (NegativeArraySizeException e) {
-                        LOGGER.warning("Invalid packet length (negative): " + actualLength + " at position " + position
-                                + ". Skipping packet.");
-                        continue;
-                    }
-                    int dataBytesRead = pcapRaf.read(packetData, 0, actualLength);
+        // Replay requested by the client; the acknowledgement and the end
+        // marker are written as control messages between frames
+        private ByteBuffer request; // Request being received, null once the stream has started
+        private ByteBuffer control;
+        private long fromOffset;
+        private long fromNanos;
+        private long packetLimit;
+        private int loopLimit;
+        private boolean endMarker;
+        private boolean finished;
 
-                    if (dataBytesRead < actualLength) {
-                        LOGGER.warning("Incomplete packet data at position " + position + 
-                                     ". Expected " + actualLength + " bytes, got " + dataBytesRead);
-                        continue;
-                    }
+        // Credits granted by a flow-controlled client
+        private ReplayRequest.FlowControl flowControl;
+        private ByteBuffer grant; // Credit grant being received
+        private long credits;
+        private boolean charged; // The packet being sent is paid for
+        private boolean awaitingCredit;
+        private long creditWaits;
+
+        // Compression requested by the client: each batch is written as one
+        // LZ4 block
+        private Lz4BlockCodec codec;
+        private ByteBuffer block;
+
+        // Packet being sent: the length prefix, then its data from the file
+        // or the block cache, or from the record buffer without zero copy
+        private boolean sending;
+        private long dueNanos;
+        private long captureNanos;
+        private long dataPosition;
+        private int dataLength;
+        private long dataSent;
+        private ByteBuffer heapData;
+
+        // Frames waiting to be written together when batching
+        private ByteBuffer batch;
+        private int batchFrames;
+        private long batchStartNanos;
+        private boolean flushing;
+
+        private int packetCount;
+        private int successCount;
+        private int truncatedCount;
+        private int filteredCount;
 
-                    // Extract protocol and header information
-                    int protocol = packetData[ETHERNET_HEADER_SIZE + 9] & 0xFF;
-                    int transportHeaderSize;
-                    if (protocol == 6) { // TCP
-                        int tcpDataOffset = ((packetData[ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + 12] & 0xF0) >> 4) * 4;
-                        transportHeaderSize = Math.min(tcpDataOffset, TCP_HEADER_SIZE + TCP_OPTIONS_MAX_SIZE);
-                    } else if (protocol == 17) { // UDP
-                        transportHeaderSize = UDP_HEADER_SIZE;
+        ClientSession(SocketChannel channel, ReplayEventLoopGroup.EventLoop loop, BroadcastRing ring,
+                SharedMemoryRing sharedRing) {
+            this.channel = channel;
+            this.loop = loop;
+            this.ring = ring;
+            this.sharedRing = sharedRing;
+            this.resume = () -> loop.execute(this::step);
+            this.cursor = new PcapRecordCursor();
+            this.lengthPrefix = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+            this.pacer = pacing.newPacer();
+            this.batch = batchBytes > 0 && channel != null ? ByteBuffer.allocateDirect(batchBytes).order(ByteOrder.LITTLE_ENDIAN) : null;
+            this.record = new byte[PACKET_HEADER_SIZE + MAX_PACKET_SIZE];
+            this.recordView = ByteBuffer.wrap(record);
+            this.nextPosition = -1;
+            this.fromNanos = startNanos;
+            this.flowControl = ReplayRequest.FlowControl.NONE;
+        }
+
+        /**
+         * Opens the PCAP file once the channel is registered.
+         */
+        void registered(SelectionKey key) {
+            if (key == null || closed) {
+                close();
+                return;
+            }
+            this.key = key;
+            open();
+        }
+
+        /**
+         * Opens the PCAP file and waits for a replay request from a client,
+         * starting the default replay after the start delay if none comes.
+         */
+        void open() {
+            try {
+                pcapChannel = FileChannel.open(Paths.get(pcapFile), StandardOpenOption.READ);
+                fileSize = pcapChannel.size();
+
+                if (read(0, record, 0, PCAP_HEADER_SIZE) < PCAP_HEADER_SIZE) {
+                    throw new EOFException("PCAP file " + pcapFile + " has no global header");
+                }
+                if (!cursor.readGlobalHeader(recordView, 0)) {
+                    LOGGER.warning("Unrecognized PCAP magic number in " + pcapFile
+                            + ", assuming little-endian microsecond records");
+                }
+                if (readAheadBytes > 0 && blockCache == null) {
+                    reader = readAhead.newReader(pcapChannel, readAheadBytes, PACKET_HEADER_SIZE + MAX_PACKET_SIZE,
+                            loop);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error handling client for IP " + ipAddress, e);
+                close();
+                return;
+            }
+
+            if (channel == null) {
+                // The broadcast and shared-memory publishers start at once
+                step();
+                return;
+            }
+            LOGGER.info("Waiting for a replay request from client of IP " + ipAddress + "...");
+            request = ByteBuffer.allocate(ReplayRequest.SIZE);
+            loop.schedule(System.nanoTime() + START_DELAY_NANOS, () -> {
+                if (request == null) {
+                    return;
+                }
+                if (request.position() == 0) {
+                    // The client sent nothing: replay in a loop
+                    request = null;
+                } else {
+                    // A partial request that stalled: reject it and close
+                    // rather than hold the connection and file open
+                    LOGGER.warning("Incomplete replay request of " + request.position() + " bytes from client of IP "
+                            + ipAddress);
+                    control = ByteBuffer.allocate(ReplayRequest.ACK_SIZE);
+                    ReplayRequest.writeAck(control, ReplayRequest.STATUS_REJECTED, getPacketCount());
+                    control.flip();
+                    finished = true;
+                    request = null;
+                }
+                step();
+            });
+        }
+
+        /**
+         * Applies a complete replay request and queues its acknowledgement
+         * ahead of the stream, or the rejection of an invalid one before
+         * closing.
+         */
+        private void startRequested() throws IOException {
+            request.flip();
+            control = ByteBuffer.allocate(ReplayRequest.ACK_SIZE);
+            try {
+                ReplayRequest requested = ReplayRequest.read(request);
+                fromOffset = requested.getStartOffset();
+                fromNanos = Math.max(startNanos, requested.getStartNanos());
+                packetLimit = requested.getPacketCount();
+                loopLimit = requested.getLoopCount();
+                endMarker = requested.hasEndMarker();
+                flowControl = requested.getFlowControl();
+                if (flowControl != ReplayRequest.FlowControl.NONE) {
+                    grant = ByteBuffer.allocate(ReplayRequest.CREDIT_SIZE);
+                    // The stream pauses at the end of every window, so its
+                    // last segment must not wait for the client's delayed ACK
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                if (requested.getPacing() != null) {
+                    pacer = requested.getPacing().newPacer();
+                }
+                if (requested.getCompression() == ReplayRequest.Compression.LZ4) {
+                    // Blocks are compressed from the heap, so batch there
+                    // even if batching is off
+                    int blockSize = batchBytes > 0 ? batchBytes : Lz4BlockCodec.DEFAULT_BLOCK_SIZE;
+                    batch = ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+                    block = ByteBuffer.allocate(Lz4BlockCodec.BLOCK_HEADER_SIZE
+                            + Lz4BlockCodec.maxCompressedLength(blockSize));
+                    codec = new Lz4BlockCodec();
+                }
+                ReplayRequest.writeAck(control, ReplayRequest.STATUS_OK, getPacketCount());
+                LOGGER.info("Client of IP " + ipAddress + " requested " + requested);
+            } catch (ProtocolException e) {
+                LOGGER.warning(e.getMessage() + " from client of IP " + ipAddress);
+                ReplayRequest.writeAck(control, ReplayRequest.STATUS_REJECTED, getPacketCount());
+                finished = true;
+            }
+            control.flip();
+            request = null;
+            step();
+        }
+
+        /**
+         * Ends the stream once the requested packets or loops are sent,
+         * queuing the end marker if the client asked for one, in a block of
+         * its own on a compressed stream.
+         * 
+         * @return false, as no packet is left to send
+         */
+        private boolean finish() {
+            finished = true;
+            if (endMarker) {
+                byte[] marker = new byte[4];
+                ByteBuffer.wrap(marker).order(ByteOrder.LITTLE_ENDIAN).putInt(ReplayRequest.END_OF_STREAM);
+                if (codec != null) {
+                    control = ByteBuffer.allocate(Lz4BlockCodec.BLOCK_HEADER_SIZE
+                            + Lz4BlockCodec.maxCompressedLength(marker.length));
+                    codec.encodeBlock(marker, 0, marker.length, control);
+                    control.flip();
+                } else {
+                    control = ByteBuffer.wrap(marker);
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
+            try {
+                boolean granted = false;
+                if (key.isReadable()) {
+                    // Clients send nothing but a replay request and credit
+                    // grants; end of stream means they left
+                    int read;
+                    if (request != null) {
+                        read = channel.read(request);
+                        if (!request.hasRemaining()) {
+                            startRequested();
+                            return;
+                        }
+                    } else if (grant != null) {
+                        while ((read = channel.read(grant)) > 0) {
+                            if (!grant.hasRemaining()) {
+                                grant.flip();
+                                credits += ReplayRequest.readCredit(grant);
+                                grant.clear();
+                                granted = true;
+                            }
+                        }
                     } else {
-                        transportHeaderSize = TCP_HEADER_SIZE;
+                        ByteBuffer discard = ByteBuffer.wrap(record, 0, PACKET_HEADER_SIZE);
+                        while ((read = channel.read(discard)) > 0) {
+                            discard.clear();
+                        }
                     }
-                    
-                    int totalHeaderSize = ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + transportHeaderSize;
-                    
-                    // Extract IP addresses and ports
-                    byte[] srcIp = new byte[4];
-                    byte[] dstIp = new byte[4];
-                    System.arraycopy(packetData, ETHERNET_HEADER_SIZE + 12, srcIp, 0, 4);
-                    System.arraycopy(packetData, ETHERNET_HEADER_SIZE + 16, dstIp, 0, 4);
-
-                    String sourceIP = InetAddress.getByAddress(srcIp).getHostAddress();
-                    String destIP = InetAddress.getByAddress(dstIp).getHostAddress();
-                    
-                    int sourcePort = ((packetData[ETHERNET_HEADER_SIZE + IP_HEADER_SIZE] & 0xFF) << 8) |
-                                   (packetData[ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + 1] & 0xFF);
-                    int destPort = ((packetData[ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + 2] & 0xFF) << 8) |
-                                 (packetData[ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + 3] & 0xFF);
-
-                    if (actualLength > MAX_PACKET_SIZE) {
-                        packetData = truncatePacket(packetData);
-                        actualLength = packetData.length;
-                        isTruncated = true;
-                        truncatedCount++;
+                    if (read < 0) {
+                        LOGGER.info("Client disconnected from IP " + ipAddress + " server");
+                        close();
+                        return;
                     }
+                }
+                boolean resume = false;
+                if (granted && awaitingCredit) {
+                    awaitingCredit = false;
+                    resume = true;
+                }
+                if (key.isValid() && key.isWritable()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    resume = true;
+                }
+                if (resume) {
+                    step();
+                }
+            } catch (IOException e) {
+                LOGGER.info("Client disconnected from IP " + ipAddress + " server: " + e.getMessage());
+                close();
+            }
+        }
 
-                    if (packetCount % 10 == 0) {
-                        LOGGER.info("Processing packet #" + packetCount + " for IP " + ipAddress +
-                                ", length=" + actualLength +
-                                ", position=" + position +
-                                (isTruncated ? " (truncated)" : ""));
-                        StringBuilder headerHex = new StringBuilder("Header bytes: ");
-                        for (int i = 0; i < PACKET_HEADER_SIZE; i++) {
-                            headerHex.append(String.format("%02X ", packetHeader[i] & 0xFF));
+        /**
+         * Pays for the current packet with the client's credits, if it
+         * grants them.
+         * 
+         * @return true if the packet may be sent, false if the client must
+         *         grant more credit first
+         */
+        private boolean takeCredit() {
+            if (flowControl == ReplayRequest.FlowControl.NONE || charged) {
+                return true;
+            }
+            long cost = flowControl == ReplayRequest.FlowControl.PACKETS ? 1 : lengthPrefix.capacity() + dataLength;
+            if (credits < cost) {
+                return false;
+            }
+            credits -= cost;
+            charged = true;
+            return true;
+        }
+
+        /**
+         * Sends packets until the socket is full, the next packet is not yet
+         * due, or no packet is left to send. After a run of packets the
+         * session yields its loop to the other sessions. When batching,
+         * frames are collected and written together once the batch is full,
+         * its oldest frame reaches the latency limit, or the next packet is
+         * not due before that limit. A flow-controlled session stops when
+         * the client's credits run out and is resumed by its next grant. A
+         * finished stream is closed once its end marker is written.
+         */
+        private void step() {
+            if (closed || request != null) {
+                return;
+            }
+            if (!running.get()) {
+                close();
+                return;
+            }
+            try {
+                for (int sent = 0; sent < MAX_PACKETS_PER_STEP; sent++) {
+                    if (flushing && !flushBatch()) {
+                        waitForWritable();
+                        return;
+                    }
+                    if (control != null) {
+                        channel.write(control);
+                        if (control.hasRemaining()) {
+                            waitForWritable();
+                            return;
                         }
-                        LOGGER.info(headerHex.toString());
-                        StringBuilder dataHex = new StringBuilder("Data bytes (tcpdump format):\n");
-                        int bytesToLog = Math.min(actualLength, 64);
-                        for (int i = 0; i < bytesToLog; i += 16) {
-                            dataHex.append(String.format("0x%04x:  ", i));
-                            for (int j = 0; j < 16 && (i + j) < bytesToLog; j++) {
-                                dataHex.append(String.format("%02x ", packetData[i + j] & 0xFF));
+                        control = null;
+                    }
+                    if (finished) {
+                        close();
+                        return;
+                    }
+                    if (!sending) {
+                        if (!nextPacket()) {
+                            if (!closed && !flushBatch()) {
+                                waitForWritable();
+                                return;
                             }
-                            dataHex.append("\n");
+                            if (finished) {
+                                // Write the end marker and close
+                                continue;
+                            }
+                            return;
                         }
-                        LOGGER.info(dataHex.toString());
-                        StringBuilder ipHex = new StringBuilder("IP addresses in hex:\n");
-                        ipHex.append("Source IP bytes: ");
-                        for (int i = 0; i < 4; i++) {
-                            ipHex.append(String.format("%02x ", srcIp[i] & 0xFF));
+                        sending = true;
+                        dueNanos = pacer.due(System.nanoTime(), captureNanos, lengthPrefix.capacity() + dataLength);
+                    }
+                    if (!takeCredit()) {
+                        // Resumed by the next grant, once the client has
+                        // the frames it paid for
+                        if (!flushBatch()) {
+                            waitForWritable();
+                            return;
                         }
-                        ipHex.append("\nDest IP bytes: ");
-                        for (int i = 0; i < 4; i++) {
-                            ipHex.append(String.format("%02x ", dstIp[i] & 0xFF));
+                        if (!awaitingCredit) {
+                            awaitingCredit = true;
+                            creditWaits++;
                         }
-                        LOGGER.info(ipHex.toString());
-                        LOGGER.info("Attempting to write to CSV: " + String.format("%d,%d,%d,%d,%d,%d,%b,%d,%d,%d,%d,%s,%s,%d,%d\n",
-                            packetCount, position, protocol, actualLength, totalHeaderSize,
-                            actualLength - totalHeaderSize, isTruncated,
-                            ETHERNET_HEADER_SIZE, IP_HEADER_SIZE, transportHeaderSize,
-                            totalHeaderSize, // HeaderBytes
-                            sourceIP, destIP, sourcePort, destPort));
+                        return;
                     }
-
-                    try {
-                        if (localCsvWriter != null) {
-                            String csvLine = String.format("%d,%d,%d,%d,%d,%d,%b,%d,%d,%d,%d,%s,%s,%d,%d\n",
-                                packetCount, position, protocol, actualLength, totalHeaderSize,
-                                actualLength - totalHeaderSize, isTruncated,
-                                ETHERNET_HEADER_SIZE, IP_HEADER_SIZE, transportHeaderSize,
-                                totalHeaderSize, // HeaderBytes
-                                sourceIP, destIP, sourcePort, destPort);
-                            LOGGER.info("Writing to CSV: " + csvLine);
-                            localCsvWriter.write(csvLine);
-                            localCsvWriter.flush();
-                            LOGGER.info("Successfully wrote to CSV");
-                        } else {
-                            LOGGER.severe("CSV writer is null! Cannot write to CSV file");
+                    long now = System.nanoTime();
+                    if (dueNanos - now > 0) {
+                        if (batchFrames > 0 && dueNanos - (batchStartNanos + batchLatencyNanos) > 0
+                                && !flushBatch()) {
+                            // The next packet is too late to join the batch
+                            waitForWritable();
+                            return;
                         }
-                    } catch (IOException e) {
-                        LOGGER.severe("Failed to write to CSV file: " + e.getMessage());
-                        e.printStackTrace();
+                        loop.schedule(dueNanos, this::step);
+                        return;
                     }
-
-                    try {
-                        clientOut.writeInt(Integer.reverseBytes(actualLength) >>> 32);
-                        clientOut.flush();
-                        int offset = 0;
-                        while (offset < actualLength) {
-                            int chunkLength = Math.min(CHUNK_SIZE, actualLength - offset);
-                            clientOut.write(packetData, offset, chunkLength);
-                            clientOut.flush();
-                            offset += chunkLength;
+                    if (ring != null) {
+                        ByteBuffer frame = ring.claim(lengthPrefix.capacity() + dataLength, resume);
+                        if (frame == null) {
+                            // Resumed once the subscribers make room
+                            return;
+                        }
+                        readFrame(frame);
+                        ring.commit(lengthPrefix.capacity() + dataLength);
+                    } else if (sharedRing != null) {
+                        ByteBuffer frame = sharedRing.claim(lengthPrefix.capacity() + dataLength);
+                        if (frame == null) {
+                            // The reader is in another process; look again
+                            // once it may have made room
+                            loop.schedule(System.nanoTime() + SHARED_MEMORY_POLL_NANOS, this::step);
+                            return;
                         }
-                        packetCount++;
-                        successCount++;
-                        if (packetCount % 100 == 0) {
-                            LOGGER.info("Sent " + packetCount + " packets for IP " + ipAddress + 
-                                      " (" + truncatedCount + " truncated)");
+                        readFrame(frame);
+                        sharedRing.commit(lengthPrefix.capacity() + dataLength);
+                    } else if (batch != null) {
+                        if (!appendFrame(now)) {
+                            // The batch is full; write it and append again
+                            if (!flushBatch()) {
+                                waitForWritable();
+                                return;
+                            }
+                            continue;
                         }
-                        Thread.sleep(PACKET_DELAY_MS);
-                    } catch (SocketException e) {
-                        LOGGER.info("Client disconnected from IP " + ipAddress + " server: " + e.getMessage());
+                    } else if (!sendPacket()) {
+                        waitForWritable();
                         return;
-                    } catch (SocketTimeoutException e) {
-                        LOGGER.info("Socket timeout for IP " + ipAddress + ": " + e.getMessage());
+                    }
+                    sending = false;
+                    charged = false;
+                    heapData = null;
+                    packetCount++;
+                    passCount++;
+                    successCount++;
+                    if (packetCount % 100 == 0 && LOGGER.isLoggable(Level.FINE)) {
+                        // Progress only when asked for; the totals are logged
+                        // when the session closes
+                        LOGGER.fine("Sent " + packetCount + " packets for IP " + ipAddress +
+                                  " (" + truncatedCount + " truncated)");
+                    }
+                    if (batchFrames > 0 && (batchFrames >= batchPackets || now - batchStartNanos >= batchLatencyNanos)
+                            && !flushBatch()) {
+                        waitForWritable();
                         return;
                     }
                 }
+                loop.execute(this::step);
+            } catch (EOFException e) {
+                LOGGER.warning(e.getMessage() + "; closing client of IP " + ipAddress);
+                close();
+            } catch (IOException e) {
+                LOGGER.info("Client disconnected from IP " + ipAddress + " server: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Finds the next packet to send and prepares it, starting new replay
+         * passes as needed.
+         * 
+         * @return true if a packet is ready to send, false if the session is
+         *         waiting for appended packets or a read-ahead window, or has
+         *         finished
+         */
+        private boolean nextPacket() throws IOException {
+            if (packetLimit > 0 && packetCount >= packetLimit) {
+                return finish();
+            }
+            while (true) {
+                if (nextPosition < 0 && (positions == null || passEnded || !upcoming.hasNext())) {
+                    if (positions != null && passCount == 0 && !following) {
+                        LOGGER.warning("No packets for IP " + ipAddress
+                                + (hasTimeWindow() || fromNanos != startNanos ? " in the requested time window" : "")
+                                + (fromOffset > 0 ? " from offset " + fromOffset : "")
+                                + (filter != null ? " matching filter " + filter : ""));
+                        return finish();
+                    }
+                    if (positions != null && !following && loopLimit > 0 && ++loops >= loopLimit) {
+                        return finish();
+                    }
+                    PrimitiveIterator.OfLong next = nextPositions(positions, this);
+                    if (next == null) {
+                        return false;
+                    }
+                    positions = next;
+                    upcoming = reader != null ? reader.follow(next) : next;
+                    passEnded = false;
+                    passCount = 0;
+                    continue;
+                }
+                if (nextPosition < 0) {
+                    nextPosition = upcoming.nextLong();
+                }
+                if (reader != null && !reader.await(nextPosition, resume)) {
+                    // Resumed once the window holding the packet is read
+                    return false;
+                }
+                long position = nextPosition;
+                nextPosition = -1;
+                if (preparePacket(position)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Reads the headers of a packet, applies the time window, the filter
+         * and truncation, and publishes it to the packet journal if sampled.
+         * 
+         * @param position the file position of the packet record
+         * @return true if the packet is to be sent, false to skip it
+         */
+        private boolean preparePacket(long position) throws IOException {
+            // Read packet header
+            int headerBytesRead = read(position, record, 0, PACKET_HEADER_SIZE);
+            if (headerBytesRead < PACKET_HEADER_SIZE) {
+                LOGGER.warning("Incomplete packet header at position " + position);
+                return false;
+            }
+            cursor.at(recordView, 0);
+            int actualLength = cursor.capturedLength();
+
+            // Keep to the capture time window; a replay pass ends at
+            // the first packet after it
+            long timestamp = cursor.timestampNanos();
+            if (timestamp < fromNanos) {
+                return false;
+            }
+            if (timestamp > endNanos) {
+                passEnded = !following;
+                return false;
+            }
+
+            if (actualLength < 0) {
+                LOGGER.warning("Invalid packet length (negative): " + actualLength + " at position " + position
+                        + ". Skipping packet.");
+                return false;
+            }
+
+            // Validate minimum packet size
+            if (actualLength < MIN_PACKET_SIZE) {
+                LOGGER.warning("Packet too small: " + actualLength + " bytes at position " + position + 
+                             ". Minimum size is " + MIN_PACKET_SIZE + " bytes. Skipping packet.");
+                return false;
+            }
+
+            boolean isTruncated = false;
+
+            // Packets sent with transferTo or batched never enter the heap;
+            // only their headers are read, as they are to filter a packet
+            boolean headersOnly = zeroCopy || batch != null || channel == null;
+            if (headersOnly && position + PACKET_HEADER_SIZE + actualLength > fileSize) {
+                fileSize = pcapChannel.size();
+                if (position + PACKET_HEADER_SIZE + actualLength > fileSize) {
+                    LOGGER.warning("Incomplete packet data at position " + position +
+                                 ". Expected " + actualLength + " bytes, file ends at " + fileSize);
+                    return false;
+                }
+            }
+            int recordLength = headersOnly ? Math.min(actualLength, HEADER_PEEK_SIZE) : actualLength;
+            if (PACKET_HEADER_SIZE + recordLength > record.length) {
+                record = Arrays.copyOf(record, PACKET_HEADER_SIZE + recordLength);
+                recordView = ByteBuffer.wrap(record);
+                cursor.at(recordView, 0);
+            }
+            int peekLength = filter == null ? recordLength : Math.min(recordLength, HEADER_PEEK_SIZE);
+            int dataBytesRead = read(position + PACKET_HEADER_SIZE, record, PACKET_HEADER_SIZE, peekLength);
+            if (filter != null) {
+                recordView.limit(PACKET_HEADER_SIZE + Math.max(dataBytesRead, 0));
+                boolean matches = filter.matches(cursor);
+                recordView.clear();
+                if (!matches) {
+                    filteredCount++;
+                    return false;
+                }
+                if (dataBytesRead == peekLength && peekLength < recordLength) {
+                    dataBytesRead += read(position + PACKET_HEADER_SIZE + peekLength, record,
+                            PACKET_HEADER_SIZE + peekLength, recordLength - peekLength);
+                }
+            }
+
+            if (dataBytesRead < recordLength) {
+                LOGGER.warning("Incomplete packet data at position " + position + 
+                             ". Expected " + recordLength + " bytes, got " + dataBytesRead);
+                return false;
+            }
+            recordView.limit(PACKET_HEADER_SIZE + recordLength);
+
+            int ipHeaderSize = ipHeaderSize(cursor);
+            int transportHeaderSize = transportHeaderSize(cursor);
+            if (actualLength > MAX_PACKET_SIZE) {
+                actualLength = truncatedLength(cursor, record);
+                isTruncated = true;
+                truncatedCount++;
+            }
+            recordView.clear();
+
+            if (journal != null && journal.isSampled(packetCount)) {
+                journal.append(journalStream, packetCount, position, actualLength, ipHeaderSize,
+                        transportHeaderSize, isTruncated, cursor, record, recordLength);
+            }
+
+            lengthPrefix.clear();
+            lengthPrefix.putInt(0, actualLength);
+            captureNanos = timestamp;
+            dataPosition = position + PACKET_HEADER_SIZE;
+            dataLength = actualLength;
+            dataSent = 0;
+            heapData = headersOnly ? null : ByteBuffer.wrap(record, PACKET_HEADER_SIZE, actualLength);
+            return true;
+        }
+
+        /**
+         * Continues sending the current packet: the length prefix, then the
+         * packet data from the read-ahead window or straight from the file or
+         * the block cache, or from the record buffer in 8 KB chunks without
+         * zero copy.
+         * 
+         * @return true if the packet was sent completely, false if the socket
+         *         buffer is full
+         */
+        private boolean sendPacket() throws IOException {
+            channel.write(lengthPrefix);
+            if (lengthPrefix.hasRemaining()) {
+                return false;
+            }
+
+            if (heapData != null) {
+                while (heapData.hasRemaining()) {
+                    int limit = heapData.limit();
+                    heapData.limit(Math.min(limit, heapData.position() + CHUNK_SIZE));
+                    int written = channel.write(heapData);
+                    heapData.limit(limit);
+                    if (written == 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            ByteBuffer window = reader != null ? reader.slice(dataPosition + dataSent, (int) (dataLength - dataSent))
+                    : null;
+            if (window != null) {
+                while (window.hasRemaining()) {
+                    int written = channel.write(window);
+                    if (written == 0) {
+                        return false;
+                    }
+                    dataSent += written;
+                }
+                return true;
+            }
+            if (blockCache != null && dataSent < dataLength) {
+                dataSent += blockCache.transferTo(dataPosition + dataSent, (int) (dataLength - dataSent), channel);
+            }
+            while (dataSent < dataLength) {
+                long transferred = pcapChannel.transferTo(dataPosition + dataSent, dataLength - dataSent, channel);
+                if (transferred <= 0) {
+                    if (dataPosition + dataSent >= pcapChannel.size()) {
+                        // The client already has the length prefix, so the stream cannot continue
+                        throw new EOFException("PCAP file ends inside the packet at " + dataPosition);
+                    }
+                    return false;
+                }
+                dataSent += transferred;
+            }
+            return true;
+        }
+
+        /**
+         * Appends the current packet to the batch as a length-prefixed frame,
+         * reading its data straight into the batch's direct buffer.
+         * 
+         * @param now the current time
+         * @return true if the frame was appended, false if the batch has no
+         *         room for it
+         */
+        private boolean appendFrame(long now) throws IOException {
+            if (batch.remaining() < lengthPrefix.capacity() + dataLength) {
+                return false;
+            }
+            if (batchFrames == 0) {
+                batchStartNanos = now;
+            }
+            readFrame(batch);
+            batchFrames++;
+            return true;
+        }
+
+        /**
+         * Puts the current packet into a direct buffer as a length-prefixed
+         * frame, copying its data from the read-ahead window or reading it
+         * straight from the block cache or the file.
+         * 
+         * @param target the buffer, with room for the frame
+         */
+        private void readFrame(ByteBuffer target) throws IOException {
+            int start = target.position();
+            target.putInt(dataLength);
+            ByteBuffer window = reader != null ? reader.slice(dataPosition, dataLength) : null;
+            if (window != null) {
+                target.put(window);
+                return;
+            }
+            int limit = target.limit();
+            target.limit(target.position() + dataLength);
+            try {
+                while (target.hasRemaining()) {
+                    long from = dataPosition + target.position() - (start + lengthPrefix.capacity());
+                    int read = blockCache != null ? blockCache.read(from, target) : pcapChannel.read(target, from);
+                    if (read < 0) {
+                        target.position(start);
+                        throw new EOFException("PCAP file ends inside the packet at " + dataPosition);
+                    }
+                }
+            } finally {
+                target.limit(limit);
+            }
+        }
+
+        /**
+         * Writes the batched frames to the client with one write, continuing a
+         * batch that was partly written. On a compressed stream the batch is
+         * written as one block.
+         * 
+         * @return true if the batch is empty, false if the socket buffer is
+         *         full
+         */
+        private boolean flushBatch() throws IOException {
+            if (!flushing) {
+                if (batchFrames == 0) {
+                    return true;
+                }
+                batch.flip();
+                if (codec != null) {
+                    block.clear();
+                    codec.encodeBlock(batch.array(), batch.arrayOffset(), batch.limit(), block);
+                    block.flip();
+                }
+                flushing = true;
+            }
+            ByteBuffer pending = codec != null ? block : batch;
+            channel.write(pending);
+            if (pending.hasRemaining()) {
+                return false;
             }
+            batch.clear();
+            batchFrames = 0;
+            flushing = false;
+            return true;
+        }
 
-            LOGGER.info("Finished sending packets for IP " + ipAddress +
+        /**
+         * Resumes the session when the client has drained its socket buffer.
+         */
+        private void waitForWritable() {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Reads bytes at a file position from the read-ahead window, or
+         * through the block cache if one is set.
+         */
+        private int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            ByteBuffer window = reader != null ? reader.slice(position, length) : null;
+            if (window != null) {
+                window.get(buffer, offset, length);
+                return length;
+            }
+            if (blockCache != null) {
+                return blockCache.read(position, buffer, offset, length);
+            }
+            ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+            while (target.hasRemaining()) {
+                if (pcapChannel.read(target, position + target.position() - offset) < 0) {
+                    break;
+                }
+            }
+            int read = target.position() - offset;
+            return read == 0 && length > 0 ? -1 : read;
+        }
+
+        /**
+         * Closes the connection and the files of this session.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sessions.remove(this);
+            synchronized (packetPositions) {
+                parked.remove(this);
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+            request = null;
+            if (codec != null) {
+                compressionInputBytes.addAndGet(codec.getInputBytes());
+                compressionOutputBytes.addAndGet(codec.getOutputBytes());
+                compressionNanos.addAndGet(codec.getNanos());
+            }
+            if (this == publisher) {
+                // Subscribers cannot outlive the stream they receive
+                publisher = null;
+                for (BroadcastSession subscriber : subscribers) {
+                    subscriber.close();
+                }
+            }
+            try {
+                if (pcapChannel != null) {
+                    pcapChannel.close();
+                }
+                if (channel != null) {
+                    channel.close();
+                }
+                if (sharedRing != null) {
+                    sharedRing.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing client socket for IP " + ipAddress, e);
+            }
+            LOGGER.info((ring != null ? "Finished broadcasting packets for IP "
+                    : sharedRing != null ? "Finished publishing packets to shared memory for IP "
+                    : "Finished sending packets for IP ")
+                    + ipAddress +
                     ". Total packets: " + packetCount +
                     ", Successfully sent: " + successCount +
-                    ", Truncated: " + truncatedCount);
+                    ", Truncated: " + truncatedCount +
+                    ", Filtered out: " + filteredCount +
+                    (ring != null ? ", Dropped frames: " + ring.getDroppedFrames()
+                            + ", Disconnected clients: " + ring.getDisconnectedCount() : "") +
+                    (sharedRing != null ? ", Shared memory: " + sharedRing.report() : "") +
+                    (flowControl != ReplayRequest.FlowControl.NONE ? ", Credit waits: " + creditWaits : "") +
+                    (codec != null ? ", Compression: " + Lz4BlockCodec.report(codec.getInputBytes(),
+                            codec.getOutputBytes(), codec.getNanos()) : "") +
+                    (blockCache != null ? ", Block cache: " + blockCache.report() : "") +
+                    (reader != null ? ", Read-ahead: " + reader.report() : ""));
+            if (channel != null) {
+                LOGGER.info("Client handler finished after sending " + packetCount + " packets for IP " + ipAddress);
+            }
+        }
+    }
 
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Error handling client for IP " + ipAddress, e);
-        } catch (InterruptedException e) {
-            LOGGER.log(Level.WARNING, "Thread interrupted for IP " + ipAddress, e);
-            Thread.currentThread().interrupt();
-        } finally {
+    /**
+     * A client of a broadcast server. It sends the frames of the shared
+     * ring from its own cursor, waiting for write readiness when its socket
+     * buffer is full and for the publisher when it has caught up.
+     */
+    private final class BroadcastSession implements ReplayEventLoopGroup.Handler {
+
+        private final SocketChannel channel;
+        private final ByteBuffer discard;
+        private SelectionKey key;
+        private BroadcastRing.Subscriber subscriber;
+        private boolean closed;
+
+        BroadcastSession(SocketChannel channel) {
+            this.channel = channel;
+            this.discard = ByteBuffer.allocate(PACKET_HEADER_SIZE);
+        }
+
+        /**
+         * Subscribes to the ring once the channel is registered, starting the
+         * publisher for the first client.
+         */
+        void registered(SelectionKey key) {
+            if (key == null || closed) {
+                close();
+                return;
+            }
+            this.key = key;
+            subscriber = broadcastRing.subscribe(() -> broadcastLoop.execute(this::send), this::close);
+            if (publisher == null) {
+                publisher = new ClientSession(null, broadcastLoop, broadcastRing, null);
+                sessions.add(publisher);
+                publisher.open();
+            }
+            LOGGER.info("Client joined broadcast of IP " + ipAddress + " (" + broadcastRing.subscriberCount()
+                    + " clients)");
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
             try {
-                if (localCsvWriter != null) {
-                    localCsvWriter.close();
+                if (key.isReadable()) {
+                    // Clients send nothing; end of stream means they left
+                    int read;
+                    while ((read = channel.read(discard)) > 0) {
+                        discard.clear();
+                    }
+                    if (read < 0) {
+                        LOGGER.info("Client disconnected from IP " + ipAddress + " server");
+                        close();
+                        return;
+                    }
                 }
-                if (!clientSocket.isClosed()) {
-                    clientSocket.close();
+                if (key.isValid() && key.isWritable()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    send();
                 }
+            } catch (IOException e) {
+                LOGGER.info("Client disconnected from IP " + ipAddress + " server: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Sends the pending frames, waiting for write readiness if the socket
+         * buffer fills up.
+         */
+        private void send() {
+            if (closed) {
+                return;
+            }
+            try {
+                if (!subscriber.send(channel)) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                LOGGER.info("Client disconnected from IP " + ipAddress + " server: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection and leaves the ring, stopping the publisher
+         * after the last client.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            subscribers.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
             } catch (IOException e) {
                 LOGGER.log(Level.WARNING, "Error closing client socket for IP " + ipAddress, e);
             }
-            LOGGER.info("Client handler finished after sending " + packetCount + " packets for IP " + ipAddress);
+            if (subscriber != null) {
+                subscriber.close();
+                LOGGER.info("Finished broadcasting to client of IP " + ipAddress + ". Bytes sent: "
+                        + subscriber.getBytesSent() + ", Dropped frames: " + subscriber.getDroppedFrames());
+                broadcastLoop.execute(IPBasedPcapServer.this::closeIdlePublisher);
+            }
+        }
+    }
+
+    /**
+     * Sets whether this server follows a PCAP file that is still being
+     * written. A following server sends each packet once and then waits for
+     * packets added with {@link #appendPackets(PositionList)}, instead of
+     * replaying its packets in a loop.
+     * 
+     * @param following true to stream appended packets instead of looping
+     */
+    public void setFollowing(boolean following) {
+        this.following = following;
+    }
+
+    /**
+     * Restricts streaming to packets captured in a time window. Each replay
+     * pass starts at the record found with the time index instead of the first
+     * packet, and ends at the first packet captured after the window.
+     * 
+     * @param timeIndex  the time index of the PCAP file
+     * @param startNanos the earliest capture time in nanoseconds since the
+     *                   epoch, or {@link Long#MIN_VALUE} for no limit
+     * @param endNanos   the latest capture time in nanoseconds since the
+     *                   epoch, or {@link Long#MAX_VALUE} for no limit
+     */
+    public void setTimeWindow(TimeIndex timeIndex, long startNanos, long endNanos) {
+        if (startNanos > endNanos) {
+            throw new IllegalArgumentException("Time window starts after it ends: " + startNanos + " > " + endNanos);
+        }
+        this.timeIndex = timeIndex;
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+    }
+
+    /**
+     * Restricts streaming to packets that match a filter. Only the record,
+     * Ethernet and IP headers and the ports of each packet are read to test
+     * it; packets that do not match are skipped without reading their data.
+     * 
+     * @param filter the packet filter, or null to stream all packets
+     */
+    public void setFilter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Reads packets through a block cache shared with other servers instead
+     * of from this server's own file handle.
+     * 
+     * @param blockCache the block cache of the PCAP file, or null to read the
+     *                   file directly
+     */
+    public void setBlockCache(PcapBlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Records the packets sent to this server's clients in a journal,
+     * written to {@code header_<ip>.csv} by the journal's own thread. No
+     * packets are journaled by default.
+     *
+     * @param journal the packet journal, or null to journal no packets
+     */
+    public void setJournal(PacketJournal journal) {
+        this.journal = journal;
+        this.journalStream = journal != null ? journal.register(ipAddress) : 0;
+    }
+
+    /**
+     * Sets whether packets are sent from the file to the client socket with
+     * {@link FileChannel#transferTo}, or from the block cache's off-heap
+     * buffers, without copying their data into the heap. Only the headers
+     * needed to filter and describe a packet are read. Enabled by default.
+     * 
+     * @param zeroCopy true to send packet data without copying it
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    private boolean hasTimeWindow() {
+        return startNanos != Long.MIN_VALUE || endNanos != Long.MAX_VALUE;
+    }
+
+    /**
+     * Appends newly indexed packets and wakes up clients waiting for them.
+     * 
+     * @param positions the positions of the new packets, which must come after
+     *                  the packets already streamed
+     */
+    public void appendPackets(PositionList positions) {
+        List<ClientSession> waiting;
+        synchronized (packetPositions) {
+            packetPositions.addAll(positions);
+            waiting = new ArrayList<>(parked);
+            parked.clear();
+        }
+        for (ClientSession session : waiting) {
+            session.loop.execute(session::step);
+        }
+    }
+
+    /**
+     * Gets the positions to stream next. Without following, every pass starts
+     * over at the first packet, or at the start offset or time of the
+     * session, whichever is later. When
+     * following, a pass continues after the last packet of the previous pass;
+     * if there is none yet, the session is parked until
+     * {@link #appendPackets(PositionList)} wakes it up.
+     * 
+     * @param previous the iterator of the previous pass, or null for the first
+     *                 pass
+     * @param session  the session to park while no packet is appended
+     * @return the iterator for the next pass, or null if the session is parked
+     */
+    private PrimitiveIterator.OfLong nextPositions(PrimitiveIterator.OfLong previous, ClientSession session) {
+        synchronized (packetPositions) {
+            if (previous == null || !following) {
+                long offset = session.fromOffset;
+                if (timeIndex != null && session.fromNanos != Long.MIN_VALUE) {
+                    offset = Math.max(offset, timeIndex.offsetBefore(session.fromNanos));
+                }
+                return offset > 0 ? packetPositions.iteratorFrom(offset) : packetPositions.iterator();
+            }
+            PrimitiveIterator.OfLong next = packetPositions.iteratorAfter(previous);
+            if (!next.hasNext()) {
+                parked.add(session);
+                return null;
+            }
+            return next;
         }
     }
 
@@ -456,12 +1588,53 @@ public class IPBasedPcapServer implements Runnable {
         return port;
     }
 
+    /**
+     * Gets the shared-memory ring file the stream is published into.
+     * 
+     * @return the file, or null if the server serves TCP clients only
+     */
+    public Path getSharedMemoryFile() {
+        return sharedMemoryFile;
+    }
+
     /**
      * Gets the number of packets this server will stream.
      * 
      * @return the number of packets
      */
     public int getPacketCount() {
-        return packetPositions.size();
+        synchronized (packetPositions) {
+            return packetPositions.size();
+        }
+    }
+
+    /**
+     * Gets the number of bytes compressed for the clients that asked for
+     * compression, counted when their sessions close.
+     * 
+     * @return the length of the frames before compression
+     */
+    public long getCompressionInputBytes() {
+        return compressionInputBytes.get();
+    }
+
+    /**
+     * Gets the number of bytes sent to the clients that asked for
+     * compression, counted when their sessions close.
+     * 
+     * @return the length of the compressed blocks, headers included
+     */
+    public long getCompressionOutputBytes() {
+        return compressionOutputBytes.get();
+    }
+
+    /**
+     * Gets the CPU time spent compressing for the clients that asked for
+     * compression, counted when their sessions close.
+     * 
+     * @return the time in nanoseconds
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.get();
     }
 }
\ No newline at end of file
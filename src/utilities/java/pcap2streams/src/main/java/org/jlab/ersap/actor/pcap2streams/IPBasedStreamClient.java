@@ -1,11 +1,17 @@
 package org.jlab.ersap.actor.pcap2streams;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -19,6 +25,28 @@ import org.json.JSONObject;
  * A client that connects to IP-based PCAP servers and receives packets.
  * This client can connect to multiple servers, each streaming packets for a
  * specific IP.
+ * <p>
+ * A connection with a {@code replay} object in the configuration sends a
+ * {@link ReplayRequest} when it connects, for example
+ * {@code "replay": {"packets": 100000, "loops": 0, "pacing": "pps:50000",
+ * "start_offset": 0, "end_marker": true}}; the optional
+ * {@code start_time_ns} and {@code max_gap} (seconds, for capture pacing)
+ * may be given too. Such a connection stops at the end of its stream
+ * instead of reconnecting: at the end marker, or without one when the
+ * server closes the connection after the requested packets. A connection
+ * lost before then reconnects and sends its request again.
+ * <p>
+ * With {@code credit_packets} or {@code credit_bytes} in the {@code replay}
+ * object, the connection is flow-controlled by credits: the server sends no
+ * more than that many packets or bytes ahead of the consumer, and the
+ * connection grants credits back as {@link #getNextPacket()} drains its
+ * queue. Without credits, the queue holds at most 1000 packets and the
+ * connection stops reading while it is full.
+ * <p>
+ * A connection with {@code "compression": "lz4"} asks the server to send
+ * its stream in LZ4 blocks, which it decompresses as it reads them; such a
+ * connection sends a replay request even without a {@code replay} object.
+ * See {@link #getCompressionReport(String)} for the ratio achieved.
  */
 public class IPBasedStreamClient {
 
@@ -68,8 +96,16 @@ public class IPBasedStreamClient {
                 int port = connConfig.getInt("port");
                 int connectionTimeout = connConfig.optInt("connection_timeout", DEFAULT_TIMEOUT);
                 int readTimeout = connConfig.optInt("read_timeout", DEFAULT_TIMEOUT);
-
-                ConnectionHandler handler = new ConnectionHandler(ip, host, port, connectionTimeout, readTimeout);
+                JSONObject replay = connConfig.optJSONObject("replay");
+                ReplayRequest.Compression compression = compression(connConfig.optString("compression", "none"));
+                ReplayRequest request = replay != null || compression != ReplayRequest.Compression.NONE
+                        ? replayRequest(replay != null ? replay : new JSONObject(), compression)
+                        : null;
+                long creditWindow = replay != null ? replay.optLong("credit_packets", replay.optLong("credit_bytes", 0))
+                        : 0;
+
+                ConnectionHandler handler = new ConnectionHandler(ip, host, port, connectionTimeout, readTimeout,
+                        request, creditWindow);
                 connections.put(ip, handler);
 
                 Thread handlerThread = new Thread(handler);
@@ -81,6 +117,58 @@ public class IPBasedStreamClient {
         }
     }
 
+    /**
+     * Parses the {@code compression} of a connection.
+     * 
+     * @param name {@code none} or {@code lz4}
+     * @return the compression
+     */
+    private static ReplayRequest.Compression compression(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "none":
+                return ReplayRequest.Compression.NONE;
+            case "lz4":
+                return ReplayRequest.Compression.LZ4;
+            default:
+                throw new IllegalArgumentException("Unknown compression: " + name);
+        }
+    }
+
+    /**
+     * Builds the replay request of a connection from its configuration.
+     * 
+     * @param replay      the {@code replay} object of the connection, empty
+     *                    for the server's default replay
+     * @param compression the compression of the stream
+     * @return the request
+     */
+    private static ReplayRequest replayRequest(JSONObject replay, ReplayRequest.Compression compression) {
+        String pacing = replay.optString("pacing", null);
+        long maxGapNanos = replay.has("max_gap") ? Math.round(replay.getDouble("max_gap") * 1e9) : Long.MAX_VALUE;
+        ReplayRequest.FlowControl flowControl = ReplayRequest.FlowControl.NONE;
+        if (replay.has("credit_packets") && replay.has("credit_bytes")) {
+            throw new IllegalArgumentException("Replay credits are either credit_packets or credit_bytes");
+        } else if (replay.has("credit_packets")) {
+            if (replay.getLong("credit_packets") < 1) {
+                throw new IllegalArgumentException("credit_packets must be at least 1");
+            }
+            flowControl = ReplayRequest.FlowControl.PACKETS;
+        } else if (replay.has("credit_bytes")) {
+            if (replay.getLong("credit_bytes") < 4 + MAX_PACKET_SIZE) {
+                throw new IllegalArgumentException("credit_bytes must be at least " + (4 + MAX_PACKET_SIZE));
+            }
+            flowControl = ReplayRequest.FlowControl.BYTES;
+        }
+        return new ReplayRequest(replay.optLong("start_offset", 0),
+                replay.optLong("start_time_ns", Long.MIN_VALUE),
+                replay.optLong("packets", 0),
+                replay.optInt("loops", 0),
+                pacing != null ? ReplayPacing.parse(pacing, maxGapNanos) : null,
+                replay.optBoolean("end_marker", true),
+                flowControl,
+                compression);
+    }
+
     /**
      * Stops the client.
      */
@@ -149,6 +237,31 @@ public class IPBasedStreamClient {
         return handler != null && handler.isConnected();
     }
 
+    /**
+     * Gets whether the stream of a specific IP has ended with its end
+     * marker, after all the packets of its replay request were received.
+     * 
+     * @param ip the IP address to check
+     * @return true if the requested stream is complete
+     */
+    public boolean isFinished(String ip) {
+        ConnectionHandler handler = connections.get(ip);
+        return handler != null && handler.isFinished();
+    }
+
+    /**
+     * Describes the compression of the stream of a specific IP.
+     * 
+     * @param ip the IP address to check
+     * @return the compression ratio and decompression time of the current
+     *         connection, or null if its stream is not compressed
+     */
+    public String getCompressionReport(String ip) {
+        ConnectionHandler handler = connections.get(ip);
+        Lz4BlockInputStream blocks = handler != null ? handler.blocks : null;
+        return blocks != null ? blocks.report() : null;
+    }
+
     /**
      * Gets the number of packets received for a specific IP.
      * 
@@ -183,10 +296,16 @@ public class IPBasedStreamClient {
         private final int port;
         private final int connectionTimeout;
         private final int readTimeout;
+        private final ReplayRequest request;
+        private final long creditWindow;
         private final AtomicBoolean connected;
+        private final AtomicBoolean finished;
         private final AtomicBoolean running;
-        private final List<byte[]> packetQueue;
+        private final ArrayDeque<byte[]> packetQueue;
         private Socket socket;
+        private volatile OutputStream grants; // Where credits are granted, null without flow control
+        private long drained; // Credits drained from the queue since the last grant, guarded by this
+        private volatile Lz4BlockInputStream blocks; // Decompresses the stream, null if it is not compressed
         private int packetCount;
 
         /**
@@ -197,16 +316,26 @@ public class IPBasedStreamClient {
          * @param port              the port to connect to
          * @param connectionTimeout the connection timeout in milliseconds
          * @param readTimeout       the read timeout in milliseconds
+         * @param request           the replay to request on connecting, or
+         *                          null to receive the server's default
+         *                          replay
+         * @param creditWindow      the packets or bytes the server may send
+         *                          ahead of the consumer, if the request
+         *                          asks for credits
          */
-        public ConnectionHandler(String ip, String host, int port, int connectionTimeout, int readTimeout) {
+        public ConnectionHandler(String ip, String host, int port, int connectionTimeout, int readTimeout,
+                ReplayRequest request, long creditWindow) {
             this.ip = ip;
             this.host = host;
             this.port = port;
             this.connectionTimeout = connectionTimeout;
             this.readTimeout = readTimeout;
+            this.request = request;
+            this.creditWindow = creditWindow;
             this.connected = new AtomicBoolean(false);
+            this.finished = new AtomicBoolean(false);
             this.running = new AtomicBoolean(true);
-            this.packetQueue = new ArrayList<>();
+            this.packetQueue = new ArrayDeque<>();
             this.packetCount = 0;
         }
 
@@ -229,16 +358,55 @@ public class IPBasedStreamClient {
         }
 
         /**
-         * Gets the next packet from this connection.
+         * Gets the next packet from this connection. With flow control, the
+         * credits of the drained packets are granted back to the server once
+         * they reach half the window.
          * 
          * @return the next packet as a byte array, or null if no packet is available
          */
-        public synchronized byte[] getNextPacket() {
-            if (!packetQueue.isEmpty()) {
-                return packetQueue.remove(0);
+        public byte[] getNextPacket() {
+            byte[] packet;
+            long grant = 0;
+            synchronized (this) {
+                packet = packetQueue.poll();
+                if (packet == null) {
+                    return null;
+                }
+                notifyAll(); // Wake the reader if it waits for room
+                if (grants != null) {
+                    drained += request.getFlowControl() == ReplayRequest.FlowControl.PACKETS ? 1 : 4 + packet.length;
+                    if (drained >= creditWindow / 2) {
+                        grant = drained;
+                        drained = 0;
+                    }
+                }
             }
+            if (grant > 0) {
+                grant(grant);
+            }
+            return packet;
+        }
 
-            return null;
+        /**
+         * Grants the server credits for more packets or bytes.
+         */
+        private void grant(long amount) {
+            OutputStream out = grants;
+            if (out == null || amount == 0) {
+                return;
+            }
+            ByteBuffer message = ByteBuffer.allocate(ReplayRequest.CREDIT_SIZE);
+            ReplayRequest.writeCredit(message, amount);
+            try {
+                synchronized (out) {
+                    out.write(message.array());
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The reader sees the broken connection and drops it; the next
+                // connection grants its window when it requests the replay
+                LOGGER.log(Level.FINE, "Error granting credits for IP " + ip, e);
+            }
         }
 
         /**
@@ -250,6 +418,47 @@ public class IPBasedStreamClient {
             return connected.get();
         }
 
+        /**
+         * Checks if the requested stream of this connection has ended.
+         * 
+         * @return true if the end marker was received
+         */
+        public boolean isFinished() {
+            return finished.get();
+        }
+
+        /**
+         * Sends the replay request and checks its acknowledgement.
+         */
+        private void requestReplay(DataInputStream in) throws IOException {
+            ByteBuffer message = ByteBuffer.allocate(ReplayRequest.SIZE);
+            request.write(message);
+            OutputStream out = socket.getOutputStream();
+            out.write(message.array());
+            out.flush();
+
+            byte[] ack = new byte[ReplayRequest.ACK_SIZE];
+            in.readFully(ack);
+            long packets = ReplayRequest.readAck(ByteBuffer.wrap(ack));
+            LOGGER.info("Server for IP " + ip + " accepted replay of " + request + " from " + packets + " packets");
+
+            if (request.getFlowControl() != ReplayRequest.FlowControl.NONE) {
+                // Grant the window, less what the queue still holds from an
+                // earlier connection; the credits of those packets are
+                // granted back as they drain
+                long queued = 0;
+                synchronized (this) {
+                    for (byte[] packet : packetQueue) {
+                        queued += request.getFlowControl() == ReplayRequest.FlowControl.PACKETS ? 1
+                                : 4 + packet.length;
+                    }
+                    drained = 0;
+                    grants = out;
+                }
+                grant(Math.max(creditWindow - queued, 0));
+            }
+        }
+
         /**
          * Gets the number of packets received on this connection.
          * 
@@ -270,13 +479,35 @@ public class IPBasedStreamClient {
 
                     LOGGER.info("Connected to server for IP " + ip + " on " + host + ":" + port);
 
-                    // Read packets
-                    try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
+                    // Read packets; a read error drops the connection, and
+                    // the next one sends the replay request again
+                    long received = 0; // Packets received on this connection
+                    blocks = null;
+                    try (DataInputStream socketIn = new DataInputStream(socket.getInputStream())) {
+                        DataInputStream in = socketIn;
+                        if (request != null) {
+                            requestReplay(socketIn);
+                            if (request.getCompression() == ReplayRequest.Compression.LZ4) {
+                                // Everything after the acknowledgement comes in
+                                // blocks; a corrupted block drops the connection
+                                // like any other read error
+                                blocks = new Lz4BlockInputStream(socketIn);
+                                in = new DataInputStream(blocks);
+                            }
+                        }
                         while (running.get() && connected.get()) {
                             try {
-                                // Read packet length
-                                int packetLength = in.readInt();
-                                LOGGER.info("Reading packet of length " + packetLength + " for IP " + ip);
+                                // Read packet length, sent little-endian
+                                int packetLength = Integer.reverseBytes(in.readInt());
+                                if (packetLength == ReplayRequest.END_OF_STREAM) {
+                                    LOGGER.info("End of stream for IP " + ip + " after " + packetCount + " packets");
+                                    finished.set(true);
+                                    running.set(false);
+                                    break;
+                                }
+                                if (LOGGER.isLoggable(Level.FINEST)) {
+                                    LOGGER.finest("Reading packet of length " + packetLength + " for IP " + ip);
+                                }
 
                                 // Validate packet length
                                 if (packetLength < MIN_PACKET_SIZE || packetLength > MAX_PACKET_SIZE) {
@@ -304,9 +535,11 @@ public class IPBasedStreamClient {
                                     continue;
                                 }
 
-                                // Add packet to queue with a maximum size
+                                // Add packet to queue with a maximum size;
+                                // with credits, the server never sends more
+                                // than the queue may hold
                                 synchronized (this) {
-                                    while (packetQueue.size() >= 1000) { // Max 1000 packets in queue
+                                    while (grants == null && packetQueue.size() >= 1000) { // Max 1000 packets in queue
                                         try {
                                             LOGGER.warning("Packet queue full for IP " + ip + 
                                                          ", waiting for consumer...");
@@ -321,36 +554,33 @@ public class IPBasedStreamClient {
                                 }
 
                                 packetCount++;
+                                received++;
 
-                                if (packetCount % 100 == 0) {
-                                    LOGGER.info("Received " + packetCount + " packets for IP " + ip);
+                                if (packetCount % 100 == 0 && LOGGER.isLoggable(Level.FINE)) {
+                                    LOGGER.fine("Received " + packetCount + " packets for IP " + ip);
                                 }
                             } catch (SocketTimeoutException e) {
                                 // This is expected due to the timeout on read
                                 continue;
-                            } catch (IOException e) {
-                                LOGGER.log(Level.WARNING, "Error reading packet for IP " + ip, e);
-                                // Try to reconnect
-                                if (running.get()) {
-                                    LOGGER.info("Attempting to reconnect for IP " + ip);
-                                    try {
-                                        socket.close();
-                                        socket = new Socket(host, port);
-                                        socket.setSoTimeout(readTimeout);
-                                        LOGGER.info("Successfully reconnected for IP " + ip);
-                                    } catch (IOException ex) {
-                                        LOGGER.log(Level.SEVERE, "Failed to reconnect for IP " + ip, ex);
-                                        break;
-                                    }
-                                } else {
+                            } catch (EOFException e) {
+                                if (request != null && request.getPacketCount() > 0
+                                        && received >= request.getPacketCount()) {
+                                    // The server closes a finite stream without
+                                    // an end marker once it is complete
+                                    LOGGER.info("End of stream for IP " + ip + " after " + packetCount + " packets");
+                                    finished.set(true);
+                                    running.set(false);
                                     break;
                                 }
+                                // Reconnect with a new request
+                                throw e;
                             }
                         }
                     }
                 } catch (IOException e) {
                     if (running.get()) {
-                        LOGGER.log(Level.WARNING, "Error in connection for IP " + ip, e);
+                        LOGGER.log(Level.WARNING, (e instanceof StreamCorruptedException ? "Corrupted stream"
+                                : "Error in connection") + " for IP " + ip, e);
 
                         // Wait before reconnecting
                         try {
@@ -362,6 +592,15 @@ public class IPBasedStreamClient {
                     }
                 } finally {
                     connected.set(false);
+                    if (blocks != null) {
+                        LOGGER.info("Compression for IP " + ip + ": " + blocks.report());
+                    }
+                    // Credits of the dropped connection are not granted to
+                    // the next one
+                    synchronized (this) {
+                        grants = null;
+                        drained = 0;
+                    }
 
                     try {
                         if (socket != null && !socket.isClosed()) {
@@ -0,0 +1,264 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.util.Arrays;
+
+/**
+ * Maps IPv4 addresses to the positions of the packets sent from or to them.
+ * Addresses are kept as ints in an open-addressing table and positions in
+ * delta-encoded {@link PositionList}s, so no per-packet objects are created.
+ */
+public final class IPPacketIndex {
+
+    private static final int INITIAL_CAPACITY = 64; // Must be a power of two
+    private static final int OBJECT_OVERHEAD = 64; // Approximate object and array header bytes
+
+    private int[] addresses;
+    private PositionList[] lists;
+    private int size;
+
+    /**
+     * Creates an empty index.
+     */
+    public IPPacketIndex() {
+        this.addresses = new int[INITIAL_CAPACITY];
+        this.lists = new PositionList[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Records that the packet at the given position involves an address.
+     *
+     * @param address  the IPv4 address in network byte order
+     * @param position the file offset of the packet record
+     */
+    public void add(int address, long position) {
+        getOrCreate(address).add(position);
+    }
+
+    /**
+     * Records that the packet at the given position involves an address and
+     * counts its captured length.
+     *
+     * @param address       the IPv4 address in network byte order
+     * @param position      the file offset of the packet record
+     * @param capturedBytes the captured length of the packet
+     */
+    public void add(int address, long position, int capturedBytes) {
+        getOrCreate(address).add(position, capturedBytes);
+    }
+
+    /**
+     * Sets the positions of an address that is not yet in the index.
+     */
+    void put(int address, PositionList list) {
+        if (find(address) >= 0) {
+            throw new IllegalStateException("Address already indexed: " + formatAddress(address));
+        }
+        getOrCreate(address);
+        lists[find(address)] = list;
+    }
+
+    /**
+     * Appends all positions of another index. Every position in {@code other}
+     * must come after the positions already recorded for the same address.
+     *
+     * @param other the index to append
+     */
+    public void addAll(IPPacketIndex other) {
+        for (int i = 0; i < other.lists.length; i++) {
+            if (other.lists[i] != null) {
+                getOrCreate(other.addresses[i]).addAll(other.lists[i]);
+            }
+        }
+    }
+
+    /**
+     * Gets the positions recorded for an address.
+     *
+     * @param address the IPv4 address in network byte order
+     * @return the positions, or null if the address was never seen
+     */
+    public PositionList get(int address) {
+        int slot = find(address);
+        return slot >= 0 ? lists[slot] : null;
+    }
+
+    /**
+     * Gets the positions recorded for a dotted-quad address.
+     *
+     * @param ip the IPv4 address, for example "129.57.69.15"
+     * @return the positions, or null if the address was never seen
+     */
+    public PositionList get(String ip) {
+        return get(parseAddress(ip));
+    }
+
+    /**
+     * Gets the number of distinct addresses in the index.
+     *
+     * @return the number of addresses
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets all addresses in the index in ascending unsigned order.
+     *
+     * @return the addresses in network byte order
+     */
+    public int[] addresses() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < lists.length; i++) {
+            if (lists[i] != null) {
+                result[n++] = addresses[i] ^ Integer.MIN_VALUE;
+            }
+        }
+        Arrays.sort(result);
+        for (int i = 0; i < n; i++) {
+            result[i] ^= Integer.MIN_VALUE;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the total number of positions over all addresses. A packet between
+     * two indexed addresses is counted once for each of them.
+     *
+     * @return the number of stored positions
+     */
+    public long positionCount() {
+        long total = 0;
+        for (PositionList list : lists) {
+            if (list != null) {
+                total += list.size();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Releases unused capacity once the index is complete.
+     */
+    public void trim() {
+        for (PositionList list : lists) {
+            if (list != null) {
+                list.trim();
+            }
+        }
+    }
+
+    /**
+     * Estimates the heap memory used by this index.
+     *
+     * @return the approximate size in bytes
+     */
+    public long memoryBytes() {
+        long total = OBJECT_OVERHEAD + 12L * lists.length;
+        for (PositionList list : lists) {
+            if (list != null) {
+                total += list.memoryBytes();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Describes the memory used by the index relative to the number of
+     * packets it covers.
+     *
+     * @param packetCount the number of distinct packets that were indexed
+     * @return a one-line memory report
+     */
+    public String memoryReport(long packetCount) {
+        long bytes = memoryBytes();
+        return String.format("%d addresses, %d positions for %d packets, %d bytes (%.2f bytes per indexed packet)",
+                size, positionCount(), packetCount, bytes, packetCount > 0 ? (double) bytes / packetCount : 0.0);
+    }
+
+    /**
+     * Parses a dotted-quad IPv4 address.
+     *
+     * @param ip the address, for example "129.57.69.15"
+     * @return the address in network byte order
+     * @throws IllegalArgumentException if the string is not an IPv4 address
+     */
+    public static int parseAddress(String ip) {
+        String[] parts = ip.split("\\.");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Not an IPv4 address: " + ip);
+        }
+        int address = 0;
+        for (String part : parts) {
+            int value = Integer.parseInt(part);
+            if (value < 0 || value > 255) {
+                throw new IllegalArgumentException("Not an IPv4 address: " + ip);
+            }
+            address = (address << 8) | value;
+        }
+        return address;
+    }
+
+    /**
+     * Formats an IPv4 address as a dotted-quad string.
+     *
+     * @param address the address in network byte order
+     * @return the dotted-quad string
+     */
+    public static String formatAddress(int address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    private PositionList getOrCreate(int address) {
+        int slot = find(address);
+        if (slot >= 0) {
+            return lists[slot];
+        }
+        if ((size + 1) * 2 > lists.length) {
+            rehash(lists.length * 2);
+            slot = find(address);
+        }
+        slot = -slot - 1;
+        addresses[slot] = address;
+        lists[slot] = new PositionList();
+        size++;
+        return lists[slot];
+    }
+
+    /**
+     * Finds the slot of an address.
+     *
+     * @return the slot, or {@code -(insertion slot) - 1} if absent
+     */
+    private int find(int address) {
+        int mask = lists.length - 1;
+        int slot = mix(address) & mask;
+        while (lists[slot] != null) {
+            if (addresses[slot] == address) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldAddresses = addresses;
+        PositionList[] oldLists = lists;
+        addresses = new int[capacity];
+        lists = new PositionList[capacity];
+        for (int i = 0; i < oldLists.length; i++) {
+            if (oldLists[i] != null) {
+                int slot = -find(oldAddresses[i]) - 1;
+                addresses[slot] = oldAddresses[i];
+                lists[slot] = oldLists[i];
+            }
+        }
+    }
+
+    static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
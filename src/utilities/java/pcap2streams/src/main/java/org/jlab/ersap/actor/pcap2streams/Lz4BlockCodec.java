@@ -0,0 +1,306 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * LZ4 compression of batches of frames for replay streams. Data is encoded
+ * in the LZ4 block format, so any LZ4 implementation can decode a block,
+ * with a greedy single-probe match finder: fast enough to keep up with a
+ * replay stream, at a lower ratio than LZ4's high-compression modes.
+ * <p>
+ * On the wire every block starts with an 8-byte little-endian header, the
+ * length of the original bytes and the length of the stored bytes that
+ * follow. A block that LZ4 cannot shrink is stored as is, with both lengths
+ * equal. The decoding side is {@link Lz4BlockInputStream}.
+ * <p>
+ * A codec keeps its match table and counters and is not thread-safe; each
+ * stream uses its own.
+ */
+public final class Lz4BlockCodec {
+
+    /** Size of the header in front of each block. */
+    public static final int BLOCK_HEADER_SIZE = 8;
+
+    /** Size of the batches of frames compressed when no batch size is set. */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5; // The last bytes of a block are always literals
+    private static final int MATCH_FIND_LIMIT = 12; // The last match starts at least this far from the end
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 14;
+    private static final int SKIP_TRIGGER = 6; // Misses before the match finder speeds up over literals
+
+    private final int[] table;
+    private long inputBytes;
+    private long outputBytes;
+    private long nanos;
+
+    /**
+     * Creates a codec.
+     */
+    public Lz4BlockCodec() {
+        this.table = new int[1 << HASH_LOG];
+    }
+
+    /**
+     * Gets the largest size of a compressed block.
+     *
+     * @param length the length of the original bytes
+     * @return the largest stored length, header not included
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses bytes into a block with its header.
+     *
+     * @param src    the bytes to compress
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     * @param out    a heap buffer with room for {@link #BLOCK_HEADER_SIZE}
+     *               plus {@link #maxCompressedLength} bytes
+     */
+    public void encodeBlock(byte[] src, int offset, int length, ByteBuffer out) {
+        long start = System.nanoTime();
+        int header = out.arrayOffset() + out.position();
+        byte[] dst = out.array();
+        int stored = compress(src, offset, length, dst, header + BLOCK_HEADER_SIZE);
+        if (stored >= length) {
+            System.arraycopy(src, offset, dst, header + BLOCK_HEADER_SIZE, length);
+            stored = length;
+        }
+        ByteBuffer view = ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+        view.putInt(header, length);
+        view.putInt(header + 4, stored);
+        out.position(out.position() + BLOCK_HEADER_SIZE + stored);
+        inputBytes += length;
+        outputBytes += BLOCK_HEADER_SIZE + stored;
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Compresses bytes in the LZ4 block format.
+     *
+     * @param src       the bytes to compress
+     * @param srcOffset the offset of the first byte
+     * @param length    the number of bytes
+     * @param dst       the array to compress into, with room for
+     *                  {@link #maxCompressedLength} bytes
+     * @param dstOffset the offset to compress to
+     * @return the compressed length
+     */
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        int end = srcOffset + length;
+        int anchor = srcOffset;
+        int op = dstOffset;
+        if (length > MATCH_FIND_LIMIT) {
+            Arrays.fill(table, -1);
+            int matchLimit = end - LAST_LITERALS;
+            int findLimit = end - MATCH_FIND_LIMIT;
+            int ip = srcOffset;
+            int misses = 0;
+            while (ip <= findLimit) {
+                int sequence = readInt(src, ip);
+                int slot = hash(sequence);
+                int ref = table[slot];
+                table[slot] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                    continue;
+                }
+                misses = 0;
+                while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        return writeSequence(src, anchor, end - anchor, 0, 0, dst, op) - dstOffset;
+    }
+
+    /**
+     * Decompresses a block in the LZ4 block format.
+     *
+     * @param src       the compressed bytes
+     * @param srcOffset the offset of the first compressed byte
+     * @param srcLength the compressed length
+     * @param dst       the array to decompress into
+     * @param dstOffset the offset to decompress to
+     * @param dstLength the length of the original bytes
+     * @throws StreamCorruptedException if the block is malformed or does not
+     *                                  decompress to exactly
+     *                                  {@code dstLength} bytes
+     */
+    public static void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset,
+            int dstLength) throws StreamCorruptedException {
+        int ip = srcOffset;
+        int srcEnd = srcOffset + srcLength;
+        int op = dstOffset;
+        int dstEnd = dstOffset + dstLength;
+        while (true) {
+            if (ip >= srcEnd) {
+                throw new StreamCorruptedException("Truncated LZ4 block");
+            }
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new StreamCorruptedException("Truncated LZ4 literal length");
+                    }
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > srcEnd - ip || literals > dstEnd - op) {
+                throw new StreamCorruptedException("LZ4 literals overrun the block");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == srcEnd) {
+                break;
+            }
+
+            if (srcEnd - ip < 2) {
+                throw new StreamCorruptedException("Truncated LZ4 match offset");
+            }
+            int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            if (distance == 0 || distance > op - dstOffset) {
+                throw new StreamCorruptedException("LZ4 match offset out of range: " + distance);
+            }
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new StreamCorruptedException("Truncated LZ4 match length");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                throw new StreamCorruptedException("LZ4 match overruns the block");
+            }
+            int ref = op - distance;
+            if (distance >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // Overlapping copy repeats the last bytes
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        if (op != dstEnd) {
+            throw new StreamCorruptedException("LZ4 block decompresses to " + (op - dstOffset) + " bytes instead of "
+                    + dstLength);
+        }
+    }
+
+    /**
+     * Gets the number of bytes compressed.
+     *
+     * @return the original length of all blocks
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     * Gets the number of bytes of the blocks written, headers included.
+     *
+     * @return the encoded length of all blocks
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Gets the CPU time spent compressing.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Describes the compression of a number of bytes.
+     *
+     * @param inputBytes  the length of the original bytes
+     * @param outputBytes the length of the blocks, headers included
+     * @param nanos       the time spent compressing
+     * @return the compression ratio and the compression time per MB
+     */
+    public static String report(long inputBytes, long outputBytes, long nanos) {
+        return String.format("%d KB to %d KB (ratio %.2f), %.2f ms per MB compressed", inputBytes / 1024,
+                outputBytes / 1024, outputBytes > 0 ? (double) inputBytes / outputBytes : 0.0,
+                inputBytes > 0 ? nanos / 1e6 / (inputBytes / 1048576.0) : 0.0);
+    }
+
+    /**
+     * Writes a sequence of literals followed by a match, or the last
+     * literals of a block if the match length is 0.
+     */
+    private static int writeSequence(byte[] src, int literalStart, int literals, int distance, int matchLength,
+            byte[] dst, int op) {
+        int token = op++;
+        if (literals >= 15) {
+            dst[token] = (byte) 0xF0;
+            op = writeLength(dst, op, literals - 15);
+        } else {
+            dst[token] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        if (matchLength == 0) {
+            return op;
+        }
+        dst[op++] = (byte) distance;
+        dst[op++] = (byte) (distance >>> 8);
+        int extra = matchLength - MIN_MATCH;
+        if (extra >= 15) {
+            dst[token] |= 0x0F;
+            op = writeLength(dst, op, extra - 15);
+        } else {
+            dst[token] |= (byte) extra;
+        }
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) | (src[offset + 1] & 0xFF) << 8 | (src[offset + 2] & 0xFF) << 16
+                | (src[offset + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,186 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Reads the bytes of a stream of blocks written by {@link Lz4BlockCodec},
+ * so a client reads the frames of a compressed replay stream as if they had
+ * been sent as they are. Not thread-safe.
+ */
+public final class Lz4BlockInputStream extends FilterInputStream {
+
+    /** Largest original length of a block accepted from the server. */
+    public static final int MAX_BLOCK_SIZE = 1 << 24;
+
+    private final byte[] header;
+    private byte[] stored;
+    private byte[] block;
+    private int position;
+    private int limit;
+    private long compressedBytes;
+    private long decompressedBytes;
+    private long nanos;
+
+    /**
+     * Creates a stream that decompresses the blocks read from another.
+     *
+     * @param in the stream of blocks
+     */
+    public Lz4BlockInputStream(InputStream in) {
+        super(in);
+        this.header = new byte[Lz4BlockCodec.BLOCK_HEADER_SIZE];
+        this.stored = new byte[Lz4BlockCodec.maxCompressedLength(Lz4BlockCodec.DEFAULT_BLOCK_SIZE)];
+        this.block = new byte[Lz4BlockCodec.DEFAULT_BLOCK_SIZE];
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (position == limit) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == limit) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (position < limit || nextBlock())) {
+            int step = (int) Math.min(n - skipped, limit - position);
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Gets the number of bytes read from the underlying stream.
+     *
+     * @return the encoded length of the blocks read, headers included
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Gets the number of bytes the blocks decompressed to.
+     *
+     * @return the original length of the blocks read
+     */
+    public long getDecompressedBytes() {
+        return decompressedBytes;
+    }
+
+    /**
+     * Gets the CPU time spent decompressing.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Describes the blocks read so far.
+     *
+     * @return the compression ratio and the decompression time per MB
+     */
+    public String report() {
+        return String.format("%d KB to %d KB (ratio %.2f), %.2f ms per MB decompressed", compressedBytes / 1024,
+                decompressedBytes / 1024, compressedBytes > 0 ? (double) decompressedBytes / compressedBytes : 0.0,
+                decompressedBytes > 0 ? nanos / 1e6 / (decompressedBytes / 1048576.0) : 0.0);
+    }
+
+    /**
+     * Reads and decompresses the next block.
+     *
+     * @return false at the end of the underlying stream between blocks
+     */
+    private boolean nextBlock() throws IOException {
+        int headerRead = readFully(header, Lz4BlockCodec.BLOCK_HEADER_SIZE);
+        if (headerRead == 0) {
+            return false;
+        }
+        if (headerRead < Lz4BlockCodec.BLOCK_HEADER_SIZE) {
+            throw new EOFException("Stream ends inside an LZ4 block header");
+        }
+        int length = littleEndianInt(header, 0);
+        int storedLength = littleEndianInt(header, 4);
+        if (length < 0 || length > MAX_BLOCK_SIZE || storedLength < 0 || storedLength > length) {
+            throw new StreamCorruptedException("Invalid LZ4 block header: " + length + " bytes stored in "
+                    + storedLength);
+        }
+        if (block.length < length) {
+            block = new byte[length];
+        }
+        if (storedLength == length) {
+            // Stored as is
+            if (readFully(block, length) < length) {
+                throw new EOFException("Stream ends inside an LZ4 block");
+            }
+        } else {
+            if (stored.length < storedLength) {
+                stored = new byte[Lz4BlockCodec.maxCompressedLength(length)];
+            }
+            if (readFully(stored, storedLength) < storedLength) {
+                throw new EOFException("Stream ends inside an LZ4 block");
+            }
+            long start = System.nanoTime();
+            Lz4BlockCodec.decompress(stored, 0, storedLength, block, 0, length);
+            nanos += System.nanoTime() - start;
+        }
+        compressedBytes += Lz4BlockCodec.BLOCK_HEADER_SIZE + storedLength;
+        decompressedBytes += length;
+        position = 0;
+        limit = length;
+        return true;
+    }
+
+    private int readFully(byte[] b, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(b, read, length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    private static int littleEndianInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16
+                | (b[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,512 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A packet filter in a small BPF-like language, compiled once into a tree of
+ * predicates that read the record in place through a {@link PcapRecordCursor}.
+ * Only the record header and the Ethernet, IPv4 and TCP/UDP port fields are
+ * read, so a filter can be evaluated on a header peek before the packet data
+ * is loaded.
+ * <p>
+ * Primitives:
+ * <ul>
+ * <li>{@code [src|dst] host 129.57.69.15}</li>
+ * <li>{@code [src|dst] net 129.57.0.0/16}</li>
+ * <li>{@code [src|dst] port 7001} and {@code [src|dst] portrange 7000-7010},
+ * for TCP and UDP</li>
+ * <li>{@code proto tcp|udp|icmp|N}, and the shorthands {@code tcp},
+ * {@code udp}, {@code icmp} and {@code ip} (any IPv4 packet)</li>
+ * <li>{@code len OP N}, {@code less N} and {@code greater N} on the original
+ * (wire) length, where OP is one of {@code < <= > >= == !=}</li>
+ * <li>{@code time OP T} on the capture time, where T is an ISO-8601 instant or
+ * epoch seconds as accepted by {@link Pcap2Streams#parseTime(String)}</li>
+ * </ul>
+ * Without {@code src} or {@code dst}, an address or port primitive matches
+ * either side. Primitives combine with {@code and}/{@code &&},
+ * {@code or}/{@code ||}, {@code not}/{@code !} and parentheses, with the
+ * usual precedence. Address, port and protocol primitives never match
+ * non-IPv4 packets, and port primitives never match fragments after the
+ * first or packets captured without their ports. A compiled filter is
+ * immutable and thread-safe; the cursor passed to
+ * {@link #matches(PcapRecordCursor)} is not.
+ */
+public final class PacketFilter {
+
+    private final String expression;
+    private final Node root;
+
+    private PacketFilter(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * Compiles a filter expression.
+     *
+     * @param expression the filter expression, for example
+     *                   {@code "udp and dst port 7001 and not src net 10.0.0.0/8"}
+     * @return the compiled filter
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static PacketFilter compile(String expression) {
+        Parser parser = new Parser(expression);
+        Node root = parser.parseOr();
+        if (parser.peek() != null) {
+            throw parser.error("Unexpected '" + parser.peek() + "'");
+        }
+        return new PacketFilter(expression, root);
+    }
+
+    /**
+     * Tests the record at the cursor. The cursor's buffer must hold the
+     * record header and at least the first bytes of the packet up to the
+     * TCP/UDP ports; fields beyond the buffer limit read as absent.
+     *
+     * @param cursor the cursor positioned at the record
+     * @return true if the packet passes the filter
+     */
+    public boolean matches(PcapRecordCursor cursor) {
+        return root.test(cursor);
+    }
+
+    /**
+     * Gets the expression this filter was compiled from.
+     *
+     * @return the filter expression
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * A compiled predicate.
+     */
+    private abstract static class Node {
+        abstract boolean test(PcapRecordCursor cursor);
+    }
+
+    private static final class And extends Node {
+        private final Node[] terms;
+
+        And(Node[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        boolean test(PcapRecordCursor cursor) {
+            for (Node term : terms) {
+                if (!term.test(cursor)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Or extends Node {
+        private final Node[] terms;
+
+        Or(Node[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        boolean test(PcapRecordCursor cursor) {
+            for (Node term : terms) {
+                if (term.test(cursor)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node term;
+
+        Not(Node term) {
+            this.term = term;
+        }
+
+        @Override
+        boolean test(PcapRecordCursor cursor) {
+            return !term.test(cursor);
+        }
+    }
+
+    /**
+     * Matches IPv4 addresses under a prefix; a host is a /32 prefix.
+     */
+    private static final class Net extends Node {
+        private final int address;
+        private final int mask;
+        private final boolean source;
+        private final boolean destination;
+
+        Net(int address, int mask, boolean source, boolean destination) {
+            this.address = address & mask;
+            this.mask = mask;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        boolean test(PcapRecordCursor cursor) {
+            if (!cursor.isIPv4()) {
+                return false;
+            }
+            return source && (cursor.sourceAddress() & mask) == address
+                    || destination && (cursor.destinationAddress() & mask) == address;
+        }
+    }
+
+    /**
+     * Matches TCP/UDP ports in a range; a port is a range of one.
+     */
+    private static final class PortRange extends Node {
+        private final int low;
+        private final int high;
+        private final boolean source;
+        private final boolean destination;
+
+        PortRange(int low, int high, boolean source, boolean destination) {
+            this.low = low;
+            this.high = high;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        boolean test(PcapRecordCursor cursor) {
+            // Like tcpdump, packets without captured ports never match, even
+            // a range that includes 0
+            if (!cursor.hasPorts()) {
+                return false;
+            }
+            if (source) {
+                int port = cursor.sourcePort();
+                if (port >= low && port <= high) {
+                    return true;
+                }
+            }
+            if (destination) {
+                int port = cursor.destinationPort();
+                return port >= low && port <= high;
+            }
+            return false;
+        }
+    }
+
+    private static final class Protocol extends Node {
+        private final int protocol; // -1 for any IPv4 packet
+
+        Protocol(int protocol) {
+            this.protocol = protocol;
+        }
+
+        @Override
+        boolean test(PcapRecordCursor cursor) {
+            return cursor.isIPv4() && (protocol < 0 || cursor.protocol() == protocol);
+        }
+    }
+
+    /**
+     * Compares the original length or the capture time with a constant.
+     */
+    private static final class Compare extends Node {
+        private static final int LESS = 0;
+        private static final int LESS_EQUAL = 1;
+        private static final int GREATER = 2;
+        private static final int GREATER_EQUAL = 3;
+        private static final int EQUAL = 4;
+        private static final int NOT_EQUAL = 5;
+
+        private final boolean time;
+        private final int operator;
+        private final long value;
+
+        Compare(boolean time, int operator, long value) {
+            this.time = time;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        boolean test(PcapRecordCursor cursor) {
+            long actual = time ? cursor.timestampNanos() : cursor.originalLength();
+            switch (operator) {
+                case LESS:
+                    return actual < value;
+                case LESS_EQUAL:
+                    return actual <= value;
+                case GREATER:
+                    return actual > value;
+                case GREATER_EQUAL:
+                    return actual >= value;
+                case NOT_EQUAL:
+                    return actual != value;
+                default:
+                    return actual == value;
+            }
+        }
+    }
+
+    /**
+     * A recursive descent parser over the tokens of an expression.
+     */
+    private static final class Parser {
+
+        private static final String OPERATOR_CHARS = "()!<>=&|";
+        private static final List<String> TWO_CHAR_OPERATORS = List.of("<=", ">=", "==", "!=", "&&", "||");
+
+        private final String expression;
+        private final List<String> tokens;
+        private final List<Integer> offsets;
+        private int next;
+        private int last; // Token reported in errors
+
+        Parser(String expression) {
+            this.expression = expression;
+            this.tokens = new ArrayList<>();
+            this.offsets = new ArrayList<>();
+            tokenize();
+        }
+
+        Node parseOr() {
+            List<Node> terms = new ArrayList<>();
+            terms.add(parseAnd());
+            while (accept("or") || accept("||")) {
+                terms.add(parseAnd());
+            }
+            return terms.size() == 1 ? terms.get(0) : new Or(terms.toArray(new Node[0]));
+        }
+
+        private Node parseAnd() {
+            List<Node> terms = new ArrayList<>();
+            terms.add(parseNot());
+            while (accept("and") || accept("&&")) {
+                terms.add(parseNot());
+            }
+            return terms.size() == 1 ? terms.get(0) : new And(terms.toArray(new Node[0]));
+        }
+
+        private Node parseNot() {
+            if (accept("not") || accept("!")) {
+                Node term = parseNot();
+                return term instanceof Not ? ((Not) term).term : new Not(term);
+            }
+            return parsePrimary();
+        }
+
+        private Node parsePrimary() {
+            if (accept("(")) {
+                Node inner = parseOr();
+                expect(")");
+                return inner;
+            }
+
+            boolean source = true;
+            boolean destination = true;
+            if (accept("src")) {
+                destination = false;
+            } else if (accept("dst")) {
+                source = false;
+            }
+
+            String keyword = take("a filter primitive").toLowerCase();
+            switch (keyword) {
+                case "host":
+                    return new Net(parseAddress(take("an IPv4 address")), -1, source, destination);
+                case "net":
+                    return parseNet(take("a network such as 10.0.0.0/8"), source, destination);
+                case "port": {
+                    int port = parsePort(take("a port"));
+                    return new PortRange(port, port, source, destination);
+                }
+                case "portrange":
+                    return parsePortRange(take("a port range such as 7000-7010"), source, destination);
+                default:
+                    if (!source || !destination) {
+                        throw error("Expected host, net, port or portrange after src/dst");
+                    }
+            }
+
+            switch (keyword) {
+                case "proto":
+                    return new Protocol(parseProtocol(take("a protocol")));
+                case "ip":
+                    return new Protocol(-1);
+                case "tcp":
+                case "udp":
+                case "icmp":
+                    return new Protocol(parseProtocol(keyword));
+                case "len":
+                    return new Compare(false, parseOperator(), parseNumber(take("a length"), 0, Integer.MAX_VALUE));
+                case "less":
+                    return new Compare(false, Compare.LESS_EQUAL, parseNumber(take("a length"), 0, Integer.MAX_VALUE));
+                case "greater":
+                    return new Compare(false, Compare.GREATER_EQUAL,
+                            parseNumber(take("a length"), 0, Integer.MAX_VALUE));
+                case "time": {
+                    int operator = parseOperator();
+                    String time = take("a time");
+                    try {
+                        return new Compare(true, operator, Pcap2Streams.parseTime(time));
+                    } catch (IllegalArgumentException e) {
+                        throw error(e.getMessage());
+                    }
+                }
+                default:
+                    throw error("Unknown filter primitive '" + keyword + "'");
+            }
+        }
+
+        private Node parseNet(String net, boolean source, boolean destination) {
+            int slash = net.indexOf('/');
+            int prefix = 32;
+            if (slash >= 0) {
+                prefix = (int) parseNumber(net.substring(slash + 1), 0, 32);
+                net = net.substring(0, slash);
+            }
+            int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+            return new Net(parseAddress(net), mask, source, destination);
+        }
+
+        private Node parsePortRange(String range, boolean source, boolean destination) {
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                throw error("Expected a port range such as 7000-7010, got '" + range + "'");
+            }
+            int low = parsePort(range.substring(0, dash));
+            int high = parsePort(range.substring(dash + 1));
+            if (low > high) {
+                throw error("Port range " + range + " is empty");
+            }
+            return new PortRange(low, high, source, destination);
+        }
+
+        private int parseProtocol(String protocol) {
+            switch (protocol.toLowerCase()) {
+                case "tcp":
+                    return PcapRecordCursor.PROTOCOL_TCP;
+                case "udp":
+                    return PcapRecordCursor.PROTOCOL_UDP;
+                case "icmp":
+                    return 1;
+                default:
+                    return (int) parseNumber(protocol, 0, 255);
+            }
+        }
+
+        private int parseOperator() {
+            String operator = take("a comparison operator");
+            switch (operator) {
+                case "<":
+                    return Compare.LESS;
+                case "<=":
+                    return Compare.LESS_EQUAL;
+                case ">":
+                    return Compare.GREATER;
+                case ">=":
+                    return Compare.GREATER_EQUAL;
+                case "!=":
+                    return Compare.NOT_EQUAL;
+                case "=":
+                case "==":
+                    return Compare.EQUAL;
+                default:
+                    throw error("Expected a comparison operator, got '" + operator + "'");
+            }
+        }
+
+        private int parseAddress(String address) {
+            try {
+                return IPPacketIndex.parseAddress(address);
+            } catch (IllegalArgumentException e) {
+                throw error("Not an IPv4 address: " + address);
+            }
+        }
+
+        private int parsePort(String port) {
+            return (int) parseNumber(port, 0, 65535);
+        }
+
+        private long parseNumber(String number, long min, long max) {
+            try {
+                long value = Long.parseLong(number);
+                if (value >= min && value <= max) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw error("Expected a number from " + min + " to " + max + ", got '" + number + "'");
+        }
+
+        String peek() {
+            last = next;
+            return next < tokens.size() ? tokens.get(next) : null;
+        }
+
+        private boolean accept(String token) {
+            if (token.equalsIgnoreCase(peek())) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("Expected '" + token + "'");
+            }
+        }
+
+        private String take(String what) {
+            String token = peek();
+            if (token == null) {
+                throw error("Expected " + what + " at end of filter");
+            }
+            next++;
+            return token;
+        }
+
+        IllegalArgumentException error(String message) {
+            int offset = last < offsets.size() ? offsets.get(last) : expression.length();
+            return new IllegalArgumentException(message + " at offset " + offset + " in filter: " + expression);
+        }
+
+        private void tokenize() {
+            int i = 0;
+            int length = expression.length();
+            while (i < length) {
+                char c = expression.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                if (OPERATOR_CHARS.indexOf(c) >= 0) {
+                    i += i + 1 < length && TWO_CHAR_OPERATORS.contains(expression.substring(i, i + 2)) ? 2 : 1;
+                } else {
+                    while (i < length && !Character.isWhitespace(expression.charAt(i))
+                            && OPERATOR_CHARS.indexOf(expression.charAt(i)) < 0) {
+                        i++;
+                    }
+                }
+                tokens.add(expression.substring(start, i));
+                offsets.add(start);
+            }
+            if (tokens.isEmpty()) {
+                throw new IllegalArgumentException("Empty filter expression");
+            }
+        }
+    }
+}
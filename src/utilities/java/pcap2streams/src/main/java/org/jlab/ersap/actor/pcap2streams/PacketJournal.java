@@ -0,0 +1,369 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous, sampled journal of the packets sent by IPBasedPcapServer.
+ * Sending threads publish fixed-size records into a lock-free ring of
+ * primitive slots, and one background thread writes them as CSV rows to
+ * {@code <dir>/header_<stream>.csv} through a {@link CsvEncoder} per stream,
+ * and logs a hex dump of every tenth packet.
+ * <p>
+ * Publishing never blocks and allocates nothing: a record is dropped and
+ * counted when the ring is full, so a slow disk or console costs journal
+ * records instead of replay throughput. Only every n-th packet of a client
+ * is journaled, as set by the sample interval.
+ */
+public final class PacketJournal implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(PacketJournal.class.getName());
+
+    /** Default number of records the ring holds. */
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    /** Packet number interval of the hex dumps logged by the writer. */
+    public static final int DUMP_INTERVAL = 10;
+
+    private static final String CSV_HEADER = "Packet#,Position,Protocol,TotalLength,HeaderLength,PayloadLength,"
+            + "IsTruncated,EthernetHeader,IPHeader,TransportHeader,HeaderBytes,SourceIP,DestIP,SourcePort,DestPort\n";
+    private static final int ETHERNET_HEADER_SIZE = 14;
+    private static final int RECORD_HEADER_SIZE = 16; // pcap record header
+    private static final int DUMP_SIZE = 64; // Leading packet bytes kept for hex dumps
+    private static final int ENCODER_BUFFER_SIZE = 1 << 16;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Record layout, in longs
+    private static final int STREAM_FLAGS = 0; // Stream id, dump length and truncated flag
+    private static final int PACKET_NUMBER = 1;
+    private static final int POSITION = 2;
+    private static final int PROTOCOL_LENGTH = 3;
+    private static final int HEADER_SIZES = 4;
+    private static final int ADDRESSES = 5;
+    private static final int PORTS = 6;
+    private static final int RECORD_HEADER = 7; // Two longs
+    private static final int DUMP = RECORD_HEADER + RECORD_HEADER_SIZE / 8; // Eight longs
+    private static final int RECORD_LONGS = DUMP + DUMP_SIZE / 8;
+
+    private final File directory;
+    private final int sampleInterval;
+    private final int mask;
+    private final long[] slots;
+    private final AtomicLongArray published; // Sequence + 1 of the record in each slot, once written
+    private final AtomicLong head; // Next sequence to claim
+    private volatile long tail; // Next sequence to write, owned by the writer thread
+    private final LongAdder dropped;
+    private final List<String> streams; // Stream names by id, guarded by itself
+    private final Thread writer;
+    private volatile boolean running;
+    private long written;
+
+    /**
+     * Creates a journal and starts its writer thread.
+     *
+     * @param directory      the directory of the CSV files
+     * @param sampleInterval journal every n-th packet of each client; 1 for
+     *                       every packet
+     * @param capacity       the number of records the ring holds, a power of
+     *                       two
+     */
+    public PacketJournal(String directory, int sampleInterval, int capacity) {
+        if (sampleInterval < 1) {
+            throw new IllegalArgumentException("Sample interval must be at least 1: " + sampleInterval);
+        }
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.directory = new File(directory);
+        this.sampleInterval = sampleInterval;
+        this.mask = capacity - 1;
+        this.slots = new long[capacity * RECORD_LONGS];
+        this.published = new AtomicLongArray(capacity);
+        this.head = new AtomicLong();
+        this.dropped = new LongAdder();
+        this.streams = new ArrayList<>();
+        this.running = true;
+        this.writer = new Thread(this::writeRecords, "packet-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Registers a stream whose packets are journaled to
+     * {@code header_<name>.csv}, with dots in the name replaced by
+     * underscores.
+     *
+     * @param name the stream name, such as an IP address
+     * @return the stream id to pass to {@link #append}
+     */
+    public int register(String name) {
+        synchronized (streams) {
+            streams.add(name);
+            return streams.size() - 1;
+        }
+    }
+
+    /**
+     * Checks whether a packet is to be journaled.
+     *
+     * @param packetNumber the number of the packet among those sent to its
+     *                     client
+     * @return true if it is sampled
+     */
+    public boolean isSampled(long packetNumber) {
+        return packetNumber % sampleInterval == 0;
+    }
+
+    /**
+     * Publishes a record of a sent packet without blocking.
+     *
+     * @param stream              the stream id
+     * @param packetNumber        the number of the packet among those sent to
+     *                            its client
+     * @param position            the file position of the packet record
+     * @param length              the number of packet bytes sent
+     * @param ipHeaderSize        the IP header size
+     * @param transportHeaderSize the transport header size
+     * @param truncated           whether the packet was truncated
+     * @param cursor              the cursor at the packet record, for the
+     *                            protocol, addresses and ports
+     * @param record              the record header followed by the leading
+     *                            packet bytes
+     * @param recordLength        the number of packet bytes in {@code record}
+     * @return true if the record was published, false if the ring was full
+     */
+    public boolean append(int stream, long packetNumber, long position, int length, int ipHeaderSize,
+            int transportHeaderSize, boolean truncated, PcapRecordCursor cursor, byte[] record, int recordLength) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail > mask) {
+                dropped.increment();
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int dumpLength = Math.min(Math.min(length, recordLength), DUMP_SIZE);
+        int base = (int) (sequence & mask) * RECORD_LONGS;
+        slots[base + STREAM_FLAGS] = (long) stream << 32 | dumpLength << 1 | (truncated ? 1 : 0);
+        slots[base + PACKET_NUMBER] = packetNumber;
+        slots[base + POSITION] = position;
+        slots[base + PROTOCOL_LENGTH] = (long) cursor.protocol() << 32 | length;
+        slots[base + HEADER_SIZES] = (long) ipHeaderSize << 32 | transportHeaderSize;
+        slots[base + ADDRESSES] = (long) cursor.sourceAddress() << 32 | (cursor.destinationAddress() & 0xFFFFFFFFL);
+        slots[base + PORTS] = (long) cursor.sourcePort() << 32 | cursor.destinationPort();
+        for (int i = 0; i < RECORD_HEADER_SIZE / 8; i++) {
+            slots[base + RECORD_HEADER + i] = pack(record, i * 8, RECORD_HEADER_SIZE);
+        }
+        for (int i = 0; i < DUMP_SIZE / 8; i++) {
+            slots[base + DUMP + i] = pack(record, RECORD_HEADER_SIZE + i * 8, RECORD_HEADER_SIZE + dumpLength);
+        }
+        published.setRelease((int) (sequence & mask), sequence + 1);
+        return true;
+    }
+
+    /**
+     * Gets the number of records dropped because the ring was full.
+     *
+     * @return the dropped record count
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the remaining records, closes the CSV files and stops the
+     * writer thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drains the ring until the journal is closed, flushing the CSV files
+     * when the ring is idle or at least every second.
+     */
+    private void writeRecords() {
+        List<CsvEncoder> encoders = new ArrayList<>();
+        StringBuilder dump = new StringBuilder();
+        long lastFlush = System.nanoTime();
+        boolean dirty = false;
+        try {
+            while (true) {
+                boolean stopping = !running;
+                long sequence = tail;
+                int slot = (int) (sequence & mask);
+                if (published.getAcquire(slot) == sequence + 1) {
+                    writeRecord(slot * RECORD_LONGS, encoders, dump);
+                    tail = sequence + 1;
+                    written++;
+                    dirty = true;
+                    if (System.nanoTime() - lastFlush < FLUSH_INTERVAL_NANOS) {
+                        continue;
+                    }
+                }
+                if (dirty) {
+                    for (CsvEncoder encoder : encoders) {
+                        if (encoder != null) {
+                            encoder.flush();
+                        }
+                    }
+                    dirty = false;
+                    lastFlush = System.nanoTime();
+                }
+                if (stopping && head.get() == tail) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error writing packet journal to " + directory, e);
+        } finally {
+            for (CsvEncoder encoder : encoders) {
+                try {
+                    if (encoder != null) {
+                        encoder.close();
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error closing packet journal file", e);
+                }
+            }
+            LOGGER.info("Packet journal: " + written + " records written, " + dropped.sum() + " dropped");
+        }
+    }
+
+    /**
+     * Writes one record as a CSV row, and logs its hex dump if due.
+     */
+    private void writeRecord(int base, List<CsvEncoder> encoders, StringBuilder dump) throws IOException {
+        long streamFlags = slots[base + STREAM_FLAGS];
+        int stream = (int) (streamFlags >>> 32);
+        boolean truncated = (streamFlags & 1) != 0;
+        int dumpLength = (int) streamFlags >>> 1;
+        long packetNumber = slots[base + PACKET_NUMBER];
+        long position = slots[base + POSITION];
+        int protocol = (int) (slots[base + PROTOCOL_LENGTH] >>> 32);
+        int length = (int) slots[base + PROTOCOL_LENGTH];
+        int ipHeaderSize = (int) (slots[base + HEADER_SIZES] >>> 32);
+        int transportHeaderSize = (int) slots[base + HEADER_SIZES];
+        int sourceAddress = (int) (slots[base + ADDRESSES] >>> 32);
+        int destinationAddress = (int) slots[base + ADDRESSES];
+        int sourcePort = (int) (slots[base + PORTS] >>> 32);
+        int destinationPort = (int) slots[base + PORTS];
+        int totalHeaderSize = ETHERNET_HEADER_SIZE + ipHeaderSize + transportHeaderSize;
+
+        CsvEncoder csv = encoder(stream, encoders);
+        csv.number(packetNumber).character(',').number(position).character(',').number(protocol).character(',')
+                .number(length).character(',').number(totalHeaderSize).character(',')
+                .number(length - totalHeaderSize).character(',').text(truncated ? "true" : "false").character(',')
+                .number(ETHERNET_HEADER_SIZE).character(',').number(ipHeaderSize).character(',')
+                .number(transportHeaderSize).character(',').number(totalHeaderSize).character(',')
+                .address(sourceAddress).character(',').address(destinationAddress).character(',')
+                .number(sourcePort).character(',').number(destinationPort).character('\n');
+
+        if (packetNumber % DUMP_INTERVAL == 0 && LOGGER.isLoggable(Level.INFO)) {
+            dump.setLength(0);
+            dump.append("Processing packet #").append(packetNumber).append(" for IP ").append(streamName(stream))
+                    .append(", length=").append(length).append(", position=").append(position)
+                    .append(truncated ? " (truncated)" : "").append("\nHeader bytes: ");
+            for (int i = 0; i < RECORD_HEADER_SIZE; i++) {
+                appendHex(dump, byteAt(base + RECORD_HEADER, i), true).append(' ');
+            }
+            dump.append("\nData bytes (tcpdump format):\n");
+            for (int i = 0; i < dumpLength; i += 16) {
+                dump.append("0x");
+                appendHex(dump, i >>> 8, false);
+                appendHex(dump, i & 0xFF, false).append(":  ");
+                for (int j = 0; j < 16 && i + j < dumpLength; j++) {
+                    appendHex(dump, byteAt(base + DUMP, i + j), false).append(' ');
+                }
+                dump.append('\n');
+            }
+            dump.append("IP addresses in hex:\nSource IP bytes: ");
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                appendHex(dump, (sourceAddress >>> shift) & 0xFF, false).append(' ');
+            }
+            dump.append("\nDest IP bytes: ");
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                appendHex(dump, (destinationAddress >>> shift) & 0xFF, false).append(' ');
+            }
+            LOGGER.info(dump.toString());
+        }
+    }
+
+    /**
+     * Gets the CSV encoder of a stream, opening its file in append mode on
+     * the first record.
+     */
+    private CsvEncoder encoder(int stream, List<CsvEncoder> encoders) throws IOException {
+        while (encoders.size() <= stream) {
+            encoders.add(null);
+        }
+        CsvEncoder encoder = encoders.get(stream);
+        if (encoder == null) {
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            Path path = Paths.get(directory.getPath(),
+                    String.format("header_%s.csv", streamName(stream).replace('.', '_')));
+            File file = path.toFile();
+            boolean writeHeader = !file.exists() || file.length() == 0;
+            encoder = new CsvEncoder(path, ENCODER_BUFFER_SIZE, true);
+            if (writeHeader) {
+                encoder.text(CSV_HEADER);
+            }
+            encoders.set(stream, encoder);
+        }
+        return encoder;
+    }
+
+    private String streamName(int stream) {
+        synchronized (streams) {
+            return streams.get(stream);
+        }
+    }
+
+    private int byteAt(int longIndex, int offset) {
+        return (int) (slots[longIndex + offset / 8] >>> (56 - 8 * (offset % 8))) & 0xFF;
+    }
+
+    /**
+     * Packs up to eight bytes of an array, big-endian, with zeros past the
+     * end.
+     */
+    private static long pack(byte[] bytes, int offset, int end) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value <<= 8;
+            if (offset + i < end) {
+                value |= bytes[offset + i] & 0xFF;
+            }
+        }
+        return value;
+    }
+
+    private static StringBuilder appendHex(StringBuilder builder, int value, boolean upperCase) {
+        String digits = upperCase ? "0123456789ABCDEF" : "0123456789abcdef";
+        return builder.append(digits.charAt(value >>> 4)).append(digits.charAt(value & 0xF));
+    }
+}
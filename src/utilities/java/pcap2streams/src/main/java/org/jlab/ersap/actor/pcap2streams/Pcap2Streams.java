@@ -3,7 +3,14 @@ package org.jlab.ersap.actor.pcap2streams;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -16,17 +23,72 @@ import org.json.JSONObject;
 /**
  * Main class for the Pcap2Streams application.
  * This application analyzes a PCAP file, identifies unique IP addresses,
- * and creates separate socket servers for each IP address.
+ * and creates separate socket servers for each IP address, or for each
+ * 5-tuple flow or flow group.
  */
 public class Pcap2Streams {
 
+    /**
+     * How the packets of the PCAP file are split into streams.
+     */
+    public enum StreamMode {
+        /** One stream per IP address, with the packets sent from or to it. */
+        IP,
+        /** One stream per directional 5-tuple flow. */
+        FLOW,
+        /** Flows hashed into a fixed number of streams. */
+        FLOW_GROUP
+    }
+
     private static final Logger LOGGER = Logger.getLogger(Pcap2Streams.class.getName());
     private static final int BASE_PORT = 9000;
+    private static final int DEFAULT_EVENT_LOOPS = 4; // Most event-loop threads by default
+    private static final int DEFAULT_READ_AHEAD_THREADS = 2; // I/O threads reading ahead of the clients
+    private static final int DEFAULT_SHARED_MEMORY_BYTES = 8 << 20; // Shared-memory ring of each server
+    private static final int DEFAULT_BATCH_PACKETS = 256; // Most frames in a batch by default
+    private static final long DEFAULT_BATCH_LATENCY_NANOS = 1_000_000; // Longest wait of a frame in a batch
+    private static final String JOURNAL_DIR = "output"; // Directory of the header CSV files
+    private static final String FLOW_GROUP_PREFIX = "flow-group-";
+    private static final String SKETCH_REPORT_FILE = "pcap-sketch-report.txt";
+    private static final int SKETCH_REPORT_TALKERS = 20; // Top talkers listed in the sketch report
+    private static final long CACHE_REPORT_INTERVAL_MS = 60000; // Interval between block cache reports
 
     private final String pcapFile;
     private final String configDir;
     private final Map<String, IPBasedPcapServer> servers;
     private final Map<String, Integer> ipToPorts;
+    private final Map<String, String> streamTypes;
+    private PcapIPAnalyzer.ScanMode scanMode;
+    private int scanThreads;
+    private boolean indexFileEnabled;
+    private StreamMode streamMode;
+    private int flowGroups;
+    private boolean follow;
+    private int nextPort;
+    private long startNanos;
+    private long endNanos;
+    private TimeIndex timeIndex;
+    private PacketFilter filter;
+    private PacketFilter serverFilter;
+    private long cacheMemory;
+    private boolean zeroCopy;
+    private int eventLoopThreads;
+    private ReplayPacing pacing;
+    private int batchBytes;
+    private int batchPackets;
+    private long batchLatencyNanos;
+    private int journalSampleInterval;
+    private int broadcastBytes;
+    private BroadcastRing.SlowSubscriberPolicy broadcastPolicy;
+    private int readAheadBytes;
+    private int readAheadThreads;
+    private Path sharedMemoryDir;
+    private int sharedMemoryBytes;
+    private volatile ReplayReadAhead readAhead;
+    private volatile ReplayEventLoopGroup eventLoops;
+    private volatile PacketJournal journal;
+    private volatile PcapBlockCache blockCache;
+    private volatile PcapIPAnalyzer followAnalyzer;
 
     /**
      * Creates a new Pcap2Streams instance.
@@ -39,6 +101,345 @@ public class Pcap2Streams {
         this.configDir = configDir;
         this.servers = new ConcurrentHashMap<>();
         this.ipToPorts = new HashMap<>();
+        this.streamTypes = new HashMap<>();
+        this.scanMode = PcapIPAnalyzer.ScanMode.MAPPED;
+        this.scanThreads = Runtime.getRuntime().availableProcessors();
+        this.indexFileEnabled = true;
+        this.streamMode = StreamMode.IP;
+        this.flowGroups = Runtime.getRuntime().availableProcessors();
+        this.nextPort = BASE_PORT;
+        this.startNanos = Long.MIN_VALUE;
+        this.endNanos = Long.MAX_VALUE;
+        this.zeroCopy = true;
+        this.pacing = ReplayPacing.DEFAULT;
+        this.batchPackets = DEFAULT_BATCH_PACKETS;
+        this.batchLatencyNanos = DEFAULT_BATCH_LATENCY_NANOS;
+        this.journalSampleInterval = 1;
+        this.broadcastPolicy = BroadcastRing.SlowSubscriberPolicy.BLOCK;
+        this.readAheadBytes = ReplayReadAhead.DEFAULT_WINDOW_SIZE;
+        this.readAheadThreads = DEFAULT_READ_AHEAD_THREADS;
+        this.sharedMemoryBytes = DEFAULT_SHARED_MEMORY_BYTES;
+        this.eventLoopThreads = Math.min(DEFAULT_EVENT_LOOPS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Sets how the PCAP file is scanned when building the IP index.
+     * 
+     * @param scanMode the scan mode to use
+     */
+    public void setScanMode(PcapIPAnalyzer.ScanMode scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    /**
+     * Sets the number of threads used for a parallel index scan.
+     * 
+     * @param scanThreads the number of indexing threads
+     */
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    /**
+     * Sets whether the IP index is cached in a sidecar file next to the PCAP
+     * file.
+     * 
+     * @param indexFileEnabled true to load and save the sidecar index file
+     */
+    public void setIndexFileEnabled(boolean indexFileEnabled) {
+        this.indexFileEnabled = indexFileEnabled;
+    }
+
+    /**
+     * Sets how packets are split into streams.
+     * 
+     * @param streamMode the stream mode to use
+     */
+    public void setStreamMode(StreamMode streamMode) {
+        this.streamMode = streamMode;
+    }
+
+    /**
+     * Sets the number of streams used by {@link StreamMode#FLOW_GROUP}.
+     * 
+     * @param flowGroups the number of flow groups
+     */
+    public void setFlowGroups(int flowGroups) {
+        if (flowGroups < 1) {
+            throw new IllegalArgumentException("Flow groups must be at least 1: " + flowGroups);
+        }
+        this.flowGroups = flowGroups;
+    }
+
+    /**
+     * Sets whether the PCAP file is followed while it is being written. The
+     * servers then stream appended packets near real time instead of
+     * replaying the file in a loop.
+     * 
+     * @param follow true to follow the PCAP file
+     */
+    public void setFollow(boolean follow) {
+        this.follow = follow;
+    }
+
+    /**
+     * Restricts the streams to packets captured in a time window. Servers seek
+     * to the start of the window with the time index instead of reading the
+     * file from the first packet.
+     * 
+     * @param startNanos the earliest capture time in nanoseconds since the
+     *                   epoch, or {@link Long#MIN_VALUE} for no limit
+     * @param endNanos   the latest capture time in nanoseconds since the
+     *                   epoch, or {@link Long#MAX_VALUE} for no limit
+     */
+    public void setTimeWindow(long startNanos, long endNanos) {
+        if (startNanos > endNanos) {
+            throw new IllegalArgumentException("Time window starts after it ends");
+        }
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+    }
+
+    /**
+     * Restricts the streams to packets that match a filter. The filter is
+     * applied while indexing; when the index is loaded from the sidecar index
+     * file instead, each server applies it while streaming.
+     * 
+     * @param filter the packet filter, or null to stream all IPv4 packets
+     */
+    public void setFilter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Sets the off-heap memory budget of a block cache shared by all servers.
+     * With a cache, packets are read from the file once and replayed from
+     * memory as long as they fit in the budget.
+     * 
+     * @param cacheMemory the cache size in bytes, or 0 to read the file
+     *                    directly
+     */
+    public void setCacheMemory(long cacheMemory) {
+        if (cacheMemory < 0) {
+            throw new IllegalArgumentException("Cache memory must not be negative: " + cacheMemory);
+        }
+        this.cacheMemory = cacheMemory;
+    }
+
+    /**
+     * Sets whether the servers send packet data to clients without copying it
+     * into the heap, with {@link java.nio.channels.FileChannel#transferTo} or
+     * from the block cache's off-heap buffers. Enabled by default.
+     * 
+     * @param zeroCopy true to send packet data without copying it
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Sets how fast the servers send packets to each client.
+     * 
+     * @param pacing the pacing, {@link ReplayPacing#DEFAULT} by default
+     */
+    public void setPacing(ReplayPacing pacing) {
+        this.pacing = pacing;
+    }
+
+    /**
+     * Sets how the servers batch frames into single socket writes.
+     * 
+     * @param batchBytes        the size of each client's batch buffer, or 0 to
+     *                          write each packet on its own
+     * @param batchPackets      the most frames in a batch
+     * @param batchLatencyNanos the longest time a frame waits in a batch
+     * @see IPBasedPcapServer#setBatching(int, int, long)
+     */
+    public void setBatching(int batchBytes, int batchPackets, long batchLatencyNanos) {
+        this.batchBytes = batchBytes;
+        this.batchPackets = batchPackets;
+        this.batchLatencyNanos = batchLatencyNanos;
+    }
+
+    /**
+     * Sets how the servers read ahead of their clients when no block cache
+     * is used: each client reads runs of nearby packets with one read per
+     * window, and the next window is read on an I/O thread.
+     * 
+     * @param readAheadBytes   the size of each of a client's two windows, or
+     *                         0 to read each packet on its own
+     * @param readAheadThreads the number of I/O threads shared by the
+     *                         servers, at least 1
+     * @see IPBasedPcapServer#setReadAhead(ReplayReadAhead, int)
+     */
+    public void setReadAhead(int readAheadBytes, int readAheadThreads) {
+        if (readAheadThreads < 1) {
+            throw new IllegalArgumentException("Read-ahead threads must be at least 1: " + readAheadThreads);
+        }
+        this.readAheadBytes = readAheadBytes;
+        this.readAheadThreads = readAheadThreads;
+    }
+
+    /**
+     * Sets whether each server broadcasts its stream to all its clients from
+     * one shared ring, reading the file once, instead of replaying the
+     * stream for each client.
+     * 
+     * @param broadcastBytes  the ring size of each server, or 0 to replay
+     *                        for each client (the default)
+     * @param broadcastPolicy how clients that fall a ring behind are handled
+     * @see IPBasedPcapServer#setBroadcast(int, BroadcastRing.SlowSubscriberPolicy)
+     */
+    public void setBroadcast(int broadcastBytes, BroadcastRing.SlowSubscriberPolicy broadcastPolicy) {
+        this.broadcastBytes = broadcastBytes;
+        this.broadcastPolicy = broadcastPolicy;
+    }
+
+    /**
+     * Sets whether each server also publishes its stream into a
+     * shared-memory ring file for a consumer on the same host. The files are
+     * listed in the configuration file, and consumers that cannot use them
+     * connect over TCP.
+     * 
+     * @param sharedMemoryDir   the directory of the ring files, usually
+     *                          {@code /dev/shm}; or null to serve TCP
+     *                          clients only (the default)
+     * @param sharedMemoryBytes the ring size of each server
+     * @see IPBasedPcapServer#setSharedMemory(Path, int)
+     */
+    public void setSharedMemory(Path sharedMemoryDir, int sharedMemoryBytes) {
+        if (sharedMemoryBytes < SharedMemoryRing.MIN_CAPACITY || Integer.bitCount(sharedMemoryBytes) != 1) {
+            throw new IllegalArgumentException("Shared-memory ring must be a power of two of at least "
+                    + SharedMemoryRing.MIN_CAPACITY + " bytes: " + sharedMemoryBytes);
+        }
+        this.sharedMemoryDir = sharedMemoryDir;
+        this.sharedMemoryBytes = sharedMemoryBytes;
+    }
+
+    /**
+     * Sets how often the packets sent to each client are recorded in the
+     * header CSV files under {@code output/}. Records are written by a
+     * background thread; a record is dropped rather than slowing down
+     * sending when that thread falls behind.
+     * 
+     * @param journalSampleInterval record every n-th packet of each client,
+     *                              1 for every packet (the default), or 0 to
+     *                              record no packets
+     */
+    public void setJournalSampling(int journalSampleInterval) {
+        if (journalSampleInterval < 0) {
+            throw new IllegalArgumentException("Journal sample interval must not be negative: "
+                    + journalSampleInterval);
+        }
+        this.journalSampleInterval = journalSampleInterval;
+    }
+
+    /**
+     * Sets the number of event-loop threads that serve the sockets of all
+     * servers and their clients.
+     * 
+     * @param eventLoopThreads the number of threads, at least 1
+     */
+    public void setEventLoopThreads(int eventLoopThreads) {
+        if (eventLoopThreads < 1) {
+            throw new IllegalArgumentException("Event loop threads must be at least 1: " + eventLoopThreads);
+        }
+        this.eventLoopThreads = eventLoopThreads;
+    }
+
+    /**
+     * Gets the block cache shared by the servers.
+     * 
+     * @return the block cache, or null if no cache memory was set or the
+     *         application is not started
+     */
+    public PcapBlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Parses a byte size such as {@code 1048576}, {@code 512m} or {@code 2g}.
+     * The suffixes k, m and g are binary multiples and are case-insensitive.
+     * 
+     * @param size the size to parse
+     * @return the size in bytes
+     * @throws IllegalArgumentException if the size cannot be parsed
+     */
+    public static long parseSize(String size) {
+        String digits = size.trim().toLowerCase();
+        int shift = 0;
+        if (digits.endsWith("k")) {
+            shift = 10;
+        } else if (digits.endsWith("m")) {
+            shift = 20;
+        } else if (digits.endsWith("g")) {
+            shift = 30;
+        }
+        if (shift > 0) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            long value = Long.parseLong(digits);
+            if (value < 0 || value > Long.MAX_VALUE >> shift) {
+                throw new NumberFormatException();
+            }
+            return value << shift;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid size: " + size
+                    + " (expected bytes, or a number with k, m or g)");
+        }
+    }
+
+    /**
+     * Parses a capture time given as an ISO-8601 instant such as
+     * {@code 2024-03-01T12:00:05.250Z}, or as seconds since the epoch with an
+     * optional fraction such as {@code 1709294405.25}.
+     * 
+     * @param time the time to parse
+     * @return the time in nanoseconds since the epoch
+     * @throws IllegalArgumentException if the time cannot be parsed
+     */
+    public static long parseTime(String time) {
+        try {
+            Instant instant = Instant.parse(time);
+            return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+        } catch (DateTimeParseException e) {
+            try {
+                return new BigDecimal(time).movePointRight(9).longValueExact();
+            } catch (ArithmeticException | NumberFormatException e2) {
+                throw new IllegalArgumentException("Invalid time: " + time
+                        + " (expected an ISO-8601 instant or epoch seconds)");
+            }
+        }
+    }
+
+    /**
+     * Estimates the traffic of the PCAP file from a sample, without building
+     * the packet index or starting servers, and writes the report to the
+     * configuration directory.
+     * 
+     * @param sampleFraction the fraction of the file to read, in (0, 1]
+     * @return the report
+     * @throws IOException if an error occurs reading the PCAP file or writing
+     *                     the report
+     */
+    public String writeSketchReport(double sampleFraction) throws IOException {
+        File configDirFile = new File(configDir);
+        if (!configDirFile.exists()) {
+            configDirFile.mkdirs();
+        }
+
+        PcapIPAnalyzer analyzer = new PcapIPAnalyzer(pcapFile);
+        analyzer.setSampleFraction(sampleFraction);
+        analyzer.setFilter(filter);
+        String report = analyzer.sketch().report(pcapFile, SKETCH_REPORT_TALKERS);
+
+        String reportFile = configDir + "/" + SKETCH_REPORT_FILE;
+        try (FileWriter writer = new FileWriter(reportFile)) {
+            writer.write(report);
+        }
+        LOGGER.info("Wrote sketch report: " + reportFile);
+        return report;
     }
 
     /**
@@ -57,46 +458,274 @@ public class Pcap2Streams {
 
         // Analyze the PCAP file
         PcapIPAnalyzer analyzer = new PcapIPAnalyzer(pcapFile);
+        analyzer.setScanMode(scanMode);
+        analyzer.setParallelism(scanThreads);
+        analyzer.setIndexFileEnabled(indexFileEnabled);
+        analyzer.setFlowIndexEnabled(streamMode != StreamMode.IP);
+        analyzer.setFilter(filter);
         Set<String> uniqueIPs = analyzer.analyze();
+        serverFilter = analyzer.isIndexFiltered() ? null : filter;
 
         LOGGER.info("Found " + uniqueIPs.size() + " unique IP addresses");
+        LOGGER.info(String.format("Index scan throughput: %.2f GB/s", analyzer.getScanThroughputGBps()));
+        LOGGER.info("Index memory: " + analyzer.getMemoryReport());
+        timeIndex = analyzer.getTimeIndex();
+
+        if (cacheMemory > 0) {
+            blockCache = new PcapBlockCache(pcapFile, cacheMemory);
+            LOGGER.info(String.format("Block cache: %.1f MB for a %.1f MB file", blockCache.getCapacityBytes() / 1e6,
+                    new File(pcapFile).length() / 1e6));
+            startCacheReports();
+        }
+
+        if (journalSampleInterval > 0) {
+            journal = new PacketJournal(JOURNAL_DIR, journalSampleInterval, PacketJournal.DEFAULT_CAPACITY);
+        }
+        if (readAheadBytes > 0 && blockCache == null) {
+            readAhead = new ReplayReadAhead(readAheadThreads);
+        }
+        eventLoops = new ReplayEventLoopGroup(eventLoopThreads, "pcap2streams-loop");
+        LOGGER.info("Serving streams with " + eventLoopThreads + " event-loop threads, pacing " + pacing
+                + (broadcastBytes > 0 ? ", broadcast to all clients (" + broadcastPolicy + " slow clients)" : "")
+                + (sharedMemoryDir != null ? ", shared-memory rings in " + sharedMemoryDir : ""));
+
+        // Create and start a server for each stream
+        addStreams(analyzer.getPacketIndex(), analyzer.getFlowIndex());
+
+        // Generate configuration file
+        generateConfigFile();
+
+        LOGGER.info("Pcap2Streams started with " + servers.size() + " servers");
 
-        // Create and start servers for each IP
-        int port = BASE_PORT;
-        for (String ip : uniqueIPs) {
-            ipToPorts.put(ip, port);
+        if (follow) {
+            startFollowing(analyzer);
+        }
+    }
+
+    /**
+     * Starts a daemon thread that indexes packets appended to the PCAP file
+     * and hands them to the servers, starting new servers for new streams.
+     * 
+     * @param analyzer the analyzer that indexed the file so far
+     */
+    private void startFollowing(PcapIPAnalyzer analyzer) {
+        followAnalyzer = analyzer;
+        Thread follower = new Thread(() -> {
+            try {
+                analyzer.follow(this::packetsAppended);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error following PCAP file " + pcapFile, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "pcap-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Starts a daemon thread that logs the block cache hit ratio periodically
+     * until the cache is closed.
+     */
+    private void startCacheReports() {
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(CACHE_REPORT_INTERVAL_MS);
+                    PcapBlockCache cache = blockCache;
+                    if (cache == null) {
+                        return;
+                    }
+                    LOGGER.info("Block cache " + cache.report());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "pcap-cache-report");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Hands packets appended to the PCAP file to the servers and regenerates
+     * the configuration file if new streams were started.
+     * 
+     * @param packets the new packets by IP address
+     * @param flows   the new packets by flow, or null in IP stream mode
+     */
+    private void packetsAppended(IPPacketIndex packets, FlowPacketIndex flows) {
+        int streams = servers.size();
+        addStreams(packets, flows);
+        if (servers.size() > streams) {
+            try {
+                generateConfigFile();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error updating configuration file", e);
+            }
+        }
+    }
 
-            Set<Long> packetPositions = analyzer.getIpToPacketPositions().get(ip);
+    /**
+     * Adds packets to the streams of the current stream mode.
+     * 
+     * @param packetIndex the packets by IP address
+     * @param flowIndex   the packets by flow, or null in IP stream mode
+     */
+    private void addStreams(IPPacketIndex packetIndex, FlowPacketIndex flowIndex) {
+        if (streamMode == StreamMode.FLOW) {
+            addFlowStreams(flowIndex);
+        } else if (streamMode == StreamMode.FLOW_GROUP) {
+            addFlowGroupStreams(flowIndex);
+        } else {
+            addIPStreams(packetIndex);
+        }
+    }
+
+    /**
+     * Adds packets to one stream per IP address.
+     * 
+     * @param packetIndex the index of IP addresses to packet positions
+     */
+    private void addIPStreams(IPPacketIndex packetIndex) {
+        for (int address : packetIndex.addresses()) {
+            PositionList packetPositions = packetIndex.get(address);
             if (packetPositions != null && !packetPositions.isEmpty()) {
-                IPBasedPcapServer server = new IPBasedPcapServer(pcapFile, ip, port, packetPositions);
-                servers.put(ip, server);
-                server.start();
+                addStream(IPPacketIndex.formatAddress(address), "ip", packetPositions);
+            }
+        }
+    }
 
-                LOGGER.info("Started server for IP " + ip + " on port " + port +
-                        " with " + packetPositions.size() + " packets");
+    /**
+     * Adds packets to one stream per 5-tuple flow.
+     * 
+     * @param flowIndex the index of flows to packet positions
+     */
+    private void addFlowStreams(FlowPacketIndex flowIndex) {
+        LOGGER.fine("Adding packets of " + flowIndex.size() + " flows");
+        for (FlowPacketIndex.Flow flow : flowIndex.flows()) {
+            addStream(flow.getName(), "flow", flow.getPositions());
+        }
+    }
 
-                port++;
+    /**
+     * Spreads the flows over {@link #flowGroups} groups by hash and adds the
+     * packets of each non-empty group to its stream, in file order.
+     * 
+     * @param flowIndex the index of flows to packet positions
+     */
+    private void addFlowGroupStreams(FlowPacketIndex flowIndex) {
+        List<List<PositionList>> groups = new ArrayList<>(flowGroups);
+        for (int i = 0; i < flowGroups; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (FlowPacketIndex.Flow flow : flowIndex.flows()) {
+            groups.get(flow.getGroup(flowGroups)).add(flow.getPositions());
+        }
+
+        LOGGER.fine("Spreading " + flowIndex.size() + " flows over " + flowGroups + " flow groups");
+        for (int i = 0; i < flowGroups; i++) {
+            List<PositionList> group = groups.get(i);
+            if (!group.isEmpty()) {
+                addStream(FLOW_GROUP_PREFIX + i, "flow-group", PositionList.merge(group));
             }
         }
+    }
 
-        // Generate configuration file
-        generateConfigFile();
+    /**
+     * Appends packets to the server of a stream, or creates and starts a
+     * server on the next free port if the stream is new.
+     * 
+     * @param name            the IP address, flow or flow group name of the stream
+     * @param type            the stream type written to the configuration file
+     * @param packetPositions the packet positions, in file order
+     */
+    private void addStream(String name, String type, PositionList packetPositions) {
+        IPBasedPcapServer existing = servers.get(name);
+        if (existing != null) {
+            existing.appendPackets(packetPositions);
+            return;
+        }
 
-        LOGGER.info("Pcap2Streams started with " + servers.size() + " servers");
+        int port = nextPort++;
+        ipToPorts.put(name, port);
+        streamTypes.put(name, type);
+
+        IPBasedPcapServer server = new IPBasedPcapServer(pcapFile, name, port, packetPositions);
+        server.setFollowing(follow);
+        if (startNanos != Long.MIN_VALUE || endNanos != Long.MAX_VALUE) {
+            server.setTimeWindow(timeIndex, startNanos, endNanos);
+        }
+        server.setFilter(serverFilter);
+        server.setBlockCache(blockCache);
+        server.setJournal(journal);
+        server.setZeroCopy(zeroCopy);
+        server.setEventLoops(eventLoops);
+        server.setReadAhead(readAhead, readAheadBytes);
+        server.setPacing(pacing);
+        server.setBatching(batchBytes, batchPackets, batchLatencyNanos);
+        server.setBroadcast(broadcastBytes, broadcastPolicy);
+        if (sharedMemoryDir != null) {
+            server.setSharedMemory(sharedMemoryDir.resolve("pcap2streams-" + port + ".ring"), sharedMemoryBytes);
+        }
+        servers.put(name, server);
+        server.start();
+
+        LOGGER.info("Started server for " + name + " on port " + port +
+                " with " + packetPositions.size() + " packets");
     }
 
     /**
      * Stops all servers.
      */
     public void stop() {
+        if (followAnalyzer != null) {
+            followAnalyzer.stopFollowing();
+        }
+
         LOGGER.info("Stopping all servers...");
 
+        long compressionInput = 0;
+        long compressionOutput = 0;
+        long compressionNanos = 0;
         for (IPBasedPcapServer server : servers.values()) {
             server.stop();
+            compressionInput += server.getCompressionInputBytes();
+            compressionOutput += server.getCompressionOutputBytes();
+            compressionNanos += server.getCompressionNanos();
+        }
+        if (compressionInput > 0) {
+            LOGGER.info("Compression " + Lz4BlockCodec.report(compressionInput, compressionOutput, compressionNanos));
         }
 
         servers.clear();
+        ReplayEventLoopGroup loops = eventLoops;
+        if (loops != null) {
+            eventLoops = null;
+            loops.close();
+        }
+        ReplayReadAhead prefetcher = readAhead;
+        if (prefetcher != null) {
+            readAhead = null;
+            prefetcher.close();
+        }
         LOGGER.info("All servers stopped");
+
+        PacketJournal packetJournal = journal;
+        if (packetJournal != null) {
+            journal = null;
+            packetJournal.close();
+        }
+
+        PcapBlockCache cache = blockCache;
+        if (cache != null) {
+            blockCache = null;
+            LOGGER.info("Block cache " + cache.report());
+            try {
+                cache.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing block cache", e);
+            }
+        }
     }
 
     /**
@@ -114,12 +743,18 @@ public class Pcap2Streams {
 
             JSONObject connection = new JSONObject();
             connection.put("ip", ip);
+            connection.put("stream_type", streamTypes.get(ip));
             connection.put("host", "localhost");
             connection.put("port", port);
             connection.put("connection_timeout", 5000);
             connection.put("read_timeout", 30000);
             connection.put("buffer_size", 1024);
             connection.put("packet_count", servers.get(ip) != null ? servers.get(ip).getPacketCount() : 0);
+            Path sharedMemoryFile = servers.get(ip) != null ? servers.get(ip).getSharedMemoryFile() : null;
+            if (sharedMemoryFile != null) {
+                connection.put("transport", "shm");
+                connection.put("shm_path", sharedMemoryFile.toString());
+            }
 
             connections.put(connection);
         }
@@ -138,11 +773,18 @@ public class Pcap2Streams {
     /**
      * Main method.
      * 
-     * @param args command line arguments: pcapFile configDir
+     * @param args command line arguments: pcapFile configDir [options]
      */
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.err.println("Usage: Pcap2Streams <pcap_file> <config_dir>");
+            System.err.println("Usage: Pcap2Streams <pcap_file> <config_dir> [--scan=mapped|stream|parallel] [--scan-threads=N] [--no-index-file]"
+                    + " [--streams=ip|flow|flow-group] [--flow-groups=N] [--follow] [--sketch[=FRACTION]]"
+                    + " [--start-time=TIME] [--end-time=TIME] [--filter=EXPRESSION]"
+                    + " [--cache-memory=SIZE] [--no-zero-copy] [--event-loops=N]"
+                    + " [--pacing=fixed[:MS]|none|capture[:SPEED]|pps:RATE|gbps:RATE] [--max-gap=SECONDS]"
+                    + " [--batch-bytes=SIZE] [--batch-packets=N] [--batch-latency-us=N]"
+                    + " [--journal-sample=N] [--no-journal] [--broadcast=SIZE] [--slow-client=block|drop|disconnect]"
+                    + " [--read-ahead=SIZE] [--read-ahead-threads=N] [--shm=DIR] [--shm-bytes=SIZE]");
             System.exit(1);
         }
 
@@ -150,6 +792,107 @@ public class Pcap2Streams {
         String configDir = args[1];
 
         Pcap2Streams app = new Pcap2Streams(pcapFile, configDir);
+        boolean sketch = false;
+        double sketchFraction = 0.01;
+        String pacing = null;
+        int batchBytes = 0;
+        int batchPackets = DEFAULT_BATCH_PACKETS;
+        long batchLatencyNanos = DEFAULT_BATCH_LATENCY_NANOS;
+        long maxGapNanos = Long.MAX_VALUE;
+        int broadcastBytes = 0;
+        int readAheadBytes = ReplayReadAhead.DEFAULT_WINDOW_SIZE;
+        int readAheadThreads = DEFAULT_READ_AHEAD_THREADS;
+        Path sharedMemoryDir = null;
+        int sharedMemoryBytes = DEFAULT_SHARED_MEMORY_BYTES;
+        BroadcastRing.SlowSubscriberPolicy slowClientPolicy = BroadcastRing.SlowSubscriberPolicy.BLOCK;
+        long startNanos = Long.MIN_VALUE;
+        long endNanos = Long.MAX_VALUE;
+
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--scan=")) {
+                app.setScanMode(PcapIPAnalyzer.ScanMode.valueOf(arg.substring("--scan=".length()).toUpperCase()));
+            } else if (arg.startsWith("--scan-threads=")) {
+                app.setScanThreads(Integer.parseInt(arg.substring("--scan-threads=".length())));
+            } else if (arg.equals("--no-index-file")) {
+                app.setIndexFileEnabled(false);
+            } else if (arg.startsWith("--streams=")) {
+                app.setStreamMode(StreamMode.valueOf(
+                        arg.substring("--streams=".length()).replace('-', '_').toUpperCase()));
+            } else if (arg.startsWith("--flow-groups=")) {
+                app.setFlowGroups(Integer.parseInt(arg.substring("--flow-groups=".length())));
+            } else if (arg.equals("--follow")) {
+                app.setFollow(true);
+            } else if (arg.equals("--sketch")) {
+                sketch = true;
+            } else if (arg.startsWith("--sketch=")) {
+                sketch = true;
+                sketchFraction = Double.parseDouble(arg.substring("--sketch=".length()));
+            } else if (arg.startsWith("--start-time=")) {
+                startNanos = parseTime(arg.substring("--start-time=".length()));
+            } else if (arg.startsWith("--end-time=")) {
+                endNanos = parseTime(arg.substring("--end-time=".length()));
+            } else if (arg.startsWith("--filter=")) {
+                app.setFilter(PacketFilter.compile(arg.substring("--filter=".length())));
+            } else if (arg.startsWith("--cache-memory=")) {
+                app.setCacheMemory(parseSize(arg.substring("--cache-memory=".length())));
+            } else if (arg.equals("--no-zero-copy")) {
+                app.setZeroCopy(false);
+            } else if (arg.startsWith("--pacing=")) {
+                pacing = arg.substring("--pacing=".length());
+            } else if (arg.startsWith("--max-gap=")) {
+                maxGapNanos = new BigDecimal(arg.substring("--max-gap=".length())).movePointRight(9).longValueExact();
+            } else if (arg.startsWith("--batch-bytes=")) {
+                batchBytes = Math.toIntExact(parseSize(arg.substring("--batch-bytes=".length())));
+            } else if (arg.startsWith("--batch-packets=")) {
+                batchPackets = Integer.parseInt(arg.substring("--batch-packets=".length()));
+            } else if (arg.startsWith("--batch-latency-us=")) {
+                batchLatencyNanos = Long.parseLong(arg.substring("--batch-latency-us=".length())) * 1000;
+            } else if (arg.startsWith("--read-ahead=")) {
+                readAheadBytes = Math.toIntExact(parseSize(arg.substring("--read-ahead=".length())));
+            } else if (arg.startsWith("--read-ahead-threads=")) {
+                readAheadThreads = Integer.parseInt(arg.substring("--read-ahead-threads=".length()));
+            } else if (arg.startsWith("--shm=")) {
+                sharedMemoryDir = Paths.get(arg.substring("--shm=".length()));
+            } else if (arg.startsWith("--shm-bytes=")) {
+                sharedMemoryBytes = Math.toIntExact(parseSize(arg.substring("--shm-bytes=".length())));
+            } else if (arg.startsWith("--broadcast=")) {
+                broadcastBytes = Math.toIntExact(parseSize(arg.substring("--broadcast=".length())));
+            } else if (arg.startsWith("--slow-client=")) {
+                slowClientPolicy = BroadcastRing.SlowSubscriberPolicy.valueOf(
+                        arg.substring("--slow-client=".length()).toUpperCase());
+            } else if (arg.startsWith("--journal-sample=")) {
+                app.setJournalSampling(Integer.parseInt(arg.substring("--journal-sample=".length())));
+            } else if (arg.equals("--no-journal")) {
+                app.setJournalSampling(0);
+            } else if (arg.startsWith("--event-loops=")) {
+                app.setEventLoopThreads(Integer.parseInt(arg.substring("--event-loops=".length())));
+            } else {
+                System.err.println("Unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+
+        app.setTimeWindow(startNanos, endNanos);
+        app.setBatching(batchBytes, batchPackets, batchLatencyNanos);
+        app.setBroadcast(broadcastBytes, slowClientPolicy);
+        app.setReadAhead(readAheadBytes, readAheadThreads);
+        app.setSharedMemory(sharedMemoryDir, sharedMemoryBytes);
+        if (pacing != null) {
+            app.setPacing(ReplayPacing.parse(pacing, maxGapNanos));
+        } else if (maxGapNanos != Long.MAX_VALUE) {
+            app.setPacing(ReplayPacing.capture(1, maxGapNanos));
+        }
+
+        if (sketch) {
+            try {
+                System.out.print(app.writeSketchReport(sketchFraction));
+                return;
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error sketching PCAP file", e);
+                System.exit(1);
+            }
+        }
 
         try {
             app.start();
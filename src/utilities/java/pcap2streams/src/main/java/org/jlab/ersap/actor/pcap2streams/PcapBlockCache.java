@@ -0,0 +1,455 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-through cache of fixed-size blocks of a PCAP file, shared by all
+ * servers streaming from that file. Blocks are held in direct buffers outside
+ * the Java heap, allocated the first time a slot is used, so the total memory
+ * never exceeds the budget given at construction. When the budget is at
+ * least the file size, steady-state replay runs entirely from memory.
+ * <p>
+ * Blocks are evicted with the clock algorithm: each access sets a reference
+ * bit, and the clock hand evicts the first slot whose bit is clear, clearing
+ * the bits it passes. A slot is pinned while a block is loaded into it or
+ * copied out of it, so it is never evicted under a reader. The last block of
+ * a file that is still being written is reloaded when a read goes past the
+ * bytes cached so far.
+ * <p>
+ * A cache is thread-safe. Block data is copied outside the lock; only the
+ * lookup and eviction bookkeeping is synchronized.
+ */
+public final class PcapBlockCache implements Closeable {
+
+    /** Default size of a cached block. */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private static final int NO_SLOT = -1; // Block not cached, or slot empty
+
+    private final String pcapFile;
+    private final FileChannel channel;
+    private final int blockSize;
+    private final ByteBuffer[] buffers;
+    private final long[] blockOf; // Block number held by each slot, NO_SLOT if empty
+    private final int[] lengths; // Valid bytes in each slot
+    private final int[] pins;
+    private final boolean[] referenced;
+    private final boolean[] loading;
+    private int[] slotOf; // Slot holding each block number, NO_SLOT if not cached
+    private int hand;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a cache with the default block size.
+     *
+     * @param pcapFile     the PCAP file to cache
+     * @param memoryBudget the largest number of bytes of off-heap memory to use
+     * @throws IOException if the file cannot be opened
+     */
+    public PcapBlockCache(String pcapFile, long memoryBudget) throws IOException {
+        this(pcapFile, memoryBudget, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param pcapFile     the PCAP file to cache
+     * @param memoryBudget the largest number of bytes of off-heap memory to
+     *                     use, at least one block
+     * @param blockSize    the size of a cached block in bytes
+     * @throws IOException if the file cannot be opened
+     */
+    public PcapBlockCache(String pcapFile, long memoryBudget, int blockSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be at least 1: " + blockSize);
+        }
+        if (memoryBudget < blockSize) {
+            throw new IllegalArgumentException("Memory budget must hold at least one block of " + blockSize
+                    + " bytes: " + memoryBudget);
+        }
+        long slots = memoryBudget / blockSize;
+        if (slots > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many blocks for memory budget " + memoryBudget);
+        }
+
+        this.pcapFile = pcapFile;
+        this.blockSize = blockSize;
+        this.buffers = new ByteBuffer[(int) slots];
+        this.blockOf = new long[(int) slots];
+        this.lengths = new int[(int) slots];
+        this.pins = new int[(int) slots];
+        this.referenced = new boolean[(int) slots];
+        this.loading = new boolean[(int) slots];
+        Arrays.fill(blockOf, NO_SLOT);
+        this.channel = FileChannel.open(Paths.get(pcapFile), StandardOpenOption.READ);
+        this.slotOf = new int[(int) Math.min(Integer.MAX_VALUE - 8, channel.size() / blockSize + 1)];
+        Arrays.fill(slotOf, NO_SLOT);
+    }
+
+    /**
+     * Reads bytes of the PCAP file at a position, from the cache if possible.
+     *
+     * @param position the file position to read from
+     * @param buffer   the buffer to read into
+     * @param offset   the offset in the buffer
+     * @param length   the number of bytes to read
+     * @return the number of bytes read, which is less than {@code length} only
+     *         at the end of the file, or -1 if the position is at or past the
+     *         end of the file
+     * @throws IOException if an error occurs reading the file
+     */
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        return read(position, ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    /**
+     * Reads bytes of the PCAP file at a position into the remaining space of
+     * a buffer, from the cache if possible. With a direct buffer, cached bytes
+     * are copied without passing through the heap.
+     *
+     * @param position the file position to read from
+     * @param target   the buffer to read into; its position is advanced by
+     *                 the number of bytes read
+     * @return the number of bytes read, which is less than the remaining space
+     *         only at the end of the file, or -1 if the position is at or past
+     *         the end of the file
+     * @throws IOException if an error occurs reading the file
+     */
+    public int read(long position, ByteBuffer target) throws IOException {
+        int length = target.remaining();
+        int total = 0;
+        while (total < length) {
+            long block = (position + total) / blockSize;
+            int inBlock = (int) ((position + total) % blockSize);
+            int wanted = Math.min(length - total, blockSize - inBlock);
+            int read = readBlock(block, inBlock, target, wanted);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+            if (read < wanted) {
+                break;
+            }
+        }
+        return total == 0 && length > 0 ? -1 : total;
+    }
+
+    /**
+     * Writes bytes of the PCAP file at a position to a channel straight from
+     * the cached blocks, without copying them into the heap. A slot stays
+     * pinned while its bytes are written, so a slow channel delays the
+     * eviction of at most one block. A non-blocking channel is written until
+     * it accepts no more bytes.
+     *
+     * @param position the file position to write from
+     * @param length   the number of bytes to write
+     * @param target   the channel to write to
+     * @return the number of bytes written, which is less than {@code length}
+     *         if the file ends, every slot is in use or a non-blocking
+     *         channel is full; the caller then sends the rest from the file
+     *         or waits for the channel
+     * @throws IOException if an error occurs reading the file or writing to
+     *                     the channel
+     */
+    public long transferTo(long position, int length, WritableByteChannel target) throws IOException {
+        long total = 0;
+        while (total < length) {
+            long block = (position + total) / blockSize;
+            int inBlock = (int) ((position + total) % blockSize);
+            int wanted = (int) Math.min(length - total, blockSize - inBlock);
+            int slot = acquire(block, inBlock + wanted);
+            if (slot == NO_SLOT) {
+                break;
+            }
+            int available = Math.min(wanted, lengths[slot] - inBlock);
+            int written = 0;
+            try {
+                if (available > 0) {
+                    ByteBuffer view = buffers[slot].duplicate();
+                    view.limit(inBlock + available).position(inBlock);
+                    while (view.hasRemaining()) {
+                        if (target.write(view) == 0) {
+                            break; // A non-blocking channel is full
+                        }
+                    }
+                    written = view.position() - inBlock;
+                }
+            } finally {
+                release(slot);
+            }
+            total += written;
+            if (written < wanted) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of block reads served from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of block reads that went to the file.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of blocks evicted to make room for others.
+     *
+     * @return the eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Gets the fraction of block reads served from the cache.
+     *
+     * @return the hit ratio, or 0 before the first read
+     */
+    public synchronized double getHitRatio() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Gets the number of file bytes currently held in the cache.
+     *
+     * @return the cached bytes
+     */
+    public synchronized long getCachedBytes() {
+        long cached = 0;
+        for (int slot = 0; slot < blockOf.length; slot++) {
+            if (blockOf[slot] != NO_SLOT && !loading[slot]) {
+                cached += lengths[slot];
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Gets the memory budget actually used for blocks, a whole number of
+     * blocks.
+     *
+     * @return the capacity in bytes
+     */
+    public long getCapacityBytes() {
+        return (long) buffers.length * blockSize;
+    }
+
+    /**
+     * Describes the cache occupancy and hit ratio.
+     *
+     * @return a one-line report
+     */
+    public synchronized String report() {
+        return String.format("%s: %.1f of %.1f MB cached, hit ratio %.1f%% (%d hits, %d misses, %d evictions)",
+                pcapFile, getCachedBytes() / 1e6, getCapacityBytes() / 1e6, 100 * getHitRatio(), hits, misses,
+                evictions);
+    }
+
+    /**
+     * Closes the PCAP file. Cached blocks are released with the cache.
+     *
+     * @throws IOException if an error occurs closing the file
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Copies bytes of one block, loading it into the cache if needed.
+     *
+     * @return the number of bytes copied, or -1 past the end of the file
+     */
+    private int readBlock(long block, int inBlock, ByteBuffer target, int length) throws IOException {
+        int slot = acquire(block, inBlock + length);
+        if (slot == NO_SLOT) {
+            // Every slot is in use; read around the cache
+            int limit = target.limit();
+            target.limit(target.position() + length);
+            try {
+                return channel.read(target, block * blockSize + inBlock);
+            } finally {
+                target.limit(limit);
+            }
+        }
+        try {
+            int available = Math.min(length, lengths[slot] - inBlock);
+            if (available <= 0) {
+                return -1;
+            }
+            ByteBuffer view = buffers[slot].duplicate();
+            view.limit(inBlock + available).position(inBlock);
+            target.put(view);
+            return available;
+        } finally {
+            release(slot);
+        }
+    }
+
+    /**
+     * Finds or loads the slot of a block and pins it.
+     *
+     * @param needed the number of bytes of the block the reader needs
+     * @return the pinned slot, or {@link #NO_SLOT} to read around the cache
+     */
+    private int acquire(long block, int needed) throws IOException {
+        int slot;
+        synchronized (this) {
+            while (true) {
+                slot = block < slotOf.length ? slotOf[(int) block] : NO_SLOT;
+                if (slot == NO_SLOT) {
+                    slot = victim();
+                    if (slot == NO_SLOT) {
+                        misses++;
+                        return NO_SLOT;
+                    }
+                    if (blockOf[slot] != NO_SLOT) {
+                        slotOf[(int) blockOf[slot]] = NO_SLOT;
+                        evictions++;
+                    }
+                    if (block >= slotOf.length) {
+                        int oldLength = slotOf.length;
+                        slotOf = Arrays.copyOf(slotOf, (int) Math.max(block + 1, 2L * oldLength));
+                        Arrays.fill(slotOf, oldLength, slotOf.length, NO_SLOT);
+                    }
+                    slotOf[(int) block] = slot;
+                    blockOf[slot] = block;
+                    break;
+                }
+
+                pins[slot]++;
+                waitForLoad(slot);
+                if (blockOf[slot] != block) {
+                    // The load failed; look the block up again
+                    pins[slot]--;
+                    continue;
+                }
+                if (lengths[slot] >= needed || lengths[slot] == blockSize) {
+                    referenced[slot] = true;
+                    hits++;
+                    return slot;
+                }
+                if (pins[slot] > 1) {
+                    // Others are reading the cached part of this growing block
+                    pins[slot]--;
+                    misses++;
+                    return NO_SLOT;
+                }
+                // The file grew since the block was cached; reload it in place
+                pins[slot]--;
+                break;
+            }
+            pins[slot] = 1;
+            loading[slot] = true;
+            misses++;
+        }
+
+        int length;
+        try {
+            length = load(slot, block);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                slotOf[(int) block] = NO_SLOT;
+                blockOf[slot] = NO_SLOT;
+                loading[slot] = false;
+                pins[slot]--;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            lengths[slot] = length;
+            loading[slot] = false;
+            referenced[slot] = true;
+            notifyAll();
+        }
+        return slot;
+    }
+
+    private void release(int slot) {
+        synchronized (this) {
+            pins[slot]--;
+        }
+    }
+
+    /**
+     * Waits while another thread loads a slot. The caller holds the lock.
+     */
+    private void waitForLoad(int slot) throws InterruptedIOException {
+        while (loading[slot]) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                pins[slot]--;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for block of " + pcapFile);
+            }
+        }
+    }
+
+    /**
+     * Advances the clock hand to an empty or unreferenced slot that is not
+     * pinned. The caller holds the lock.
+     *
+     * @return the slot, or {@link #NO_SLOT} if every slot is pinned
+     */
+    private int victim() {
+        for (int scanned = 0; scanned < 2 * blockOf.length; scanned++) {
+            int slot = hand;
+            hand = hand + 1 == blockOf.length ? 0 : hand + 1;
+            if (pins[slot] > 0) {
+                continue;
+            }
+            if (blockOf[slot] != NO_SLOT && referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            return slot;
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * Reads a block from the file into its pinned slot.
+     *
+     * @return the number of bytes read, less than the block size at the end
+     *         of the file
+     */
+    private int load(int slot, long block) throws IOException {
+        if (buffers[slot] == null) {
+            buffers[slot] = ByteBuffer.allocateDirect(blockSize);
+        }
+        ByteBuffer buffer = buffers[slot];
+        buffer.clear();
+        long start = block * blockSize;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+}
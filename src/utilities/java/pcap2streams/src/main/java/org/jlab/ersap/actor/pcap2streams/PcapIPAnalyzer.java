@@ -1,36 +1,109 @@
 package org.jlab.ersap.actor.pcap2streams;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Analyzes a PCAP file to identify unique IP addresses and their associated
  * packets.
- * This class scans a PCAP file and builds a mapping of IP addresses to packet
- * positions.
+ * This class scans a PCAP file and builds an {@link IPPacketIndex} of IP
+ * addresses to packet positions.
  */
 public class PcapIPAnalyzer {
 
+    /**
+     * How the PCAP file is read during analysis.
+     */
+    public enum ScanMode {
+        /** Sequential read()/skip() through a FileInputStream. */
+        STREAM,
+        /** Sliding memory-mapped windows parsed in place. */
+        MAPPED,
+        /** Memory-mapped byte ranges indexed concurrently by fork/join tasks. */
+        PARALLEL
+    }
+
+    /**
+     * Receives the packets indexed by {@link PcapIPAnalyzer#follow(FollowListener)}.
+     */
+    public interface FollowListener {
+
+        /**
+         * Called after each pass that indexed new packets.
+         * 
+         * @param packets the packets appended since the previous pass, by IP
+         *                address
+         * @param flows   the same packets by flow, or null if flow indexing is
+         *                not enabled
+         */
+        void packetsAppended(IPPacketIndex packets, FlowPacketIndex flows);
+    }
+
     private static final Logger LOGGER = Logger.getLogger(PcapIPAnalyzer.class.getName());
 
     private static final int PCAP_HEADER_SIZE = 24; // Global header size
     private static final int PACKET_HEADER_SIZE = 16; // Per-packet header size
     private static final int ETHERNET_HEADER_SIZE = 14; // Ethernet header size
-    private static final int IP_PROTOCOL_OFFSET = 9; // Offset to IP protocol field
-    private static final int IP_HEADER_SRC_ADDR_OFFSET = 12; // Offset to source IP in IP header
-    private static final int IP_HEADER_DST_ADDR_OFFSET = 16; // Offset to destination IP in IP header
     private static final int MAX_PACKET_SIZE = 65535; // Maximum packet size (65535 bytes)
     private static final int MIN_PACKET_SIZE = 60; // Minimum packet size (60 bytes)
+    private static final long MAP_WINDOW_SIZE = 1L << 30; // Size of each mapped window (1 GB)
+    private static final int IP_MIN_HEADER_SIZE = 20; // Minimum IP header size
+    private static final int IP_PORTS_SIZE = 64; // Maximum IP header size plus TCP/UDP ports
+    // Bytes of a record read to index, filter or sketch it
+    private static final int RECORD_HEADERS_SIZE = PACKET_HEADER_SIZE + ETHERNET_HEADER_SIZE + IP_PORTS_SIZE;
+    private static final int MAX_SNAP_LENGTH = 262144; // Largest snapshot length written by libpcap
+    private static final long MIN_RANGE_SIZE = 64L << 20; // Smallest byte range given to a parallel task
+    private static final int RESYNC_CHAIN_LENGTH = 4; // Consecutive records checked when resynchronizing
+    private static final int RESYNC_SPAN = 64 << 20; // Bytes mapped ahead when resynchronizing
+    private static final long FOLLOW_POLL_MS = 1000; // Longest wait for a change event before checking the size
+    private static final int SKETCH_BLOCK_SIZE = 1 << 20; // Bytes read from each sampled block
+    private static final double DEFAULT_SAMPLE_FRACTION = 0.01; // Fraction of the file read by a sketch scan
+    private static final int SKETCH_TOP_TALKERS = 256; // Addresses tracked by a sketch scan
+    private static final long RESYNC_MAX_TIME_SKEW_SECONDS = 7 * 24 * 3600; // Allowed distance from the first record time
 
     private final String pcapFile;
-    private final Map<String, Set<Long>> ipToPacketPositions;
+    private IPPacketIndex packetIndex;
+    private FlowPacketIndex flowIndex;
+    private TimeIndex timeIndex;
     private final Set<String> uniqueIPs;
+    private long packetCount;
+    private ScanMode scanMode;
+    private int parallelism;
+    private boolean indexFileEnabled;
+    private long lastScanBytes;
+    private long lastScanNanos;
+    private long indexedBytes;
+    private double sampleFraction;
+    private PacketFilter filter;
+    private boolean indexFiltered;
+    private volatile boolean following;
 
     /**
      * Creates a new PcapIPAnalyzer for the specified PCAP file.
@@ -39,50 +112,522 @@ public class PcapIPAnalyzer {
      */
     public PcapIPAnalyzer(String pcapFile) {
         this.pcapFile = pcapFile;
-        this.ipToPacketPositions = new HashMap<>();
-        this.uniqueIPs = new HashSet<>();
+        this.packetIndex = new IPPacketIndex();
+        this.timeIndex = new TimeIndex();
+        this.uniqueIPs = new LinkedHashSet<>();
+        this.scanMode = ScanMode.MAPPED;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.indexFileEnabled = true;
+        this.sampleFraction = DEFAULT_SAMPLE_FRACTION;
+    }
+
+    /**
+     * Sets how the PCAP file is read during analysis. Defaults to
+     * {@link ScanMode#MAPPED}.
+     * 
+     * @param scanMode the scan mode to use
+     */
+    public void setScanMode(ScanMode scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    /**
+     * Sets the number of threads used by {@link ScanMode#PARALLEL}. Defaults
+     * to the number of available processors.
+     * 
+     * @param parallelism the number of indexing threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets whether the index is loaded from and saved to a
+     * {@link PcapIndexFile} next to the PCAP file. Enabled by default.
+     * 
+     * @param indexFileEnabled true to use the sidecar index file
+     */
+    public void setIndexFileEnabled(boolean indexFileEnabled) {
+        this.indexFileEnabled = indexFileEnabled;
+    }
+
+    /**
+     * Sets whether packets are also indexed by 5-tuple flow. Disabled by
+     * default. The sidecar index file holds only the IP index, so it is not
+     * loaded while flow indexing is enabled.
+     * 
+     * @param flowIndexEnabled true to build a {@link FlowPacketIndex}
+     */
+    public void setFlowIndexEnabled(boolean flowIndexEnabled) {
+        this.flowIndex = flowIndexEnabled ? new FlowPacketIndex() : null;
+    }
+
+    /**
+     * Sets a filter that selects the packets to index and sketch. Packets that
+     * do not match are left out of the IP and flow indexes but remain in the
+     * time index. A filtered index is never written to the sidecar index file;
+     * a valid sidecar index is still loaded unfiltered, see
+     * {@link #isIndexFiltered()}.
+     * 
+     * @param filter the packet filter, or null to index all IPv4 packets
+     */
+    public void setFilter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Checks whether the filter set with {@link #setFilter(PacketFilter)} was
+     * applied to the index. This is false when no filter is set or when the
+     * index was loaded from the sidecar index file, in which case consumers
+     * of the index must apply the filter themselves.
+     * 
+     * @return true if the index only holds packets that match the filter
+     */
+    public boolean isIndexFiltered() {
+        return indexFiltered;
+    }
+
+    /**
+     * Sets the fraction of the file read by {@link #sketch()}. Defaults to
+     * 0.01; 1 reads the whole file.
+     * 
+     * @param sampleFraction the fraction of the file to sample, in (0, 1]
+     */
+    public void setSampleFraction(double sampleFraction) {
+        if (!(sampleFraction > 0 && sampleFraction <= 1)) {
+            throw new IllegalArgumentException("Sample fraction must be in (0, 1]: " + sampleFraction);
+        }
+        this.sampleFraction = sampleFraction;
+    }
+
+    /**
+     * Estimates the traffic of the PCAP file without building the packet
+     * index. The file is read in {@link #SKETCH_BLOCK_SIZE} blocks spread
+     * evenly over the file, so that about {@link #setSampleFraction(double)
+     * the sample fraction} of it is read; each block is resynchronized on the
+     * first record boundary, like the ranges of a parallel scan. The sampled
+     * records are summarized in constant memory, so the scan of a very large
+     * capture finishes in seconds. The exact index returned by
+     * {@link #getPacketIndex()} is not changed.
+     * 
+     * @return the approximate traffic statistics
+     * @throws IOException if an error occurs reading the PCAP file
+     */
+    public TrafficSketch sketch() throws IOException {
+        long startNanos = System.nanoTime();
+        TrafficSketch sketch = new TrafficSketch(SKETCH_TOP_TALKERS);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(pcapFile), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < PCAP_HEADER_SIZE) {
+                throw new IOException("Failed to skip global header");
+            }
+
+            MappedWindow window = new MappedWindow(channel, fileSize);
+            PcapRecordCursor format = readFormat(window);
+            int firstOffset = window.map(PCAP_HEADER_SIZE, PACKET_HEADER_SIZE);
+            long firstSeconds = PCAP_HEADER_SIZE + PACKET_HEADER_SIZE <= fileSize
+                    ? new PcapRecordCursor(format).at(window.buffer, firstOffset).timestampSeconds()
+                    : 0;
+            RecordValidator validator = new RecordValidator(format, firstSeconds);
+            PcapRecordCursor cursor = validator.newCursor();
+
+            long dataSize = fileSize - PCAP_HEADER_SIZE;
+            long blocks = Math.max(1, (long) Math.ceil(dataSize * sampleFraction / SKETCH_BLOCK_SIZE));
+            long stride = Math.max(SKETCH_BLOCK_SIZE, dataSize / blocks);
+            LOGGER.info("Sketching " + pcapFile + ": reading " + SKETCH_BLOCK_SIZE + " bytes every " + stride
+                    + " bytes");
+
+            long sampledBytes = 0;
+            int sampledBlocks = 0;
+            for (long blockStart = PCAP_HEADER_SIZE; blockStart < fileSize; blockStart += stride) {
+                long blockEnd = Math.min(fileSize, blockStart + SKETCH_BLOCK_SIZE);
+                long position = blockStart == PCAP_HEADER_SIZE ? blockStart
+                        : findRecordBoundary(window, validator, cursor, blockStart, blockEnd);
+                long sync = position;
+                while (position < blockEnd && position + PACKET_HEADER_SIZE <= fileSize) {
+                    int offset = window.map(position, RECORD_HEADERS_SIZE);
+                    cursor.at(window.buffer, offset);
+                    int capturedLength = cursor.capturedLength();
+                    if (capturedLength < 0 || position + PACKET_HEADER_SIZE + capturedLength > fileSize) {
+                        break;
+                    }
+                    if (filter == null || filter.matches(cursor)) {
+                        sketch.add(cursor);
+                    }
+                    position += PACKET_HEADER_SIZE + capturedLength;
+                }
+                sampledBytes += position - sync;
+                sampledBlocks++;
+            }
+            sketch.setCoverage(sampledBytes, dataSize, sampledBlocks, System.nanoTime() - startNanos);
+        }
+
+        LOGGER.info(String.format("Sketch complete in %.3f s: about %d packets, %d distinct IPs",
+                (System.nanoTime() - startNanos) / 1e9, sketch.getEstimatedPackets(),
+                sketch.getDistinctAddresses()));
+        return sketch;
     }
 
     /**
      * Analyzes the PCAP file to identify unique IP addresses and their packet
-     * positions.
+     * positions. A valid sidecar index file is used instead of scanning; after
+     * a scan the index file is (re)written.
      * 
      * @return a set of unique IP addresses found in the PCAP file
      * @throws IOException if an error occurs reading the PCAP file
      */
     public Set<String> analyze() throws IOException {
-        LOGGER.info("Analyzing PCAP file: " + pcapFile);
+        if (indexFileEnabled && flowIndex == null && loadIndexFile()) {
+            indexFiltered = false;
+            return uniqueIPs;
+        }
+        indexFiltered = filter != null;
 
-        try (FileInputStream fis = new FileInputStream(pcapFile)) {
-            // Skip the global header
-            if (fis.skip(PCAP_HEADER_SIZE) != PCAP_HEADER_SIZE) {
+        LOGGER.info("Analyzing PCAP file: " + pcapFile + " (" + scanMode + " scan)");
+
+        // The index file describes the PCAP file as it was before the scan,
+        // so packets appended during the scan make it stale on the next load;
+        // the time is read first, so an append in between changes it too
+        Path pcapPath = Paths.get(pcapFile);
+        long pcapModifiedMillis = Files.getLastModifiedTime(pcapPath).toMillis();
+        long pcapSize = Files.size(pcapPath);
+
+        long startNanos = System.nanoTime();
+        if (scanMode == ScanMode.PARALLEL) {
+            analyzeParallel();
+        } else if (scanMode == ScanMode.MAPPED) {
+            analyzeMapped();
+        } else {
+            analyzeStream();
+        }
+        lastScanNanos = System.nanoTime() - startNanos;
+        indexedBytes = lastScanBytes;
+
+        packetIndex.trim();
+        timeIndex.trim();
+        if (flowIndex != null) {
+            flowIndex.trim();
+            LOGGER.info("Flow index: " + flowIndex.size() + " flows, " + flowIndex.memoryBytes() + " bytes");
+        }
+        for (int address : packetIndex.addresses()) {
+            uniqueIPs.add(IPPacketIndex.formatAddress(address));
+        }
+
+        LOGGER.info(String.format("Scanned %d bytes in %.3f s (%.2f GB/s)",
+                lastScanBytes, lastScanNanos / 1e9, getScanThroughputGBps()));
+        LOGGER.info("Index memory: " + getMemoryReport());
+        LOGGER.info("Time index: " + timeIndex.size() + " entries, one every " + TimeIndex.INTERVAL + " records");
+
+        if (indexFileEnabled && indexFiltered) {
+            LOGGER.info("Filtered index not written to index file: " + filter);
+        } else if (indexFileEnabled) {
+            try {
+                PcapIndexFile.write(pcapFile, pcapSize, pcapModifiedMillis, packetIndex, timeIndex, packetCount,
+                        indexedBytes);
+                LOGGER.info("Wrote index file " + PcapIndexFile.sidecarPath(pcapFile));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not write index file " + PcapIndexFile.sidecarPath(pcapFile), e);
+            }
+        }
+
+        return uniqueIPs;
+    }
+
+    /**
+     * Loads the index from the sidecar index file if it matches the PCAP file.
+     * 
+     * @return true if the index was loaded
+     */
+    private boolean loadIndexFile() {
+        long startNanos = System.nanoTime();
+        PcapIndexFile indexFile;
+        try {
+            indexFile = PcapIndexFile.load(pcapFile);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read index file " + PcapIndexFile.sidecarPath(pcapFile), e);
+            return false;
+        }
+        if (indexFile == null) {
+            return false;
+        }
+
+        packetIndex = indexFile.getIndex();
+        timeIndex = indexFile.getTimeIndex();
+        packetCount = indexFile.getPacketCount();
+        indexedBytes = indexFile.getIndexedBytes();
+        lastScanBytes = 0;
+        lastScanNanos = System.nanoTime() - startNanos;
+        for (int address : packetIndex.addresses()) {
+            uniqueIPs.add(IPPacketIndex.formatAddress(address));
+        }
+
+        LOGGER.info(String.format("Loaded index file %s in %.3f ms: %d packets, %d unique IPs",
+                PcapIndexFile.sidecarPath(pcapFile), lastScanNanos / 1e6, packetCount, packetIndex.size()));
+        return true;
+    }
+
+    /**
+     * Scans the file through sliding memory-mapped windows. Record headers are
+     * read in place from the mapped buffer, so no per-packet copies are made.
+     * 
+     * @throws IOException if an error occurs reading the PCAP file
+     */
+    private void analyzeMapped() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(pcapFile), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < PCAP_HEADER_SIZE) {
+                throw new IOException("Failed to skip global header");
+            }
+
+            MappedWindow window = new MappedWindow(channel, fileSize);
+            Segment segment = scanRange(window, readFormat(window), PCAP_HEADER_SIZE, fileSize, packetIndex,
+                    flowIndex, filter);
+            packetCount = segment.packetCount;
+            timeIndex = segment.times;
+            if (segment.truncated) {
+                LOGGER.warning("Incomplete packet at position " + segment.stopOffset);
+            }
+
+            lastScanBytes = segment.stopOffset;
+            LOGGER.info("PCAP analysis complete. Processed " + packetCount + " packets, found "
+                    + packetIndex.size() + " unique IPs");
+        }
+    }
+
+    /**
+     * Splits the file into byte ranges that are indexed concurrently by
+     * fork/join tasks. Each task resynchronizes on the first valid record
+     * boundary in its range; ranges whose boundary does not line up with where
+     * the previous range stopped are rescanned from the known boundary, so the
+     * result is identical to a sequential scan.
+     * 
+     * @throws IOException if an error occurs reading the PCAP file
+     */
+    private void analyzeParallel() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(pcapFile), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < PCAP_HEADER_SIZE) {
                 throw new IOException("Failed to skip global header");
             }
 
-            byte[] packetHeader = new byte[PACKET_HEADER_SIZE];
-            byte[] ethernetHeader = new byte[ETHERNET_HEADER_SIZE];
-            byte[] ipHeader = new byte[20]; // Minimum IP header size
+            MappedWindow headerWindow = new MappedWindow(channel, fileSize);
+            PcapRecordCursor format = readFormat(headerWindow);
+            int firstOffset = headerWindow.map(PCAP_HEADER_SIZE, PACKET_HEADER_SIZE);
+            long firstSeconds = PCAP_HEADER_SIZE + PACKET_HEADER_SIZE <= fileSize
+                    ? new PcapRecordCursor(format).at(headerWindow.buffer, firstOffset).timestampSeconds()
+                    : 0;
+            RecordValidator validator = new RecordValidator(format, firstSeconds);
+
+            long dataSize = fileSize - PCAP_HEADER_SIZE;
+            int ranges = (int) Math.max(1, Math.min(parallelism, dataSize / MIN_RANGE_SIZE));
+            LOGGER.info("Indexing " + ranges + " byte ranges with " + parallelism + " threads");
+
+            List<Segment> segments;
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                segments = pool.invoke(new RangeIndexTask(channel, fileSize, validator, flowIndex != null, filter,
+                        PCAP_HEADER_SIZE, fileSize, ranges));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+
+            long expected = PCAP_HEADER_SIZE;
+            int rescanned = 0;
+            for (Segment segment : segments) {
+                if (segment.syncOffset != expected) {
+                    segment = scanRange(new MappedWindow(channel, fileSize), new PcapRecordCursor(format),
+                            expected, Math.max(expected, segment.endOffset), new IPPacketIndex(),
+                            flowIndex != null ? new FlowPacketIndex() : null, filter);
+                    rescanned++;
+                }
+                packetIndex.addAll(segment.index);
+                timeIndex.addAll(segment.times);
+                if (flowIndex != null) {
+                    flowIndex.addAll(segment.flows);
+                }
+                packetCount += segment.packetCount;
+                expected = segment.stopOffset;
+                if (segment.truncated) {
+                    LOGGER.warning("Incomplete packet at position " + segment.stopOffset);
+                }
+            }
+
+            if (rescanned > 0) {
+                LOGGER.info("Rescanned " + rescanned + " of " + segments.size()
+                        + " ranges that resynchronized on a different record boundary");
+            }
+
+            lastScanBytes = expected;
+            LOGGER.info("PCAP analysis complete. Processed " + packetCount + " packets, found "
+                    + packetIndex.size() + " unique IPs");
+        }
+    }
+
+    /**
+     * Indexes the records that start in [start, end) into {@code index}, and
+     * into {@code flows} unless it is null. Only packets that match
+     * {@code filter} are indexed, unless it is null. The first record must
+     * start exactly at {@code start}.
+     */
+    private static Segment scanRange(MappedWindow window, PcapRecordCursor cursor, long start, long end,
+            IPPacketIndex index, FlowPacketIndex flows, PacketFilter filter) throws IOException {
+        Segment segment = new Segment(end, index, flows);
+        segment.syncOffset = start;
+
+        long fileSize = window.fileSize;
+        long position = start;
+
+        while (position < end) {
+            long packetPosition = position;
+
+            if (position + PACKET_HEADER_SIZE > fileSize) {
+                segment.truncated = true;
+                break;
+            }
+
+            // Only the record, Ethernet, IP headers and ports are needed in the window
+            int offset = window.map(position, RECORD_HEADERS_SIZE);
+            cursor.at(window.buffer, offset);
+            int packetLength = cursor.capturedLength();
+            position += PACKET_HEADER_SIZE;
+
+            if (packetLength < 0) {
+                LOGGER.warning("Corrupt packet length: " + packetLength + " at position " + position);
+                break;
+            }
+
+            long nextPosition = position + packetLength;
+            if (nextPosition > fileSize) {
+                // The record is still being written, or the file was cut short
+                segment.truncated = true;
+                position = packetPosition;
+                break;
+            }
+            segment.times.add(cursor.timestampNanos(), packetPosition);
+
+            if (packetLength < MIN_PACKET_SIZE) {
+                LOGGER.warning("Invalid packet length: " + packetLength + " at position " + position +
+                        ". Must be at least " + MIN_PACKET_SIZE + " bytes.");
+                position = nextPosition;
+                continue;
+            }
+
+            if (packetLength > MAX_PACKET_SIZE) {
+                LOGGER.info("Large packet detected: " + packetLength + " bytes at position " + position +
+                        ". Will be truncated to " + MAX_PACKET_SIZE + " bytes.");
+            }
+
+            if (position + ETHERNET_HEADER_SIZE + IP_MIN_HEADER_SIZE > window.end) {
+                LOGGER.warning("Incomplete IP header at position " + position);
+                position = nextPosition;
+                continue;
+            }
+
+            if (!cursor.isIPv4() || (filter != null && !filter.matches(cursor))) {
+                position = nextPosition;
+                continue;
+            }
+
+            index.add(cursor.sourceAddress(), packetPosition, packetLength);
+            index.add(cursor.destinationAddress(), packetPosition, packetLength);
+            if (flows != null) {
+                flows.add(cursor, packetPosition);
+            }
+
+            position = nextPosition;
+
+            segment.packetCount++;
+            if (segment.packetCount % 10000 == 0) {
+                LOGGER.fine("Processed " + segment.packetCount + " packets in range starting at " + start);
+            }
+        }
+
+        segment.stopOffset = position;
+        return segment;
+    }
+
+    /**
+     * Finds the first offset in [from, to) at which a chain of plausible
+     * record headers starts.
+     * 
+     * @return the record boundary, or {@code to} if none was found
+     */
+    private static long findRecordBoundary(MappedWindow window, RecordValidator validator,
+            PcapRecordCursor cursor, long from, long to) throws IOException {
+        window.map(from, RESYNC_SPAN);
+        for (long candidate = from; candidate < to; candidate++) {
+            if (validator.isRecordChain(window, cursor, candidate)) {
+                return candidate;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * Reads the record format from the global header at the start of the
+     * window's file.
+     */
+    private PcapRecordCursor readFormat(MappedWindow window) throws IOException {
+        PcapRecordCursor cursor = new PcapRecordCursor();
+        int offset = window.map(0, PCAP_HEADER_SIZE);
+        if (!cursor.readGlobalHeader(window.buffer, offset)) {
+            LOGGER.warning("Unrecognized PCAP magic number in " + pcapFile
+                    + ", assuming little-endian microsecond records");
+        }
+        return cursor;
+    }
+
+    /**
+     * Scans the file sequentially through a FileInputStream.
+     * 
+     * @throws IOException if an error occurs reading the PCAP file
+     */
+    private void analyzeStream() throws IOException {
+        try (FileInputStream fis = new FileInputStream(pcapFile)) {
+            // Record, Ethernet and minimum IP headers are read into one reusable buffer
+            byte[] headers = new byte[RECORD_HEADERS_SIZE];
+            ByteBuffer headerView = ByteBuffer.wrap(headers);
+            PcapRecordCursor cursor = new PcapRecordCursor();
 
+            // Read the global header
+            if (fis.read(headers, 0, PCAP_HEADER_SIZE) != PCAP_HEADER_SIZE) {
+                throw new IOException("Failed to skip global header");
+            }
+            if (!cursor.readGlobalHeader(headerView, 0)) {
+                LOGGER.warning("Unrecognized PCAP magic number in " + pcapFile
+                        + ", assuming little-endian microsecond records");
+            }
+            cursor.at(headerView, 0);
+
+            long fileSize = fis.getChannel().size();
             long position = PCAP_HEADER_SIZE;
-            int packetCount = 0;
 
             while (fis.available() > 0) {
                 // Remember the position of this packet
                 long packetPosition = position;
 
                 // Read packet header
-                int headerBytesRead = fis.read(packetHeader);
+                int headerBytesRead = fis.read(headers, 0, PACKET_HEADER_SIZE);
                 if (headerBytesRead < PACKET_HEADER_SIZE) {
                     LOGGER.warning("Incomplete packet header at position " + position);
                     break;
                 }
                 position += PACKET_HEADER_SIZE;
 
-                // Extract packet length from header (bytes 8-11, little-endian)
-                int packetLength = ((packetHeader[8] & 0xFF) |
-                        ((packetHeader[9] & 0xFF) << 8) |
-                        ((packetHeader[10] & 0xFF) << 16) |
-                        ((packetHeader[11] & 0xFF) << 24));
+                int packetLength = cursor.capturedLength();
+                if (position + packetLength > fileSize) {
+                    // The record is still being written, or the file was cut short
+                    LOGGER.warning("Incomplete packet at position " + packetPosition);
+                    position = packetPosition;
+                    break;
+                }
+                timeIndex.add(cursor.timestampNanos(), packetPosition);
 
                 // Validate packet length
                 if (packetLength < MIN_PACKET_SIZE) {
@@ -100,77 +645,235 @@ public class PcapIPAnalyzer {
                 }
 
                 // Read Ethernet header
-                int ethernetBytesRead = fis.read(ethernetHeader);
+                int ethernetBytesRead = fis.read(headers, PACKET_HEADER_SIZE, ETHERNET_HEADER_SIZE);
                 if (ethernetBytesRead < ETHERNET_HEADER_SIZE) {
                     LOGGER.warning("Incomplete Ethernet header at position " + position);
                     // Skip the rest of this packet
-                    fis.skip(packetLength - ethernetBytesRead);
+                    fis.skip(packetLength - Math.max(ethernetBytesRead, 0));
                     position += packetLength;
                     continue;
                 }
                 position += ETHERNET_HEADER_SIZE;
 
-                // Check if it's an IP packet (EtherType 0x0800 for IPv4)
-                int etherType = ((ethernetHeader[12] & 0xFF) << 8) | (ethernetHeader[13] & 0xFF);
-                if (etherType != 0x0800) {
+                // Check if it's an IPv4 packet
+                if (cursor.etherType() != PcapRecordCursor.ETHERTYPE_IPV4) {
                     // Not an IPv4 packet, skip it
                     fis.skip(packetLength - ETHERNET_HEADER_SIZE);
                     position += (packetLength - ETHERNET_HEADER_SIZE);
                     continue;
                 }
 
-                // Read IP header (at least the first 20 bytes)
-                int ipBytesRead = fis.read(ipHeader);
-                if (ipBytesRead < 20) {
+                // Read IP header (at least the first 20 bytes) and the ports
+                int ipBytesRead = fis.read(headers, PACKET_HEADER_SIZE + ETHERNET_HEADER_SIZE,
+                        Math.min(IP_PORTS_SIZE, packetLength - ETHERNET_HEADER_SIZE));
+                if (ipBytesRead < IP_MIN_HEADER_SIZE) {
                     LOGGER.warning("Incomplete IP header at position " + position);
                     // Skip the rest of this packet
-                    fis.skip(packetLength - ETHERNET_HEADER_SIZE - ipBytesRead);
+                    fis.skip(packetLength - ETHERNET_HEADER_SIZE - Math.max(ipBytesRead, 0));
                     position += (packetLength - ETHERNET_HEADER_SIZE);
                     continue;
                 }
 
-                // Extract source and destination IP addresses
-                byte[] srcIp = new byte[4];
-                byte[] dstIp = new byte[4];
-                System.arraycopy(ipHeader, IP_HEADER_SRC_ADDR_OFFSET, srcIp, 0, 4);
-                System.arraycopy(ipHeader, IP_HEADER_DST_ADDR_OFFSET, dstIp, 0, 4);
-
-                String srcIpStr = InetAddress.getByAddress(srcIp).getHostAddress();
-                String dstIpStr = InetAddress.getByAddress(dstIp).getHostAddress();
+                // Skip the rest of this packet
+                fis.skip(packetLength - ETHERNET_HEADER_SIZE - ipBytesRead);
+                position += (packetLength - ETHERNET_HEADER_SIZE);
 
-                // Add IPs to the unique set
-                uniqueIPs.add(srcIpStr);
-                uniqueIPs.add(dstIpStr);
+                headerView.limit(PACKET_HEADER_SIZE + ETHERNET_HEADER_SIZE + ipBytesRead);
+                if (filter != null && !filter.matches(cursor)) {
+                    headerView.clear();
+                    continue;
+                }
 
                 // Map packet position to both source and destination IPs
-                ipToPacketPositions.computeIfAbsent(srcIpStr, k -> new HashSet<>()).add(packetPosition);
-                ipToPacketPositions.computeIfAbsent(dstIpStr, k -> new HashSet<>()).add(packetPosition);
-
-                // Skip the rest of this packet
-                fis.skip(packetLength - ETHERNET_HEADER_SIZE - ipBytesRead);
-                position += (packetLength - ETHERNET_HEADER_SIZE - ipBytesRead);
+                packetIndex.add(cursor.sourceAddress(), packetPosition, packetLength);
+                packetIndex.add(cursor.destinationAddress(), packetPosition, packetLength);
+                if (flowIndex != null) {
+                    flowIndex.add(cursor, packetPosition);
+                }
+                headerView.clear();
 
                 packetCount++;
                 if (packetCount % 10000 == 0) {
-                    LOGGER.info("Processed " + packetCount + " packets, found " + uniqueIPs.size() + " unique IPs");
+                    LOGGER.info("Processed " + packetCount + " packets, found " + packetIndex.size() + " unique IPs");
                 }
             }
 
-            LOGGER.info("PCAP analysis complete. Processed " + packetCount + " packets, found " + uniqueIPs.size()
+            lastScanBytes = position;
+            LOGGER.info("PCAP analysis complete. Processed " + packetCount + " packets, found " + packetIndex.size()
                     + " unique IPs");
         }
+    }
 
-        return uniqueIPs;
+    /**
+     * Follows the PCAP file while it is being written, indexing the records
+     * appended after the last indexed one. Growth is detected with a
+     * WatchService on the file's directory; the file size is also checked at
+     * least every {@link #FOLLOW_POLL_MS} ms, since some file systems do not
+     * deliver change events. Only complete records are indexed. This method
+     * blocks until {@link #stopFollowing()} is called or the thread is
+     * interrupted.
+     * <p>
+     * The packets found in each pass are handed to the listener as new
+     * indexes; the index returned by {@link #getPacketIndex()} is not updated.
+     * 
+     * @param listener receives the packets indexed in each pass
+     * @throws IOException          if an error occurs reading the PCAP file
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void follow(FollowListener listener) throws IOException, InterruptedException {
+        Path path = Paths.get(pcapFile).toAbsolutePath();
+        Path dir = path.getParent();
+        following = true;
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService();
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+            LOGGER.info("Following " + path + " from offset " + indexedBytes);
+
+            PcapRecordCursor cursor = readFormat(new MappedWindow(channel, channel.size()));
+            if (indexedBytes < PCAP_HEADER_SIZE) {
+                indexedBytes = PCAP_HEADER_SIZE;
+            }
+
+            while (following) {
+                indexAppended(channel, cursor, listener);
+
+                WatchKey key = watcher.poll(FOLLOW_POLL_MS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    continue;
+                }
+                // Any change in the directory triggers a size check in the next pass
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW || path.getFileName().equals(event.context())) {
+                        LOGGER.finest(event.kind().name() + ": " + path);
+                    }
+                }
+                if (!key.reset()) {
+                    LOGGER.warning("Directory " + dir + " can no longer be watched; stopped following " + path);
+                    break;
+                }
+            }
+        } finally {
+            following = false;
+        }
+        LOGGER.info("Stopped following " + path + " at offset " + indexedBytes + " after " + packetCount
+                + " packets");
+    }
+
+    /**
+     * Stops a running {@link #follow(FollowListener)} call after its current
+     * pass.
+     */
+    public void stopFollowing() {
+        following = false;
     }
 
     /**
-     * Gets the mapping of IP addresses to packet positions.
+     * Indexes the complete records appended since the last pass.
+     */
+    private void indexAppended(FileChannel channel, PcapRecordCursor cursor, FollowListener listener)
+            throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < indexedBytes) {
+            LOGGER.warning("PCAP file " + pcapFile + " shrank from " + indexedBytes + " to " + fileSize
+                    + " bytes; stopped following");
+            following = false;
+            return;
+        }
+        if (fileSize - indexedBytes < PACKET_HEADER_SIZE) {
+            return;
+        }
+
+        Segment segment = scanRange(new MappedWindow(channel, fileSize), cursor, indexedBytes, fileSize,
+                new IPPacketIndex(), flowIndex != null ? new FlowPacketIndex() : null, indexFiltered ? filter : null);
+        if (segment.stopOffset < fileSize && !segment.truncated) {
+            LOGGER.warning("Corrupt record at position " + segment.stopOffset + "; stopped following");
+            following = false;
+        }
+        indexedBytes = segment.stopOffset;
+        packetCount += segment.packetCount;
+        timeIndex.addAll(segment.times);
+
+        if (segment.packetCount > 0) {
+            LOGGER.fine("Indexed " + segment.packetCount + " appended packets up to offset " + indexedBytes);
+            listener.packetsAppended(segment.index, segment.flows);
+        }
+    }
+
+    /**
+     * Gets the file offset up to which the PCAP file has been indexed.
      * 
-     * @return a map where keys are IP addresses and values are sets of packet
-     *         positions
+     * @return the offset after the last complete record that was indexed
      */
-    public Map<String, Set<Long>> getIpToPacketPositions() {
-        return ipToPacketPositions;
+    public long getIndexedBytes() {
+        return indexedBytes;
+    }
+
+    /**
+     * Gets the throughput of the last {@link #analyze()} call.
+     * 
+     * @return the scan throughput in GB/s, or 0 if no scan has run
+     */
+    public double getScanThroughputGBps() {
+        return lastScanNanos > 0 ? (double) lastScanBytes / lastScanNanos : 0.0;
+    }
+
+    /**
+     * Gets the index of IP addresses to packet positions.
+     * 
+     * @return the packet index
+     */
+    public IPPacketIndex getPacketIndex() {
+        return packetIndex;
+    }
+
+    /**
+     * Gets the index of 5-tuple flows to packet positions.
+     * 
+     * @return the flow index, or null if flow indexing is not enabled
+     */
+    public FlowPacketIndex getFlowIndex() {
+        return flowIndex;
+    }
+
+    /**
+     * Gets the sparse index of capture times to record offsets. When following
+     * the file, it is extended with the appended records.
+     * 
+     * @return the time index
+     */
+    public TimeIndex getTimeIndex() {
+        return timeIndex;
+    }
+
+    /**
+     * Gets the positions of the packets sent from or to an IP address, in file
+     * order.
+     * 
+     * @param ip the IP address
+     * @return the packet positions, or null if the address was not found
+     */
+    public PositionList getPacketPositions(String ip) {
+        return packetIndex.get(ip);
+    }
+
+    /**
+     * Gets the number of IPv4 packets indexed by the last {@link #analyze()}
+     * call.
+     * 
+     * @return the number of indexed packets
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Describes the memory used by the packet index.
+     * 
+     * @return a one-line report including the bytes per indexed packet
+     */
+    public String getMemoryReport() {
+        return packetIndex.memoryReport(packetCount);
     }
 
     /**
@@ -181,4 +884,176 @@ public class PcapIPAnalyzer {
     public Set<String> getUniqueIPs() {
         return uniqueIPs;
     }
-}
\ No newline at end of file
+
+    /**
+     * A read-only memory-mapped window that slides forward over the file.
+     */
+    private static final class MappedWindow {
+
+        private final FileChannel channel;
+        private final long fileSize;
+        private MappedByteBuffer buffer;
+        private long start;
+        private long end;
+
+        MappedWindow(FileChannel channel, long fileSize) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+        }
+
+        /**
+         * Makes [position, position + length) addressable, remapping the window
+         * at {@code position} if needed. The range is clipped at the end of the
+         * file.
+         * 
+         * @return the offset of {@code position} in {@link #buffer}
+         */
+        int map(long position, int length) throws IOException {
+            if (buffer == null || position < start || Math.min(position + length, fileSize) > end) {
+                start = position;
+                end = Math.min(fileSize, start + MAP_WINDOW_SIZE);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return (int) (position - start);
+        }
+    }
+
+    /**
+     * Checks whether an arbitrary file offset looks like the start of a pcap
+     * record, using the limits declared in the global header and the timestamp
+     * of the first record.
+     */
+    private static final class RecordValidator {
+
+        private final PcapRecordCursor format;
+        private final int fractionLimit;
+        private final int snapLength;
+        private final long firstSeconds;
+
+        RecordValidator(PcapRecordCursor format, long firstSeconds) {
+            this.format = format;
+            this.fractionLimit = format.isNanosecond() ? 1_000_000_000 : 1_000_000;
+            this.snapLength = format.snapLength() > 0 ? format.snapLength() : MAX_SNAP_LENGTH;
+            this.firstSeconds = firstSeconds;
+        }
+
+        /**
+         * Creates a cursor for the validated file's record format.
+         */
+        PcapRecordCursor newCursor() {
+            return new PcapRecordCursor(format);
+        }
+
+        /**
+         * Follows up to {@link #RESYNC_CHAIN_LENGTH} consecutive records from
+         * {@code position}. The chain is accepted if every header in it is
+         * plausible and it either reaches the end of the file exactly or
+         * leaves the mapped window after at least one valid record.
+         */
+        boolean isRecordChain(MappedWindow window, PcapRecordCursor cursor, long position) {
+            long p = position;
+            for (int i = 0; i < RESYNC_CHAIN_LENGTH; i++) {
+                if (p == window.fileSize) {
+                    return i > 0;
+                }
+                if (p + PACKET_HEADER_SIZE > window.end) {
+                    return i > 0 && window.end < window.fileSize;
+                }
+                cursor.at(window.buffer, (int) (p - window.start));
+                long seconds = cursor.timestampSeconds();
+                int fraction = cursor.timestampFraction();
+                int capturedLength = cursor.capturedLength();
+                int originalLength = cursor.originalLength();
+                if (Math.abs(seconds - firstSeconds) > RESYNC_MAX_TIME_SKEW_SECONDS
+                        || fraction < 0 || fraction >= fractionLimit
+                        || capturedLength < ETHERNET_HEADER_SIZE || capturedLength > snapLength
+                        || originalLength < capturedLength || originalLength > MAX_SNAP_LENGTH) {
+                    return false;
+                }
+                p += PACKET_HEADER_SIZE + capturedLength;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The index entries for the records that start in one byte range.
+     */
+    private static final class Segment {
+
+        private final long endOffset;
+        private final IPPacketIndex index;
+        private final FlowPacketIndex flows;
+        private final TimeIndex times;
+        private long syncOffset;
+        private long stopOffset;
+        private int packetCount;
+        private boolean truncated;
+
+        Segment(long endOffset, IPPacketIndex index, FlowPacketIndex flows) {
+            this.endOffset = endOffset;
+            this.index = index;
+            this.flows = flows;
+            this.times = new TimeIndex();
+        }
+    }
+
+    /**
+     * Fork/join task that indexes a byte range, splitting it in halves until
+     * each task covers a single range.
+     */
+    private static final class RangeIndexTask extends RecursiveTask<List<Segment>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long fileSize;
+        private final RecordValidator validator;
+        private final boolean indexFlows;
+        private final PacketFilter filter;
+        private final long start;
+        private final long end;
+        private final int ranges;
+
+        RangeIndexTask(FileChannel channel, long fileSize, RecordValidator validator, boolean indexFlows,
+                PacketFilter filter, long start, long end, int ranges) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.validator = validator;
+            this.indexFlows = indexFlows;
+            this.filter = filter;
+            this.start = start;
+            this.end = end;
+            this.ranges = ranges;
+        }
+
+        @Override
+        protected List<Segment> compute() {
+            if (ranges > 1) {
+                int leftRanges = ranges / 2;
+                long middle = start + (end - start) * leftRanges / ranges;
+                RangeIndexTask left = new RangeIndexTask(channel, fileSize, validator, indexFlows, filter,
+                        start, middle, leftRanges);
+                RangeIndexTask right = new RangeIndexTask(channel, fileSize, validator, indexFlows, filter,
+                        middle, end, ranges - leftRanges);
+                left.fork();
+                List<Segment> rightSegments = right.compute();
+                List<Segment> segments = new ArrayList<>(left.join());
+                segments.addAll(rightSegments);
+                return segments;
+            }
+
+            try {
+                MappedWindow window = new MappedWindow(channel, fileSize);
+                PcapRecordCursor cursor = validator.newCursor();
+                long sync = start == PCAP_HEADER_SIZE ? start
+                        : findRecordBoundary(window, validator, cursor, start, end);
+                return Collections.singletonList(scanRange(window, cursor, sync, end, new IPPacketIndex(),
+                        indexFlows ? new FlowPacketIndex() : null, filter));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
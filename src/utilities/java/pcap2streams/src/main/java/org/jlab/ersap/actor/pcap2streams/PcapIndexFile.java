@@ -0,0 +1,320 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A binary sidecar index stored next to a PCAP file, so that the file does
+ * not have to be scanned again on every start.
+ * <p>
+ * The index holds, for each IPv4 address, the packet count, the captured
+ * byte total and the delta-encoded packet positions, followed by the sparse
+ * {@link TimeIndex} of capture times to record offsets. It is tied to the PCAP
+ * file by its size and modification time, and the header, entry table and
+ * time index are protected by a CRC32. Position data is memory-mapped when
+ * loaded, in regions of up to 1 GB shared by consecutive addresses, so
+ * loading takes time proportional to the number of addresses, not packets,
+ * and a capture with more addresses than the process may have mappings
+ * still loads.
+ * <p>
+ * Layout (big-endian):
+ * <pre>
+ * header (64 bytes):
+ *   0  long  magic "P2SINDEX"
+ *   8  int   version
+ *  12  int   entry count
+ *  16  long  PCAP file size
+ *  24  long  PCAP modification time (ms)
+ *  32  long  indexed packet count
+ *  40  long  indexed bytes (offset where the scan stopped)
+ *  48  long  file offset of the time index
+ *  56  int   time index entry count
+ *  60  int   CRC32 of bytes 0-59, the entry table and the time index
+ * entry (40 bytes each):
+ *   0  int   IPv4 address
+ *   4  int   packet count
+ *   8  long  captured byte total
+ *  16  long  last position
+ *  24  long  file offset of the encoded positions
+ *  32  int   length of the encoded positions
+ *  36  int   reserved
+ * encoded positions of each entry
+ * time index:
+ *   0  long  latest capture time of all records (ns)
+ *   8  entries of (long latest capture time before the record (ns),
+ *                  long record offset)
+ * </pre>
+ */
+public final class PcapIndexFile {
+
+    private static final Logger LOGGER = Logger.getLogger(PcapIndexFile.class.getName());
+
+    /** Suffix appended to the PCAP file name to form the index file name. */
+    public static final String SUFFIX = ".p2sidx";
+
+    private static final long MAGIC = 0x503253494E444558L; // "P2SINDEX"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int CHECKSUM_OFFSET = 60;
+    private static final int ENTRY_SIZE = 40;
+    private static final int TIME_ENTRY_SIZE = 16;
+    private static final long DATA_REGION_SIZE = 1L << 30; // Largest mapping of encoded positions
+
+    private final IPPacketIndex index;
+    private final TimeIndex timeIndex;
+    private final long packetCount;
+    private final long indexedBytes;
+
+    private PcapIndexFile(IPPacketIndex index, TimeIndex timeIndex, long packetCount, long indexedBytes) {
+        this.index = index;
+        this.timeIndex = timeIndex;
+        this.packetCount = packetCount;
+        this.indexedBytes = indexedBytes;
+    }
+
+    /**
+     * Gets the index file path for a PCAP file.
+     *
+     * @param pcapFile the path to the PCAP file
+     * @return the path of its sidecar index
+     */
+    public static Path sidecarPath(String pcapFile) {
+        return Paths.get(pcapFile + SUFFIX);
+    }
+
+    /**
+     * Loads the sidecar index of a PCAP file if it exists and is still valid.
+     *
+     * @param pcapFile the path to the PCAP file
+     * @return the loaded index, or null if there is no usable index file
+     * @throws IOException if an error occurs reading the files
+     */
+    public static PcapIndexFile load(String pcapFile) throws IOException {
+        Path pcapPath = Paths.get(pcapFile);
+        Path indexPath = sidecarPath(pcapFile);
+        if (!Files.isRegularFile(indexPath)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            long indexSize = channel.size();
+            if (indexSize < HEADER_SIZE) {
+                LOGGER.warning("Ignoring truncated index file " + indexPath);
+                return null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.getLong(0) != MAGIC) {
+                LOGGER.warning("Ignoring " + indexPath + ": not a Pcap2Streams index file");
+                return null;
+            }
+            if (header.getInt(8) != VERSION) {
+                LOGGER.info("Ignoring index file " + indexPath + " with version " + header.getInt(8)
+                        + " (expected " + VERSION + ")");
+                return null;
+            }
+            if (header.getLong(16) != Files.size(pcapPath)
+                    || header.getLong(24) != Files.getLastModifiedTime(pcapPath).toMillis()) {
+                LOGGER.info("Ignoring stale index file " + indexPath + ": PCAP file size or modification time changed");
+                return null;
+            }
+
+            int entryCount = header.getInt(12);
+            if (entryCount < 0 || HEADER_SIZE + (long) entryCount * ENTRY_SIZE > indexSize) {
+                LOGGER.warning("Ignoring corrupt index file " + indexPath);
+                return null;
+            }
+            ByteBuffer entries = ByteBuffer.allocate(entryCount * ENTRY_SIZE);
+            readFully(channel, entries, HEADER_SIZE);
+
+            long timeOffset = header.getLong(48);
+            int timeCount = header.getInt(56);
+            if (timeCount < 0 || timeOffset < HEADER_SIZE
+                    || timeOffset + 8 + (long) timeCount * TIME_ENTRY_SIZE > indexSize) {
+                LOGGER.warning("Ignoring corrupt index file " + indexPath);
+                return null;
+            }
+            ByteBuffer times = ByteBuffer.allocate(8 + timeCount * TIME_ENTRY_SIZE);
+            readFully(channel, times, timeOffset);
+            if (header.getInt(CHECKSUM_OFFSET) != checksum(header, entries, times)) {
+                LOGGER.warning("Ignoring index file " + indexPath + ": header checksum mismatch");
+                return null;
+            }
+
+            IPPacketIndex index = new IPPacketIndex();
+            MappedByteBuffer region = null; // Encoded positions of consecutive entries
+            long regionStart = 0;
+            for (int i = 0; i < entryCount; i++) {
+                int base = i * ENTRY_SIZE;
+                long dataOffset = entries.getLong(base + 24);
+                int dataLength = entries.getInt(base + 32);
+                if (dataOffset < HEADER_SIZE || dataLength < 0 || dataOffset + dataLength > indexSize) {
+                    LOGGER.warning("Ignoring corrupt index file " + indexPath);
+                    return null;
+                }
+                if (region == null || dataOffset < regionStart
+                        || dataOffset + dataLength > regionStart + region.capacity()) {
+                    regionStart = dataOffset;
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                            Math.max(dataLength, Math.min(DATA_REGION_SIZE, indexSize - regionStart)));
+                }
+                ByteBuffer encoded = region.slice((int) (dataOffset - regionStart), dataLength);
+                index.put(entries.getInt(base), PositionList.wrap(encoded, entries.getInt(base + 4),
+                        entries.getLong(base + 16), entries.getLong(base + 8)));
+            }
+
+            long[] entryTimes = new long[timeCount];
+            long[] entryOffsets = new long[timeCount];
+            for (int i = 0; i < timeCount; i++) {
+                entryTimes[i] = times.getLong(8 + i * TIME_ENTRY_SIZE);
+                entryOffsets[i] = times.getLong(16 + i * TIME_ENTRY_SIZE);
+            }
+            TimeIndex timeIndex = new TimeIndex(entryTimes, entryOffsets, times.getLong(0));
+
+            return new PcapIndexFile(index, timeIndex, header.getLong(32), header.getLong(40));
+        }
+    }
+
+    /**
+     * Writes the sidecar index of a PCAP file. The file is written under a
+     * temporary name and then moved into place, so readers never see a
+     * partial index.
+     *
+     * @param pcapFile           the path to the PCAP file
+     * @param pcapSize           the size of the PCAP file when the scan
+     *                           started
+     * @param pcapModifiedMillis the modification time of the PCAP file when
+     *                           the scan started, in milliseconds
+     * @param index              the index to write
+     * @param timeIndex          the time index to write
+     * @param packetCount        the number of indexed packets
+     * @param indexedBytes       the file offset where the scan stopped
+     * @throws IOException if an error occurs writing the index file
+     */
+    public static void write(String pcapFile, long pcapSize, long pcapModifiedMillis, IPPacketIndex index,
+            TimeIndex timeIndex, long packetCount, long indexedBytes) throws IOException {
+        Path indexPath = sidecarPath(pcapFile);
+        Path tempPath = Paths.get(indexPath + ".tmp");
+
+        int[] addresses = index.addresses();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer entries = ByteBuffer.allocate(addresses.length * ENTRY_SIZE);
+
+        long dataOffset = HEADER_SIZE + (long) addresses.length * ENTRY_SIZE;
+        for (int address : addresses) {
+            PositionList list = index.get(address);
+            int dataLength = list.encoded().limit();
+            entries.putInt(address);
+            entries.putInt(list.size());
+            entries.putLong(list.byteTotal());
+            entries.putLong(list.last());
+            entries.putLong(dataOffset);
+            entries.putInt(dataLength);
+            entries.putInt(0);
+            dataOffset += dataLength;
+        }
+        entries.flip();
+
+        int timeCount = timeIndex.size();
+        ByteBuffer times = ByteBuffer.allocate(8 + timeCount * TIME_ENTRY_SIZE);
+        times.putLong(timeIndex.maxTime());
+        for (int i = 0; i < timeCount; i++) {
+            times.putLong(timeIndex.time(i));
+            times.putLong(timeIndex.offset(i));
+        }
+        times.flip();
+
+        header.putLong(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(addresses.length);
+        header.putLong(pcapSize);
+        header.putLong(pcapModifiedMillis);
+        header.putLong(packetCount);
+        header.putLong(indexedBytes);
+        header.putLong(dataOffset);
+        header.putInt(timeCount);
+        header.putInt(checksum(header, entries, times));
+        header.flip();
+
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, header);
+            writeFully(channel, entries);
+            for (int address : addresses) {
+                writeFully(channel, index.get(address).encoded());
+            }
+            writeFully(channel, times);
+            channel.force(false);
+        }
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Gets the loaded index.
+     *
+     * @return the index of IP addresses to packet positions
+     */
+    public IPPacketIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the loaded time index.
+     *
+     * @return the sparse index of capture times to record offsets
+     */
+    public TimeIndex getTimeIndex() {
+        return timeIndex;
+    }
+
+    /**
+     * Gets the number of packets that were indexed.
+     *
+     * @return the indexed packet count
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Gets the file offset where the scan that built the index stopped.
+     *
+     * @return the number of PCAP bytes covered by the index
+     */
+    public long getIndexedBytes() {
+        return indexedBytes;
+    }
+
+    private static int checksum(ByteBuffer header, ByteBuffer entries, ByteBuffer times) {
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, CHECKSUM_OFFSET);
+        crc.update(entries.array(), 0, entries.limit());
+        crc.update(times.array(), 0, times.limit());
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of index file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
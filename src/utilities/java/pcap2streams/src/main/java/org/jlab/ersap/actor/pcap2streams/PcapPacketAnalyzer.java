@@ -1,37 +1,61 @@
 package org.jlab.ersap.actor.pcap2streams;
 
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.logging.Logger;
 
 /**
- * Analyzes PCAP packets and extracts detailed information into CSV format.
+ * Analyzes PCAP packets and extracts detailed information into CSV format,
+ * or into a columnar file written by {@link ColumnarWriter}. In the same pass
+ * it can aggregate per-IP and per-flow {@link TrafficStats} into a summary
+ * file.
  */
 public class PcapPacketAnalyzer {
     private static final Logger LOGGER = Logger.getLogger(PcapPacketAnalyzer.class.getName());
 
+    /**
+     * The file format of the packet table.
+     */
+    public enum OutputFormat {
+        /** One text row per packet. */
+        CSV,
+        /** Binary columns in row groups, see {@link ColumnarWriter}. */
+        COLUMNAR,
+        /** No packet table, for example when only statistics are needed. */
+        NONE
+    }
+
     // Header size constants
     private static final int PCAP_HEADER_SIZE = 24; // Global header size
     private static final int PACKET_HEADER_SIZE = 16; // Per-packet header size
     private static final int ETHERNET_HEADER_SIZE = 14; // Ethernet header size
-    private static final int IP_HEADER_SIZE = 20; // Minimum IP header size
-    private static final int TCP_HEADER_SIZE = 20; // Base TCP header size
-    private static final int UDP_HEADER_SIZE = 8; // UDP header size
-
-    // Offset constants
-    private static final int IP_PROTOCOL_OFFSET = 9; // Offset to IP protocol field
-    private static final int IP_HEADER_SRC_ADDR_OFFSET = 12; // Offset to source IP in IP header
-    private static final int IP_HEADER_DST_ADDR_OFFSET = 16; // Offset to destination IP in IP header
+    private static final int MAX_HEADERS_SIZE = 134; // Ethernet plus maximum IP and TCP header sizes
 
     // Size limits
     private static final int MAX_PACKET_SIZE = 65535; // Maximum packet size
     private static final int MIN_PACKET_SIZE = 60; // Minimum packet size
 
+    static final String CSV_HEADER = "PacketNumber,Position,Timestamp,Protocol,TotalLength,HeaderSize,PayloadLength,"
+            + "SourceIP,DestinationIP,SourcePort,DestinationPort\n";
+
+    // Columns of the columnar format, in the order of the CSV header
+    static final String[] COLUMN_NAMES = { "PacketNumber", "Position", "Timestamp", "Protocol", "TotalLength",
+            "HeaderSize", "PayloadLength", "SourceIP", "DestinationIP", "SourcePort", "DestinationPort" };
+    static final ColumnarWriter.Type[] COLUMN_TYPES = { ColumnarWriter.Type.INT32, ColumnarWriter.Type.INT64,
+            ColumnarWriter.Type.INT64, ColumnarWriter.Type.INT32, ColumnarWriter.Type.INT32,
+            ColumnarWriter.Type.INT32, ColumnarWriter.Type.INT32, ColumnarWriter.Type.IPV4,
+            ColumnarWriter.Type.IPV4, ColumnarWriter.Type.INT32, ColumnarWriter.Type.INT32 };
+
     private final String pcapFile;
     private final String csvFile;
-    private FileWriter csvWriter;
+    private OutputFormat outputFormat = OutputFormat.CSV;
+    private String statisticsFile;
+    private PacketFilter filter;
+    private CsvEncoder csvWriter;
+    private ColumnarWriter columnarWriter;
+    private TrafficStats statistics;
 
     public PcapPacketAnalyzer(String pcapFile, String csvFile) {
         this.pcapFile = pcapFile;
@@ -39,46 +63,90 @@ public class PcapPacketAnalyzer {
     }
 
     /**
-     * Analyzes the PCAP file and writes packet information to CSV.
+     * Sets the format of the output file. The default is CSV.
+     *
+     * @param outputFormat the output format
+     */
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * Sets a file to write per-IP and per-flow statistics to after the
+     * analysis.
+     *
+     * @param statisticsFile the summary file, or null to skip the statistics
+     */
+    public void setStatisticsFile(String statisticsFile) {
+        this.statisticsFile = statisticsFile;
+    }
+
+    /**
+     * Sets a filter that selects the packets to write and count. Packets
+     * that do not match are skipped.
+     *
+     * @param filter the packet filter, or null to analyze all IPv4 packets
+     */
+    public void setFilter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Gets the statistics of the last analysis.
+     *
+     * @return the statistics, or null if no statistics file was set
+     */
+    public TrafficStats getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Analyzes the PCAP file and writes packet information to the output
+     * file.
      */
     public void analyze() throws IOException {
         LOGGER.info("Analyzing PCAP file: " + pcapFile);
 
-        // Initialize CSV writer with headers
-        csvWriter = new FileWriter(csvFile);
-        writeCSVHeader();
+        // Initialize the writer; CSV starts with its header
+        if (outputFormat == OutputFormat.COLUMNAR) {
+            columnarWriter = new ColumnarWriter(Paths.get(csvFile), COLUMN_NAMES, COLUMN_TYPES);
+        } else if (outputFormat == OutputFormat.CSV) {
+            csvWriter = new CsvEncoder(Paths.get(csvFile));
+            writeCSVHeader();
+        }
+        statistics = statisticsFile != null ? new TrafficStats() : null;
 
         try (FileInputStream fis = new FileInputStream(pcapFile)) {
-            // Skip the global header
-            if (fis.skip(PCAP_HEADER_SIZE) != PCAP_HEADER_SIZE) {
+            // Record and protocol headers are read into one reusable buffer
+            byte[] headers = new byte[PACKET_HEADER_SIZE + MAX_HEADERS_SIZE];
+            ByteBuffer headerView = ByteBuffer.wrap(headers);
+            PcapRecordCursor cursor = new PcapRecordCursor();
+
+            // Read the global header
+            if (fis.read(headers, 0, PCAP_HEADER_SIZE) != PCAP_HEADER_SIZE) {
                 throw new IOException("Failed to skip global header");
             }
-
-            byte[] packetHeader = new byte[PACKET_HEADER_SIZE];
-            byte[] ethernetHeader = new byte[ETHERNET_HEADER_SIZE];
-            byte[] ipHeader = new byte[IP_HEADER_SIZE];
+            if (!cursor.readGlobalHeader(headerView, 0)) {
+                LOGGER.warning("Unrecognized PCAP magic number in " + pcapFile
+                        + ", assuming little-endian microsecond records");
+            }
+            cursor.at(headerView, 0);
 
             long position = PCAP_HEADER_SIZE;
             int packetCount = 0;
 
             while (fis.available() > 0) {
                 // Read packet header
-                int headerBytesRead = fis.read(packetHeader);
+                headerView.limit(headers.length);
+                int headerBytesRead = fis.read(headers, 0, PACKET_HEADER_SIZE);
                 if (headerBytesRead < PACKET_HEADER_SIZE) {
                     LOGGER.warning("Incomplete packet header at position " + position);
                     break;
                 }
 
                 // Extract packet length and timestamp
-                long timestamp = ((packetHeader[0] & 0xFFL) |
-                        ((packetHeader[1] & 0xFFL) << 8) |
-                        ((packetHeader[2] & 0xFFL) << 16) |
-                        ((packetHeader[3] & 0xFFL) << 24));
-                
-                int packetLength = ((packetHeader[8] & 0xFF) |
-                        ((packetHeader[9] & 0xFF) << 8) |
-                        ((packetHeader[10] & 0xFF) << 16) |
-                        ((packetHeader[11] & 0xFF) << 24));
+                long timestamp = cursor.timestampSeconds();
+                int packetLength = cursor.capturedLength();
 
                 position += PACKET_HEADER_SIZE;
 
@@ -90,127 +158,197 @@ public class PcapPacketAnalyzer {
                     continue;
                 }
 
-                // Read Ethernet header
-                int ethernetBytesRead = fis.read(ethernetHeader);
-                if (ethernetBytesRead < ETHERNET_HEADER_SIZE) {
+                // Read the Ethernet, IP and transport headers
+                int headerBytes = readHeaders(fis, headers, Math.min(packetLength, MAX_HEADERS_SIZE));
+                headerView.limit(PACKET_HEADER_SIZE + headerBytes);
+                if (headerBytes < ETHERNET_HEADER_SIZE) {
                     LOGGER.warning("Incomplete Ethernet header at position " + position);
-                    fis.skip(packetLength - ethernetBytesRead);
+                    fis.skip(packetLength - headerBytes);
                     position += packetLength;
                     continue;
                 }
-                position += ETHERNET_HEADER_SIZE;
 
-                // Check if it's an IP packet (EtherType 0x0800 for IPv4)
-                int etherType = ((ethernetHeader[12] & 0xFF) << 8) | (ethernetHeader[13] & 0xFF);
-                if (etherType != 0x0800) {
-                    fis.skip(packetLength - ETHERNET_HEADER_SIZE);
-                    position += (packetLength - ETHERNET_HEADER_SIZE);
+                // Check if it's an IPv4 packet
+                if (cursor.etherType() != PcapRecordCursor.ETHERTYPE_IPV4) {
+                    fis.skip(packetLength - headerBytes);
+                    position += packetLength;
                     continue;
                 }
-
-                // Read IP header
-                int ipBytesRead = fis.read(ipHeader);
-                if (ipBytesRead < IP_HEADER_SIZE) {
-                    LOGGER.warning("Incomplete IP header at position " + position);
-                    fis.skip(packetLength - ETHERNET_HEADER_SIZE - ipBytesRead);
-                    position += (packetLength - ETHERNET_HEADER_SIZE);
+                if (!cursor.isIPv4()) {
+                    LOGGER.warning("Incomplete IP header at position " + (position + ETHERNET_HEADER_SIZE));
+                    fis.skip(packetLength - headerBytes);
+                    position += packetLength;
                     continue;
                 }
-
-                // Extract protocol
-                int protocol = ipHeader[IP_PROTOCOL_OFFSET] & 0xFF;
-
-                // Extract source and destination IP addresses
-                byte[] srcIp = new byte[4];
-                byte[] dstIp = new byte[4];
-                System.arraycopy(ipHeader, IP_HEADER_SRC_ADDR_OFFSET, srcIp, 0, 4);
-                System.arraycopy(ipHeader, IP_HEADER_DST_ADDR_OFFSET, dstIp, 0, 4);
-
-                String srcIpStr = InetAddress.getByAddress(srcIp).getHostAddress();
-                String dstIpStr = InetAddress.getByAddress(dstIp).getHostAddress();
-
-                // Extract ports based on protocol
-                int sourcePort = 0;
-                int destPort = 0;
-                int transportHeaderSize = 0;
-
-                byte[] transportHeader = new byte[20]; // Max size between TCP and UDP
-                int transportBytesRead = fis.read(transportHeader);
-
-                if (protocol == 6) { // TCP
-                    if (transportBytesRead >= TCP_HEADER_SIZE) {
-                        sourcePort = ((transportHeader[0] & 0xFF) << 8) | (transportHeader[1] & 0xFF);
-                        destPort = ((transportHeader[2] & 0xFF) << 8) | (transportHeader[3] & 0xFF);
-                        transportHeaderSize = ((transportHeader[12] & 0xF0) >> 4) * 4;
-                    }
-                } else if (protocol == 17) { // UDP
-                    if (transportBytesRead >= UDP_HEADER_SIZE) {
-                        sourcePort = ((transportHeader[0] & 0xFF) << 8) | (transportHeader[1] & 0xFF);
-                        destPort = ((transportHeader[2] & 0xFF) << 8) | (transportHeader[3] & 0xFF);
-                        transportHeaderSize = UDP_HEADER_SIZE;
-                    }
+                if (filter != null && !filter.matches(cursor)) {
+                    fis.skip(packetLength - headerBytes);
+                    position += packetLength;
+                    continue;
                 }
 
+                // Extract protocol, addresses and ports
+                int protocol = cursor.protocol();
+                int transportHeaderSize = cursor.l4HeaderLength();
+                int sourcePort = cursor.sourcePort();
+                int destPort = cursor.destinationPort();
+
                 // Calculate total header size and payload length
-                int totalHeaderSize = ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + transportHeaderSize;
+                int totalHeaderSize = ETHERNET_HEADER_SIZE + cursor.ipHeaderLength() + transportHeaderSize;
                 int payloadLength = packetLength - totalHeaderSize;
 
-                // Write packet data to CSV
-                writePacketToCSV(packetCount, position, timestamp, protocol, packetLength,
-                        totalHeaderSize, payloadLength, srcIpStr, dstIpStr, sourcePort, destPort);
+                // Write packet data, positioned at the IP header
+                if (columnarWriter != null) {
+                    writePacketToColumns(columnarWriter, packetCount, position + ETHERNET_HEADER_SIZE, timestamp,
+                            protocol, packetLength, totalHeaderSize, payloadLength, cursor.sourceAddress(),
+                            cursor.destinationAddress(), sourcePort, destPort);
+                } else if (csvWriter != null) {
+                    writePacketToCSV(csvWriter, packetCount, position + ETHERNET_HEADER_SIZE, timestamp, protocol,
+                            packetLength, totalHeaderSize, payloadLength, cursor.sourceAddress(),
+                            cursor.destinationAddress(), sourcePort, destPort);
+                }
+                if (statistics != null) {
+                    statistics.add(cursor.timestampNanos(), packetLength, cursor.sourceAddress(),
+                            cursor.destinationAddress(), sourcePort, destPort, protocol);
+                }
 
                 // Skip the rest of the packet
-                int remainingBytes = packetLength - ETHERNET_HEADER_SIZE - IP_HEADER_SIZE - transportBytesRead;
-                if (remainingBytes > 0) {
-                    fis.skip(remainingBytes);
-                }
-                position += (packetLength - ETHERNET_HEADER_SIZE - IP_HEADER_SIZE);
+                fis.skip(packetLength - headerBytes);
+                position += packetLength;
 
                 packetCount++;
                 if (packetCount % 10000 == 0) {
                     LOGGER.info("Processed " + packetCount + " packets");
-                    csvWriter.flush();
                 }
             }
 
             LOGGER.info("Analysis complete. Processed " + packetCount + " packets");
-            csvWriter.flush();
+            if (statistics != null) {
+                statistics.write(Paths.get(statisticsFile), pcapFile);
+                LOGGER.info("Wrote statistics for " + statistics.getAddressCount() + " addresses and "
+                        + statistics.getFlowCount() + " flows (" + statistics.memoryBytes() + " bytes in memory) to "
+                        + statisticsFile);
+            }
         } finally {
             if (csvWriter != null) {
                 csvWriter.close();
             }
+            if (columnarWriter != null) {
+                columnarWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the first bytes of a packet after its record header.
+     * 
+     * @return the number of bytes read
+     */
+    private static int readHeaders(FileInputStream fis, byte[] headers, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = fis.read(headers, PACKET_HEADER_SIZE + total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
         }
+        return total;
     }
 
     private void writeCSVHeader() throws IOException {
-        csvWriter.write("PacketNumber,Position,Timestamp,Protocol,TotalLength,HeaderSize,PayloadLength," +
-                "SourceIP,DestinationIP,SourcePort,DestinationPort\n");
+        csvWriter.text(CSV_HEADER);
+    }
+
+    /**
+     * Encodes one CSV row without allocating. The row is the same as
+     * {@code String.format("%d,%d,%d,%d,%d,%d,%d,%s,%s,%d,%d\n", ...)} with
+     * the addresses in dotted-decimal notation.
+     */
+    static void writePacketToCSV(CsvEncoder csv, int packetNumber, long position, long timestamp, int protocol,
+            int totalLength, int headerSize, int payloadLength, int sourceAddress, int destAddress,
+            int sourcePort, int destPort) throws IOException {
+        csv.number(packetNumber).character(',')
+                .number(position).character(',')
+                .number(timestamp).character(',')
+                .number(protocol).character(',')
+                .number(totalLength).character(',')
+                .number(headerSize).character(',')
+                .number(payloadLength).character(',')
+                .address(sourceAddress).character(',')
+                .address(destAddress).character(',')
+                .number(sourcePort).character(',')
+                .number(destPort).character('\n');
     }
 
-    private void writePacketToCSV(int packetNumber, long position, long timestamp, int protocol,
-            int totalLength, int headerSize, int payloadLength, String sourceIP, String destIP,
+    /**
+     * Writes one row of the columnar format, with the columns of
+     * {@link #COLUMN_NAMES}.
+     */
+    static void writePacketToColumns(ColumnarWriter columns, int packetNumber, long position, long timestamp,
+            int protocol, int totalLength, int headerSize, int payloadLength, int sourceAddress, int destAddress,
             int sourcePort, int destPort) throws IOException {
-        csvWriter.write(String.format("%d,%d,%d,%d,%d,%d,%d,%s,%s,%d,%d\n",
-                packetNumber, position, timestamp, protocol, totalLength, headerSize, payloadLength,
-                sourceIP, destIP, sourcePort, destPort));
+        columns.put(0, packetNumber);
+        columns.put(1, position);
+        columns.put(2, timestamp);
+        columns.put(3, protocol);
+        columns.put(4, totalLength);
+        columns.put(5, headerSize);
+        columns.put(6, payloadLength);
+        columns.put(7, sourceAddress);
+        columns.put(8, destAddress);
+        columns.put(9, sourcePort);
+        columns.put(10, destPort);
+        columns.endRow();
     }
 
     /**
      * Main method to run the analyzer from command line.
      * 
-     * @param args command line arguments: [pcapFile] [csvFile]
+     * @param args command line arguments: [pcapFile] [outputFile] [--format=csv|columnar|none]
+     *             [--stats=statsFile] [--filter=expression]
      */
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: PcapPacketAnalyzer <pcap_file> <csv_file>");
+        String usage = "Usage: PcapPacketAnalyzer <pcap_file> <output_file> [--format=csv|columnar|none]"
+                + " [--stats=<stats_file>] [--filter=<expression>]";
+        if (args.length < 2) {
+            System.err.println(usage);
             System.exit(1);
         }
 
         String pcapFile = args[0];
         String csvFile = args[1];
+        OutputFormat format = OutputFormat.CSV;
+        String statsFile = null;
+        PacketFilter filter = null;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("--format=")) {
+                try {
+                    format = OutputFormat.valueOf(args[i].substring("--format=".length()).toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unknown format: " + args[i].substring("--format=".length()));
+                    System.exit(1);
+                }
+            } else if (args[i].startsWith("--stats=")) {
+                statsFile = args[i].substring("--stats=".length());
+            } else if (args[i].startsWith("--filter=")) {
+                try {
+                    filter = PacketFilter.compile(args[i].substring("--filter=".length()));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Invalid filter: " + e.getMessage());
+                    System.exit(1);
+                }
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.err.println(usage);
+                System.exit(1);
+            }
+        }
 
         try {
             PcapPacketAnalyzer analyzer = new PcapPacketAnalyzer(pcapFile, csvFile);
+            analyzer.setOutputFormat(format);
+            analyzer.setStatisticsFile(statsFile);
+            analyzer.setFilter(filter);
             analyzer.analyze();
         } catch (IOException e) {
             System.err.println("Error analyzing PCAP file: " + e.getMessage());
@@ -0,0 +1,386 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A reusable view of one pcap record in a ByteBuffer. The cursor is moved
+ * from record to record with {@link #at(ByteBuffer, int)} and reads the record
+ * header, Ethernet, IPv4 and TCP/UDP fields in place, so parsing a packet
+ * allocates nothing.
+ * <p>
+ * The byte order and timestamp resolution of the record headers are taken
+ * from the global header ({@link #readGlobalHeader(ByteBuffer, int)}); until
+ * then little-endian microsecond records are assumed. Network fields are
+ * always read big-endian. The byte order of the underlying buffer does not
+ * matter and is not changed.
+ * <p>
+ * Field accessors only read bytes that are both inside the captured length
+ * and below the buffer limit; fields that are not available read as 0 (or -1
+ * for the EtherType). A cursor is not thread-safe; use one per thread.
+ */
+public final class PcapRecordCursor {
+
+    public static final int GLOBAL_HEADER_SIZE = 24; // Global header size
+    public static final int RECORD_HEADER_SIZE = 16; // Per-packet header size
+    public static final int ETHERNET_HEADER_SIZE = 14; // Ethernet header size
+    public static final int IP_MIN_HEADER_SIZE = 20; // Minimum IP header size
+    public static final int ETHERTYPE_IPV4 = 0x0800; // EtherType for IPv4
+    public static final int PROTOCOL_TCP = 6; // IP protocol number for TCP
+    public static final int PROTOCOL_UDP = 17; // IP protocol number for UDP
+
+    private static final int MAGIC_MICROSECONDS = 0xa1b2c3d4; // Magic of microsecond-resolution files
+    private static final int MAGIC_NANOSECONDS = 0xa1b23c4d; // Magic of nanosecond-resolution files
+    private static final int TCP_MIN_HEADER_SIZE = 20; // Base TCP header size
+    private static final int UDP_HEADER_SIZE = 8; // UDP header size
+
+    private ByteOrder byteOrder;
+    private boolean nanosecond;
+    private int snapLength;
+    private int linkType;
+
+    private ByteBuffer buffer;
+    private int offset;
+    private boolean swapHeader;
+    private boolean swapNetwork;
+
+    /**
+     * Creates a cursor for little-endian microsecond records.
+     */
+    public PcapRecordCursor() {
+        this.byteOrder = ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /**
+     * Creates a cursor for the same record format as another cursor, for
+     * example to parse the same file on another thread.
+     *
+     * @param format the cursor whose global header settings are copied
+     */
+    public PcapRecordCursor(PcapRecordCursor format) {
+        this.byteOrder = format.byteOrder;
+        this.nanosecond = format.nanosecond;
+        this.snapLength = format.snapLength;
+        this.linkType = format.linkType;
+    }
+
+    /**
+     * Reads the byte order, timestamp resolution, snapshot length and link
+     * type from a pcap global header.
+     *
+     * @param buffer the buffer holding the global header
+     * @param offset the absolute offset of the global header in the buffer
+     * @return true if the magic number was recognized; otherwise the current
+     *         settings are kept
+     */
+    public boolean readGlobalHeader(ByteBuffer buffer, int offset) {
+        if (offset + GLOBAL_HEADER_SIZE > buffer.limit()) {
+            return false;
+        }
+        int magic = readInt(buffer, offset, buffer.order() != ByteOrder.BIG_ENDIAN);
+        if (magic == MAGIC_MICROSECONDS || magic == MAGIC_NANOSECONDS) {
+            byteOrder = ByteOrder.BIG_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == MAGIC_MICROSECONDS
+                || Integer.reverseBytes(magic) == MAGIC_NANOSECONDS) {
+            byteOrder = ByteOrder.LITTLE_ENDIAN;
+            magic = Integer.reverseBytes(magic);
+        } else {
+            return false;
+        }
+        nanosecond = magic == MAGIC_NANOSECONDS;
+
+        boolean swap = buffer.order() != byteOrder;
+        snapLength = readInt(buffer, offset + 16, swap);
+        linkType = readInt(buffer, offset + 20, swap);
+        return true;
+    }
+
+    /**
+     * Moves the cursor to the record that starts at the given offset.
+     *
+     * @param buffer the buffer holding the record
+     * @param offset the absolute offset of the record header in the buffer
+     * @return this cursor
+     */
+    public PcapRecordCursor at(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.swapHeader = buffer.order() != byteOrder;
+        this.swapNetwork = buffer.order() != ByteOrder.BIG_ENDIAN;
+        return this;
+    }
+
+    /**
+     * Gets the byte order of the record headers.
+     *
+     * @return the byte order declared by the global header
+     */
+    public ByteOrder byteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * Checks whether record timestamps have nanosecond resolution.
+     *
+     * @return true for nanosecond files, false for microsecond files
+     */
+    public boolean isNanosecond() {
+        return nanosecond;
+    }
+
+    /**
+     * Gets the snapshot length from the global header.
+     *
+     * @return the snapshot length, or 0 if no global header was read
+     */
+    public int snapLength() {
+        return snapLength;
+    }
+
+    /**
+     * Gets the link-layer header type from the global header.
+     *
+     * @return the link type, 1 for Ethernet
+     */
+    public int linkType() {
+        return linkType;
+    }
+
+    /**
+     * Gets the absolute offset of the current record header in the buffer.
+     *
+     * @return the record offset
+     */
+    public int offset() {
+        return offset;
+    }
+
+    /**
+     * Gets the absolute offset of the current packet data in the buffer.
+     *
+     * @return the offset of the first captured byte
+     */
+    public int dataOffset() {
+        return offset + RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * Gets the whole seconds of the record timestamp.
+     *
+     * @return the unsigned seconds since the epoch
+     */
+    public long timestampSeconds() {
+        return headerInt(0) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Gets the fractional part of the record timestamp as stored.
+     *
+     * @return microseconds or nanoseconds, see {@link #isNanosecond()}
+     */
+    public int timestampFraction() {
+        return headerInt(4);
+    }
+
+    /**
+     * Gets the record timestamp in nanoseconds.
+     *
+     * @return the nanoseconds since the epoch
+     */
+    public long timestampNanos() {
+        long fraction = timestampFraction() & 0xFFFFFFFFL;
+        return timestampSeconds() * 1_000_000_000L + (nanosecond ? fraction : fraction * 1000L);
+    }
+
+    /**
+     * Gets the number of bytes of the packet stored in the record.
+     *
+     * @return the captured length; negative values indicate a corrupt record
+     */
+    public int capturedLength() {
+        return headerInt(8);
+    }
+
+    /**
+     * Gets the length of the packet on the wire.
+     *
+     * @return the original length
+     */
+    public int originalLength() {
+        return headerInt(12);
+    }
+
+    /**
+     * Gets the total size of the record including its header.
+     *
+     * @return the record header size plus the captured length
+     */
+    public int recordLength() {
+        return RECORD_HEADER_SIZE + capturedLength();
+    }
+
+    /**
+     * Gets the EtherType of the Ethernet frame.
+     *
+     * @return the EtherType, or -1 if the Ethernet header is not available
+     */
+    public int etherType() {
+        if (!available(ETHERNET_HEADER_SIZE)) {
+            return -1;
+        }
+        return networkShort(12);
+    }
+
+    /**
+     * Checks whether the packet is IPv4 and its minimum IP header is
+     * available.
+     *
+     * @return true if the IPv4 header fields can be read
+     */
+    public boolean isIPv4() {
+        return etherType() == ETHERTYPE_IPV4 && available(ETHERNET_HEADER_SIZE + IP_MIN_HEADER_SIZE);
+    }
+
+    /**
+     * Gets the IPv4 header length from the IHL field.
+     *
+     * @return the IP header length in bytes, or 0 if the packet is not IPv4
+     */
+    public int ipHeaderLength() {
+        if (!isIPv4()) {
+            return 0;
+        }
+        return (buffer.get(dataOffset() + ETHERNET_HEADER_SIZE) & 0x0F) * 4;
+    }
+
+    /**
+     * Gets the IPv4 protocol number.
+     *
+     * @return the protocol, or 0 if the packet is not IPv4
+     */
+    public int protocol() {
+        if (!isIPv4()) {
+            return 0;
+        }
+        return buffer.get(dataOffset() + ETHERNET_HEADER_SIZE + 9) & 0xFF;
+    }
+
+    /**
+     * Gets the IPv4 source address.
+     *
+     * @return the address in network byte order, or 0 if the packet is not IPv4
+     */
+    public int sourceAddress() {
+        return isIPv4() ? networkInt(ETHERNET_HEADER_SIZE + 12) : 0;
+    }
+
+    /**
+     * Gets the IPv4 destination address.
+     *
+     * @return the address in network byte order, or 0 if the packet is not IPv4
+     */
+    public int destinationAddress() {
+        return isIPv4() ? networkInt(ETHERNET_HEADER_SIZE + 16) : 0;
+    }
+
+    /**
+     * Gets the IPv4 fragment offset.
+     *
+     * @return the offset in 8-byte units, 0 for an unfragmented packet or a
+     *         first fragment, or 0 if the packet is not IPv4
+     */
+    public int fragmentOffset() {
+        return isIPv4() ? networkShort(ETHERNET_HEADER_SIZE + 6) & 0x1FFF : 0;
+    }
+
+    /**
+     * Gets the offset of the TCP/UDP header relative to the packet data.
+     *
+     * @return the Ethernet plus IP header length, or 0 if the packet is not IPv4
+     */
+    public int l4Offset() {
+        int ipHeaderLength = ipHeaderLength();
+        return ipHeaderLength > 0 ? ETHERNET_HEADER_SIZE + ipHeaderLength : 0;
+    }
+
+    /**
+     * Gets the TCP or UDP source port.
+     *
+     * @return the port, or 0 for other protocols or if not available
+     * @see #hasPorts()
+     */
+    public int sourcePort() {
+        return hasPorts() ? networkShort(l4Offset()) : 0;
+    }
+
+    /**
+     * Gets the TCP or UDP destination port.
+     *
+     * @return the port, or 0 for other protocols or if not available
+     * @see #hasPorts()
+     */
+    public int destinationPort() {
+        return hasPorts() ? networkShort(l4Offset() + 2) : 0;
+    }
+
+    /**
+     * Gets the length of the TCP header (from its data offset field) or the
+     * UDP header.
+     *
+     * @return the transport header length, or 0 for other protocols or if the
+     *         header is not available, as in fragments after the first
+     */
+    public int l4HeaderLength() {
+        if (fragmentOffset() != 0) {
+            return 0;
+        }
+        int protocol = protocol();
+        int l4Offset = l4Offset();
+        if (protocol == PROTOCOL_TCP && available(l4Offset + TCP_MIN_HEADER_SIZE)) {
+            return ((buffer.get(dataOffset() + l4Offset + 12) & 0xF0) >> 4) * 4;
+        }
+        if (protocol == PROTOCOL_UDP && available(l4Offset + UDP_HEADER_SIZE)) {
+            return UDP_HEADER_SIZE;
+        }
+        return 0;
+    }
+
+    /**
+     * Checks whether the packet carries TCP or UDP ports and they were
+     * captured. Fragments after the first carry no transport header, so
+     * their ports are not read from the payload.
+     *
+     * @return true if the ports can be read
+     */
+    public boolean hasPorts() {
+        int protocol = protocol();
+        return (protocol == PROTOCOL_TCP || protocol == PROTOCOL_UDP) && fragmentOffset() == 0
+                && available(l4Offset() + 4);
+    }
+
+    /**
+     * Checks that the first {@code length} bytes of the packet were captured
+     * and are in the buffer.
+     */
+    private boolean available(int length) {
+        return capturedLength() >= length && dataOffset() + length <= buffer.limit();
+    }
+
+    private int headerInt(int index) {
+        return readInt(buffer, offset + index, swapHeader);
+    }
+
+    private int networkInt(int index) {
+        return readInt(buffer, dataOffset() + index, swapNetwork);
+    }
+
+    private int networkShort(int index) {
+        short value = buffer.getShort(dataOffset() + index);
+        return (swapNetwork ? Short.reverseBytes(value) : value) & 0xFFFF;
+    }
+
+    private static int readInt(ByteBuffer buffer, int index, boolean swap) {
+        int value = buffer.getInt(index);
+        return swap ? Integer.reverseBytes(value) : value;
+    }
+}
@@ -0,0 +1,391 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+
+/**
+ * A sorted, append-only list of packet positions in a PCAP file.
+ * Positions are stored as variable-length deltas, so a typical capture needs
+ * one to three bytes per packet instead of a boxed Long in a hash set.
+ * A list can also be a read-only view of encoded positions in a memory-mapped
+ * {@link PcapIndexFile}; it is copied to the heap on the first append.
+ */
+public final class PositionList {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int OBJECT_OVERHEAD = 64; // Approximate object and array header bytes
+    private static final int SKIP_INTERVAL = 256; // Positions between two skip marks
+
+    private byte[] data;
+    private ByteBuffer mapped;
+    private int length;
+    private int count;
+    private long last;
+    private long byteTotal;
+
+    // Skip marks, built on demand by iteratorFrom: the encoded offset of
+    // every SKIP_INTERVAL-th position and the position before it
+    private int[] skipOffsets;
+    private long[] skipValues;
+    private int skipCount;
+    private int skipLength;
+    private int skipDecoded;
+    private long skipLast;
+
+    /**
+     * Creates an empty position list.
+     */
+    public PositionList() {
+        this.data = new byte[INITIAL_CAPACITY];
+        this.last = -1;
+    }
+
+    /**
+     * Creates a list over already encoded positions.
+     *
+     * @param encoded   the encoded deltas, from position 0 to the limit
+     * @param count     the number of positions
+     * @param last      the last position
+     * @param byteTotal the captured bytes of all packets
+     * @return a list that reads directly from {@code encoded}
+     */
+    static PositionList wrap(ByteBuffer encoded, int count, long last, long byteTotal) {
+        PositionList list = new PositionList();
+        list.data = null;
+        list.mapped = encoded;
+        list.length = encoded.limit();
+        list.count = count;
+        list.last = last;
+        list.byteTotal = byteTotal;
+        return list;
+    }
+
+    /**
+     * Appends a position. Positions must be appended in increasing order;
+     * appending the last position again is ignored.
+     *
+     * @param position the file offset of the packet record
+     * @throws IllegalArgumentException if the position is smaller than the last
+     *                                  one appended
+     */
+    public void add(long position) {
+        add(position, 0);
+    }
+
+    /**
+     * Appends a position and counts the captured length of its packet.
+     * Positions must be appended in increasing order; appending the last
+     * position again is ignored.
+     *
+     * @param position      the file offset of the packet record
+     * @param capturedBytes the captured length of the packet
+     * @throws IllegalArgumentException if the position is smaller than the last
+     *                                  one appended
+     */
+    public void add(long position, int capturedBytes) {
+        if (position == last) {
+            return;
+        }
+        if (position < last) {
+            throw new IllegalArgumentException("Position " + position + " is before last position " + last);
+        }
+
+        long delta = count == 0 ? position : position - last;
+        ensureCapacity(length + 10);
+        while ((delta & ~0x7FL) != 0) {
+            data[length++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        data[length++] = (byte) delta;
+
+        last = position;
+        count++;
+        byteTotal += capturedBytes;
+    }
+
+    /**
+     * Appends all positions of another list, which must start after the last
+     * position of this list.
+     *
+     * @param other the list to append
+     */
+    public void addAll(PositionList other) {
+        ensureCapacity(length + other.length + 10);
+        PrimitiveIterator.OfLong it = other.iterator();
+        while (it.hasNext()) {
+            add(it.nextLong());
+        }
+        byteTotal += other.byteTotal;
+    }
+
+    /**
+     * Merges lists into one list in file order. A position that occurs in
+     * several lists is kept once; byte totals are summed, so the lists should
+     * not share packets.
+     *
+     * @param lists the lists to merge
+     * @return a new list with the positions of all lists
+     */
+    public static PositionList merge(List<PositionList> lists) {
+        PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, lists.size()));
+        PositionList merged = new PositionList();
+        for (PositionList list : lists) {
+            PrimitiveIterator.OfLong it = list.iterator();
+            if (it.hasNext()) {
+                heads.add(new Head(it));
+            }
+            merged.byteTotal += list.byteTotal;
+        }
+        while (!heads.isEmpty()) {
+            Head head = heads.poll();
+            merged.add(head.value);
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        merged.trim();
+        return merged;
+    }
+
+    /**
+     * Gets the number of positions in this list.
+     *
+     * @return the number of positions
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Checks whether this list is empty.
+     *
+     * @return true if no positions have been added
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Gets the last (largest) position in this list.
+     *
+     * @return the last position, or -1 if the list is empty
+     */
+    public long last() {
+        return last;
+    }
+
+    /**
+     * Gets the sum of the captured lengths of the packets in this list.
+     *
+     * @return the number of captured bytes
+     */
+    public long byteTotal() {
+        return byteTotal;
+    }
+
+    /**
+     * Returns an iterator over the positions in increasing order. The iterator
+     * does not allocate per position. It covers the positions present when it
+     * was created, so a list may be appended to while a snapshot is iterated,
+     * provided the caller synchronizes creating iterators with appending.
+     *
+     * @return a primitive iterator over the positions
+     */
+    public PrimitiveIterator.OfLong iterator() {
+        return new Iterator(encoded());
+    }
+
+    /**
+     * Returns an iterator over the positions that follow those already
+     * returned by an earlier iterator of this list, including positions
+     * appended since that iterator was created.
+     *
+     * @param previous an iterator returned by {@link #iterator()} or this
+     *                 method for this list
+     * @return a primitive iterator that resumes after {@code previous}
+     */
+    public PrimitiveIterator.OfLong iteratorAfter(PrimitiveIterator.OfLong previous) {
+        Iterator resumed = (Iterator) previous;
+        return new Iterator(encoded(), resumed.offset, resumed.value);
+    }
+
+    /**
+     * Returns an iterator over the positions that are at or after a file
+     * offset. Skip marks over the encoded positions are built on the first
+     * call and extended for appended positions, so later calls decode at most
+     * {@link #SKIP_INTERVAL} positions. Like {@link #iterator()}, the iterator
+     * covers the positions present when it was created. Building the marks
+     * changes the list, so calls must be synchronized with appending.
+     *
+     * @param offset the file offset to start at
+     * @return a primitive iterator over the positions from {@code offset}
+     */
+    public PrimitiveIterator.OfLong iteratorFrom(long offset) {
+        ByteBuffer encoded = encoded();
+        extendSkipMarks(encoded);
+
+        // Last mark whose preceding position is before the offset
+        int low = 0;
+        int high = skipCount - 1;
+        int mark = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (skipValues[middle] < offset) {
+                mark = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        Iterator it = mark >= 0 ? new Iterator(encoded, skipOffsets[mark], skipValues[mark]) : new Iterator(encoded);
+        while (it.hasNext()) {
+            int entryOffset = it.offset;
+            long previous = it.value;
+            if (it.nextLong() >= offset) {
+                return new Iterator(encoded, entryOffset, previous);
+            }
+        }
+        return it;
+    }
+
+    private void extendSkipMarks(ByteBuffer encoded) {
+        if (skipOffsets == null) {
+            skipOffsets = new int[INITIAL_CAPACITY];
+            skipValues = new long[INITIAL_CAPACITY];
+        }
+        Iterator it = new Iterator(encoded, skipLength, skipLast);
+        while (it.hasNext()) {
+            if (skipDecoded % SKIP_INTERVAL == 0) {
+                if (skipCount == skipOffsets.length) {
+                    skipOffsets = Arrays.copyOf(skipOffsets, skipCount * 2);
+                    skipValues = Arrays.copyOf(skipValues, skipCount * 2);
+                }
+                skipOffsets[skipCount] = it.offset;
+                skipValues[skipCount] = it.value;
+                skipCount++;
+            }
+            it.nextLong();
+            skipDecoded++;
+        }
+        skipLength = it.offset;
+        skipLast = it.value;
+    }
+
+    /**
+     * Releases unused capacity once the list is complete.
+     */
+    public void trim() {
+        if (data != null && data.length > length) {
+            data = Arrays.copyOf(data, length);
+        }
+    }
+
+    /**
+     * Estimates the heap memory used by this list. Positions read from a
+     * memory-mapped index file do not count.
+     *
+     * @return the approximate size in bytes
+     */
+    public long memoryBytes() {
+        return OBJECT_OVERHEAD + (data != null ? data.length : 0)
+                + (skipOffsets != null ? 12L * skipOffsets.length : 0);
+    }
+
+    /**
+     * Gets a read-only view of the encoded deltas, from position 0 to the
+     * limit.
+     */
+    ByteBuffer encoded() {
+        if (data != null) {
+            return ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+        }
+        return mapped.duplicate();
+    }
+
+    private void ensureCapacity(int required) {
+        if (data == null) {
+            data = new byte[Math.max(required, length + INITIAL_CAPACITY)];
+            mapped.duplicate().get(data, 0, length);
+            mapped = null;
+        }
+        if (required > data.length) {
+            data = Arrays.copyOf(data, Math.max(required, data.length + (data.length >> 1)));
+        }
+    }
+
+    /**
+     * The next position of one list during a merge.
+     */
+    private static final class Head implements Comparable<Head> {
+
+        private final PrimitiveIterator.OfLong iterator;
+        private long value;
+
+        Head(PrimitiveIterator.OfLong iterator) {
+            this.iterator = iterator;
+            this.value = iterator.nextLong();
+        }
+
+        boolean advance() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            value = iterator.nextLong();
+            return true;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            return Long.compare(value, other.value);
+        }
+    }
+
+    /**
+     * Decodes the delta-encoded positions.
+     */
+    private static final class Iterator implements PrimitiveIterator.OfLong {
+
+        private final ByteBuffer data;
+        private final int length;
+        private int offset;
+        private long value;
+
+        Iterator(ByteBuffer data) {
+            this(data, 0, 0);
+        }
+
+        Iterator(ByteBuffer data, int offset, long value) {
+            this.data = data;
+            this.length = data.limit();
+            this.offset = offset;
+            this.value = value;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return offset < length;
+        }
+
+        @Override
+        public long nextLong() {
+            if (offset >= length) {
+                throw new NoSuchElementException();
+            }
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(offset++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += delta;
+            return value;
+        }
+    }
+}
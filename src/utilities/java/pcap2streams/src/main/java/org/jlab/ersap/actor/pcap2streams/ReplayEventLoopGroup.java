@@ -0,0 +1,327 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small pool of selector threads that serves the listening sockets and the
+ * client connections of all IPBasedPcapServer instances. Each loop owns a
+ * {@link Selector}, a queue of tasks handed to it by other threads and a
+ * queue of timers, so a stream that waits for socket buffer space, for its
+ * next packet time or for appended packets holds no thread.
+ * <p>
+ * Channels and their handlers are confined to the loop they are registered
+ * with: handlers, tasks and timers of one loop run on its thread only, one at
+ * a time, and must not block on the network.
+ */
+public final class ReplayEventLoopGroup implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ReplayEventLoopGroup.class.getName());
+
+    /**
+     * Longest wait for a timer that busy-spins instead of parking in the
+     * selector, whose timeouts have a resolution of 1 ms.
+     */
+    public static final long SPIN_NANOS = 100_000;
+
+    /**
+     * Handles the readiness of a channel registered with an event loop.
+     */
+    public interface Handler {
+
+        /**
+         * Called on the loop thread when the channel is ready for some of the
+         * operations it is registered for.
+         *
+         * @param key the selection key of the channel
+         * @throws IOException if an error occurs; the key is then cancelled and
+         *                     the channel closed
+         */
+        void ready(SelectionKey key) throws IOException;
+    }
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next;
+
+    /**
+     * Creates and starts a group of event loops.
+     *
+     * @param threads the number of event-loop threads, at least 1
+     * @param name    the name prefix of the threads
+     * @throws IOException if a selector cannot be opened
+     */
+    public ReplayEventLoopGroup(int threads, String name) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Event loop threads must be at least 1: " + threads);
+        }
+        this.loops = new EventLoop[threads];
+        this.next = new AtomicInteger();
+        try {
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new EventLoop(name + "-" + i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Gets the next event loop in round-robin order, to spread servers and
+     * clients over the threads.
+     *
+     * @return an event loop of this group
+     */
+    public EventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Gets the number of event-loop threads.
+     *
+     * @return the thread count
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * Stops the event loops and closes every channel still registered with
+     * them.
+     */
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * One selector thread of the group.
+     */
+    public static final class EventLoop {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks;
+        private final PriorityQueue<Timer> timers;
+        private long timerSequence;
+        private volatile boolean running;
+
+        private EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.timers = new PriorityQueue<>();
+            this.running = true;
+            this.thread = new Thread(this::run, name);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Runs a task on the loop thread. Tasks run in the order they were
+         * submitted; a task submitted from the loop thread runs after the
+         * current handler returns.
+         *
+         * @param task the task to run
+         */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Runs a task on the loop thread once a point in time is reached.
+         * The loop parks in the selector, with its millisecond resolution,
+         * until the timer is less than {@link #SPIN_NANOS} away, and then
+         * busy-spins, so short waits are met to a few microseconds.
+         *
+         * @param deadlineNanos the {@link System#nanoTime()} to run the task at
+         * @param task          the task to run
+         */
+        public void schedule(long deadlineNanos, Runnable task) {
+            if (Thread.currentThread() != thread) {
+                execute(() -> schedule(deadlineNanos, task));
+                return;
+            }
+            timers.add(new Timer(deadlineNanos, timerSequence++, task));
+        }
+
+        /**
+         * Registers a channel with this loop. The channel is switched to
+         * non-blocking mode; registration happens on the loop thread.
+         *
+         * @param channel   the channel to register
+         * @param ops       the initial interest set
+         * @param handler   the handler of the channel's readiness
+         * @param onRegistered called on the loop thread with the key, or with
+         *                     null if the channel could not be registered and
+         *                     was closed; may be null
+         */
+        public void register(SelectableChannel channel, int ops, Handler handler,
+                Consumer<SelectionKey> onRegistered) {
+            execute(() -> {
+                SelectionKey key = null;
+                try {
+                    channel.configureBlocking(false);
+                    key = channel.register(selector, ops, handler);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error registering channel with " + thread.getName(), e);
+                    closeQuietly(channel);
+                }
+                if (onRegistered != null) {
+                    onRegistered.accept(key);
+                }
+            });
+        }
+
+        /**
+         * Checks whether the caller runs on this loop's thread.
+         *
+         * @return true on the loop thread
+         */
+        public boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        private void run() {
+            try {
+                while (running) {
+                    long wait = runTimers();
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (wait == Long.MAX_VALUE) {
+                        selector.select();
+                    } else if (wait <= SPIN_NANOS) {
+                        Thread.onSpinWait();
+                        selector.selectNow();
+                    } else {
+                        selector.select(Math.max(1, wait / 1_000_000));
+                    }
+                    dispatch();
+                    runTasks();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Event loop " + thread.getName() + " failed", e);
+            } finally {
+                // Let tasks submitted before the shutdown close their channels
+                runTasks();
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        private void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        /**
+         * Runs the handlers of the ready channels.
+         */
+        private void dispatch() {
+            Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+            while (ready.hasNext()) {
+                SelectionKey key = ready.next();
+                ready.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.ready(key);
+                    }
+                } catch (CancelledKeyException e) {
+                    // The handler closed its channel
+                } catch (IOException | RuntimeException e) {
+                    if (!(e instanceof ClosedChannelException)) {
+                        LOGGER.log(Level.WARNING, "Error handling channel on " + thread.getName(), e);
+                    }
+                    key.cancel();
+                    closeQuietly(key.channel());
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            // Tasks submitted by these tasks wait for the next iteration
+            for (int pending = tasks.size(); pending > 0 && (task = tasks.poll()) != null; pending--) {
+                runSafely(task);
+            }
+        }
+
+        /**
+         * Runs the timers that are due.
+         *
+         * @return the nanoseconds until the next timer, or
+         *         {@link Long#MAX_VALUE} if there is none
+         */
+        private long runTimers() {
+            while (!timers.isEmpty()) {
+                long wait = timers.peek().deadlineNanos - System.nanoTime();
+                if (wait > 0) {
+                    return wait;
+                }
+                runSafely(timers.poll().task);
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private void runSafely(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error in task on " + thread.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * A task to run at a deadline, ordered by deadline and then submission.
+     */
+    private static final class Timer implements Comparable<Timer> {
+
+        private final long deadlineNanos;
+        private final long sequence;
+        private final Runnable task;
+
+        Timer(long deadlineNanos, long sequence, Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            int order = Long.compare(deadlineNanos - other.deadlineNanos, 0);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing " + closeable, e);
+        }
+    }
+}
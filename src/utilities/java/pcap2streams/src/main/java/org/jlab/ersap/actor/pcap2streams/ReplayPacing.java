@@ -0,0 +1,292 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How fast IPBasedPcapServer sends the packets of a stream. A pacing is an
+ * immutable setting shared by the servers; each client session gets its own
+ * {@link Pacer} that tells when the next packet is due.
+ * <ul>
+ * <li>{@code fixed}: a fixed delay after every packet, 1 ms by default, as
+ * the server always used to send.</li>
+ * <li>{@code none}: as fast as the client reads.</li>
+ * <li>{@code capture[:SPEED]}: at the original capture inter-arrival times,
+ * divided by a speed multiplier. Idle gaps longer than a maximum gap can be
+ * compressed to that gap.</li>
+ * <li>{@code pps:RATE} and {@code gbps:RATE}: a target rate in packets or
+ * gigabits per second, held by a token bucket that may run up to
+ * {@link #BURST_NANOS} ahead after a late wake-up.</li>
+ * </ul>
+ * Due times are met by the event loop, which busy-spins for waits shorter
+ * than {@link ReplayEventLoopGroup#SPIN_NANOS} and parks in the selector for
+ * longer ones. High rates therefore get evenly spaced packets, while low
+ * rates cost no CPU between packets and catch up with a short burst.
+ */
+public final class ReplayPacing {
+
+    /** Credit a token bucket may accumulate, covering late wake-ups from the selector. */
+    public static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /** Longest lag behind capture timing that is caught up with a burst. */
+    public static final long MAX_CAPTURE_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** The fixed 1 ms delay after each packet that the server used by default. */
+    public static final ReplayPacing DEFAULT = fixedDelay(TimeUnit.MILLISECONDS.toNanos(1));
+
+    /**
+     * The pacing modes.
+     */
+    public enum Mode {
+        /** A fixed delay after every packet. */
+        FIXED,
+        /** No delay. */
+        NONE,
+        /** Capture inter-arrival times, scaled by a speed multiplier. */
+        CAPTURE,
+        /** A target packet rate. */
+        PACKET_RATE,
+        /** A target bit rate. */
+        BIT_RATE
+    }
+
+    private final Mode mode;
+    private final double value; // Delay in ns, speed, packets/s or bits/s
+    private final long maxGapNanos;
+
+    private ReplayPacing(Mode mode, double value, long maxGapNanos) {
+        this.mode = mode;
+        this.value = value;
+        this.maxGapNanos = maxGapNanos;
+    }
+
+    /**
+     * Creates a pacing with a fixed delay after every packet.
+     *
+     * @param delayNanos the delay in nanoseconds
+     * @return the pacing
+     */
+    public static ReplayPacing fixedDelay(long delayNanos) {
+        if (delayNanos < 0) {
+            throw new IllegalArgumentException("Delay must not be negative: " + delayNanos);
+        }
+        return new ReplayPacing(Mode.FIXED, delayNanos, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a pacing that sends as fast as the client reads.
+     *
+     * @return the pacing
+     */
+    public static ReplayPacing unpaced() {
+        return new ReplayPacing(Mode.NONE, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a pacing that follows the capture timestamps.
+     *
+     * @param speed       the speed multiplier, 1 for real time
+     * @param maxGapNanos the longest capture-time gap kept between two
+     *                    packets, longer idle gaps are compressed to it; or
+     *                    {@link Long#MAX_VALUE} to keep every gap
+     * @return the pacing
+     */
+    public static ReplayPacing capture(double speed, long maxGapNanos) {
+        if (!(speed > 0) || Double.isInfinite(speed)) {
+            throw new IllegalArgumentException("Speed must be positive: " + speed);
+        }
+        if (maxGapNanos < 0) {
+            throw new IllegalArgumentException("Maximum gap must not be negative: " + maxGapNanos);
+        }
+        return new ReplayPacing(Mode.CAPTURE, speed, maxGapNanos);
+    }
+
+    /**
+     * Creates a pacing that holds a packet rate.
+     *
+     * @param packetsPerSecond the target rate
+     * @return the pacing
+     */
+    public static ReplayPacing packetRate(double packetsPerSecond) {
+        if (!(packetsPerSecond > 0) || Double.isInfinite(packetsPerSecond)) {
+            throw new IllegalArgumentException("Packet rate must be positive: " + packetsPerSecond);
+        }
+        return new ReplayPacing(Mode.PACKET_RATE, packetsPerSecond, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a pacing that holds a bit rate, counting the length prefix and
+     * the data of each packet sent.
+     *
+     * @param bitsPerSecond the target rate
+     * @return the pacing
+     */
+    public static ReplayPacing bitRate(double bitsPerSecond) {
+        if (!(bitsPerSecond > 0) || Double.isInfinite(bitsPerSecond)) {
+            throw new IllegalArgumentException("Bit rate must be positive: " + bitsPerSecond);
+        }
+        return new ReplayPacing(Mode.BIT_RATE, bitsPerSecond, Long.MAX_VALUE);
+    }
+
+    /**
+     * Parses a pacing: {@code fixed[:MS]}, {@code none},
+     * {@code capture[:SPEED]}, {@code pps:RATE} or {@code gbps:RATE}.
+     *
+     * @param spec        the pacing to parse
+     * @param maxGapNanos the maximum gap for capture pacing, or
+     *                    {@link Long#MAX_VALUE} to keep every gap
+     * @return the pacing
+     * @throws IllegalArgumentException if the pacing is invalid
+     */
+    public static ReplayPacing parse(String spec, long maxGapNanos) {
+        String trimmed = spec.trim().toLowerCase(Locale.ROOT);
+        int colon = trimmed.indexOf(':');
+        String name = colon < 0 ? trimmed : trimmed.substring(0, colon);
+        String argument = colon < 0 ? null : trimmed.substring(colon + 1);
+        try {
+            switch (name) {
+                case "fixed":
+                    return argument == null ? DEFAULT
+                            : fixedDelay(Math.round(Double.parseDouble(argument) * 1e6));
+                case "none":
+                    if (argument != null) {
+                        break;
+                    }
+                    return unpaced();
+                case "capture":
+                    return capture(argument == null ? 1 : Double.parseDouble(argument), maxGapNanos);
+                case "pps":
+                    if (argument == null) {
+                        break;
+                    }
+                    return packetRate(Double.parseDouble(argument));
+                case "gbps":
+                    if (argument == null) {
+                        break;
+                    }
+                    return bitRate(Double.parseDouble(argument) * 1e9);
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid pacing: " + spec
+                + " (expected fixed[:MS], none, capture[:SPEED], pps:RATE or gbps:RATE)");
+    }
+
+    /**
+     * Gets the pacing mode.
+     *
+     * @return the mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Gets the setting of the mode: the delay in nanoseconds, the speed
+     * multiplier, or the rate in packets or bits per second.
+     *
+     * @return the value, 0 when unpaced
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the longest capture-time gap kept between two packets.
+     *
+     * @return the maximum gap in nanoseconds, or {@link Long#MAX_VALUE} if
+     *         every gap is kept
+     */
+    public long getMaxGapNanos() {
+        return maxGapNanos;
+    }
+
+    /**
+     * Creates the pacing state of one client session.
+     *
+     * @return a new pacer
+     */
+    public Pacer newPacer() {
+        return new Pacer();
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case FIXED:
+                return String.format("fixed %.3f ms delay", value / 1e6);
+            case CAPTURE:
+                return String.format("capture timing at %gx speed", value)
+                        + (maxGapNanos != Long.MAX_VALUE ? String.format(", gaps over %.6f s compressed",
+                                maxGapNanos / 1e9) : "");
+            case PACKET_RATE:
+                return String.format("%.0f packets/s", value);
+            case BIT_RATE:
+                return String.format("%.3f Gbps", value / 1e9);
+            default:
+                return "unpaced";
+        }
+    }
+
+    /**
+     * The pacing state of one client session. Not thread-safe.
+     */
+    public final class Pacer {
+
+        private boolean started;
+        private long nextNanos; // Due time of the next packet
+        private long lastCaptureNanos;
+
+        private Pacer() {
+        }
+
+        /**
+         * Gets the time a packet is due and accounts for it, assuming it is
+         * sent at that time.
+         *
+         * @param nowNanos     the current {@link System#nanoTime()}
+         * @param captureNanos the capture time of the packet
+         * @param bytes        the number of bytes sent for the packet
+         * @return the {@link System#nanoTime()} at which to send the packet,
+         *         at most {@code nowNanos} if it is due
+         */
+        public long due(long nowNanos, long captureNanos, int bytes) {
+            if (!started) {
+                started = true;
+                nextNanos = nowNanos;
+                lastCaptureNanos = captureNanos;
+            }
+            long due;
+            switch (mode) {
+                case FIXED:
+                    due = Math.max(nowNanos, nextNanos);
+                    nextNanos = due + (long) value;
+                    return due;
+                case CAPTURE:
+                    // Earlier timestamps, as when a replay pass starts over, send at once
+                    long gap = Math.min(Math.max(captureNanos - lastCaptureNanos, 0), maxGapNanos);
+                    lastCaptureNanos = captureNanos;
+                    nextNanos += (long) (gap / value);
+                    if (nextNanos - nowNanos < -MAX_CAPTURE_LAG_NANOS) {
+                        // Far behind, as after a stall; do not flood the client to catch up
+                        nextNanos = nowNanos;
+                    }
+                    return nextNanos;
+                case PACKET_RATE:
+                case BIT_RATE:
+                    if (nextNanos - nowNanos < -BURST_NANOS) {
+                        nextNanos = nowNanos - BURST_NANOS;
+                    }
+                    due = nextNanos;
+                    double units = mode == Mode.PACKET_RATE ? 1 : 8.0 * bytes;
+                    nextNanos += (long) (units * 1e9 / value);
+                    return due;
+                default:
+                    return nowNanos;
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesced, prefetched reads of the packets of replay passes. A stream's
+ * packets are scattered through the file in file order, so reading each
+ * record on its own costs a seek or a small request per packet. A
+ * {@link Reader} instead reads a run of upcoming packets with one large read
+ * into a window, and reads the window after it on an I/O thread of this pool
+ * while the session sends from the current one, giving near-sequential
+ * bandwidth on spinning and network-backed storage.
+ * <p>
+ * A run ends where a window is full or where the gap to the next packet of
+ * the stream is larger than {@link #COALESCE_GAP}, beyond which a seek costs
+ * less than reading the bytes in between. Packets that do not fit a window,
+ * such as the last packet of a run, are read directly by the session.
+ */
+public final class ReplayReadAhead implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ReplayReadAhead.class.getName());
+
+    /** Default size of a read-ahead window. */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 20;
+
+    /** Largest gap between two packets of a stream read as part of a run. */
+    public static final int COALESCE_GAP = 128 * 1024;
+
+    private static final int MIN_WINDOW_SIZE = 1 << 16;
+
+    private final ExecutorService executor;
+
+    /**
+     * Creates a pool of I/O threads.
+     *
+     * @param threads the number of I/O threads, at least 1
+     */
+    public ReplayReadAhead(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Read-ahead threads must be at least 1: " + threads);
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "replay-read-ahead-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates the reader of one replay session.
+     *
+     * @param channel         the PCAP file, read with positional reads
+     * @param windowSize      the size of each of the reader's two windows
+     * @param maxRecordLength the most bytes of a record the session reads,
+     *                        record header included
+     * @param loop            the event loop of the session
+     * @return a new reader
+     */
+    public Reader newReader(FileChannel channel, int windowSize, int maxRecordLength,
+            ReplayEventLoopGroup.EventLoop loop) {
+        if (windowSize < MIN_WINDOW_SIZE) {
+            throw new IllegalArgumentException("Read-ahead window must be at least " + MIN_WINDOW_SIZE + " bytes: "
+                    + windowSize);
+        }
+        return new Reader(channel, windowSize, maxRecordLength, loop);
+    }
+
+    /**
+     * Stops the I/O threads.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A contiguous range of the file held in a direct buffer.
+     */
+    private static final class Window {
+
+        final ByteBuffer buffer;
+        long start;
+        long end; // End of the bytes read, short of the planned end at the end of the file
+        boolean loading;
+        boolean ready;
+
+        Window(int size) {
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        boolean holds(long position) {
+            return ready && start <= position && position < end;
+        }
+    }
+
+    /**
+     * The read-ahead state of one session: the positions of the current
+     * pass queued ahead of the session, the window it reads from and the
+     * window being prefetched. Confined to the session's event loop, except
+     * for the loading of a window on an I/O thread.
+     */
+    public final class Reader {
+
+        private final FileChannel channel;
+        private final int windowSize;
+        private final int maxRecordLength;
+        private final ReplayEventLoopGroup.EventLoop loop;
+        private Window current;
+        private Window next;
+        private PrimitiveIterator.OfLong source;
+        private long[] queue; // Positions taken from the pass ahead of the session
+        private int queueHead;
+        private int queueSize;
+        private boolean lookedAhead; // The window after the current one was planned, or cannot be yet
+        private Runnable waiter;
+        private boolean failed;
+        private boolean closed;
+        private long windowReads;
+        private long bytesRead;
+
+        private Reader(FileChannel channel, int windowSize, int maxRecordLength, ReplayEventLoopGroup.EventLoop loop) {
+            this.channel = channel;
+            this.windowSize = windowSize;
+            this.maxRecordLength = maxRecordLength;
+            this.loop = loop;
+            this.queue = new long[1024];
+        }
+
+        /**
+         * Starts reading a replay pass. The session takes the positions of
+         * the pass from the returned iterator, so the reader can look ahead
+         * of it.
+         *
+         * @param pass the positions of the pass in file order
+         * @return an iterator over the same positions
+         */
+        public PrimitiveIterator.OfLong follow(PrimitiveIterator.OfLong pass) {
+            source = pass;
+            queueHead = 0;
+            queueSize = 0;
+            lookedAhead = false;
+            return new PrimitiveIterator.OfLong() {
+                @Override
+                public boolean hasNext() {
+                    return queueSize > 0 || source.hasNext();
+                }
+
+                @Override
+                public long nextLong() {
+                    if (queueSize == 0) {
+                        return source.nextLong();
+                    }
+                    long position = queue[queueHead];
+                    queueHead = (queueHead + 1) & (queue.length - 1);
+                    queueSize--;
+                    return position;
+                }
+            };
+        }
+
+        /**
+         * Makes the record at a position readable from a window, loading the
+         * run of packets it starts if needed, and prefetches the run after
+         * the current window.
+         *
+         * @param position the position of the record the session reads next
+         * @param resume   run on the loop once a window is loaded, if this
+         *                 returns false
+         * @return true if the session can read the record, from a window or
+         *         directly; false if it must wait for the window
+         */
+        public boolean await(long position, Runnable resume) {
+            if (failed) {
+                return true;
+            }
+            if (current == null || !current.holds(position)) {
+                if (next != null && next.loading) {
+                    if (waiter == null) {
+                        waiter = resume;
+                    }
+                    return false;
+                }
+                if (next != null && next.ready && next.start == position) {
+                    Window swapped = current;
+                    current = next;
+                    next = swapped;
+                    if (next != null) {
+                        next.ready = false;
+                    }
+                    lookedAhead = false;
+                } else {
+                    // A seek: read the run from here, and wait for it
+                    load(position);
+                    waiter = resume;
+                    return false;
+                }
+            }
+            if (!lookedAhead && (next == null || !next.loading)) {
+                lookedAhead = true;
+                long after = firstAfter(current.end);
+                if (after >= 0) {
+                    load(after);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Gets the bytes at a file position from the current window.
+         *
+         * @param position the file position
+         * @param length   the number of bytes
+         * @return a view of the bytes, or null if the window does not hold
+         *         them all
+         */
+        public ByteBuffer slice(long position, int length) {
+            if (current == null || !current.ready || position < current.start
+                    || position + length > current.end) {
+                return null;
+            }
+            ByteBuffer view = current.buffer.duplicate();
+            int offset = (int) (position - current.start);
+            view.limit(offset + length).position(offset);
+            return view;
+        }
+
+        /**
+         * Stops reading ahead; a window being loaded is discarded.
+         */
+        public void close() {
+            closed = true;
+            waiter = null;
+        }
+
+        /**
+         * Describes the windows read so far.
+         *
+         * @return the number of window reads and their average size
+         */
+        public String report() {
+            return String.format("%d reads of %.1f KB on average", windowReads,
+                    windowReads > 0 ? bytesRead / 1024.0 / windowReads : 0.0);
+        }
+
+        /**
+         * Finds the first queued or upcoming position at or after an offset.
+         *
+         * @return the position, or -1 if the pass has none yet
+         */
+        private long firstAfter(long offset) {
+            for (int i = 0;; i++) {
+                if (i == queueSize && !pull()) {
+                    return -1;
+                }
+                long position = queue[(queueHead + i) & (queue.length - 1)];
+                if (position >= offset) {
+                    return position;
+                }
+            }
+        }
+
+        /**
+         * Plans the run of packets starting at a position and loads it into
+         * the spare window on an I/O thread.
+         */
+        private void load(long start) {
+            long limit = start + windowSize;
+            long last = start;
+            int i = 0;
+            while (i < queueSize && queue[(queueHead + i) & (queue.length - 1)] <= start) {
+                i++;
+            }
+            while (true) {
+                if (i == queueSize && !pull()) {
+                    break;
+                }
+                long position = queue[(queueHead + i++) & (queue.length - 1)];
+                if (position >= limit || position - last > COALESCE_GAP) {
+                    limit = Math.min(limit, position);
+                    break;
+                }
+                last = position;
+            }
+            long end = Math.min(limit, last + maxRecordLength);
+
+            if (next == null) {
+                next = new Window(windowSize);
+            }
+            Window window = next;
+            window.start = start;
+            window.end = start;
+            window.ready = false;
+            window.loading = true;
+            int length = (int) (end - start);
+            try {
+                executor.execute(() -> fill(window, length));
+            } catch (RejectedExecutionException e) {
+                window.loading = false;
+                failed = true;
+            }
+        }
+
+        /**
+         * Reads a window on an I/O thread and hands it to the session's loop.
+         */
+        private void fill(Window window, int length) {
+            ByteBuffer buffer = window.buffer;
+            buffer.clear().limit(length);
+            IOException error = null;
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, window.start + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            int read = buffer.position();
+            IOException failure = error;
+            loop.execute(() -> loaded(window, read, failure));
+        }
+
+        private void loaded(Window window, int read, IOException error) {
+            window.loading = false;
+            if (closed) {
+                return;
+            }
+            if (error != null) {
+                // Leave every read to the session
+                LOGGER.log(Level.FINE, "Read-ahead failed at " + window.start + "; reading directly", error);
+                failed = true;
+            } else {
+                window.end = window.start + read;
+                window.ready = true;
+                windowReads++;
+                bytesRead += read;
+            }
+            Runnable resume = waiter;
+            if (resume != null) {
+                waiter = null;
+                resume.run();
+            }
+        }
+
+        /**
+         * Queues the next position of the pass.
+         *
+         * @return false if the pass has no more positions yet
+         */
+        private boolean pull() {
+            if (!source.hasNext()) {
+                return false;
+            }
+            if (queueSize == queue.length) {
+                long[] grown = new long[queue.length * 2];
+                for (int i = 0; i < queueSize; i++) {
+                    grown[i] = queue[(queueHead + i) & (queue.length - 1)];
+                }
+                queue = grown;
+                queueHead = 0;
+            }
+            queue[(queueHead + queueSize) & (queue.length - 1)] = source.nextLong();
+            queueSize++;
+            return true;
+        }
+    }
+}
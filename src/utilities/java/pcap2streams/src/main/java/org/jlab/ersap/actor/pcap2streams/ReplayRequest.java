@@ -0,0 +1,443 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * What a client asks of an IPBasedPcapServer: where the replay starts, how
+ * much of it to send, how fast, and whether to mark its end. A client that
+ * wants a finite, reproducible workload sends a request right after it
+ * connects; the server answers with an acknowledgement and starts the stream
+ * at once. A client that sends nothing within the server's start delay gets
+ * the stream replayed in a loop from the first packet, as before.
+ * <p>
+ * Requests and acknowledgements are fixed-size little-endian messages, like
+ * the length prefixes of the frames that follow them:
+ * <pre>
+ * request (56 bytes)                  acknowledgement (16 bytes)
+ *  0 int    magic "PCRQ"               0 int   magic "PCAK"
+ *  4 short  version                    4 short version
+ *  6 short  flags                      6 short status
+ *  8 long   start file offset          8 long  packets in the stream
+ * 16 long   start capture time, ns
+ * 24 long   packet count
+ * 32 int    loop count
+ * 36 int    pacing mode
+ * 40 double pacing value
+ * 48 long   pacing maximum gap, ns
+ * </pre>
+ * A stream with {@link #FLAG_END_MARKER} ends with a length prefix of
+ * {@link #END_OF_STREAM} once the requested packets or loops are sent, after
+ * which the server closes the connection.
+ * <p>
+ * With {@link #FLAG_PACKET_CREDITS} or {@link #FLAG_BYTE_CREDITS} the stream
+ * is flow-controlled by credits: the server sends a frame only while the
+ * client has granted enough packets, or bytes counting the length prefix,
+ * and waits for the next grant otherwise. The client grants credits with
+ * 12-byte messages, an int magic "PCCR" and a long amount, sent at any time
+ * after the request; it starts with no credit. A byte grant must allow at
+ * least one frame of the largest packet.
+ * <p>
+ * With {@link #FLAG_LZ4} every byte the server sends after the
+ * acknowledgement, frames and end marker alike, is carried in blocks of
+ * {@link Lz4BlockCodec}, which a client reads through an
+ * {@link Lz4BlockInputStream}. Byte credits still count the frames as they
+ * are before compression.
+ */
+public final class ReplayRequest {
+
+    /** First four bytes of a request, "PCRQ". */
+    public static final int MAGIC = 0x51524350;
+
+    /** First four bytes of an acknowledgement, "PCAK". */
+    public static final int ACK_MAGIC = 0x4B414350;
+
+    /** The protocol version of this implementation. */
+    public static final int VERSION = 1;
+
+    /** Size of a request in bytes. */
+    public static final int SIZE = 56;
+
+    /** Size of an acknowledgement in bytes. */
+    public static final int ACK_SIZE = 16;
+
+    /** First four bytes of a credit grant, "PCCR". */
+    public static final int CREDIT_MAGIC = 0x52434350;
+
+    /** Size of a credit grant in bytes. */
+    public static final int CREDIT_SIZE = 12;
+
+    /** Flag asking the server to end the stream with {@link #END_OF_STREAM}. */
+    public static final int FLAG_END_MARKER = 1;
+
+    /** Flag asking the server to send only the packets the client grants. */
+    public static final int FLAG_PACKET_CREDITS = 2;
+
+    /** Flag asking the server to send only the bytes the client grants. */
+    public static final int FLAG_BYTE_CREDITS = 4;
+
+    /** Flag asking the server to compress the stream with LZ4. */
+    public static final int FLAG_LZ4 = 8;
+
+    /** Length prefix that ends a stream instead of a frame. */
+    public static final int END_OF_STREAM = -1;
+
+    /** Acknowledgement status of an accepted request. */
+    public static final int STATUS_OK = 0;
+
+    /** Acknowledgement status of a request the server cannot serve. */
+    public static final int STATUS_REJECTED = 1;
+
+    private static final int FLAGS = FLAG_END_MARKER | FLAG_PACKET_CREDITS | FLAG_BYTE_CREDITS | FLAG_LZ4;
+    private static final int PACING_SERVER = 0; // Pacing mode of a request that keeps the server's pacing
+
+    private final long startOffset;
+    private final long startNanos;
+    private final long packetCount;
+    private final int loopCount;
+    private final ReplayPacing pacing;
+    private final boolean endMarker;
+    private final FlowControl flowControl;
+    private final Compression compression;
+
+    /**
+     * How the client limits what the server sends ahead of it.
+     */
+    public enum FlowControl {
+        /** Only by TCP backpressure. */
+        NONE,
+        /** By packet credits. */
+        PACKETS,
+        /** By byte credits. */
+        BYTES
+    }
+
+    /**
+     * How the server encodes the stream.
+     */
+    public enum Compression {
+        /** Frames as they are. */
+        NONE,
+        /** Blocks of {@link Lz4BlockCodec}. */
+        LZ4
+    }
+
+    /**
+     * Creates a request without credit-based flow control.
+     *
+     * @param startOffset the file offset of the first packet record of each
+     *                    replay pass, or 0 to start at the first packet
+     * @param startNanos  the earliest capture time in nanoseconds since the
+     *                    epoch, or {@link Long#MIN_VALUE} for no limit
+     * @param packetCount the number of packets to send, or 0 for no limit
+     * @param loopCount   the number of replay passes, or 0 to loop until the
+     *                    packet count is reached or the client leaves
+     * @param pacing      the pacing of the stream, or null for the server's
+     * @param endMarker   true to end the stream with {@link #END_OF_STREAM}
+     */
+    public ReplayRequest(long startOffset, long startNanos, long packetCount, int loopCount, ReplayPacing pacing,
+            boolean endMarker) {
+        this(startOffset, startNanos, packetCount, loopCount, pacing, endMarker, FlowControl.NONE, Compression.NONE);
+    }
+
+    /**
+     * Creates a request.
+     *
+     * @param startOffset the file offset of the first packet record of each
+     *                    replay pass, or 0 to start at the first packet
+     * @param startNanos  the earliest capture time in nanoseconds since the
+     *                    epoch, or {@link Long#MIN_VALUE} for no limit
+     * @param packetCount the number of packets to send, or 0 for no limit
+     * @param loopCount   the number of replay passes, or 0 to loop until the
+     *                    packet count is reached or the client leaves
+     * @param pacing      the pacing of the stream, or null for the server's
+     * @param endMarker   true to end the stream with {@link #END_OF_STREAM}
+     * @param flowControl the credits the client grants
+     * @param compression the encoding of the stream
+     */
+    public ReplayRequest(long startOffset, long startNanos, long packetCount, int loopCount, ReplayPacing pacing,
+            boolean endMarker, FlowControl flowControl, Compression compression) {
+        if (startOffset < 0) {
+            throw new IllegalArgumentException("Start offset must not be negative: " + startOffset);
+        }
+        if (packetCount < 0) {
+            throw new IllegalArgumentException("Packet count must not be negative: " + packetCount);
+        }
+        if (loopCount < 0) {
+            throw new IllegalArgumentException("Loop count must not be negative: " + loopCount);
+        }
+        this.startOffset = startOffset;
+        this.startNanos = startNanos;
+        this.packetCount = packetCount;
+        this.loopCount = loopCount;
+        this.pacing = pacing;
+        this.endMarker = endMarker;
+        this.flowControl = flowControl;
+        this.compression = compression;
+    }
+
+    /**
+     * Encodes this request.
+     *
+     * @param buffer the buffer to put the request into, with
+     *               {@link #SIZE} bytes remaining
+     */
+    public void write(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) ((endMarker ? FLAG_END_MARKER : 0)
+                | (flowControl == FlowControl.PACKETS ? FLAG_PACKET_CREDITS : 0)
+                | (flowControl == FlowControl.BYTES ? FLAG_BYTE_CREDITS : 0)
+                | (compression == Compression.LZ4 ? FLAG_LZ4 : 0)));
+        buffer.putLong(startOffset);
+        buffer.putLong(startNanos);
+        buffer.putLong(packetCount);
+        buffer.putInt(loopCount);
+        buffer.putInt(pacing != null ? pacing.getMode().ordinal() + 1 : PACING_SERVER);
+        buffer.putDouble(pacing != null ? pacing.getValue() : 0);
+        buffer.putLong(pacing != null ? pacing.getMaxGapNanos() : Long.MAX_VALUE);
+        buffer.order(order);
+    }
+
+    /**
+     * Decodes a request.
+     *
+     * @param buffer the buffer to take the request from, with {@link #SIZE}
+     *               bytes remaining
+     * @return the request
+     * @throws ProtocolException if the bytes are not a valid request of this
+     *                           version
+     */
+    public static ReplayRequest read(ByteBuffer buffer) throws ProtocolException {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new ProtocolException("Not a replay request");
+            }
+            int version = buffer.getShort();
+            if (version != VERSION) {
+                throw new ProtocolException("Unsupported replay request version " + version);
+            }
+            int flags = buffer.getShort();
+            if ((flags & ~FLAGS) != 0 || (flags & FLAG_PACKET_CREDITS) != 0 && (flags & FLAG_BYTE_CREDITS) != 0) {
+                throw new ProtocolException("Invalid replay request flags " + flags);
+            }
+            long startOffset = buffer.getLong();
+            long startNanos = buffer.getLong();
+            long packetCount = buffer.getLong();
+            int loopCount = buffer.getInt();
+            int pacingMode = buffer.getInt();
+            double pacingValue = buffer.getDouble();
+            long maxGapNanos = buffer.getLong();
+            return new ReplayRequest(startOffset, startNanos, packetCount, loopCount,
+                    pacing(pacingMode, pacingValue, maxGapNanos), (flags & FLAG_END_MARKER) != 0,
+                    (flags & FLAG_PACKET_CREDITS) != 0 ? FlowControl.PACKETS
+                            : (flags & FLAG_BYTE_CREDITS) != 0 ? FlowControl.BYTES : FlowControl.NONE,
+                    (flags & FLAG_LZ4) != 0 ? Compression.LZ4 : Compression.NONE);
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException("Invalid replay request: " + e.getMessage());
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    private static ReplayPacing pacing(int mode, double value, long maxGapNanos) {
+        if (mode == PACING_SERVER) {
+            return null;
+        }
+        ReplayPacing.Mode[] modes = ReplayPacing.Mode.values();
+        if (mode < 0 || mode > modes.length) {
+            throw new IllegalArgumentException("unknown pacing mode " + mode);
+        }
+        switch (modes[mode - 1]) {
+            case FIXED:
+                return ReplayPacing.fixedDelay((long) value);
+            case NONE:
+                return ReplayPacing.unpaced();
+            case CAPTURE:
+                return ReplayPacing.capture(value, maxGapNanos);
+            case PACKET_RATE:
+                return ReplayPacing.packetRate(value);
+            default:
+                return ReplayPacing.bitRate(value);
+        }
+    }
+
+    /**
+     * Encodes an acknowledgement.
+     *
+     * @param buffer  the buffer to put the acknowledgement into, with
+     *                {@link #ACK_SIZE} bytes remaining
+     * @param status  {@link #STATUS_OK} or {@link #STATUS_REJECTED}
+     * @param packets the number of packets in the stream
+     */
+    public static void writeAck(ByteBuffer buffer, int status, long packets) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(ACK_MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) status);
+        buffer.putLong(packets);
+        buffer.order(order);
+    }
+
+    /**
+     * Decodes an acknowledgement and checks that the request was accepted.
+     *
+     * @param buffer the buffer to take the acknowledgement from, with
+     *               {@link #ACK_SIZE} bytes remaining
+     * @return the number of packets in the stream
+     * @throws ProtocolException if the bytes are not an acknowledgement, as
+     *                           from a server that streams without reading
+     *                           requests, or the request was rejected
+     */
+    public static long readAck(ByteBuffer buffer) throws ProtocolException {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != ACK_MAGIC) {
+                throw new ProtocolException("Server did not acknowledge the replay request");
+            }
+            int version = buffer.getShort();
+            int status = buffer.getShort();
+            long packets = buffer.getLong();
+            if (status != STATUS_OK) {
+                throw new ProtocolException("Server (version " + version + ") rejected the replay request");
+            }
+            return packets;
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     * Encodes a credit grant.
+     *
+     * @param buffer the buffer to put the grant into, with
+     *               {@link #CREDIT_SIZE} bytes remaining
+     * @param amount the packets or bytes granted
+     */
+    public static void writeCredit(ByteBuffer buffer, long amount) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CREDIT_MAGIC);
+        buffer.putLong(amount);
+        buffer.order(order);
+    }
+
+    /**
+     * Decodes a credit grant.
+     *
+     * @param buffer the buffer to take the grant from, with
+     *               {@link #CREDIT_SIZE} bytes remaining
+     * @return the packets or bytes granted
+     * @throws ProtocolException if the bytes are not a credit grant
+     */
+    public static long readCredit(ByteBuffer buffer) throws ProtocolException {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != CREDIT_MAGIC) {
+                throw new ProtocolException("Not a credit grant");
+            }
+            long amount = buffer.getLong();
+            if (amount < 0) {
+                throw new ProtocolException("Negative credit grant " + amount);
+            }
+            return amount;
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     * Gets the file offset each replay pass starts at.
+     *
+     * @return the offset, 0 to start at the first packet
+     */
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * Gets the earliest capture time to send.
+     *
+     * @return the time in nanoseconds since the epoch, or
+     *         {@link Long#MIN_VALUE} for no limit
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Gets the number of packets to send.
+     *
+     * @return the packet count, 0 for no limit
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Gets the number of replay passes.
+     *
+     * @return the loop count, 0 for no limit
+     */
+    public int getLoopCount() {
+        return loopCount;
+    }
+
+    /**
+     * Gets the pacing of the stream.
+     *
+     * @return the pacing, or null for the server's
+     */
+    public ReplayPacing getPacing() {
+        return pacing;
+    }
+
+    /**
+     * Gets whether the stream ends with {@link #END_OF_STREAM}.
+     *
+     * @return true if the end is marked
+     */
+    public boolean hasEndMarker() {
+        return endMarker;
+    }
+
+    /**
+     * Gets the credits the client grants.
+     *
+     * @return the flow control
+     */
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * Gets the encoding of the stream.
+     *
+     * @return the compression
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    @Override
+    public String toString() {
+        return "start offset " + startOffset
+                + (startNanos != Long.MIN_VALUE ? ", start time " + startNanos + " ns" : "")
+                + ", " + (packetCount > 0 ? packetCount + " packets" : "unlimited packets")
+                + ", " + (loopCount > 0 ? loopCount + " loops" : "unlimited loops")
+                + ", pacing " + (pacing != null ? pacing : "of the server")
+                + (endMarker ? ", end marker" : "")
+                + (flowControl != FlowControl.NONE ? ", " + flowControl.name().toLowerCase(Locale.ROOT) + " credits"
+                        : "")
+                + (compression != Compression.NONE ? ", " + compression + " compression" : "");
+    }
+}
@@ -0,0 +1,369 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer, single-consumer ring of length-prefixed frames in a
+ * memory-mapped file, for example under {@code /dev/shm}, that carries a
+ * stream from a server to a consumer on the same host without the loopback
+ * TCP stack. The server {@link #create creates} the file and writes frames
+ * straight into the mapping; the consumer {@link #open opens} it and reads
+ * them with one copy.
+ * <p>
+ * The file starts with a header: an int magic "PCSM", an int version, the
+ * int ring size and largest frame, the long process id of the writer and
+ * an int closed flag, then the long head (bytes written) and the long tail
+ * (bytes read) on cache lines of their own. Frames are the frames of a TCP
+ * stream, a 4-byte little-endian length and the data, padded to 4 bytes; a
+ * frame that would wrap is written at the start of the ring after a
+ * padding marker. The head and tail are published with release stores and
+ * read with acquire loads, so a frame is complete once the head covers it.
+ * <p>
+ * The ring is lossless: the writer waits for the reader when the ring is
+ * full. Only one reader may open a ring at a time, which is enforced with
+ * a file lock, and a reader that reopens the ring continues where the last
+ * one stopped. A ring is confined to one thread on each side, except that
+ * it may be closed from any thread.
+ */
+public final class SharedMemoryRing implements Closeable {
+
+    /** Smallest ring size. */
+    public static final int MIN_CAPACITY = 1 << 16;
+
+    private static final int MAGIC = 0x4D534350; // "PCSM"
+    private static final int VERSION = 1;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int MAX_FRAME_OFFSET = 12;
+    private static final int PID_OFFSET = 16;
+    private static final int CLOSED_OFFSET = 24;
+    private static final int HEAD_OFFSET = 64; // Written by the writer only
+    private static final int TAIL_OFFSET = 128; // Written by the reader only
+    private static final int HEADER_SIZE = 192;
+    private static final int LENGTH_PREFIX_SIZE = 4;
+    private static final int PADDING = Integer.MIN_VALUE; // Length of the unused end of the ring before a wrap
+    private static final int SPINS = 1000; // Empty polls before the reader parks
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long LIVENESS_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1); // Idle time between writer checks
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path file;
+    private final FileChannel channel;
+    private final FileLock lock; // Held by the reader
+    private final MappedByteBuffer header;
+    private final ByteBuffer data;
+    private final ByteBuffer claimView;
+    private final int capacity;
+    private final int maxFrameSize;
+    private final boolean writer;
+    private long head; // Bytes written, the writer's own or the last one seen by the reader
+    private long tail; // Bytes read, the reader's own or the last one seen by the writer
+    private long claimed; // Start of the claimed frame
+    private long frames;
+    private long fullWaits;
+    private boolean closed;
+
+    private SharedMemoryRing(Path file, FileChannel channel, FileLock lock, MappedByteBuffer header,
+            int capacity, int maxFrameSize, boolean writer) {
+        this.file = file;
+        this.channel = channel;
+        this.lock = lock;
+        this.header = header;
+        this.data = header.slice(HEADER_SIZE, capacity).order(ByteOrder.LITTLE_ENDIAN);
+        this.claimView = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = capacity;
+        this.maxFrameSize = maxFrameSize;
+        this.writer = writer;
+    }
+
+    /**
+     * Creates a ring file for writing, replacing any file left at the path.
+     *
+     * @param file         the path of the file, usually under
+     *                     {@code /dev/shm}
+     * @param capacity     the ring size in bytes, a power of two of at least
+     *                     {@link #MIN_CAPACITY} and two frames of the
+     *                     largest size
+     * @param maxFrameSize the largest frame, length prefix included
+     * @return the writing side of the ring
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static SharedMemoryRing create(Path file, int capacity, int maxFrameSize) throws IOException {
+        if (capacity < MIN_CAPACITY || capacity < 2L * maxFrameSize || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Shared-memory ring must be a power of two of at least "
+                    + Math.max(MIN_CAPACITY, 2L * maxFrameSize) + " bytes: " + capacity);
+        }
+        Files.deleteIfExists(file);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putInt(CAPACITY_OFFSET, capacity);
+            header.putInt(MAX_FRAME_OFFSET, maxFrameSize);
+            header.putLong(PID_OFFSET, ProcessHandle.current().pid());
+            // The magic goes last, so a reader never sees a header in the making
+            INT.setRelease(header, MAGIC_OFFSET, MAGIC);
+            return new SharedMemoryRing(file, channel, null, header, capacity, maxFrameSize, true);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a ring file for reading.
+     *
+     * @param file the path of the file created by the writer
+     * @return the reading side of the ring
+     * @throws IOException if the file cannot be opened or mapped, is not a
+     *                     ring, or already has a reader
+     */
+    public static SharedMemoryRing open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("Shared-memory ring " + file + " already has a reader");
+            }
+            if (channel.size() < HEADER_SIZE) {
+                throw new StreamCorruptedException("Shared-memory ring " + file + " has no header");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if ((int) INT.getAcquire(header, MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+                throw new StreamCorruptedException("Not a version " + VERSION + " shared-memory ring: " + file);
+            }
+            int capacity = header.getInt(CAPACITY_OFFSET);
+            int maxFrameSize = header.getInt(MAX_FRAME_OFFSET);
+            if (channel.size() < HEADER_SIZE + (long) capacity) {
+                throw new StreamCorruptedException("Shared-memory ring " + file + " is truncated");
+            }
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            SharedMemoryRing ring = new SharedMemoryRing(file, channel, lock, header, capacity, maxFrameSize,
+                    false);
+            ring.tail = (long) LONG.getAcquire(header, TAIL_OFFSET);
+            ring.head = ring.tail;
+            return ring;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets room for the next frame.
+     *
+     * @param frameLength the frame length, length prefix included
+     * @return a little-endian buffer of the frame's length to fill before
+     *         {@link #commit}, or null if the reader has not made room yet
+     */
+    public ByteBuffer claim(int frameLength) {
+        if (frameLength > maxFrameSize) {
+            throw new IllegalArgumentException("Frame of " + frameLength + " bytes exceeds " + maxFrameSize);
+        }
+        int index = (int) (head & (capacity - 1));
+        int size = align(frameLength);
+        int skipped = size <= capacity - index ? 0 : capacity - index;
+        if (head + skipped + size - tail > capacity) {
+            tail = (long) LONG.getAcquire(header, TAIL_OFFSET);
+            if (head + skipped + size - tail > capacity) {
+                fullWaits++;
+                return null;
+            }
+        }
+        if (skipped > 0) {
+            data.putInt(index, PADDING);
+            index = 0;
+        }
+        claimed = head + skipped;
+        claimView.clear();
+        claimView.position(index).limit(index + frameLength);
+        return claimView;
+    }
+
+    /**
+     * Publishes the claimed frame to the reader.
+     *
+     * @param frameLength the frame length, length prefix included
+     */
+    public void commit(int frameLength) {
+        head = claimed + align(frameLength);
+        frames++;
+        LONG.setRelease(header, HEAD_OFFSET, head);
+    }
+
+    /**
+     * Reads the next frame if one is ready.
+     *
+     * @return the data of the frame, without its length prefix, or null if
+     *         the writer has not written one yet
+     * @throws StreamCorruptedException if the frame length is invalid
+     */
+    public byte[] poll() throws StreamCorruptedException {
+        if (tail == head) {
+            head = (long) LONG.getAcquire(header, HEAD_OFFSET);
+            if (tail == head) {
+                return null;
+            }
+        }
+        int index = (int) (tail & (capacity - 1));
+        int length = data.getInt(index);
+        if (length == PADDING) {
+            tail += capacity - index;
+            index = 0;
+            length = data.getInt(0);
+        }
+        if (length < 0 || LENGTH_PREFIX_SIZE + length > maxFrameSize) {
+            throw new StreamCorruptedException("Invalid frame length in shared-memory ring " + file + ": " + length);
+        }
+        byte[] packet = new byte[length];
+        data.get(index + LENGTH_PREFIX_SIZE, packet);
+        tail += align(LENGTH_PREFIX_SIZE + length);
+        frames++;
+        LONG.setRelease(header, TAIL_OFFSET, tail);
+        return packet;
+    }
+
+    /**
+     * Reads the next frame, waiting for the writer to write one: briefly
+     * spinning, then parking for up to a millisecond at a time.
+     *
+     * @return the data of the frame, without its length prefix, or null once
+     *         the writer has closed the ring or exited and every frame has
+     *         been read
+     * @throws IOException if the frame length is invalid or the thread is
+     *                     interrupted
+     */
+    public byte[] take() throws IOException {
+        long idleSince = 0;
+        long checkedNanos = 0;
+        for (int idle = 0;; idle++) {
+            byte[] packet = poll();
+            if (packet != null) {
+                return packet;
+            }
+            if ((int) INT.getAcquire(header, CLOSED_OFFSET) != 0) {
+                // Frames written before the flag are visible now
+                return poll();
+            }
+            if (idle < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long now = System.nanoTime();
+            if (idle == SPINS) {
+                idleSince = now;
+                checkedNanos = now;
+            } else if (now - checkedNanos >= LIVENESS_CHECK_NANOS) {
+                checkedNanos = now;
+                if (!isWriterAlive()) {
+                    return poll();
+                }
+            }
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, Math.max(1000, (now - idleSince) / 8)));
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for shared-memory ring " + file);
+            }
+        }
+    }
+
+    /**
+     * Gets whether the process that created the ring is still running.
+     *
+     * @return false if the writer has exited without closing the ring
+     */
+    public boolean isWriterAlive() {
+        return ProcessHandle.of(header.getLong(PID_OFFSET)).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    /**
+     * Gets the path of the ring file.
+     *
+     * @return the path
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of frames written or read on this side of the ring.
+     *
+     * @return the number of frames
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Gets the number of claims that found the ring full.
+     *
+     * @return the number of times the writer waited for the reader
+     */
+    public long getFullWaits() {
+        return fullWaits;
+    }
+
+    /**
+     * Describes the traffic of this side of the ring.
+     *
+     * @return the frames and, for the writer, the waits for the reader
+     */
+    public String report() {
+        return frames + (writer ? " frames written, " + fullWaits + " waits for the reader" : " frames read");
+    }
+
+    /**
+     * Closes this side of the ring. The writer marks the ring closed, so the
+     * reader ends after the last frame, and removes the file; the reader
+     * releases the ring for the next one.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (writer) {
+                INT.setRelease(header, CLOSED_OFFSET, 1);
+                Files.deleteIfExists(file);
+            } else {
+                lock.release();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static int align(int frameLength) {
+        return (frameLength + 3) & ~3;
+    }
+}
@@ -0,0 +1,158 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.util.Arrays;
+
+/**
+ * A sparse index from capture time to file offset, with one entry every
+ * {@link #INTERVAL} records. Each entry holds the offset of a record and the
+ * latest timestamp of all records before it, so
+ * {@link #offsetBefore(long)} never skips a record at or after the requested
+ * time, even if the capture is not strictly in time order.
+ * <p>
+ * Indexes built for consecutive byte ranges can be concatenated with
+ * {@link #addAll(TimeIndex)}. Appending and seeking are synchronized, so a
+ * followed file can be extended while servers seek in it; {@link #add(long, long)}
+ * is not and is meant for an index that is still private to one scan.
+ */
+public final class TimeIndex {
+
+    /** Number of records between two index entries. */
+    public static final int INTERVAL = 1024;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] times;
+    private long[] offsets;
+    private int size;
+    private int untilNextEntry;
+    private long maxTime;
+
+    /**
+     * Creates an empty index.
+     */
+    public TimeIndex() {
+        this.times = new long[INITIAL_CAPACITY];
+        this.offsets = new long[INITIAL_CAPACITY];
+        this.maxTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Creates an index from stored entries.
+     *
+     * @param times   the latest timestamp before each entry, in nanoseconds
+     * @param offsets the record offset of each entry
+     * @param maxTime the latest timestamp of all indexed records
+     */
+    TimeIndex(long[] times, long[] offsets, long maxTime) {
+        this.times = times;
+        this.offsets = offsets;
+        this.size = times.length;
+        this.maxTime = maxTime;
+        this.untilNextEntry = INTERVAL;
+    }
+
+    /**
+     * Records a record in file order.
+     *
+     * @param timestampNanos the capture time of the record in nanoseconds
+     * @param offset         the file offset of the record
+     */
+    public void add(long timestampNanos, long offset) {
+        if (untilNextEntry-- == 0) {
+            append(maxTime, offset);
+            untilNextEntry = INTERVAL - 1;
+        }
+        if (timestampNanos > maxTime) {
+            maxTime = timestampNanos;
+        }
+    }
+
+    /**
+     * Appends the entries of an index built for the records that follow the
+     * records of this index.
+     *
+     * @param other the index to append
+     */
+    public synchronized void addAll(TimeIndex other) {
+        for (int i = 0; i < other.size; i++) {
+            append(Math.max(maxTime, other.times[i]), other.offsets[i]);
+        }
+        maxTime = Math.max(maxTime, other.maxTime);
+    }
+
+    /**
+     * Finds where to start reading to reach the first record captured at or
+     * after a time.
+     *
+     * @param timestampNanos the capture time in nanoseconds
+     * @return the offset of the last entry before which all records are older
+     *         than {@code timestampNanos}, or -1 to start at the first record
+     */
+    public synchronized long offsetBefore(long timestampNanos) {
+        // times is non-decreasing, so find the last entry with an older time
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < timestampNanos) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found >= 0 ? offsets[found] : -1;
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the entry count
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the latest timestamp of all indexed records.
+     *
+     * @return the timestamp in nanoseconds, or {@link Long#MIN_VALUE} if empty
+     */
+    public synchronized long maxTime() {
+        return maxTime;
+    }
+
+    /**
+     * Gets the latest timestamp before an entry.
+     */
+    synchronized long time(int entry) {
+        return times[entry];
+    }
+
+    /**
+     * Gets the record offset of an entry.
+     */
+    synchronized long offset(int entry) {
+        return offsets[entry];
+    }
+
+    /**
+     * Releases unused capacity once the index is complete.
+     */
+    public synchronized void trim() {
+        times = Arrays.copyOf(times, size);
+        offsets = Arrays.copyOf(offsets, size);
+    }
+
+    private void append(long time, long offset) {
+        if (size == times.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, size + (size >> 1));
+            times = Arrays.copyOf(times, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+        times[size] = time;
+        offsets[size] = offset;
+        size++;
+    }
+}
@@ -0,0 +1,424 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Approximate traffic statistics of a PCAP file in constant memory: a
+ * HyperLogLog estimate of the number of distinct IPv4 addresses and a
+ * Space-Saving summary of the addresses that carry the most bytes.
+ * <p>
+ * The sketch is filled from a sample of the file (see
+ * {@link PcapIPAnalyzer#sketch()}); totals are scaled up by the ratio of the
+ * file size to the sampled bytes. Addresses that only appear outside the
+ * sampled blocks are not counted, so the distinct count is a lower bound for
+ * sampled scans. A sketch is not thread-safe.
+ */
+public final class TrafficSketch {
+
+    private static final int HLL_PRECISION = 14; // 2^14 registers, about 0.8% standard error
+    private static final int DEFAULT_TOP_TALKERS = 256; // Addresses tracked by the Space-Saving summary
+
+    private final HyperLogLog distinct;
+    private final TopTalkers topTalkers;
+    private long sampledPackets;
+    private long sampledIPv4Packets;
+    private long sampledCapturedBytes;
+    private long sampledFileBytes;
+    private long fileBytes;
+    private int sampledBlocks;
+    private long scanNanos;
+
+    /**
+     * Creates an empty sketch that tracks the default number of top talkers.
+     */
+    public TrafficSketch() {
+        this(DEFAULT_TOP_TALKERS);
+    }
+
+    /**
+     * Creates an empty sketch.
+     *
+     * @param capacity the number of addresses tracked as top talkers
+     */
+    public TrafficSketch(int capacity) {
+        this.distinct = new HyperLogLog(HLL_PRECISION);
+        this.topTalkers = new TopTalkers(capacity);
+    }
+
+    /**
+     * Records a sampled packet record.
+     *
+     * @param cursor the cursor positioned at the record
+     */
+    public void add(PcapRecordCursor cursor) {
+        int capturedLength = cursor.capturedLength();
+        sampledPackets++;
+        sampledCapturedBytes += capturedLength;
+        if (!cursor.isIPv4()) {
+            return;
+        }
+        sampledIPv4Packets++;
+        int source = cursor.sourceAddress();
+        int destination = cursor.destinationAddress();
+        distinct.add(source);
+        topTalkers.add(source, capturedLength);
+        if (destination != source) {
+            distinct.add(destination);
+            topTalkers.add(destination, capturedLength);
+        }
+    }
+
+    /**
+     * Records how much of the file the sample covered.
+     *
+     * @param sampledFileBytes the bytes of the records that were read
+     * @param fileBytes        the bytes of all records in the file
+     * @param sampledBlocks    the number of blocks that were read
+     * @param scanNanos        the time the scan took
+     */
+    void setCoverage(long sampledFileBytes, long fileBytes, int sampledBlocks, long scanNanos) {
+        this.sampledFileBytes = sampledFileBytes;
+        this.fileBytes = fileBytes;
+        this.sampledBlocks = sampledBlocks;
+        this.scanNanos = scanNanos;
+    }
+
+    /**
+     * Gets the fraction of the file that was read.
+     *
+     * @return the sampled fraction, from 0 to 1
+     */
+    public double getSampledFraction() {
+        return fileBytes > 0 ? (double) sampledFileBytes / fileBytes : 0.0;
+    }
+
+    /**
+     * Gets the estimated number of packets in the file.
+     *
+     * @return the sampled packet count scaled up to the whole file
+     */
+    public long getEstimatedPackets() {
+        return scale(sampledPackets);
+    }
+
+    /**
+     * Gets the estimated number of IPv4 packets in the file.
+     *
+     * @return the sampled IPv4 packet count scaled up to the whole file
+     */
+    public long getEstimatedIPv4Packets() {
+        return scale(sampledIPv4Packets);
+    }
+
+    /**
+     * Gets the estimated number of distinct IPv4 addresses.
+     *
+     * @return the HyperLogLog estimate over the sampled packets
+     */
+    public long getDistinctAddresses() {
+        return distinct.estimate();
+    }
+
+    /**
+     * Gets the addresses that carried the most captured bytes.
+     *
+     * @param limit the largest number of addresses to return
+     * @return the top talkers, ordered by decreasing byte estimate
+     */
+    public List<Talker> getTopTalkers(int limit) {
+        List<Talker> talkers = topTalkers.talkers();
+        return talkers.size() > limit ? new ArrayList<>(talkers.subList(0, limit)) : talkers;
+    }
+
+    /**
+     * Formats a report of the estimates and the top talkers.
+     *
+     * @param pcapFile the name of the PCAP file, for the report title
+     * @param limit    the largest number of top talkers to list
+     * @return the multi-line report
+     */
+    public String report(String pcapFile, int limit) {
+        StringBuilder report = new StringBuilder();
+        report.append("Approximate traffic report for ").append(pcapFile).append('\n');
+        report.append(String.format("Sampled %d blocks, %d of %d bytes (%.2f%%) in %.3f s%n",
+                sampledBlocks, sampledFileBytes, fileBytes, 100.0 * getSampledFraction(), scanNanos / 1e9));
+        report.append(String.format("Estimated packets:        %d (%d sampled)%n",
+                getEstimatedPackets(), sampledPackets));
+        report.append(String.format("Estimated IPv4 packets:   %d (%d sampled)%n",
+                getEstimatedIPv4Packets(), sampledIPv4Packets));
+        report.append(String.format("Estimated captured bytes: %d%n", scale(sampledCapturedBytes)));
+        report.append(String.format("Distinct IPv4 addresses:  %d (+/- %.1f%%%s)%n", getDistinctAddresses(),
+                100.0 * distinct.standardError(), getSampledFraction() < 1.0 ? ", in sampled blocks" : ""));
+
+        List<Talker> talkers = getTopTalkers(limit);
+        report.append("Top talkers by captured bytes (sent and received):\n");
+        report.append(String.format("  %-15s %16s %8s %16s %12s%n", "IP", "bytes", "share", "max error",
+                "packets"));
+        for (Talker talker : talkers) {
+            report.append(String.format("  %-15s %16d %7.2f%% %16d %12d%n",
+                    IPPacketIndex.formatAddress(talker.getAddress()), scale(talker.getBytes()),
+                    sampledCapturedBytes > 0 ? 100.0 * talker.getBytes() / sampledCapturedBytes : 0.0,
+                    scale(talker.getError()), scale(talker.getPackets())));
+        }
+        return report.toString();
+    }
+
+    private long scale(long sampled) {
+        return sampledFileBytes > 0 ? Math.round((double) sampled * fileBytes / sampledFileBytes) : sampled;
+    }
+
+    /**
+     * The estimated traffic of one address.
+     */
+    public static final class Talker {
+
+        private final int address;
+        private final long bytes;
+        private final long error;
+        private final long packets;
+
+        Talker(int address, long bytes, long error, long packets) {
+            this.address = address;
+            this.bytes = bytes;
+            this.error = error;
+            this.packets = packets;
+        }
+
+        /**
+         * Gets the address.
+         *
+         * @return the IPv4 address in network byte order
+         */
+        public int getAddress() {
+            return address;
+        }
+
+        /**
+         * Gets the sampled captured bytes counted for this address. The count
+         * may overestimate the true value by up to {@link #getError()}.
+         *
+         * @return the byte count
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Gets the largest possible overestimate of {@link #getBytes()}.
+         *
+         * @return the bytes inherited from the address this one replaced
+         */
+        public long getError() {
+            return error;
+        }
+
+        /**
+         * Gets the sampled packets seen since the address was last tracked.
+         *
+         * @return a lower bound of the packet count
+         */
+        public long getPackets() {
+            return packets;
+        }
+    }
+
+    /**
+     * HyperLogLog distinct counter over 32-bit keys.
+     */
+    private static final class HyperLogLog {
+
+        private final int precision;
+        private final byte[] registers;
+
+        HyperLogLog(int precision) {
+            this.precision = precision;
+            this.registers = new byte[1 << precision];
+        }
+
+        void add(int key) {
+            long hash = mix(key);
+            int register = (int) (hash >>> (64 - precision));
+            int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+            if (rank > registers[register]) {
+                registers[register] = (byte) rank;
+            }
+        }
+
+        long estimate() {
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double alpha = 0.7213 / (1 + 1.079 / m);
+            double estimate = alpha * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                // Linear counting is more accurate for small cardinalities
+                estimate = m * Math.log((double) m / zeros);
+            }
+            return Math.round(estimate);
+        }
+
+        double standardError() {
+            return 1.04 / Math.sqrt(registers.length);
+        }
+
+        private static long mix(int key) {
+            long h = (key & 0xFFFFFFFFL) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            return h ^ (h >>> 33);
+        }
+    }
+
+    /**
+     * Weighted Space-Saving summary. Counters live in a binary min-heap
+     * ordered by bytes, and an open-addressing table maps each tracked
+     * address to its heap slot. When the summary is full, a new address
+     * replaces the smallest counter and inherits its count as error.
+     */
+    private static final class TopTalkers {
+
+        private final int capacity;
+        private final int[] addresses;
+        private final long[] bytes;
+        private final long[] errors;
+        private final long[] packets;
+        private final int[] tableSlots; // Heap slot + 1 of each table entry, 0 if empty
+        private final int mask;
+        private int size;
+
+        TopTalkers(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+            }
+            this.capacity = capacity;
+            this.addresses = new int[capacity];
+            this.bytes = new long[capacity];
+            this.errors = new long[capacity];
+            this.packets = new long[capacity];
+            this.tableSlots = new int[Integer.highestOneBit(capacity * 4 - 1) << 1];
+            this.mask = tableSlots.length - 1;
+        }
+
+        void add(int address, long weight) {
+            int entry = find(address);
+            if (tableSlots[entry] != 0) {
+                int slot = tableSlots[entry] - 1;
+                bytes[slot] += weight;
+                packets[slot]++;
+                siftDown(slot);
+                return;
+            }
+            if (size < capacity) {
+                int slot = size++;
+                addresses[slot] = address;
+                bytes[slot] = weight;
+                errors[slot] = 0;
+                packets[slot] = 1;
+                tableSlots[entry] = slot + 1;
+                siftUp(slot);
+                return;
+            }
+            // Replace the smallest counter
+            remove(find(addresses[0]));
+            addresses[0] = address;
+            errors[0] = bytes[0];
+            bytes[0] += weight;
+            packets[0] = 1;
+            tableSlots[find(address)] = 1;
+            siftDown(0);
+        }
+
+        List<Talker> talkers() {
+            List<Talker> talkers = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                talkers.add(new Talker(addresses[i], bytes[i], errors[i], packets[i]));
+            }
+            talkers.sort((a, b) -> Long.compare(b.getBytes(), a.getBytes()));
+            return talkers;
+        }
+
+        private int find(int address) {
+            int entry = IPPacketIndex.mix(address) & mask;
+            while (tableSlots[entry] != 0 && addresses[tableSlots[entry] - 1] != address) {
+                entry = (entry + 1) & mask;
+            }
+            return entry;
+        }
+
+        /**
+         * Removes a table entry, shifting back later entries of the same
+         * probe run so lookups need no tombstones.
+         */
+        private void remove(int entry) {
+            tableSlots[entry] = 0;
+            int next = (entry + 1) & mask;
+            while (tableSlots[next] != 0) {
+                int home = IPPacketIndex.mix(addresses[tableSlots[next] - 1]) & mask;
+                if (((next - home) & mask) >= ((next - entry) & mask)) {
+                    tableSlots[entry] = tableSlots[next];
+                    tableSlots[next] = 0;
+                    entry = next;
+                }
+                next = (next + 1) & mask;
+            }
+        }
+
+        private void siftUp(int slot) {
+            while (slot > 0) {
+                int parent = (slot - 1) / 2;
+                if (bytes[parent] <= bytes[slot]) {
+                    break;
+                }
+                swap(slot, parent);
+                slot = parent;
+            }
+        }
+
+        private void siftDown(int slot) {
+            while (true) {
+                int smallest = slot;
+                int left = 2 * slot + 1;
+                int right = left + 1;
+                if (left < size && bytes[left] < bytes[smallest]) {
+                    smallest = left;
+                }
+                if (right < size && bytes[right] < bytes[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == slot) {
+                    return;
+                }
+                swap(slot, smallest);
+                slot = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int entryI = find(addresses[i]);
+            int entryJ = find(addresses[j]);
+            tableSlots[entryI] = j + 1;
+            tableSlots[entryJ] = i + 1;
+            int address = addresses[i];
+            addresses[i] = addresses[j];
+            addresses[j] = address;
+            long value = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = value;
+            value = errors[i];
+            errors[i] = errors[j];
+            errors[j] = value;
+            value = packets[i];
+            packets[i] = packets[j];
+            packets[j] = value;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Per-IP and per-flow traffic statistics built in one pass over a capture:
+ * packet and byte counts, the first and last capture time, and histograms of
+ * packet sizes and of the nanosecond gaps between consecutive packets.
+ * Aggregates live in open-addressing tables of primitive arrays, like
+ * {@link FlowPacketIndex}, so counting a packet allocates only when its
+ * address or flow is first seen or one of their histograms widens.
+ * <p>
+ * Histograms have log-linear buckets: values below 4 have a bucket each and
+ * every power of two above is split into 4 buckets, so a bucket is at most
+ * 25% wider than its lower bound. Gaps are measured between packets in file
+ * order; a packet captured before its predecessor counts as reordered and
+ * does not enter the gap histogram. Each key's histograms are allocated
+ * when it is first seen and cover only the range of buckets it has used, so
+ * a flow of a few packets, as in a scan, costs tens of bytes of histogram
+ * rather than the full bucket range. Per-key bucket counts saturate at
+ * {@link Integer#MAX_VALUE}.
+ * <p>
+ * {@link #write(Path, String)} writes a tab-separated summary with a
+ * {@code [total]}, an {@code [ip]} and a {@code [flow]} section. Histograms
+ * are listed sparsely as {@code lowerBound:count} pairs of the non-empty
+ * buckets.
+ */
+public final class TrafficStats {
+
+    private static final int SUB_BUCKET_BITS = 2; // 4 buckets per power of two
+    private static final int SIZE_BUCKETS = bucket(65535) + 1; // Largest IPv4 packet
+    private static final int INITIAL_CAPACITY = 64; // Must be a power of two
+
+    private final Table total;
+    private final Table addresses;
+    private final Table flows;
+
+    /**
+     * Creates empty statistics.
+     */
+    public TrafficStats() {
+        this.total = new Table(false, 2);
+        this.addresses = new Table(true, INITIAL_CAPACITY);
+        this.flows = new Table(false, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Counts one packet. Packets should be added in file order.
+     *
+     * @param timestampNanos     the capture time in nanoseconds
+     * @param length             the packet length in bytes
+     * @param sourceAddress      the IPv4 source address in network byte order
+     * @param destinationAddress the IPv4 destination address in network byte order
+     * @param sourcePort         the TCP/UDP source port, or 0
+     * @param destinationPort    the TCP/UDP destination port, or 0
+     * @param protocol           the IP protocol number
+     */
+    public void add(long timestampNanos, int length, int sourceAddress, int destinationAddress, int sourcePort,
+            int destinationPort, int protocol) {
+        int sizeBucket = Math.min(bucket(Math.max(length, 0)), SIZE_BUCKETS - 1);
+        total.add(0, 0, timestampNanos, length, sizeBucket, false);
+        addresses.add(sourceAddress & 0xFFFFFFFFL, 0, timestampNanos, length, sizeBucket, true);
+        if (destinationAddress != sourceAddress) {
+            addresses.add(destinationAddress & 0xFFFFFFFFL, 0, timestampNanos, length, sizeBucket, false);
+        }
+        flows.add(((long) sourceAddress << 32) | (destinationAddress & 0xFFFFFFFFL),
+                ((long) sourcePort << 24) | ((long) destinationPort << 8) | protocol,
+                timestampNanos, length, sizeBucket, false);
+    }
+
+    /**
+     * Counts the packet at the cursor, which must be an IPv4 packet.
+     *
+     * @param cursor the cursor positioned at the packet record
+     */
+    public void add(PcapRecordCursor cursor) {
+        add(cursor.timestampNanos(), cursor.capturedLength(), cursor.sourceAddress(), cursor.destinationAddress(),
+                cursor.sourcePort(), cursor.destinationPort(), cursor.protocol());
+    }
+
+    /**
+     * Gets the number of packets counted.
+     *
+     * @return the packet count
+     */
+    public long getPacketCount() {
+        return total.size > 0 ? total.packets[0] : 0;
+    }
+
+    /**
+     * Gets the number of bytes counted.
+     *
+     * @return the byte count
+     */
+    public long getByteCount() {
+        return total.size > 0 ? total.bytes[0] : 0;
+    }
+
+    /**
+     * Gets the number of distinct addresses, as source or destination.
+     *
+     * @return the address count
+     */
+    public int getAddressCount() {
+        return addresses.size;
+    }
+
+    /**
+     * Gets the number of distinct directional 5-tuple flows.
+     *
+     * @return the flow count
+     */
+    public int getFlowCount() {
+        return flows.size;
+    }
+
+    /**
+     * Estimates the heap memory used by these statistics.
+     *
+     * @return the approximate size in bytes
+     */
+    public long memoryBytes() {
+        return total.memoryBytes() + addresses.memoryBytes() + flows.memoryBytes();
+    }
+
+    /**
+     * Writes the tab-separated summary.
+     *
+     * @param file     the summary file to write
+     * @param pcapFile the name of the PCAP file, for the summary title
+     * @throws IOException if an error occurs writing the file
+     */
+    public void write(Path file, String pcapFile) throws IOException {
+        try (CsvEncoder out = new CsvEncoder(file)) {
+            out.text("# Traffic statistics for ").text(pcapFile).character('\n');
+            out.text("# Lengths in bytes, times in nanoseconds; histograms list lowerBound:count of non-empty "
+                    + "buckets, each spanning up to the next lower bound\n");
+
+            out.text("[total]\n");
+            out.text("packets\tbytes\tfirst_ns\tlast_ns\treordered\tsizes\tgaps_ns\n");
+            for (int slot : total.slots(false)) {
+                total.writeRow(out, slot);
+            }
+
+            out.text("[ip]\n");
+            out.text("ip\tpackets\tbytes\tsent_packets\tsent_bytes\tfirst_ns\tlast_ns\treordered\tsizes\tgaps_ns\n");
+            for (int slot : addresses.slots(false)) {
+                out.address((int) addresses.keys1[slot]).character('\t')
+                        .number(addresses.packets[slot]).character('\t')
+                        .number(addresses.bytes[slot]).character('\t')
+                        .number(addresses.sentPackets[slot]).character('\t')
+                        .number(addresses.sentBytes[slot]).character('\t');
+                addresses.writeTimesAndHistograms(out, slot);
+            }
+
+            out.text("[flow]\n");
+            out.text("protocol\tsource_ip\tsource_port\tdestination_ip\tdestination_port\tpackets\tbytes\t"
+                    + "first_ns\tlast_ns\treordered\tsizes\tgaps_ns\n");
+            for (int slot : flows.slots(true)) {
+                long addressKey = flows.keys1[slot];
+                long portKey = flows.keys2[slot];
+                out.number(portKey & 0xFF).character('\t')
+                        .address((int) (addressKey >>> 32)).character('\t')
+                        .number((portKey >>> 24) & 0xFFFF).character('\t')
+                        .address((int) addressKey).character('\t')
+                        .number((portKey >>> 8) & 0xFFFF).character('\t');
+                flows.writeRow(out, slot);
+            }
+        }
+    }
+
+    /**
+     * Gets the histogram bucket of a non-negative value.
+     */
+    static int bucket(long value) {
+        if (value < (1 << SUB_BUCKET_BITS)) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    /**
+     * Gets the smallest value of a histogram bucket.
+     */
+    static long bucketLowerBound(int bucket) {
+        if (bucket < (1 << SUB_BUCKET_BITS)) {
+            return bucket;
+        }
+        int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((1L << SUB_BUCKET_BITS) + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Aggregates per key, in parallel arrays indexed by slot. A slot is used
+     * when its packet count is not 0.
+     */
+    private static final class Table {
+
+        private final boolean countSent;
+        private long[] keys1;
+        private long[] keys2;
+        private long[] packets;
+        private long[] bytes;
+        private long[] sentPackets;
+        private long[] sentBytes;
+        private long[] firstTimes;
+        private long[] lastTimes;
+        private long[] previousTimes;
+        private long[] reordered;
+        private int[][] sizeHistograms; // Per slot, see increment
+        private int[][] gapHistograms; // Per slot, null until the second packet
+        private int size;
+
+        Table(boolean countSent, int capacity) {
+            this.countSent = countSent;
+            allocate(capacity);
+        }
+
+        void add(long key1, long key2, long time, int length, int sizeBucket, boolean sent) {
+            int slot = find(key1, key2);
+            if (slot < 0) {
+                if ((size + 1) * 2 > packets.length) {
+                    rehash(packets.length * 2);
+                    slot = find(key1, key2);
+                }
+                slot = -slot - 1;
+                keys1[slot] = key1;
+                keys2[slot] = key2;
+                firstTimes[slot] = time;
+                lastTimes[slot] = time;
+                size++;
+            } else {
+                long gap = time - previousTimes[slot];
+                if (gap < 0) {
+                    reordered[slot]++;
+                } else {
+                    gapHistograms[slot] = increment(gapHistograms[slot], bucket(gap));
+                }
+                firstTimes[slot] = Math.min(firstTimes[slot], time);
+                lastTimes[slot] = Math.max(lastTimes[slot], time);
+            }
+            previousTimes[slot] = time;
+            packets[slot]++;
+            bytes[slot] += length;
+            if (sent) {
+                sentPackets[slot]++;
+                sentBytes[slot] += length;
+            }
+            sizeHistograms[slot] = increment(sizeHistograms[slot], sizeBucket);
+        }
+
+        /**
+         * Gets the used slots, ordered by key, with the first key compared
+         * as unsigned if requested.
+         */
+        int[] slots(boolean unsignedKey1) {
+            long[][] order = new long[size][];
+            int n = 0;
+            for (int slot = 0; slot < packets.length; slot++) {
+                if (packets[slot] != 0) {
+                    order[n++] = new long[] { unsignedKey1 ? keys1[slot] ^ Long.MIN_VALUE : keys1[slot],
+                            keys2[slot], slot };
+                }
+            }
+            Arrays.sort(order, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+            int[] slots = new int[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = (int) order[i][2];
+            }
+            return slots;
+        }
+
+        void writeRow(CsvEncoder out, int slot) throws IOException {
+            out.number(packets[slot]).character('\t').number(bytes[slot]).character('\t');
+            writeTimesAndHistograms(out, slot);
+        }
+
+        void writeTimesAndHistograms(CsvEncoder out, int slot) throws IOException {
+            out.number(firstTimes[slot]).character('\t')
+                    .number(lastTimes[slot]).character('\t')
+                    .number(reordered[slot]).character('\t');
+            writeHistogram(out, sizeHistograms[slot]);
+            out.character('\t');
+            writeHistogram(out, gapHistograms[slot]);
+            out.character('\n');
+        }
+
+        long memoryBytes() {
+            long total = (long) packets.length * (8 * (countSent ? 10 : 8) + 2 * 8);
+            for (int slot = 0; slot < packets.length; slot++) {
+                total += histogramBytes(sizeHistograms[slot]) + histogramBytes(gapHistograms[slot]);
+            }
+            return total;
+        }
+
+        private static long histogramBytes(int[] counts) {
+            return counts != null ? 16 + 4L * counts.length : 0;
+        }
+
+        private static void writeHistogram(CsvEncoder out, int[] counts) throws IOException {
+            if (counts == null) {
+                return;
+            }
+            boolean first = true;
+            for (int i = 1; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    if (!first) {
+                        out.character(',');
+                    }
+                    out.number(bucketLowerBound(counts[0] + i - 1)).character(':').number(counts[i]);
+                    first = false;
+                }
+            }
+        }
+
+        /**
+         * Counts a value in a histogram that holds its lowest bucket followed
+         * by the counts from that bucket on, widening it to cover the bucket
+         * if needed.
+         *
+         * @param counts the histogram, or null for an empty one
+         * @param bucket the bucket of the value
+         * @return the histogram, which is a new array if it was widened
+         */
+        private static int[] increment(int[] counts, int bucket) {
+            if (counts == null) {
+                counts = new int[] { bucket, 0 };
+            } else if (bucket < counts[0] || bucket > counts[0] + counts.length - 2) {
+                int low = Math.min(counts[0], bucket);
+                int high = Math.max(counts[0] + counts.length - 2, bucket);
+                int[] wider = new int[high - low + 2];
+                wider[0] = low;
+                System.arraycopy(counts, 1, wider, counts[0] - low + 1, counts.length - 1);
+                counts = wider;
+            }
+            int index = bucket - counts[0] + 1;
+            if (counts[index] != Integer.MAX_VALUE) {
+                counts[index]++;
+            }
+            return counts;
+        }
+
+        /**
+         * Finds the slot of a key.
+         *
+         * @return the slot, or {@code -(insertion slot) - 1} if absent
+         */
+        private int find(long key1, long key2) {
+            int mask = packets.length - 1;
+            long h = (key1 * 0x9E3779B97F4A7C15L) ^ (key2 * 0xC2B2AE3D27D4EB4FL);
+            h ^= h >>> 32;
+            int slot = (int) (h ^ (h >>> 16)) & mask;
+            while (packets[slot] != 0) {
+                if (keys1[slot] == key1 && keys2[slot] == key2) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -slot - 1;
+        }
+
+        private void allocate(int capacity) {
+            keys1 = new long[capacity];
+            keys2 = new long[capacity];
+            packets = new long[capacity];
+            bytes = new long[capacity];
+            if (countSent) {
+                sentPackets = new long[capacity];
+                sentBytes = new long[capacity];
+            }
+            firstTimes = new long[capacity];
+            lastTimes = new long[capacity];
+            previousTimes = new long[capacity];
+            reordered = new long[capacity];
+            sizeHistograms = new int[capacity][];
+            gapHistograms = new int[capacity][];
+        }
+
+        private void rehash(int capacity) {
+            Table old = new Table(countSent, 1);
+            old.keys1 = keys1;
+            old.keys2 = keys2;
+            old.packets = packets;
+            old.bytes = bytes;
+            old.sentPackets = sentPackets;
+            old.sentBytes = sentBytes;
+            old.firstTimes = firstTimes;
+            old.lastTimes = lastTimes;
+            old.previousTimes = previousTimes;
+            old.reordered = reordered;
+            old.sizeHistograms = sizeHistograms;
+            old.gapHistograms = gapHistograms;
+
+            allocate(capacity);
+            for (int i = 0; i < old.packets.length; i++) {
+                if (old.packets[i] != 0) {
+                    int slot = -find(old.keys1[i], old.keys2[i]) - 1;
+                    keys1[slot] = old.keys1[i];
+                    keys2[slot] = old.keys2[i];
+                    packets[slot] = old.packets[i];
+                    bytes[slot] = old.bytes[i];
+                    if (countSent) {
+                        sentPackets[slot] = old.sentPackets[i];
+                        sentBytes[slot] = old.sentBytes[i];
+                    }
+                    firstTimes[slot] = old.firstTimes[i];
+                    lastTimes[slot] = old.lastTimes[i];
+                    previousTimes[slot] = old.previousTimes[i];
+                    reordered[slot] = old.reordered[i];
+                    sizeHistograms[slot] = old.sizeHistograms[i];
+                    gapHistograms[slot] = old.gapHistograms[i];
+                }
+            }
+        }
+    }
+}
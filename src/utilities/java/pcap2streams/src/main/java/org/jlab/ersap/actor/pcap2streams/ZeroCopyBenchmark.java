@@ -0,0 +1,188 @@
+package org.jlab.ersap.actor.pcap2streams;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the CPU cost of replaying a PCAP file through IPBasedPcapServer
+ * with packet data copied through the heap and sent in 8 KB chunks, as the
+ * server used to send it, and with {@link IPBasedPcapServer#setZeroCopy
+ * zero-copy} transfers. Each run streams the busiest IP address of the file
+ * to a local client, unpaced, for a fixed time and reports the throughput
+ * and the CPU time of the process, excluding the client thread, per Gbps
+ * sent.
+ */
+public class ZeroCopyBenchmark {
+
+    private static final int DEFAULT_SECONDS = 20;
+    private static final int BASE_PORT = 19000; // Ports of the benchmark servers
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 16;
+
+    private final String pcapFile;
+    private final String ipAddress;
+    private final PositionList positions;
+    private final int seconds;
+
+    /**
+     * Creates a benchmark that streams the busiest IP address of a file.
+     *
+     * @param pcapFile the PCAP file to replay
+     * @param seconds  the duration of each run in seconds
+     * @throws IOException if an error occurs reading the PCAP file
+     */
+    public ZeroCopyBenchmark(String pcapFile, int seconds) throws IOException {
+        PcapIPAnalyzer analyzer = new PcapIPAnalyzer(pcapFile);
+        analyzer.setIndexFileEnabled(false);
+        analyzer.analyze();
+
+        String busiest = null;
+        PositionList busiestPositions = null;
+        IPPacketIndex index = analyzer.getPacketIndex();
+        for (int address : index.addresses()) {
+            PositionList addressPositions = index.get(address);
+            if (busiestPositions == null || addressPositions.byteTotal() > busiestPositions.byteTotal()) {
+                busiest = IPPacketIndex.formatAddress(address);
+                busiestPositions = addressPositions;
+            }
+        }
+        if (busiest == null) {
+            throw new IOException("No IPv4 packets in " + pcapFile);
+        }
+
+        this.pcapFile = pcapFile;
+        this.ipAddress = busiest;
+        this.positions = busiestPositions;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Streams the packets for the benchmark duration and prints the result.
+     *
+     * @param name     the name of the send path
+     * @param zeroCopy true to send with zero-copy transfers
+     * @param port     the server port
+     * @return the process CPU time per Gbps, in cores
+     * @throws IOException if an error occurs streaming
+     */
+    public double run(String name, boolean zeroCopy, int port) throws IOException {
+        IPBasedPcapServer server = new IPBasedPcapServer(pcapFile, ipAddress, port, positions);
+        server.setZeroCopy(zeroCopy);
+        // Send as fast as the client reads, so the run measures the send
+        // path rather than the pacing timer
+        server.setPacing(ReplayPacing.unpaced());
+        server.start();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long bytes = 0;
+        long packets = 0;
+        long elapsed;
+        long serverCpu;
+        try (Socket socket = connect(port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                    RECEIVE_BUFFER_SIZE));
+            byte[] data = new byte[RECEIVE_BUFFER_SIZE];
+
+            // The server waits a second before sending; time from the first packet
+            skipPacket(in, data);
+            long start = System.nanoTime();
+            long processStart = os.getProcessCpuTime();
+            long clientStart = threads.getCurrentThreadCpuTime();
+            long end = start + seconds * 1_000_000_000L;
+            while (System.nanoTime() < end) {
+                bytes += skipPacket(in, data);
+                packets++;
+            }
+            elapsed = System.nanoTime() - start;
+            serverCpu = os.getProcessCpuTime() - processStart - (threads.getCurrentThreadCpuTime() - clientStart);
+        } finally {
+            server.stop();
+        }
+
+        double gbps = bytes * 8 / (elapsed / 1e9) / 1e9;
+        double cores = serverCpu / (double) elapsed;
+        double coresPerGbps = gbps > 0 ? cores / gbps : Double.NaN;
+        System.out.printf("%-20s %10d packets %8.3f Gbps %8.3f cores %10.3f cores/Gbps%n", name, packets, gbps,
+                cores, coresPerGbps);
+        return coresPerGbps;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args command line arguments: pcapFile [seconds]
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: ZeroCopyBenchmark <pcap_file> [seconds]");
+            System.exit(1);
+        }
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+
+        // Keep the per-packet server logging out of the measurement
+        Logger.getLogger(IPBasedPcapServer.class.getName()).setLevel(Level.WARNING);
+        Logger.getLogger(PcapIPAnalyzer.class.getName()).setLevel(Level.WARNING);
+
+        try {
+            ZeroCopyBenchmark benchmark = new ZeroCopyBenchmark(args[0], seconds);
+            System.out.println("Streaming " + benchmark.positions.size() + " packets of " + benchmark.ipAddress
+                    + " for " + seconds + " s per path");
+            double copied = benchmark.run("heap copy", false, BASE_PORT);
+            double transferred = benchmark.run("zero copy", true, BASE_PORT + 1);
+            System.out.printf("CPU per Gbps: %.2fx lower with zero copy%n", copied / transferred);
+        } catch (IOException e) {
+            System.err.println("Error running benchmark: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Connects to a server that was just started, retrying until it listens.
+     */
+    private static Socket connect(int port) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted connecting to port " + port, interrupted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one length-prefixed packet and discards it.
+     *
+     * @return the packet length
+     */
+    private static int skipPacket(DataInputStream in, byte[] data) throws IOException {
+        int length = Integer.reverseBytes(in.readInt());
+        if (length < 0) {
+            throw new EOFException("Invalid packet length " + length);
+        }
+        for (int remaining = length; remaining > 0;) {
+            int read = in.read(data, 0, Math.min(remaining, data.length));
+            if (read < 0) {
+                throw new EOFException("Stream ends inside a packet");
+            }
+            remaining -= read;
+        }
+        return length;
+    }
+}